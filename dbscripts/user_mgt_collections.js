@@ -49,8 +49,8 @@ db.COUNTERS.insert({
     seq: 0
 
 });
-db.UM_TENANT.createIndex({UM_ID: 16},{unique: true});
-db.UM_TENANT.createIndex({UM_DOMAIN_NAME: 5},{unique: true});
+db.UM_TENANT.createIndex({UM_ID: 1},{unique: true});
+db.UM_TENANT.createIndex({UM_DOMAIN_NAME: 1},{unique: true});
 
 
 db.COUNTERS.insert({
@@ -60,7 +60,7 @@ db.COUNTERS.insert({
     seq: 0
 
 });
-db.UM_DOMAIN.createIndex({UM_DOMAIN_ID: 16,UM_TENANT_ID: 16},{unique: true});
+db.UM_DOMAIN.createIndex({UM_DOMAIN_ID: 1,UM_TENANT_ID: 1},{unique: true});
 
 
 db.COUNTERS.insert({
@@ -70,8 +70,8 @@ db.COUNTERS.insert({
     seq: 0
 
 });
-db.UM_USER.createIndex({UM_ID: 16,UM_TENANT_ID: 16},{unique: true});
-db.UM_USER.createIndex({UM_USER_NAME: 5,UM_TENANT_ID: 16},{unique: true});
+db.UM_USER.createIndex({UM_ID: 1,UM_TENANT_ID: 1},{unique: true});
+db.UM_USER.createIndex({UM_USER_NAME: 1,UM_TENANT_ID: 1},{unique: true});
 
 
 db.COUNTERS.insert({
@@ -81,8 +81,8 @@ db.COUNTERS.insert({
     seq: 0
 
 });
-db.UM_SYSTEM_USER.createIndex({UM_ID: 16,UM_TENANT_ID: 16},{unique: true});
-db.UM_SYSTEM_USER.createIndex({UM_USER_NAME: 5,UM_TENANT_ID: 16},{unique: true});
+db.UM_SYSTEM_USER.createIndex({UM_ID: 1,UM_TENANT_ID: 1},{unique: true});
+db.UM_SYSTEM_USER.createIndex({UM_USER_NAME: 1,UM_TENANT_ID: 1},{unique: true});
 
 
 db.COUNTERS.insert({
@@ -92,8 +92,8 @@ db.COUNTERS.insert({
     seq: 0
 
 });
-db.UM_ROLE.createIndex({UM_ID: 16,UM_TENANT_ID: 16},{unique: true});
-db.UM_ROLE.createIndex({UM_ROLE_NAME: 5,UM_TENANT_ID: 16},{unique: true});
+db.UM_ROLE.createIndex({UM_ID: 1,UM_TENANT_ID: 1},{unique: true});
+db.UM_ROLE.createIndex({UM_ROLE_NAME: 1,UM_TENANT_ID: 1},{unique: true});
 
 
 db.COUNTERS.insert({
@@ -103,11 +103,11 @@ db.COUNTERS.insert({
     seq: 0
 
 });
-db.UM_MODULE.createIndex({UM_ID: 16},{unique: true});
-db.UM_MODULE.createIndex({UM_MODULE_NAME: 5},{unique: true});
+db.UM_MODULE.createIndex({UM_ID: 1},{unique: true});
+db.UM_MODULE.createIndex({UM_MODULE_NAME: 1},{unique: true});
 
 
-db.UM_MODULE_ACTIONS.createIndex({UM_ACTION: 5,UM_MODULE_ID: 16},{unique: true});
+db.UM_MODULE_ACTIONS.createIndex({UM_ACTION: 1,UM_MODULE_ID: 1},{unique: true});
 
 
 db.COUNTERS.insert({
@@ -117,8 +117,8 @@ db.COUNTERS.insert({
     seq: 0
 
 });
-db.UM_PERMISSION.createIndex({UM_ID: 16,UM_TENANT_ID: 16},{unique: true});
-db.UM_PERMISSION.createIndex({UM_RESOURCE_ID: 5,UM_ACTION: 5,UM_TENANT_ID: 16},{unique: true});
+db.UM_PERMISSION.createIndex({UM_ID: 1,UM_TENANT_ID: 1},{unique: true});
+db.UM_PERMISSION.createIndex({UM_RESOURCE_ID: 1,UM_ACTION: 1,UM_TENANT_ID: 1},{unique: true});
 
 
 db.COUNTERS.insert({
@@ -128,8 +128,8 @@ db.COUNTERS.insert({
     seq: 0
 
 });
-db.UM_ROLE_PERMISSION.createIndex({UM_ID: 16,UM_TENANT_ID: 16},{unique: true});
-db.UM_ROLE_PERMISSION.createIndex({UM_PERMISSION_ID: 16,UM_ROLE_NAME: 5,UM_TENANT_ID: 16,UM_DOMAIN_ID: 16},{unique: true});
+db.UM_ROLE_PERMISSION.createIndex({UM_ID: 1,UM_TENANT_ID: 1},{unique: true});
+db.UM_ROLE_PERMISSION.createIndex({UM_PERMISSION_ID: 1,UM_ROLE_NAME: 1,UM_TENANT_ID: 1,UM_DOMAIN_ID: 1},{unique: true});
 
 
 db.COUNTERS.insert({
@@ -139,7 +139,7 @@ db.COUNTERS.insert({
     seq: 0
 
 });
-db.UM_USER_PERMISSION.createIndex({UM_ID: 16,UM_TENANT_ID: 16},{unique: true});
+db.UM_USER_PERMISSION.createIndex({UM_ID: 1,UM_TENANT_ID: 1},{unique: true});
 
 
 db.COUNTERS.insert({
@@ -149,11 +149,11 @@ db.COUNTERS.insert({
     seq: 0
 
 });
-db.UM_USER_ROLE.createIndex({UM_ID: 16,UM_TENANT_ID: 16},{unique: true});
-db.UM_USER_ROLE.createIndex({UM_USER_ID: 16,UM_ROLE_ID: 16,UM_TENANT_ID: 16},{unique: true});
+db.UM_USER_ROLE.createIndex({UM_ID: 1,UM_TENANT_ID: 1},{unique: true});
+db.UM_USER_ROLE.createIndex({UM_USER_ID: 1,UM_ROLE_ID: 1,UM_TENANT_ID: 1},{unique: true});
 
 
-db.UM_SHARED_USER_ROLE.createIndex({UM_USER_ID: 16,UM_ROLE_ID: 16,UM_USER_TENANT_ID: 16,UM_ROLE_TENANT_ID: 16},{unique: true});
+db.UM_SHARED_USER_ROLE.createIndex({UM_USER_ID: 1,UM_ROLE_ID: 1,UM_USER_TENANT_ID: 1,UM_ROLE_TENANT_ID: 1},{unique: true});
 
 
 db.COUNTERS.insert({
@@ -163,8 +163,8 @@ db.COUNTERS.insert({
     seq: 0
 
 });
-db.UM_ACCOUNT_MAPPING.createIndex({UM_ID: 16},{unique: true});
-db.UM_ACCOUNT_MAPPING.createIndex({UM_USER_NAME: 5,UM_TENANT_ID: 16,UM_USER_STORE_DOMAIN: 5,UM_ACC_LINK_ID: 16},{unique: true});
+db.UM_ACCOUNT_MAPPING.createIndex({UM_ID: 1},{unique: true});
+db.UM_ACCOUNT_MAPPING.createIndex({UM_USER_NAME: 1,UM_TENANT_ID: 1,UM_USER_STORE_DOMAIN: 1,UM_ACC_LINK_ID: 1},{unique: true});
 
 
 db.COUNTERS.insert({
@@ -174,8 +174,9 @@ db.COUNTERS.insert({
     seq: 0
 
 });
-db.UM_USER_ATTRIBUTE.createIndex({UM_ID: 16,UM_TENANT_ID: 16},{unique: true});
-db.UM_USER_ATTRIBUTE.createIndex({UM_USER_ID: 16});
+db.UM_USER_ATTRIBUTE.createIndex({UM_ID: 1,UM_TENANT_ID: 1},{unique: true});
+db.UM_USER_ATTRIBUTE.createIndex({UM_USER_ID: 1,UM_PROFILE_ID: 1,UM_TENANT_ID: 1});
+db.UM_USER_ATTRIBUTE.createIndex({"UM_ATTRS.k": 1,"UM_ATTRS.v": 1,UM_TENANT_ID: 1});
 
 
 db.COUNTERS.insert({
@@ -185,8 +186,8 @@ db.COUNTERS.insert({
     seq: 0
 
 });
-db.UM_DIALECT.createIndex({UM_ID: 16,UM_TENANT_ID: 16},{unique: true});
-db.UM_DIALECT.createIndex({UM_DIALECT_URI: 5,UM_TENANT_ID: 16},{unique: true});
+db.UM_DIALECT.createIndex({UM_ID: 1,UM_TENANT_ID: 1},{unique: true});
+db.UM_DIALECT.createIndex({UM_DIALECT_URI: 1,UM_TENANT_ID: 1},{unique: true});
 
 
 db.COUNTERS.insert({
@@ -196,8 +197,8 @@ db.COUNTERS.insert({
     seq: 0
 
 });
-db.UM_CLAIM.createIndex({UM_ID: 16,UM_TENANT_ID: 16},{unique: true});
-db.UM_CLAIM.createIndex({UM_CLAIM_URI: 5,UM_DIALECT_ID: 16,UM_TENANT_ID: 16,UM_MAPPED_ATTRIBUTE_DOMAIN: 5},{unique: true});
+db.UM_CLAIM.createIndex({UM_ID: 1,UM_TENANT_ID: 1},{unique: true});
+db.UM_CLAIM.createIndex({UM_CLAIM_URI: 1,UM_DIALECT_ID: 1,UM_TENANT_ID: 1,UM_MAPPED_ATTRIBUTE_DOMAIN: 1},{unique: true});
 
 
 db.COUNTERS.insert({
@@ -207,7 +208,7 @@ db.COUNTERS.insert({
     seq: 0
 
 });
-db.UM_PROFILE_CONFIG.createIndex({UM_ID: 16,UM_TENANT_ID: 16},{unique: true});
+db.UM_PROFILE_CONFIG.createIndex({UM_ID: 1,UM_TENANT_ID: 1},{unique: true});
 
 
 db.COUNTERS.insert({
@@ -217,7 +218,7 @@ db.COUNTERS.insert({
     seq: 0
 
 });
-db.UM_CLAIM_BEHAVIOR.createIndex({UM_ID: 16,UM_TENANT_ID: 16},{unique: true});
+db.UM_CLAIM_BEHAVIOR.createIndex({UM_ID: 1,UM_TENANT_ID: 1},{unique: true});
 
 
 db.COUNTERS.insert({
@@ -227,7 +228,7 @@ db.COUNTERS.insert({
     seq: 0
 
 });
-db.UM_HYBRID_ROLE.createIndex({UM_ID: 16,UM_TENANT_ID: 16},{unique: true});
+db.UM_HYBRID_ROLE.createIndex({UM_ID: 1,UM_TENANT_ID: 1},{unique: true});
 
 
 db.COUNTERS.insert({
@@ -237,8 +238,8 @@ db.COUNTERS.insert({
     seq: 0
 
 });
-db.UM_HYBRID_USER_ROLE.createIndex({UM_ID: 16,UM_TENANT_ID: 16},{unique: true});
-db.UM_HYBRID_USER_ROLE.createIndex({UM_USER_NAME: 5,UM_ROLE_ID: 16,UM_TENANT_ID: 16,UM_DOMAIN_ID: 16},{unique: true});
+db.UM_HYBRID_USER_ROLE.createIndex({UM_ID: 1,UM_TENANT_ID: 1},{unique: true});
+db.UM_HYBRID_USER_ROLE.createIndex({UM_USER_NAME: 1,UM_ROLE_ID: 1,UM_TENANT_ID: 1,UM_DOMAIN_ID: 1},{unique: true});
 
 
 db.COUNTERS.insert({
@@ -248,8 +249,8 @@ db.COUNTERS.insert({
     seq: 0
 
 });
-db.UM_SYSTEM_ROLE.createIndex({UM_ID: 16,UM_TENANT_ID: 16},{unique: true});
-db.UM_SYSTEM_ROLE.createIndex({UM_ROLE_NAME: 5,UM_TENANT_ID: 16});
+db.UM_SYSTEM_ROLE.createIndex({UM_ID: 1,UM_TENANT_ID: 1},{unique: true});
+db.UM_SYSTEM_ROLE.createIndex({UM_ROLE_NAME: 1,UM_TENANT_ID: 1});
 
 
 db.COUNTERS.insert({
@@ -259,8 +260,8 @@ db.COUNTERS.insert({
     seq: 0
 
 });
-db.UM_SYSTEM_USER_ROLE.createIndex({UM_ID: 16,UM_TENANT_ID: 16},{unique: true});
-db.UM_SYSTEM_USER_ROLE.createIndex({UM_USER_NAME: 5,UM_ROLE_ID: 16,UM_TENANT_ID: 16},{unique: true});
+db.UM_SYSTEM_USER_ROLE.createIndex({UM_ID: 1,UM_TENANT_ID: 1},{unique: true});
+db.UM_SYSTEM_USER_ROLE.createIndex({UM_USER_NAME: 1,UM_ROLE_ID: 1,UM_TENANT_ID: 1},{unique: true});
 
 
 db.COUNTERS.insert({
@@ -270,4 +271,4 @@ db.COUNTERS.insert({
     seq: 0
 
 });
-db.UM_HYBRID_REMEMBER_ME.createIndex({UM_ID: 16,UM_TENANT_ID: 16},{unique: true});
+db.UM_HYBRID_REMEMBER_ME.createIndex({UM_ID: 1,UM_TENANT_ID: 1},{unique: true});
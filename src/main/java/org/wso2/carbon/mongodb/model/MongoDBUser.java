@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.model;
+
+import java.util.Date;
+
+/**
+ * Row of the UM_USER collection.
+ */
+public class MongoDBUser {
+
+    private int id;
+    private String userName;
+    private String password;
+    private String saltValue;
+    private String passwordScheme;
+    private String passwordParams;
+    private boolean requireChange;
+    private Date changedTime;
+    private int tenantId;
+    private int failedLoginCount;
+    private Date lastFailedLogin;
+    private Date loginBlockedUntil;
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public void setUserName(String userName) {
+        this.userName = userName;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    public String getSaltValue() {
+        return saltValue;
+    }
+
+    public void setSaltValue(String saltValue) {
+        this.saltValue = saltValue;
+    }
+
+    public String getPasswordScheme() {
+        return passwordScheme;
+    }
+
+    public void setPasswordScheme(String passwordScheme) {
+        this.passwordScheme = passwordScheme;
+    }
+
+    public String getPasswordParams() {
+        return passwordParams;
+    }
+
+    public void setPasswordParams(String passwordParams) {
+        this.passwordParams = passwordParams;
+    }
+
+    public boolean isRequireChange() {
+        return requireChange;
+    }
+
+    public void setRequireChange(boolean requireChange) {
+        this.requireChange = requireChange;
+    }
+
+    public Date getChangedTime() {
+        return changedTime;
+    }
+
+    public void setChangedTime(Date changedTime) {
+        this.changedTime = changedTime;
+    }
+
+    public int getTenantId() {
+        return tenantId;
+    }
+
+    public void setTenantId(int tenantId) {
+        this.tenantId = tenantId;
+    }
+
+    public int getFailedLoginCount() {
+        return failedLoginCount;
+    }
+
+    public void setFailedLoginCount(int failedLoginCount) {
+        this.failedLoginCount = failedLoginCount;
+    }
+
+    public Date getLastFailedLogin() {
+        return lastFailedLogin;
+    }
+
+    public void setLastFailedLogin(Date lastFailedLogin) {
+        this.lastFailedLogin = lastFailedLogin;
+    }
+
+    public Date getLoginBlockedUntil() {
+        return loginBlockedUntil;
+    }
+
+    public void setLoginBlockedUntil(Date loginBlockedUntil) {
+        this.loginBlockedUntil = loginBlockedUntil;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.model.codec;
+
+import java.util.Date;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+/**
+ * Base codec decoding user store rows field by field straight into typed objects without building an intermediate
+ * document.
+ *
+ * @param <T> type of the decoded row
+ */
+public abstract class AbstractMongoDBCodec<T> implements Codec<T> {
+
+    @Override
+    public T decode(BsonReader reader, DecoderContext decoderContext) {
+        T value = newInstance();
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            if (reader.getCurrentBsonType() == BsonType.NULL) {
+                reader.readNull();
+            } else if (!decodeField(name, reader, value)) {
+                reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+        return value;
+    }
+
+    @Override
+    public void encode(BsonWriter writer, T value, EncoderContext encoderContext) {
+        writer.writeStartDocument();
+        encodeFields(writer, value);
+        writer.writeEndDocument();
+    }
+
+    /**
+     * Create an empty row to decode into.
+     *
+     * @return new row instance
+     */
+    protected abstract T newInstance();
+
+    /**
+     * Decode a field of the row. Fields which are not read are skipped.
+     *
+     * @param name   of the field
+     * @param reader positioned at the value of the field
+     * @param value  row to decode into
+     * @return true if the value was read
+     */
+    protected abstract boolean decodeField(String name, BsonReader reader, T value);
+
+    /**
+     * Encode the fields of a row.
+     *
+     * @param writer to write to
+     * @param value  row to encode
+     */
+    protected abstract void encodeFields(BsonWriter writer, T value);
+
+    /**
+     * Read a numeric value. Counters are stored as doubles by older scripts so every numeric type is accepted.
+     *
+     * @param reader positioned at the value
+     * @return int value
+     */
+    protected static int readInt(BsonReader reader) {
+        switch (reader.getCurrentBsonType()) {
+            case INT32:
+                return reader.readInt32();
+            case INT64:
+                return (int) reader.readInt64();
+            case DOUBLE:
+                return (int) reader.readDouble();
+            case STRING:
+                return (int) Double.parseDouble(reader.readString());
+            default:
+                reader.skipValue();
+                return 0;
+        }
+    }
+
+    /**
+     * Read a value as string.
+     *
+     * @param reader positioned at the value
+     * @return String value
+     */
+    protected static String readString(BsonReader reader) {
+        switch (reader.getCurrentBsonType()) {
+            case STRING:
+                return reader.readString();
+            case INT32:
+                return String.valueOf(reader.readInt32());
+            case INT64:
+                return String.valueOf(reader.readInt64());
+            case DOUBLE:
+                return String.valueOf(reader.readDouble());
+            case BOOLEAN:
+                return String.valueOf(reader.readBoolean());
+            default:
+                reader.skipValue();
+                return null;
+        }
+    }
+
+    /**
+     * Read a boolean value stored either as boolean or as string.
+     *
+     * @param reader positioned at the value
+     * @return boolean value
+     */
+    protected static boolean readBoolean(BsonReader reader) {
+        if (reader.getCurrentBsonType() == BsonType.BOOLEAN) {
+            return reader.readBoolean();
+        }
+        return Boolean.parseBoolean(readString(reader));
+    }
+
+    /**
+     * Read a date value.
+     *
+     * @param reader positioned at the value
+     * @return Date value or null if the value is not a date
+     */
+    protected static Date readDate(BsonReader reader) {
+        if (reader.getCurrentBsonType() == BsonType.DATE_TIME) {
+            return new Date(reader.readDateTime());
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    protected static void writeString(BsonWriter writer, String name, String value) {
+        if (value == null) {
+            writer.writeNull(name);
+        } else {
+            writer.writeString(name, value);
+        }
+    }
+}
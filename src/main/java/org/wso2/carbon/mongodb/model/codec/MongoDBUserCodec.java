@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.model.codec;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.wso2.carbon.mongodb.model.MongoDBUser;
+import org.wso2.carbon.mongodb.user.store.mgt.MongoDBCoreConstants;
+
+/**
+ * Codec of UM_USER rows.
+ */
+public class MongoDBUserCodec extends AbstractMongoDBCodec<MongoDBUser> {
+
+    @Override
+    public Class<MongoDBUser> getEncoderClass() {
+        return MongoDBUser.class;
+    }
+
+    @Override
+    protected MongoDBUser newInstance() {
+        return new MongoDBUser();
+    }
+
+    @Override
+    protected boolean decodeField(String name, BsonReader reader, MongoDBUser user) {
+        switch (name) {
+            case MongoDBCoreConstants.UM_ID:
+                user.setId(readInt(reader));
+                return true;
+            case MongoDBCoreConstants.UM_USER_NAME:
+                user.setUserName(readString(reader));
+                return true;
+            case MongoDBCoreConstants.UM_USER_PASSWORD:
+                user.setPassword(readString(reader));
+                return true;
+            case MongoDBCoreConstants.UM_SALT_VALUE:
+                user.setSaltValue(readString(reader));
+                return true;
+            case MongoDBCoreConstants.UM_PASSWORD_SCHEME:
+                user.setPasswordScheme(readString(reader));
+                return true;
+            case MongoDBCoreConstants.UM_PASSWORD_PARAMS:
+                user.setPasswordParams(readString(reader));
+                return true;
+            case MongoDBCoreConstants.UM_REQUIRE_CHANGE:
+                user.setRequireChange(readBoolean(reader));
+                return true;
+            case MongoDBCoreConstants.UM_CHANGED_TIME:
+                user.setChangedTime(readDate(reader));
+                return true;
+            case MongoDBCoreConstants.UM_TENANT_ID:
+                user.setTenantId(readInt(reader));
+                return true;
+            case MongoDBCoreConstants.UM_LOGIN_FAILURES:
+                if (reader.getCurrentBsonType() != BsonType.DOCUMENT) {
+                    return false;
+                }
+                decodeLoginFailures(reader, user);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    protected void encodeFields(BsonWriter writer, MongoDBUser user) {
+        writer.writeInt32(MongoDBCoreConstants.UM_ID, user.getId());
+        writeString(writer, MongoDBCoreConstants.UM_USER_NAME, user.getUserName());
+        writeString(writer, MongoDBCoreConstants.UM_USER_PASSWORD, user.getPassword());
+        writeString(writer, MongoDBCoreConstants.UM_SALT_VALUE, user.getSaltValue());
+        writeString(writer, MongoDBCoreConstants.UM_PASSWORD_SCHEME, user.getPasswordScheme());
+        writeString(writer, MongoDBCoreConstants.UM_PASSWORD_PARAMS, user.getPasswordParams());
+        writer.writeBoolean(MongoDBCoreConstants.UM_REQUIRE_CHANGE, user.isRequireChange());
+        if (user.getChangedTime() != null) {
+            writer.writeDateTime(MongoDBCoreConstants.UM_CHANGED_TIME, user.getChangedTime().getTime());
+        }
+        writer.writeInt32(MongoDBCoreConstants.UM_TENANT_ID, user.getTenantId());
+        if (user.getFailedLoginCount() > 0) {
+            writer.writeStartDocument(MongoDBCoreConstants.UM_LOGIN_FAILURES);
+            writer.writeInt32(MongoDBCoreConstants.UM_LOGIN_FAILURE_COUNT, user.getFailedLoginCount());
+            if (user.getLastFailedLogin() != null) {
+                writer.writeDateTime(MongoDBCoreConstants.UM_LOGIN_LAST_FAILURE, user.getLastFailedLogin().getTime());
+            }
+            if (user.getLoginBlockedUntil() != null) {
+                writer.writeDateTime(MongoDBCoreConstants.UM_LOGIN_BLOCKED_UNTIL,
+                        user.getLoginBlockedUntil().getTime());
+            }
+            writer.writeEndDocument();
+        }
+    }
+
+    private static void decodeLoginFailures(BsonReader reader, MongoDBUser user) {
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            if (reader.getCurrentBsonType() == BsonType.NULL) {
+                reader.readNull();
+            } else if (MongoDBCoreConstants.UM_LOGIN_FAILURE_COUNT.equals(name)) {
+                user.setFailedLoginCount(readInt(reader));
+            } else if (MongoDBCoreConstants.UM_LOGIN_LAST_FAILURE.equals(name)) {
+                user.setLastFailedLogin(readDate(reader));
+            } else if (MongoDBCoreConstants.UM_LOGIN_BLOCKED_UNTIL.equals(name)) {
+                user.setLoginBlockedUntil(readDate(reader));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+    }
+}
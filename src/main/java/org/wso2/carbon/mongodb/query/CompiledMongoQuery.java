@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.mongodb.query;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoDatabase;
+
+import org.bson.BsonBoolean;
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.wso2.carbon.mongodb.user.store.mgt.MongoDBCoreConstants;
+
+/**
+ * Point find compiled once from a JSON query template.
+ * <p>
+ * Only templates made of a collection, top level '?' parameters, the case insensitive user name regex and a constant
+ * projection are compiled. Each parameter gets a slot in a fixed size value array, so binding a request allocates
+ * nothing and executing it only builds the filter document. Any other template is left to
+ * {@link MongoPreparedStatementImpl}. Bound values are treated exactly as by that statement: parameters which are not
+ * part of the template are ignored and the filter operator leaves its field out of the filter.
+ */
+public final class CompiledMongoQuery {
+
+    private static final String PARAMETER = "?";
+    private static final BsonString CASE_INSENSITIVE_OPTION =
+            new BsonString(MongoDBCoreConstants.CASE_INSENSITIVE_OPTION);
+
+    private final String collectionName;
+    private final String[] parameters;
+    private final String[] fields;
+    private final boolean[] caseInsensitive;
+    private final BsonDocument projection;
+
+    private CompiledMongoQuery(String collectionName, List<String> parameters, List<String> fields,
+                               List<Boolean> caseInsensitive, BsonDocument projection) {
+        this.collectionName = collectionName;
+        this.parameters = parameters.toArray(new String[parameters.size()]);
+        this.fields = fields.toArray(new String[fields.size()]);
+        this.caseInsensitive = new boolean[this.fields.length];
+        for (int i = 0; i < this.caseInsensitive.length; i++) {
+            this.caseInsensitive[i] = caseInsensitive.get(i);
+        }
+        this.projection = projection;
+    }
+
+    /**
+     * Compile a query template.
+     *
+     * @param query JSON query template
+     * @return CompiledMongoQuery or null if the template is not a point find
+     */
+    public static CompiledMongoQuery compile(String query) {
+        if (query == null) {
+            return null;
+        }
+        JSONObject template;
+        try {
+            template = new JSONObject(query);
+        } catch (JSONException e) {
+            return null;
+        }
+        if (!template.has(MongoDBCoreConstants.COLLECTION_FIELD) || template.has(MongoDBCoreConstants.DISTINCT_FIELD)) {
+            return null;
+        }
+        List<String> parameters = new ArrayList<>();
+        List<String> fields = new ArrayList<>();
+        List<Boolean> caseInsensitive = new ArrayList<>();
+        BsonDocument projection = null;
+        Iterator<String> keys = template.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = template.get(key);
+            if (MongoDBCoreConstants.COLLECTION_FIELD.equals(key)) {
+                continue;
+            }
+            if (MongoDBCoreConstants.PROJECTION_FIELD.equals(key) && value instanceof JSONObject) {
+                projection = toProjection((JSONObject) value);
+                if (projection == null) {
+                    return null;
+                }
+            } else if (PARAMETER.equals(value)) {
+                parameters.add(key);
+                fields.add(key);
+                caseInsensitive.add(false);
+            } else if (value instanceof JSONObject && isCaseInsensitiveParameter((JSONObject) value)) {
+                // The case insensitive statement always binds the regex to the user name
+                parameters.add(MongoDBCoreConstants.UM_USER_NAME);
+                fields.add(key);
+                caseInsensitive.add(true);
+            } else {
+                return null;
+            }
+        }
+        return new CompiledMongoQuery(template.getString(MongoDBCoreConstants.COLLECTION_FIELD), parameters, fields,
+                caseInsensitive, projection);
+    }
+
+    /**
+     * Create the value array of a request, one slot per parameter of the template.
+     *
+     * @return Object[] empty slots
+     */
+    public Object[] newValues() {
+        return new Object[parameters.length];
+    }
+
+    /**
+     * Bind a parameter value into its slot. Parameters which are not part of the template are ignored.
+     *
+     * @param values    of the request
+     * @param parameter name of the parameter
+     * @param value     String, Integer, Long, Date or Boolean value
+     */
+    public void bind(Object[] values, String parameter, Object value) {
+        for (int i = 0; i < parameters.length; i++) {
+            if (parameters[i].equals(parameter)) {
+                values[i] = value;
+            }
+        }
+    }
+
+    /**
+     * Build the filter of a request.
+     *
+     * @param values of the request
+     * @return BsonDocument filter
+     * @throws MongoDBQueryException if a parameter is not bound or has an unsupported type
+     */
+    public BsonDocument toFilter(Object[] values) throws MongoDBQueryException {
+        BsonDocument filter = new BsonDocument();
+        for (int i = 0; i < fields.length; i++) {
+            Object value = values[i];
+            if (value == null) {
+                throw new MongoDBQueryException("Parameter count mismatch");
+            }
+            if (MongoDBCoreConstants.FILTER_OPERATOR.equals(value)) {
+                continue;
+            }
+            BsonValue bsonValue = toBsonValue(value);
+            if (caseInsensitive[i]) {
+                bsonValue = new BsonDocument(MongoDBCoreConstants.REGEX_FIELD, bsonValue)
+                        .append(MongoDBCoreConstants.OPTIONS_FIELD, CASE_INSENSITIVE_OPTION);
+            }
+            filter.append(fields[i], bsonValue);
+        }
+        return filter;
+    }
+
+    /**
+     * Find the first document matching a request.
+     *
+     * @param database with a codec registry able to decode the type
+     * @param values   of the request
+     * @param type     of the result row
+     * @param <T>      type of the result row
+     * @return first matching row or null if nothing matches
+     * @throws MongoDBQueryException if the filter cannot be built
+     */
+    public <T> T findOne(MongoDatabase database, Object[] values, Class<T> type) throws MongoDBQueryException {
+        FindIterable<T> result = database.getCollection(collectionName, type).find(toFilter(values));
+        if (projection != null) {
+            result.projection(projection);
+        }
+        return result.first();
+    }
+
+    public String getCollectionName() {
+        return collectionName;
+    }
+
+    private static boolean isCaseInsensitiveParameter(JSONObject value) {
+        return value.length() == 2 && PARAMETER.equals(value.opt(MongoDBCoreConstants.REGEX_FIELD)) &&
+                MongoDBCoreConstants.CASE_INSENSITIVE_OPTION.equals(value.opt(MongoDBCoreConstants.OPTIONS_FIELD));
+    }
+
+    private static BsonDocument toProjection(JSONObject object) {
+        BsonDocument projection = new BsonDocument();
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = object.get(key);
+            // Templates write the projection flags as strings
+            if (value instanceof Number) {
+                projection.append(key, new BsonInt32(((Number) value).intValue()));
+            } else if (value instanceof Boolean) {
+                projection.append(key, BsonBoolean.valueOf((Boolean) value));
+            } else if ("0".equals(value) || "1".equals(value)) {
+                projection.append(key, new BsonInt32(Integer.parseInt((String) value)));
+            } else {
+                return null;
+            }
+        }
+        return projection;
+    }
+
+    private static BsonValue toBsonValue(Object value) throws MongoDBQueryException {
+        if (value instanceof String) {
+            return new BsonString((String) value);
+        } else if (value instanceof Integer) {
+            return new BsonInt32((Integer) value);
+        } else if (value instanceof Long) {
+            return new BsonInt64((Long) value);
+        } else if (value instanceof Date) {
+            return new BsonDateTime(((Date) value).getTime());
+        } else if (value instanceof Boolean) {
+            return BsonBoolean.valueOf((Boolean) value);
+        }
+        throw new MongoDBQueryException("Unsupported parameter type " + value.getClass().getName());
+    }
+}
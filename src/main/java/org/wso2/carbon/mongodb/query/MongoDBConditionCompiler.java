@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCursor;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.MongoCursor;
+
+import org.wso2.carbon.mongodb.user.store.mgt.MongoDBCoreConstants;
+import org.wso2.carbon.mongodb.util.MongoDBRealmUtil;
+import org.wso2.carbon.mongodb.util.MongoDBUserAttributeLayout;
+import org.wso2.carbon.user.core.model.Condition;
+import org.wso2.carbon.user.core.model.ExpressionAttribute;
+import org.wso2.carbon.user.core.model.ExpressionCondition;
+import org.wso2.carbon.user.core.model.ExpressionOperation;
+import org.wso2.carbon.user.core.model.OperationalCondition;
+import org.wso2.carbon.user.core.model.OperationalOperation;
+
+/**
+ * Compiles a user search {@link Condition} tree into a single aggregation returning the matching user names, with
+ * sorting, skip and limit applied by the server.
+ * <p>
+ * Trees made only of attribute conditions start from UM_USER_ATTRIBUTE and match the indexed UM_ATTRS array before
+ * joining the few matching users. Trees with user name or role conditions start from UM_USER, where user name
+ * conditions use the {UM_TENANT_ID, UM_USER_NAME} index, and only join the attributes and role mappings they need.
+ * Role names are resolved to role IDs before the aggregation runs.
+ */
+public class MongoDBConditionCompiler {
+
+    private static final String ATTRIBUTES = "attributes";
+    private static final String USER_ROLES = "userRoles";
+    private static final String USER = "user";
+    private static final String SORT_DESCENDING = "DESC";
+    private static final String SKIP_FIELD = "$skip";
+    private static final String LIMIT_FIELD = "$limit";
+    private static final String AND_FIELD = "$and";
+    private static final String OR_FIELD = "$or";
+    private static final String FROM = "from";
+    private static final String LOCAL_FIELD = "localField";
+    private static final String FOREIGN_FIELD = "foreignField";
+    private static final String AS = "as";
+    private static final String SUM_FIELD = "$sum";
+    private static final String COUNT = "count";
+
+    private final DB db;
+    private final int tenantId;
+    private final String profileName;
+    private final boolean caseSensitiveUsername;
+    private String domainName;
+    private boolean useIndexHints;
+    private boolean attributeConditions;
+    private boolean userConditions;
+    private boolean roleConditions;
+    private String collection;
+    private BasicDBObject hint;
+    private String userNameField;
+
+    /**
+     * Constructor with four parameters.
+     *
+     * @param db                    DB connection to mongodb
+     * @param tenantId              tenant of the users
+     * @param profileName           profile of the attributes
+     * @param caseSensitiveUsername whether user names match case sensitively
+     */
+    public MongoDBConditionCompiler(DB db, int tenantId, String profileName, boolean caseSensitiveUsername) {
+        this.db = db;
+        this.tenantId = tenantId;
+        this.profileName = profileName;
+        this.caseSensitiveUsername = caseSensitiveUsername;
+    }
+
+    /**
+     * Hint the index matching the first stage of the aggregation. The index has to exist, so only enable it when
+     * the indexes of the user store are in place.
+     *
+     * @param useIndexHints whether to hint the index
+     */
+    public void setUseIndexHints(boolean useIndexHints) {
+        this.useIndexHints = useIndexHints;
+    }
+
+    /**
+     * Set the domain of the user store. User and role names of other domains match no user.
+     *
+     * @param domainName domain of the user store, null for the primary user store
+     */
+    public void setDomainName(String domainName) {
+        this.domainName = domainName;
+    }
+
+    /**
+     * Find the user names matching a condition.
+     *
+     * @param condition to match
+     * @param sortOrder ASC or DESC, users are sorted by user name
+     * @param offset    number of users to skip
+     * @param limit     maximum number of users to return
+     * @param batchSize cursor batch size
+     * @return MongoCursor over documents holding UM_USER_NAME
+     * @throws MongoDBQueryException if the condition is not supported or the query fails
+     */
+    public MongoCursor<BasicDBObject> execute(Condition condition, String sortOrder, int offset, int limit,
+                                              int batchSize) throws MongoDBQueryException {
+        try {
+            List<BasicDBObject> pipeline = match(condition);
+            pipeline.add(new BasicDBObject(MongoDBCoreConstants.SORT_FIELD,
+                    new BasicDBObject(userNameField, SORT_DESCENDING.equalsIgnoreCase(sortOrder) ? -1 : 1)));
+            if (offset > 0) {
+                pipeline.add(new BasicDBObject(SKIP_FIELD, offset));
+            }
+            pipeline.add(new BasicDBObject(LIMIT_FIELD, limit));
+            pipeline.add(new BasicDBObject(MongoDBCoreConstants.PROJECT_FIELD,
+                    new BasicDBObject(MongoDBCoreConstants.UM_USER_NAME, "$" + userNameField)
+                            .append(MongoDBCoreConstants.ID, 0)));
+            return aggregate(pipeline).batchSize(Math.min(batchSize, limit)).iterator();
+        } catch (MongoException e) {
+            throw new MongoDBQueryException("Failed to search users", e);
+        }
+    }
+
+    /**
+     * Count the users matching a condition, up to a maximum so that only as many users as needed are scanned.
+     *
+     * @param condition to match
+     * @param max       maximum count
+     * @return int number of matching users, at most max
+     * @throws MongoDBQueryException if the condition is not supported or the query fails
+     */
+    public int count(Condition condition, int max) throws MongoDBQueryException {
+        MongoCursor<BasicDBObject> cursor = null;
+        try {
+            List<BasicDBObject> pipeline = match(condition);
+            pipeline.add(new BasicDBObject(LIMIT_FIELD, max));
+            pipeline.add(new BasicDBObject(MongoDBCoreConstants.GROUP_FIELD,
+                    new BasicDBObject(MongoDBCoreConstants.ID, null).append(COUNT, new BasicDBObject(SUM_FIELD, 1))));
+            cursor = aggregate(pipeline).iterator();
+            return cursor.hasNext() ? ((Number) cursor.next().get(COUNT)).intValue() : 0;
+        } catch (MongoException e) {
+            throw new MongoDBQueryException("Failed to count users", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private List<BasicDBObject> match(Condition condition) throws MongoDBQueryException {
+        attributeConditions = false;
+        userConditions = false;
+        roleConditions = false;
+        scan(condition);
+        List<BasicDBObject> pipeline = new ArrayList<>();
+        if (attributeConditions && !userConditions && !roleConditions) {
+            collection = MongoDBCoreConstants.UM_USER_ATTRIBUTE;
+            hint = new BasicDBObject(MongoDBCoreConstants.UM_ATTRS + "." + MongoDBCoreConstants.UM_ATTRS_KEY, 1)
+                    .append(MongoDBCoreConstants.UM_ATTRS + "." + MongoDBCoreConstants.UM_ATTRS_VALUE, 1)
+                    .append(MongoDBCoreConstants.UM_TENANT_ID, 1);
+            BasicDBObject match = new BasicDBObject(MongoDBCoreConstants.UM_TENANT_ID, tenantId)
+                    .append(MongoDBCoreConstants.UM_PROFILE_ID, profileName);
+            pipeline.add(new BasicDBObject(MongoDBCoreConstants.MATCH_FIELD,
+                    new BasicDBObject(AND_FIELD, asList(match, compile(condition, true)))));
+            pipeline.add(lookup(MongoDBCoreConstants.UM_USER, MongoDBCoreConstants.UM_USER_ID,
+                    MongoDBCoreConstants.UM_ID, USER));
+            pipeline.add(new BasicDBObject(MongoDBCoreConstants.UNWIND_FIELD, "$" + USER));
+            userNameField = USER + "." + MongoDBCoreConstants.UM_USER_NAME;
+        } else {
+            collection = MongoDBCoreConstants.UM_USER;
+            hint = new BasicDBObject(MongoDBCoreConstants.UM_TENANT_ID, 1)
+                    .append(MongoDBCoreConstants.UM_USER_NAME, 1);
+            pipeline.add(new BasicDBObject(MongoDBCoreConstants.MATCH_FIELD,
+                    new BasicDBObject(MongoDBCoreConstants.UM_TENANT_ID, tenantId)));
+            if (attributeConditions) {
+                pipeline.add(lookup(MongoDBCoreConstants.UM_USER_ATTRIBUTE, MongoDBCoreConstants.UM_ID,
+                        MongoDBCoreConstants.UM_USER_ID, ATTRIBUTES));
+            }
+            if (roleConditions) {
+                pipeline.add(lookup(MongoDBCoreConstants.UM_USER_ROLE, MongoDBCoreConstants.UM_ID,
+                        MongoDBCoreConstants.UM_USER_ID, USER_ROLES));
+            }
+            BasicDBObject filter = compile(condition, false);
+            if (!attributeConditions && !roleConditions) {
+                // Fold into the first stage so that the user name index bounds the scan
+                pipeline.set(0, new BasicDBObject(MongoDBCoreConstants.MATCH_FIELD, new BasicDBObject(AND_FIELD,
+                        asList(new BasicDBObject(MongoDBCoreConstants.UM_TENANT_ID, tenantId), filter))));
+            } else {
+                pipeline.add(new BasicDBObject(MongoDBCoreConstants.MATCH_FIELD, filter));
+            }
+            userNameField = MongoDBCoreConstants.UM_USER_NAME;
+        }
+        return pipeline;
+    }
+
+    private AggregateIterable<BasicDBObject> aggregate(List<BasicDBObject> pipeline) {
+        AggregateIterable<BasicDBObject> iterable = ((MongoClient) db.getMongo()).getDatabase(db.getName())
+                .getCollection(collection, BasicDBObject.class).aggregate(pipeline).allowDiskUse(true);
+        if (useIndexHints) {
+            iterable.hint(hint);
+        }
+        return iterable;
+    }
+
+    private void scan(Condition condition) throws MongoDBQueryException {
+        if (condition instanceof OperationalCondition) {
+            scan(((OperationalCondition) condition).getLeftCondition());
+            scan(((OperationalCondition) condition).getRightCondition());
+        } else if (condition instanceof ExpressionCondition) {
+            String attributeName = ((ExpressionCondition) condition).getAttributeName();
+            if (ExpressionAttribute.USERNAME.toString().equals(attributeName)) {
+                userConditions = true;
+            } else if (ExpressionAttribute.ROLE.toString().equals(attributeName)) {
+                roleConditions = true;
+            } else {
+                attributeConditions = true;
+            }
+        } else {
+            throw new MongoDBQueryException("Unsupported condition: " + condition);
+        }
+    }
+
+    private BasicDBObject compile(Condition condition, boolean attributeRoot) throws MongoDBQueryException {
+        if (condition instanceof OperationalCondition) {
+            OperationalCondition operational = (OperationalCondition) condition;
+            String operator;
+            if (OperationalOperation.AND.toString().equals(operational.getOperation())) {
+                operator = AND_FIELD;
+            } else if (OperationalOperation.OR.toString().equals(operational.getOperation())) {
+                operator = OR_FIELD;
+            } else {
+                throw new MongoDBQueryException("Unsupported operation: " + operational.getOperation());
+            }
+            return new BasicDBObject(operator, asList(compile(operational.getLeftCondition(), attributeRoot),
+                    compile(operational.getRightCondition(), attributeRoot)));
+        }
+        ExpressionCondition expression = (ExpressionCondition) condition;
+        String attributeName = expression.getAttributeName();
+        if (ExpressionAttribute.USERNAME.toString().equals(attributeName)) {
+            String userName = MongoDBRealmUtil.removeOwnDomain(expression.getAttributeValue(), domainName);
+            if (userName == null) {
+                return new BasicDBObject(MongoDBCoreConstants.UM_USER_NAME,
+                        new BasicDBObject(MongoDBCoreConstants.IN_FIELD, new BasicDBList()));
+            }
+            return new BasicDBObject(MongoDBCoreConstants.UM_USER_NAME,
+                    toValue(expression.getOperation(), userName, !caseSensitiveUsername));
+        }
+        if (ExpressionAttribute.ROLE.toString().equals(attributeName)) {
+            String roleName = MongoDBRealmUtil.removeOwnDomain(expression.getAttributeValue(), domainName);
+            if (roleName == null) {
+                return new BasicDBObject(USER_ROLES + "." + MongoDBCoreConstants.UM_ROLE_ID,
+                        new BasicDBObject(MongoDBCoreConstants.IN_FIELD, new BasicDBList()));
+            }
+            return new BasicDBObject(USER_ROLES + "." + MongoDBCoreConstants.UM_ROLE_ID,
+                    new BasicDBObject(MongoDBCoreConstants.IN_FIELD,
+                            getRoleIds(toValue(expression.getOperation(), roleName, false))));
+        }
+        BasicDBObject attribute = new BasicDBObject(MongoDBCoreConstants.UM_ATTRS,
+                new BasicDBObject(MongoDBCoreConstants.ELEM_MATCH_FIELD,
+                        new BasicDBObject(MongoDBCoreConstants.UM_ATTRS_KEY, attributeName)
+                                .append(MongoDBCoreConstants.UM_ATTRS_VALUE, toValue(expression.getOperation(),
+                                        expression.getAttributeValue(), false))));
+        if (attributeRoot) {
+            return attribute;
+        }
+        return new BasicDBObject(ATTRIBUTES, new BasicDBObject(MongoDBCoreConstants.ELEM_MATCH_FIELD,
+                attribute.append(MongoDBCoreConstants.UM_PROFILE_ID, profileName)));
+    }
+
+    private Object toValue(String operation, String value, boolean caseInsensitive) throws MongoDBQueryException {
+        String escaped = MongoDBUserAttributeLayout.escapeRegex(value);
+        String regex;
+        if (ExpressionOperation.EQ.toString().equals(operation)) {
+            if (!caseInsensitive) {
+                return value;
+            }
+            regex = "^" + escaped + "$";
+        } else if (ExpressionOperation.SW.toString().equals(operation)) {
+            regex = "^" + escaped;
+        } else if (ExpressionOperation.EW.toString().equals(operation)) {
+            regex = escaped + "$";
+        } else if (ExpressionOperation.CO.toString().equals(operation)) {
+            regex = escaped;
+        } else {
+            throw new MongoDBQueryException("Unsupported operation: " + operation);
+        }
+        return caseInsensitive ? Pattern.compile(regex, Pattern.CASE_INSENSITIVE) : Pattern.compile(regex);
+    }
+
+    private BasicDBList getRoleIds(Object roleName) {
+        BasicDBList roleIds = new BasicDBList();
+        DBCursor cursor = db.getCollection(MongoDBCoreConstants.UM_ROLE).find(
+                new BasicDBObject(MongoDBCoreConstants.UM_TENANT_ID, tenantId)
+                        .append(MongoDBCoreConstants.UM_ROLE_NAME, roleName),
+                new BasicDBObject(MongoDBCoreConstants.UM_ID, 1).append(MongoDBCoreConstants.ID, 0));
+        try {
+            while (cursor.hasNext()) {
+                roleIds.add(cursor.next().get(MongoDBCoreConstants.UM_ID));
+            }
+        } finally {
+            cursor.close();
+        }
+        return roleIds;
+    }
+
+    private static BasicDBObject lookup(String from, String localField, String foreignField, String as) {
+        return new BasicDBObject(MongoDBCoreConstants.LOOKUP_FIELD, new BasicDBObject(FROM, from)
+                .append(LOCAL_FIELD, localField).append(FOREIGN_FIELD, foreignField).append(AS, as));
+    }
+
+    private static BasicDBList asList(Object... values) {
+        BasicDBList list = new BasicDBList();
+        for (Object value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.mongodb.query;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import org.wso2.carbon.mongodb.user.store.mgt.MongoDBCoreConstants;
+
+/**
+ * Reorders the aggregation pipelines built from the JSON query templates so that filters run before joins.
+ * <p>
+ * Templates always produce their stages as lookup, unwind, match, sort, group and project, so a predicate on the
+ * root collection is only applied after every join. The predicates of the match stage are split into root local
+ * ones, moved to a leading match which can use the indexes of the root collection, and joined ones. The joined
+ * predicates on the fields of a lookup are also pushed into that lookup as a sub pipeline, so that it only fetches
+ * the rows which can match. The joined predicates are still applied after the joins, which keeps the result equal
+ * to the original pipeline whatever the unwind options are. Sub pipelines require MongoDB 3.6 and compare scalar
+ * join keys.
+ */
+public final class MongoPipelineOptimizer {
+
+    private static final String FROM = "from";
+    private static final String LOCAL_FIELD = "localField";
+    private static final String FOREIGN_FIELD = "foreignField";
+    private static final String AS = "as";
+    private static final String LET = "let";
+    private static final String PIPELINE = "pipeline";
+    private static final String INCLUDE_ARRAY_INDEX = "includeArrayIndex";
+    private static final String EXPR_FIELD = "$expr";
+    private static final String EQ_FIELD = "$eq";
+    private static final String JOIN_KEY = "joinKey";
+
+    private MongoPipelineOptimizer() {
+    }
+
+    /**
+     * Optimize an aggregation pipeline. Pipelines which do not start with joins followed by a match are returned as
+     * they are.
+     *
+     * @param pipeline stages built from a query template
+     * @return List of optimized stages
+     */
+    public static List<DBObject> optimize(List<DBObject> pipeline) {
+        int matchIndex = -1;
+        Set<String> joinedFields = new HashSet<>();
+        for (int i = 0; i < pipeline.size() && matchIndex < 0; i++) {
+            DBObject stage = pipeline.get(i);
+            if (stage.containsField(MongoDBCoreConstants.MATCH_FIELD)) {
+                matchIndex = i;
+            } else if (stage.containsField(MongoDBCoreConstants.LOOKUP_FIELD)) {
+                Object as = ((DBObject) stage.get(MongoDBCoreConstants.LOOKUP_FIELD)).get(AS);
+                if (as == null) {
+                    return pipeline;
+                }
+                joinedFields.add(as.toString());
+            } else if (stage.containsField(MongoDBCoreConstants.UNWIND_FIELD)) {
+                Object unwind = stage.get(MongoDBCoreConstants.UNWIND_FIELD);
+                if (unwind instanceof DBObject && ((DBObject) unwind).get(INCLUDE_ARRAY_INDEX) != null) {
+                    joinedFields.add(((DBObject) unwind).get(INCLUDE_ARRAY_INDEX).toString());
+                }
+            } else {
+                // Any other stage may reshape the documents, so the match cannot move across it
+                return pipeline;
+            }
+        }
+        if (matchIndex <= 0 || joinedFields.isEmpty()) {
+            return pipeline;
+        }
+        DBObject match = (DBObject) pipeline.get(matchIndex).get(MongoDBCoreConstants.MATCH_FIELD);
+        BasicDBObject rootMatch = new BasicDBObject();
+        BasicDBObject joinedMatch = new BasicDBObject();
+        for (String key : match.keySet()) {
+            if (getJoinedField(key, joinedFields) == null) {
+                rootMatch.append(key, match.get(key));
+            } else {
+                joinedMatch.append(key, match.get(key));
+            }
+        }
+        List<DBObject> optimized = new ArrayList<>(pipeline.size() + 1);
+        if (!rootMatch.isEmpty()) {
+            optimized.add(new BasicDBObject(MongoDBCoreConstants.MATCH_FIELD, rootMatch));
+        }
+        for (int i = 0; i < pipeline.size(); i++) {
+            DBObject stage = pipeline.get(i);
+            if (i < matchIndex && stage.containsField(MongoDBCoreConstants.LOOKUP_FIELD)) {
+                stage = pushDown(stage, joinedMatch, joinedFields);
+            } else if (i == matchIndex) {
+                if (joinedMatch.isEmpty()) {
+                    continue;
+                }
+                stage = new BasicDBObject(MongoDBCoreConstants.MATCH_FIELD, joinedMatch);
+            }
+            optimized.add(stage);
+        }
+        return optimized;
+    }
+
+    /**
+     * Get the joined field a predicate applies to. Operators at the root of the match, such as $or, may refer to
+     * anything and are treated as joined.
+     *
+     * @param key          of the predicate
+     * @param joinedFields fields written by the joins
+     * @return String longest joined field the key refers to, or null if the predicate is root local
+     */
+    private static String getJoinedField(String key, Set<String> joinedFields) {
+        if (key.startsWith("$")) {
+            return key;
+        }
+        String joinedField = null;
+        for (String field : joinedFields) {
+            if ((key.equals(field) || key.startsWith(field + ".")) &&
+                    (joinedField == null || field.length() > joinedField.length())) {
+                joinedField = field;
+            }
+        }
+        return joinedField;
+    }
+
+    /**
+     * Rewrite a lookup on local and foreign fields as a sub pipeline filtering the joined rows.
+     *
+     * @param stage        lookup stage
+     * @param joinedMatch  joined predicates of the match
+     * @param joinedFields fields written by the joins
+     * @return DBObject rewritten stage, or the stage itself if no predicate applies to it
+     */
+    private static DBObject pushDown(DBObject stage, DBObject joinedMatch, Set<String> joinedFields) {
+        DBObject lookup = (DBObject) stage.get(MongoDBCoreConstants.LOOKUP_FIELD);
+        Object localField = lookup.get(LOCAL_FIELD);
+        Object foreignField = lookup.get(FOREIGN_FIELD);
+        String as = lookup.get(AS).toString();
+        if (localField == null || foreignField == null || lookup.containsField(PIPELINE)) {
+            return stage;
+        }
+        BasicDBObject filter = new BasicDBObject();
+        for (String key : joinedMatch.keySet()) {
+            if (key.startsWith(as + ".") && as.equals(getJoinedField(key, joinedFields))) {
+                filter.append(key.substring(as.length() + 1), joinedMatch.get(key));
+            }
+        }
+        if (filter.isEmpty()) {
+            return stage;
+        }
+        BasicDBList join = new BasicDBList();
+        join.add("$" + foreignField);
+        join.add("$$" + JOIN_KEY);
+        filter.append(EXPR_FIELD, new BasicDBObject(EQ_FIELD, join));
+        BasicDBList subPipeline = new BasicDBList();
+        subPipeline.add(new BasicDBObject(MongoDBCoreConstants.MATCH_FIELD, filter));
+        return new BasicDBObject(MongoDBCoreConstants.LOOKUP_FIELD, new BasicDBObject(FROM, lookup.get(FROM))
+                .append(LET, new BasicDBObject(JOIN_KEY, "$" + localField))
+                .append(PIPELINE, subPipeline).append(AS, as));
+    }
+}
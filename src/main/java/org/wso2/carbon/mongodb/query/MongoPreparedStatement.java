@@ -21,6 +21,8 @@ package org.wso2.carbon.mongodb.query;
 import java.util.Date;
 import java.util.List;
 
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
 import com.mongodb.WriteResult;
 import com.mongodb.DBCursor;
 import com.mongodb.AggregationOutput;
@@ -84,6 +86,15 @@ public interface MongoPreparedStatement {
      */
     DBCursor find() throws MongoDBQueryException;
 
+    /**
+     * Search documents from mongodb returning only the given fields.
+     *
+     * @param projection fields to return, replacing the projection of the query
+     * @return DBCursor instance
+     * @throws MongoDBQueryException if any exception occurred
+     */
+    DBCursor find(DBObject projection) throws MongoDBQueryException;
+
     /**
      * Search documents through aggregation pipeline from mongodb.
      *
@@ -92,6 +103,22 @@ public interface MongoPreparedStatement {
     @SuppressWarnings("deprecation")
     AggregationOutput aggregate();
 
+    /**
+     * Search documents through aggregation pipeline from mongodb and stream the results through a cursor.
+     *
+     * @param batchSize number of documents fetched per round trip
+     * @return Cursor over the results, to be closed by the caller
+     */
+    Cursor aggregate(int batchSize);
+
+    /**
+     * Explain the query with execution statistics. Updates and removes are explained as a find on their filter.
+     *
+     * @return explain output of the query planner
+     * @throws MongoDBQueryException if any exception occurred
+     */
+    DBObject explain() throws MongoDBQueryException;
+
     /**
      * Update document in mongodb.
      *
@@ -36,6 +36,10 @@ import com.mongodb.BasicDBObject;
 import com.mongodb.BulkWriteRequestBuilder;
 import com.mongodb.BulkWriteResult;
 import com.mongodb.BulkUpdateRequestBuilder;
+import com.mongodb.AggregationOptions;
+import com.mongodb.CommandResult;
+import com.mongodb.Cursor;
+import com.mongodb.MongoException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -49,6 +53,16 @@ import org.wso2.carbon.mongodb.user.store.mgt.MongoDBCoreConstants;
 public class MongoPreparedStatementImpl implements MongoPreparedStatement {
 
     private static final Log log = LogFactory.getLog(MongoPreparedStatementImpl.class);
+    private static final String EXPLAIN_COMMAND = "explain";
+    private static final String FIND_COMMAND = "find";
+    private static final String AGGREGATE_COMMAND = "aggregate";
+    private static final String FILTER_FIELD = "filter";
+    private static final String QUERY_FIELD = "query";
+    private static final String KEY_FIELD = "key";
+    private static final String PIPELINE_FIELD = "pipeline";
+    private static final String CURSOR_FIELD = "cursor";
+    private static final String VERBOSITY_FIELD = "verbosity";
+    private static final String EXECUTION_STATS = "executionStats";
 
     private DB db = null;
     private DBCollection collection = null;
@@ -242,6 +256,21 @@ public class MongoPreparedStatementImpl implements MongoPreparedStatement {
         }
     }
 
+    public DBCursor find(DBObject projection) throws MongoDBQueryException {
+        if (!matchArguments(this.queryJson)) {
+            throw new MongoDBQueryException("Parameter count mismatch");
+        } else {
+            if (convertToDBObject(defaultQuery)) {
+                return this.collection.find(this.query == null ? new BasicDBObject() : this.query, projection);
+            } else {
+                if (log.isDebugEnabled()) {
+                    log.debug("Using query: " + defaultQuery);
+                }
+                throw new MongoDBQueryException("Invalid query format - no collection found");
+            }
+        }
+    }
+
     public List distinct() throws MongoDBQueryException {
         if (!matchArguments(this.queryJson)) {
             throw new MongoDBQueryException("Parameter count mismatch");
@@ -259,35 +288,45 @@ public class MongoPreparedStatementImpl implements MongoPreparedStatement {
 
     @SuppressWarnings("deprecation")
     public AggregationOutput aggregate() {
-        JSONObject defaultObject = new JSONObject(defaultQuery);
-        getAggregationObjects(defaultObject);
-        List<DBObject> pipeline = new ArrayList<>();
+        List<DBObject> pipeline = buildPipeline();
+        return this.collection.aggregate(pipeline);
+    }
 
-        // Add lookup attribute to pipeline
-        if (mapLookUp != null) {
-            addLookUpAttribute(pipeline);
-        }
-        // Add unwind attribute to pipeline
-        if (mapUnwind != null) {
-            addUnwindAttribute(pipeline);
-        }
-        // Add match attribute to pipeline
-        if (mapMatch != null) {
-            addMatchAttribute(pipeline);
-        }
-        // Add sort attribute to pipeline
-        if (mapSort != null) {
-            addSortAttribute(pipeline);
-        }
-        // Add group attribute to pipeline
-        if (mapGroup != null) {
-            addGroupAttribute(pipeline);
+    public Cursor aggregate(int batchSize) {
+        List<DBObject> pipeline = buildPipeline();
+        return this.collection.aggregate(pipeline, AggregationOptions.builder().batchSize(batchSize).build());
+    }
+
+    public DBObject explain() throws MongoDBQueryException {
+        DBObject command;
+        if (defaultQuery.contains(MongoDBCoreConstants.MATCH_FIELD) ||
+                defaultQuery.contains(MongoDBCoreConstants.LOOKUP_FIELD)) {
+            List<DBObject> pipeline = buildPipeline();
+            command = new BasicDBObject(AGGREGATE_COMMAND, this.collection.getName())
+                    .append(PIPELINE_FIELD, pipeline).append(CURSOR_FIELD, new BasicDBObject());
+        } else if (convertToDBObject(defaultQuery)) {
+            DBObject filter = this.query == null ? new BasicDBObject() : this.query;
+            if (!this.distinctKey.isEmpty()) {
+                command = new BasicDBObject(MongoDBCoreConstants.DISTINCT_FIELD, this.collection.getName())
+                        .append(KEY_FIELD, this.distinctKey).append(QUERY_FIELD, filter);
+            } else {
+                // Updates and removes are explained as a find on their filter so that nothing is written
+                command = new BasicDBObject(FIND_COMMAND, this.collection.getName()).append(FILTER_FIELD, filter);
+            }
+        } else {
+            if (log.isDebugEnabled()) {
+                log.debug("Using query: " + defaultQuery);
+            }
+            throw new MongoDBQueryException("Invalid query format - no collection found");
         }
-        // Add project attribute to pipeline
-        if (mapProject != null) {
-            addProjectAttribute(pipeline);
+        try {
+            CommandResult result = this.db.command(new BasicDBObject(EXPLAIN_COMMAND, command)
+                    .append(VERBOSITY_FIELD, EXECUTION_STATS));
+            result.throwOnError();
+            return result;
+        } catch (MongoException e) {
+            throw new MongoDBQueryException("Failed to explain the query", e);
         }
-        return this.collection.aggregate(pipeline);
     }
 
     public WriteResult update() throws MongoDBQueryException {
@@ -360,6 +399,49 @@ public class MongoPreparedStatementImpl implements MongoPreparedStatement {
         }
     }
 
+    /**
+     * Get the filter of the query with the passed values.
+     *
+     * @return DBObject filter
+     * @throws MongoDBQueryException if the parameters do not match or the query has no collection
+     */
+    DBObject getFilter() throws MongoDBQueryException {
+        if (!matchArguments(this.queryJson)) {
+            throw new MongoDBQueryException("Parameter count mismatch");
+        }
+        if (!convertToDBObject(defaultQuery)) {
+            throw new MongoDBQueryException("Invalid query format - no collection found");
+        }
+        return this.query == null ? new BasicDBObject() : this.query;
+    }
+
+    /**
+     * Get the projection of the query, available after the filter is built.
+     *
+     * @return DBObject projection or null if the query has none
+     */
+    DBObject getProjection() {
+        return this.projection;
+    }
+
+    /**
+     * Get the collection of the query, available after the filter or pipeline is built.
+     *
+     * @return String collection name
+     */
+    String getCollectionName() {
+        return this.collection.getName();
+    }
+
+    /**
+     * Get the aggregation pipeline of the query with the passed values.
+     *
+     * @return List of pipeline stages
+     */
+    List<DBObject> getPipeline() {
+        return buildPipeline();
+    }
+
     /**
      * Check whether the provided arguments are equal to the parameters in json query.
      *
@@ -584,6 +666,44 @@ public class MongoPreparedStatementImpl implements MongoPreparedStatement {
         }
     }
 
+    /**
+     * Build the aggregation pipeline of the query with the passed values, with the filters moved ahead of the joins
+     * by {@link MongoPipelineOptimizer}.
+     *
+     * @return List of pipeline stages
+     */
+    private List<DBObject> buildPipeline() {
+        JSONObject defaultObject = new JSONObject(defaultQuery);
+        getAggregationObjects(defaultObject);
+        List<DBObject> pipeline = new ArrayList<>();
+
+        // Add lookup attribute to pipeline
+        if (mapLookUp != null) {
+            addLookUpAttribute(pipeline);
+        }
+        // Add unwind attribute to pipeline
+        if (mapUnwind != null) {
+            addUnwindAttribute(pipeline);
+        }
+        // Add match attribute to pipeline
+        if (mapMatch != null) {
+            addMatchAttribute(pipeline);
+        }
+        // Add sort attribute to pipeline
+        if (mapSort != null) {
+            addSortAttribute(pipeline);
+        }
+        // Add group attribute to pipeline
+        if (mapGroup != null) {
+            addGroupAttribute(pipeline);
+        }
+        // Add project attribute to pipeline
+        if (mapProject != null) {
+            addProjectAttribute(pipeline);
+        }
+        return MongoPipelineOptimizer.optimize(pipeline);
+    }
+
     /**
      * Check for multiple look up for aggregation pipeline.
      *
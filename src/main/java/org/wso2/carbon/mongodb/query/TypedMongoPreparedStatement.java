@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.query;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+import org.bson.conversions.Bson;
+import org.wso2.carbon.mongodb.model.codec.MongoDBCodecs;
+
+/**
+ * Prepared statement executing the JSON query templates on {@link MongoCollection} and decoding the results straight
+ * into typed rows through {@link MongoDBCodecs}.
+ * <p>
+ * Parameters are bound and the filter, projection and pipeline are built exactly as in
+ * {@link MongoPreparedStatementImpl}, so the same templates can be used with both statements.
+ *
+ * @param <T> type of the result rows
+ */
+public class TypedMongoPreparedStatement<T> {
+
+    private final MongoPreparedStatementImpl template;
+    private final MongoDatabase database;
+    private final Class<T> type;
+
+    /**
+     * Constructor with three parameters.
+     *
+     * @param db    DB connection to mongodb
+     * @param query to execute
+     * @param type  of the result rows
+     */
+    public TypedMongoPreparedStatement(DB db, String query, Class<T> type) {
+        this.template = new MongoPreparedStatementImpl(db, query);
+        this.database = getDatabase(db);
+        this.type = type;
+    }
+
+    /**
+     * Get the database of a connection with the codecs of the typed rows.
+     *
+     * @param db DB connection to mongodb
+     * @return MongoDatabase decoding through {@link MongoDBCodecs}
+     */
+    public static MongoDatabase getDatabase(DB db) {
+        return ((MongoClient) db.getMongo()).getDatabase(db.getName()).withCodecRegistry(MongoDBCodecs.REGISTRY);
+    }
+
+    public void setInt(String key, int parameter) {
+        template.setInt(key, parameter);
+    }
+
+    public void setString(String key, String parameter) {
+        template.setString(key, parameter);
+    }
+
+    public void setDate(String key, Date date) {
+        template.setDate(key, date);
+    }
+
+    public void setBoolean(String key, boolean parameter) {
+        template.setBoolean(key, parameter);
+    }
+
+    /**
+     * Search documents from mongodb.
+     *
+     * @return FindIterable of typed rows
+     * @throws MongoDBQueryException if the query cannot be built
+     */
+    public FindIterable<T> find() throws MongoDBQueryException {
+        Bson filter = toBson(template.getFilter());
+        FindIterable<T> result = getCollection().find(filter);
+        if (template.getProjection() != null) {
+            result.projection(toBson(template.getProjection()));
+        }
+        return result;
+    }
+
+    /**
+     * Search the first matching document from mongodb.
+     *
+     * @return typed row or null if nothing matches
+     * @throws MongoDBQueryException if the query cannot be built
+     */
+    public T findOne() throws MongoDBQueryException {
+        return find().first();
+    }
+
+    /**
+     * Search documents through aggregation pipeline from mongodb with a cursor.
+     *
+     * @param batchSize number of documents fetched per round trip
+     * @return AggregateIterable of typed rows
+     */
+    public AggregateIterable<T> aggregate(int batchSize) {
+        List<DBObject> stages = template.getPipeline();
+        List<Bson> pipeline = new ArrayList<>(stages.size());
+        for (DBObject stage : stages) {
+            pipeline.add(toBson(stage));
+        }
+        return getCollection().aggregate(pipeline, type).batchSize(batchSize);
+    }
+
+    public void close() {
+        template.close();
+    }
+
+    private MongoCollection<T> getCollection() {
+        return database.getCollection(template.getCollectionName(), type);
+    }
+
+    private static Bson toBson(DBObject object) {
+        if (object instanceof Bson) {
+            return (Bson) object;
+        }
+        return new BasicDBObject(object.toMap());
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.user.store.mgt;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
+
+import org.wso2.carbon.mongodb.util.MongoDBTaskExecutor;
+
+/**
+ * Non blocking companion of {@link MongoDBUserStoreManager}. Every operation runs on the shared user store executor
+ * and returns immediately, so callers are not blocked for the sequential database round trips of an operation.
+ * Failures complete the stage exceptionally with the UserStoreException of the operation as cause.
+ */
+public class MongoDBAsyncUserStoreManager {
+
+    private final MongoDBUserStoreManager userStoreManager;
+
+    /**
+     * Constructor with one parameter.
+     *
+     * @param userStoreManager to run the operations on
+     */
+    public MongoDBAsyncUserStoreManager(MongoDBUserStoreManager userStoreManager) {
+        this.userStoreManager = userStoreManager;
+    }
+
+    /**
+     * Authenticate a user.
+     *
+     * @param userName   of authenticating user
+     * @param credential of authenticating user
+     * @return CompletionStage of the authentication status
+     */
+    public CompletionStage<Boolean> authenticate(final String userName, final Object credential) {
+        return MongoDBTaskExecutor.supplyAsync(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return userStoreManager.authenticate(userName, credential);
+            }
+        });
+    }
+
+    /**
+     * Get the roles of a user.
+     *
+     * @param userName of user
+     * @return CompletionStage of the role names
+     */
+    public CompletionStage<String[]> getRoleListOfUser(final String userName) {
+        return MongoDBTaskExecutor.supplyAsync(new Callable<String[]>() {
+            @Override
+            public String[] call() throws Exception {
+                return userStoreManager.getRoleListOfUser(userName);
+            }
+        });
+    }
+
+    /**
+     * Check whether a user has a role.
+     *
+     * @param userName of user
+     * @param roleName of role
+     * @return CompletionStage of the membership status
+     */
+    public CompletionStage<Boolean> isUserInRole(final String userName, final String roleName) {
+        return MongoDBTaskExecutor.supplyAsync(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return userStoreManager.isUserInRole(userName, roleName);
+            }
+        });
+    }
+
+    /**
+     * Check whether a user has at least one of the given roles.
+     *
+     * @param userName  of user
+     * @param roleNames of roles
+     * @return CompletionStage of the membership status
+     */
+    public CompletionStage<Boolean> isUserInAnyRole(final String userName, final String[] roleNames) {
+        return MongoDBTaskExecutor.supplyAsync(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return userStoreManager.isUserInAnyRole(userName, roleNames);
+            }
+        });
+    }
+
+    /**
+     * Get claim values of a user.
+     *
+     * @param userName    of user
+     * @param claims      to read
+     * @param profileName of the claims
+     * @return CompletionStage of the claim values by claim URI
+     */
+    public CompletionStage<Map<String, String>> getUserClaimValues(final String userName, final String[] claims,
+                                                                   final String profileName) {
+        return MongoDBTaskExecutor.supplyAsync(new Callable<Map<String, String>>() {
+            @Override
+            public Map<String, String> call() throws Exception {
+                return userStoreManager.getUserClaimValues(userName, claims, profileName);
+            }
+        });
+    }
+
+    /**
+     * List users matching a filter.
+     *
+     * @param filter       to filter the search
+     * @param maxItemLimit to return
+     * @return CompletionStage of the user names
+     */
+    public CompletionStage<String[]> listUsers(final String filter, final int maxItemLimit) {
+        return MongoDBTaskExecutor.supplyAsync(new Callable<String[]>() {
+            @Override
+            public String[] call() throws Exception {
+                return userStoreManager.listUsers(filter, maxItemLimit);
+            }
+        });
+    }
+}
@@ -12,12 +12,20 @@ public class MongoDBCoreConstants {
     public static final String COLLECTION_FIELD = "collection";
     public static final String DISTINCT_FIELD = "distinct";
     public static final String SET_FIELD = "$set";
+    public static final String SET_ON_INSERT_FIELD = "$setOnInsert";
     public static final String PROJECT_FIELD = "$project";
     public static final String SORT_FIELD = "$sort";
     public static final String GROUP_FIELD = "$group";
     public static final String UNWIND_FIELD = "$unwind";
     public static final String DEPENDENCY_FIELD = "dependency";
     public static final String MATCH_FIELD = "$match";
+    public static final String ADD_TO_SET_FIELD = "$addToSet";
+    public static final String PULL_FIELD = "$pull";
+    public static final String EACH_FIELD = "$each";
+    public static final String IN_FIELD = "$in";
+    public static final String ELEM_MATCH_FIELD = "$elemMatch";
+    public static final String EXISTS_FIELD = "$exists";
+    public static final String UNSET_FIELD = "$unset";
 
     public static final String CASE_INSENSITIVE_OPTION = "i";
     public static final String LOOKUP_SUB = "$lookup_sub";
@@ -41,12 +49,27 @@ public class MongoDBCoreConstants {
     public static final String UM_USER_TENANT_ID = "UM_USER_TENANT_ID";
     public static final String UM_USER_PASSWORD = "UM_USER_PASSWORD";
     public static final String UM_SALT_VALUE = "UM_SALT_VALUE";
+    public static final String UM_PASSWORD_SCHEME = "UM_PASSWORD_SCHEME";
+    public static final String UM_PASSWORD_PARAMS = "UM_PASSWORD_PARAMS";
     public static final String UM_REQUIRE_CHANGE = "UM_REQUIRE_CHANGE";
     public static final String UM_CHANGED_TIME = "UM_CHANGED_TIME";
     public static final String UM_USER_ATTRIBUTE = "UM_USER_ATTRIBUTE";
     public static final String UM_ROLE = "UM_ROLE";
     public static final String UM_USER = "UM_USER";
     public static final String UM_SHARED_ROLE = "UM_SHARED_ROLE";
+    public static final String UM_SHARED_USER_ROLE = "UM_SHARED_USER_ROLE";
+    public static final String UM_DOMAIN = "UM_DOMAIN";
+    public static final String UM_DOMAIN_NAME = "UM_DOMAIN_NAME";
+    public static final String UM_ROLES = "UM_ROLES";
+    public static final String UM_ATTRS = "UM_ATTRS";
+    public static final String UM_ATTRS_KEY = "k";
+    public static final String UM_ATTRS_VALUE = "v";
+    public static final String UM_LOGIN_FAILURES = "UM_LOGIN_FAILURES";
+    public static final String UM_LOGIN_FAILURE_COUNT = "count";
+    public static final String UM_LOGIN_LAST_FAILURE = "lastFailure";
+    public static final String UM_LOGIN_BLOCKED_UNTIL = "blockedUntil";
+    public static final String UM_EMBEDDED_ROLE_STATE = "UM_EMBEDDED_ROLE_STATE";
+    public static final String UM_RECONCILED_TIME = "UM_RECONCILED_TIME";
 
     public static final String USERS_UM_USER_NAME = "users.UM_USER_NAME";
     public static final String USERS_UM_TENANT_ID = "users.UM_TENANT_ID";
@@ -55,6 +78,8 @@ public class MongoDBCoreConstants {
     public static final String ROLE_UM_ROLE_NAME = "role.UM_ROLE_NAME";
     public static final String ROLE_UM_TENANT_ID = "role.UM_TENANT_ID";
     public static final String USERS_FIELD = "users";
+    public static final String UM_ROLES_UM_ROLE_NAME = "UM_ROLES.UM_ROLE_NAME";
+    public static final String UM_ROLES_MATCHED_UM_ROLE_NAME = "UM_ROLES.$.UM_ROLE_NAME";
 
     public static final String NAME = "name";
     public static final String SEQ = "seq";
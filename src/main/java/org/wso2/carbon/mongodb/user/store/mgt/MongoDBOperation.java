@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.mongodb.user.store.mgt;
+
+import org.wso2.carbon.mongodb.user.store.mgt.caseinsensitive.MongoDBCaseInsensitiveConstants;
+
+/**
+ * Operations of the user store along with the properties holding their case sensitive and case insensitive query
+ * templates.
+ */
+enum MongoDBOperation {
+
+    SELECT_USER(MongoDBRealmConstants.SELECT_USER, MongoDBCaseInsensitiveConstants.SELECT_USER_CASE_INSENSITIVE),
+    GET_IS_USER_EXISTING(MongoDBRealmConstants.GET_IS_USER_EXISTING,
+            MongoDBCaseInsensitiveConstants.GET_IS_USER_EXISTING_CASE_INSENSITIVE),
+    USER_NAME_UNIQUE(MongoDBRealmConstants.USER_NAME_UNIQUE),
+    GET_IS_ROLE_EXISTING(MongoDBRealmConstants.GET_IS_ROLE_EXISTING),
+    ADD_USER(MongoDBRealmConstants.ADD_USER),
+    DELETE_USER(MongoDBRealmConstants.DELETE_USER),
+    ON_DELETE_USER_REMOVE_USER_ROLE(MongoDBRealmConstants.ON_DELETE_USER_REMOVE_USER_ROLE),
+    ON_DELETE_USER_REMOVE_ATTRIBUTE(MongoDBRealmConstants.ON_DELETE_USER_REMOVE_ATTRIBUTE),
+    UPDATE_USER_PASSWORD(MongoDBRealmConstants.UPDATE_USER_PASSWORD,
+            MongoDBCaseInsensitiveConstants.UPDATE_USER_PASSWORD_CASE_INSENSITIVE),
+    GET_USER_ID_FROM_USERNAME(MongoDBRealmConstants.GET_USER_ID_FROM_USERNAME,
+            MongoDBCaseInsensitiveConstants.GET_USER_ID_FROM_USERNAME_CASE_INSENSITIVE),
+    GET_TENANT_ID_FROM_USERNAME(MongoDBRealmConstants.GET_TENANT_ID_FROM_USERNAME,
+            MongoDBCaseInsensitiveConstants.GET_TENANT_ID_FROM_USERNAME_CASE_INSENSITIVE),
+    GET_USER_FILTER(MongoDBRealmConstants.GET_USER_FILTER,
+            MongoDBCaseInsensitiveConstants.GET_USER_FILTER_CASE_INSENSITIVE),
+    GET_PROPS_FOR_PROFILE(MongoDBRealmConstants.GET_PROPS_FOR_PROFILE),
+    GET_PROP_FOR_PROFILE(MongoDBRealmConstants.GET_PROP_FOR_PROFILE),
+    ADD_USER_PROPERTY(MongoDBRealmConstants.ADD_USER_PROPERTY),
+    UPDATE_USER_PROPERTY(MongoDBRealmConstants.UPDATE_USER_PROPERTY,
+            MongoDBCaseInsensitiveConstants.UPDATE_USER_PROPERTY_CASE_INSENSITIVE),
+    DELETE_USER_PROPERTY(MongoDBRealmConstants.DELETE_USER_PROPERTY,
+            MongoDBCaseInsensitiveConstants.DELETE_USER_PROPERTY_CASE_INSENSITIVE),
+    GET_PROFILE_NAMES(MongoDBRealmConstants.GET_PROFILE_NAMES),
+    GET_PROFILE_NAMES_FOR_USER(MongoDBRealmConstants.GET_PROFILE_NAMES_FOR_USER,
+            MongoDBCaseInsensitiveConstants.GET_PROFILE_NAMES_FOR_USER_CASE_INSENSITIVE),
+    ADD_ROLE(MongoDBRealmConstants.ADD_ROLE),
+    ADD_SHARED_ROLE(MongoDBRealmConstants.ADD_SHARED_ROLE),
+    DELETE_ROLE(MongoDBRealmConstants.DELETE_ROLE),
+    ON_DELETE_ROLE_REMOVE_USER_ROLE(MongoDBRealmConstants.ON_DELETE_ROLE_REMOVE_USER_ROLE),
+    UPDATE_ROLE_NAME(MongoDBRealmConstants.UPDATE_ROLE_NAME),
+    GET_ROLE_LIST(MongoDBRealmConstants.GET_ROLE_LIST),
+    GET_SHARED_ROLE_LIST(MongoDBRealmConstants.GET_SHARED_ROLE_LIST),
+    GET_USERS_IN_ROLE(MongoDBRealmConstants.GET_USERS_IN_ROLE),
+    GET_USERS_IN_SHARED_ROLE(MongoDBRealmConstants.GET_USERS_IN_SHARED_ROLE),
+    GET_USER_ROLE(MongoDBRealmConstants.GET_USER_ROLE, MongoDBCaseInsensitiveConstants.GET_USER_ROLE_CASE_INSENSITIVE),
+    GET_SHARED_ROLES_FOR_USER(MongoDBRealmConstants.GET_SHARED_ROLES_FOR_USER),
+    ADD_USER_TO_ROLE(MongoDBRealmConstants.ADD_USER_TO_ROLE,
+            MongoDBCaseInsensitiveConstants.ADD_USER_TO_ROLE_CASE_INSENSITIVE),
+    ADD_ROLE_TO_USER(MongoDBRealmConstants.ADD_ROLE_TO_USER,
+            MongoDBCaseInsensitiveConstants.ADD_ROLE_TO_USER_CASE_INSENSITIVE),
+    ADD_SHARED_ROLE_TO_USER(MongoDBRealmConstants.ADD_SHARED_ROLE_TO_USER,
+            MongoDBCaseInsensitiveConstants.ADD_SHARED_ROLE_TO_USER_CASE_INSENSITIVE),
+    REMOVE_USER_FROM_ROLE(MongoDBRealmConstants.REMOVE_USER_FROM_ROLE,
+            MongoDBCaseInsensitiveConstants.REMOVE_USER_FROM_ROLE_CASE_INSENSITIVE),
+    REMOVE_USER_FROM_SHARED_ROLE(MongoDBRealmConstants.REMOVE_USER_FROM_SHARED_ROLE,
+            MongoDBCaseInsensitiveConstants.REMOVE_USER_FROM_SHARED_ROLE_CASE_INSENSITIVE),
+    REMOVE_ROLE_FROM_USER(MongoDBRealmConstants.REMOVE_ROLE_FROM_USER,
+            MongoDBCaseInsensitiveConstants.REMOVE_ROLE_FROM_USER_CASE_INSENSITIVE);
+
+    private final String property;
+    private final String caseInsensitiveProperty;
+
+    MongoDBOperation(String property) {
+        this(property, property);
+    }
+
+    MongoDBOperation(String property, String caseInsensitiveProperty) {
+        this.property = property;
+        this.caseInsensitiveProperty = caseInsensitiveProperty;
+    }
+
+    /**
+     * Get the property holding the query template of the operation.
+     *
+     * @param caseSensitiveUsername whether user names are case sensitive
+     * @return String property name
+     */
+    String getProperty(boolean caseSensitiveUsername) {
+        return caseSensitiveUsername ? property : caseInsensitiveProperty;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.mongodb.user.store.mgt;
+
+import java.util.Map;
+
+import org.wso2.carbon.mongodb.query.CompiledMongoQuery;
+import org.wso2.carbon.user.core.UserCoreConstants;
+
+/**
+ * Operation table of a user store manager, resolved once from the realm configuration.
+ * <p>
+ * Holds the query template chosen for the case mode of the store and whether it binds the tenant, for every
+ * operation, so that requests neither look up properties nor scan templates. Templates which are point finds are
+ * also compiled, so that their requests bind parameters without building a prepared statement.
+ */
+final class MongoDBOperationTable {
+
+    private static final String CASE_INSENSITIVE_USERNAME = "CaseInsensitiveUsername";
+
+    private final String[] queries = new String[MongoDBOperation.values().length];
+    private final boolean[] tenantBound = new boolean[queries.length];
+    private final CompiledMongoQuery[] compiledQueries = new CompiledMongoQuery[queries.length];
+    private final boolean caseSensitiveUsername;
+    private final boolean userNameUniqueAcrossTenants;
+    private final boolean passwordSchemeStored;
+    private final String domainName;
+    private final int maxUserListLength;
+    private final int maxRoleListLength;
+    private final boolean userSearchIndexHints;
+
+    /**
+     * Constructor with one parameter.
+     *
+     * @param properties user store properties, with the default queries already filled in
+     */
+    MongoDBOperationTable(Map<String, String> properties) {
+        caseSensitiveUsername = !Boolean.parseBoolean(properties.get(CASE_INSENSITIVE_USERNAME));
+        userNameUniqueAcrossTenants = "true".equals(
+                properties.get(UserCoreConstants.RealmConfig.PROPERTY_USERNAME_UNIQUE));
+        domainName = properties.get(UserCoreConstants.RealmConfig.PROPERTY_DOMAIN_NAME);
+        maxUserListLength = parseListLength(properties.get(UserCoreConstants.RealmConfig.PROPERTY_MAX_USER_LIST));
+        maxRoleListLength = parseListLength(properties.get(UserCoreConstants.RealmConfig.PROPERTY_MAX_ROLE_LIST));
+        userSearchIndexHints = Boolean.parseBoolean(properties.get(MongoDBRealmConstants.USER_SEARCH_INDEX_HINTS));
+        for (MongoDBOperation operation : MongoDBOperation.values()) {
+            String query = properties.get(operation.getProperty(caseSensitiveUsername));
+            queries[operation.ordinal()] = query;
+            tenantBound[operation.ordinal()] = query != null && query.contains(MongoDBCoreConstants.UM_TENANT_ID);
+            compiledQueries[operation.ordinal()] = CompiledMongoQuery.compile(query);
+        }
+        // Custom queries written before the hashing scheme existed do not store it
+        passwordSchemeStored = storesPasswordScheme(MongoDBOperation.ADD_USER) &&
+                storesPasswordScheme(MongoDBOperation.UPDATE_USER_PASSWORD);
+    }
+
+    /**
+     * Get the query template of an operation.
+     *
+     * @param operation to look up
+     * @return String query or null if not configured
+     */
+    String getQuery(MongoDBOperation operation) {
+        return queries[operation.ordinal()];
+    }
+
+    /**
+     * Get the compiled query template of an operation.
+     *
+     * @param operation to look up
+     * @return CompiledMongoQuery or null if the template is not a point find
+     */
+    CompiledMongoQuery getCompiledQuery(MongoDBOperation operation) {
+        return compiledQueries[operation.ordinal()];
+    }
+
+    /**
+     * Check whether the query template of an operation binds the tenant id.
+     *
+     * @param operation to look up
+     * @return boolean status
+     */
+    boolean isTenantBound(MongoDBOperation operation) {
+        return tenantBound[operation.ordinal()];
+    }
+
+    /**
+     * Check whether user names are case sensitive.
+     *
+     * @return boolean status
+     */
+    boolean isCaseSensitiveUsername() {
+        return caseSensitiveUsername;
+    }
+
+    /**
+     * Check whether user names are unique across tenants.
+     *
+     * @return boolean status
+     */
+    boolean isUserNameUniqueAcrossTenants() {
+        return userNameUniqueAcrossTenants;
+    }
+
+    /**
+     * Check whether both the add user and the update password queries store the password hashing scheme.
+     *
+     * @return boolean status
+     */
+    boolean isPasswordSchemeStored() {
+        return passwordSchemeStored;
+    }
+
+    /**
+     * Get the domain name of the user store.
+     *
+     * @return String domain name or null if not configured
+     */
+    String getDomainName() {
+        return domainName;
+    }
+
+    /**
+     * Get the maximum number of users returned by a listing.
+     *
+     * @return int maximum length
+     */
+    int getMaxUserListLength() {
+        return maxUserListLength;
+    }
+
+    /**
+     * Get the maximum number of roles returned by a listing.
+     *
+     * @return int maximum length
+     */
+    int getMaxRoleListLength() {
+        return maxRoleListLength;
+    }
+
+    /**
+     * Check whether condition based user searches hint the attribute indexes.
+     *
+     * @return boolean status
+     */
+    boolean isUserSearchIndexHints() {
+        return userSearchIndexHints;
+    }
+
+    private static int parseListLength(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return UserCoreConstants.MAX_USER_ROLE_LIST;
+        }
+    }
+
+    private boolean storesPasswordScheme(MongoDBOperation operation) {
+        String query = getQuery(operation);
+        return query != null && query.contains(MongoDBCoreConstants.UM_PASSWORD_SCHEME);
+    }
+}
@@ -103,10 +103,7 @@ public class MongoDBRealmConstants {
     public static final String GET_IS_USER_EXISTING_MONGO_QUERY = "{'collection' : 'UM_USER','UM_USER_NAME' : '?'," +
             "'UM_TENANT_ID' : '?','projection' : {'UM_ID' : '1','_id' : '0'}}";
     public static final String GET_PROPS_FOR_PROFILE_MONGO_QUERY = "{'collection' : 'UM_USER_ATTRIBUTE'," +
-            "'$match' : {'UM_PROFILE_ID' : '?','UM_TENANT_ID' : '?','users.UM_USER_NAME' : '?'," +
-            "'users.UM_TENANT_ID' : '?'},'$lookup' : {'from' : 'UM_USER','localField' : 'UM_USER_ID'," +
-            "'foreignField' : 'UM_ID','as' : 'users'},'$unwind' : {'path' : '$users'," +
-            "'preserveNullAndEmptyArrays' : false}}";
+            "'UM_USER_ID' : '?','UM_PROFILE_ID' : '?','UM_TENANT_ID' : '?'}";
     public static final String GET_PROP_FOR_PROFILE_MONGO_QUERY =
             "{'collection' : 'UM_USER_ATTRIBUTE','UM_USER_ID' : '?','UM_TENANT_ID' : '?'}";
     public static final String GET_PROFILE_NAMES_MONGO_QUERY = "{'collection' : 'UM_USER_ATTRIBUTE'," +
@@ -141,8 +138,8 @@ public class MongoDBRealmConstants {
             "'foreignField' : 'UM_ID','as' : 'users'},{'from' : 'UM_ROLE','localField' : 'UM_ROLE_ID'," +
             "'foreignField' : 'UM_ID','as' : 'role'}],'$project' : {'UM_USER_NAME' : 1}}";
     public static final String ADD_USER_MONGO_QUERY = "{'collection' : 'UM_USER','UM_USER_NAME' : '?'," +
-            "'UM_USER_PASSWORD' : '?','UM_SALT_VALUE' : '?','UM_REQUIRE_CHANGE' : '?','UM_CHANGED_TIME' : '?'," +
-            "'UM_TENANT_ID' : '?','UM_ID' : '?'}";
+            "'UM_USER_PASSWORD' : '?','UM_SALT_VALUE' : '?','UM_PASSWORD_SCHEME' : '?','UM_PASSWORD_PARAMS' : '?'," +
+            "'UM_REQUIRE_CHANGE' : '?','UM_CHANGED_TIME' : '?','UM_TENANT_ID' : '?','UM_ID' : '?'}";
     public static final String ADD_USER_TO_ROLE_MONGO_QUERY = "{'collection' : 'UM_USER_ROLE','UM_USER_ID' : '?'," +
             "'UM_ROLE_ID' : '?','UM_TENANT_ID' : '?','UM_ID' : '?'}";
     public static final String ADD_USER_TO_ROLE_MONGO_QUERY_CONDITION1 =
@@ -180,7 +177,8 @@ public class MongoDBRealmConstants {
 
     public static final String UPDATE_USER_PASSWORD_MONGO_QUERY = "{'collection' : 'UM_USER','UM_USER_NAME' : '?'," +
             "'UM_TENANT_ID' : '?','projection' : {'$set'  : {'UM_USER_PASSWORD' : '?','UM_SALT_VALUE' : '?'," +
-            "'UM_REQUIRE_CHANGE' : '?','UM_CHANGED_TIME' : '?'}}}";
+            "'UM_PASSWORD_SCHEME' : '?','UM_PASSWORD_PARAMS' : '?','UM_REQUIRE_CHANGE' : '?'," +
+            "'UM_CHANGED_TIME' : '?'}}}";
     public static final String UPDATE_ROLE_NAME_MONGO_QUERY = "{'collection' : 'UM_ROLE','UM_ID' : '?'," +
             "'UM_TENANT_ID' : '?','projection' : {'$set' : {'UM_ROLE_NAME' : '?'}}}";
 
@@ -210,4 +208,32 @@ public class MongoDBRealmConstants {
     public static final String URL = "ConnectionURL";
     public static final String USERNAME = "ConnectionName";
     public static final String PASSWORD = "ConnectionPassword";
+    public static final String EMBEDDED_ROLE_MEMBERSHIP = "EmbeddedRoleMembership";
+    public static final String EMBEDDED_ROLE_RECONCILE_INTERVAL = "EmbeddedRoleReconcileInterval";
+    public static final String INDEX_VALIDATION = "IndexValidation";
+    public static final String CURSOR_BATCH_SIZE = "CursorBatchSize";
+    public static final String ASYNC_POOL_SIZE = "AsyncPoolSize";
+    public static final String VIRTUAL_THREAD_EXECUTION = "VirtualThreadExecution";
+    public static final String USER_NAME_FILTER_ENABLED = "UserNameFilterEnabled";
+    public static final String USER_NAME_FILTER_FALSE_POSITIVE_RATE = "UserNameFilterFalsePositiveRate";
+    public static final String USER_NAME_FILTER_REBUILD_INTERVAL = "UserNameFilterRebuildInterval";
+    public static final String USER_NAME_FILTER_REFRESH_INTERVAL = "UserNameFilterRefreshInterval";
+    public static final String ID_CACHE_TIMEOUT = "IdCacheTimeout";
+    public static final String ATTRIBUTE_CACHE_TIMEOUT = "AttributeCacheTimeout";
+    public static final String USER_SEARCH_INDEX_HINTS = "UserSearchIndexHints";
+    public static final String PASSWORD_HASHING_SCHEME = "PasswordHashingScheme";
+    public static final String PASSWORD_HASHING_ITERATIONS = "PasswordHashingIterations";
+    public static final String PASSWORD_HASHING_POOL_SIZE = "PasswordHashingPoolSize";
+    public static final String PASSWORD_HASHING_QUEUE_SIZE = "PasswordHashingQueueSize";
+    public static final String PASSWORD_HASHING_STATS_INTERVAL = "PasswordHashingStatsInterval";
+    public static final String PASSWORD_REHASH_ON_LOGIN = "PasswordRehashOnLogin";
+    public static final String AUTHENTICATION_CACHE_TIMEOUT = "AuthenticationCacheTimeout";
+    public static final String LOGIN_THROTTLE_ENABLED = "LoginThrottleEnabled";
+    public static final String LOGIN_THROTTLE_THRESHOLD = "LoginThrottleThreshold";
+    public static final String LOGIN_THROTTLE_BASE_DELAY = "LoginThrottleBaseDelay";
+    public static final String LOGIN_THROTTLE_MAX_DELAY = "LoginThrottleMaxDelay";
+    public static final String LOGIN_THROTTLE_FLUSH_INTERVAL = "LoginThrottleFlushInterval";
+    public static final String WRITE_BEHIND_ATTRIBUTES = "WriteBehindAttributes";
+    public static final String WRITE_BEHIND_BUFFER_SIZE = "WriteBehindBufferSize";
+    public static final String WRITE_BEHIND_FLUSH_INTERVAL = "WriteBehindFlushInterval";
 }
@@ -19,8 +19,12 @@
 package org.wso2.carbon.mongodb.user.store.mgt;
 
 import java.security.SecureRandom;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -28,43 +32,79 @@ import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Arrays;
-import java.util.Set;
 import java.util.Calendar;
-import java.util.GregorianCalendar;
 import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import javax.sql.DataSource;
 
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.WriteResult;
+import com.mongodb.Cursor;
 import com.mongodb.DBCursor;
 import com.mongodb.AggregationOutput;
 import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBList;
 import com.mongodb.MongoException;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
 
 import org.apache.commons.logging.Log;
+import org.bson.BsonDocument;
+import org.wso2.carbon.mongodb.query.CompiledMongoQuery;
+import org.wso2.carbon.mongodb.query.MongoDBConditionCompiler;
 import org.wso2.carbon.mongodb.query.MongoPreparedStatement;
 import org.wso2.carbon.mongodb.query.MongoPreparedStatementImpl;
+import org.wso2.carbon.mongodb.query.TypedMongoPreparedStatement;
 import org.apache.axiom.om.util.Base64;
 import org.apache.commons.logging.LogFactory;
 import org.json.JSONObject;
 
 import org.wso2.carbon.CarbonConstants;
+import org.wso2.carbon.mongodb.model.MongoDBUser;
 import org.wso2.carbon.mongodb.user.store.mgt.caseinsensitive.MongoDBCaseInsensitiveConstants;
+import org.wso2.carbon.mongodb.user.store.mgt.role.MongoDBEmbeddedRoleManager;
+import org.wso2.carbon.mongodb.user.store.mgt.role.MongoDBEmbeddedRoleReconciler;
+import org.wso2.carbon.mongodb.util.MongoDBAttributeWriteBuffer;
+import org.wso2.carbon.mongodb.util.MongoDBDigestPasswordHasher;
+import org.wso2.carbon.mongodb.util.MongoDBIndexManager;
+import org.wso2.carbon.mongodb.util.MongoDBLocalCache;
+import org.wso2.carbon.mongodb.util.MongoDBLoginThrottle;
+import org.wso2.carbon.mongodb.util.MongoDBPasswordHasher;
+import org.wso2.carbon.mongodb.util.MongoDBPasswordHashing;
+import org.wso2.carbon.mongodb.util.MongoDBPbkdf2PasswordHasher;
+import org.wso2.carbon.mongodb.util.MongoDBTaskExecutor;
+import org.wso2.carbon.mongodb.util.MongoDBUserAttributeLayout;
+import org.wso2.carbon.mongodb.util.MongoDBUserNameFilter;
 import org.wso2.carbon.mongodb.util.MongoDatabaseUtil;
+import org.wso2.carbon.mongodb.util.StringValueHandler;
 import org.wso2.carbon.user.core.claim.ClaimManager;
 import org.wso2.carbon.user.core.UserStoreException;
 import org.wso2.carbon.user.core.UserRealm;
 import org.wso2.carbon.user.core.common.AbstractUserStoreManager;
 import org.wso2.carbon.user.core.common.RoleContext;
 import org.wso2.carbon.user.core.hybrid.HybridJDBCConstants;
+import org.wso2.carbon.user.core.internal.UMListenerServiceComponent;
+import org.wso2.carbon.user.core.listener.UserOperationEventListener;
+import org.wso2.carbon.user.core.listener.UserStoreManagerListener;
 import org.wso2.carbon.user.core.UserCoreConstants;
 import org.wso2.carbon.user.core.profile.ProfileConfigurationManager;
 import org.wso2.carbon.user.api.Properties;
@@ -75,6 +115,8 @@ import org.wso2.carbon.user.core.tenant.Tenant;
 import org.wso2.carbon.mongodb.util.MongoDBRealmUtil;
 import org.wso2.carbon.user.core.util.DatabaseUtil;
 import org.wso2.carbon.user.core.util.UserCoreUtil;
+import org.wso2.carbon.user.core.common.PaginatedSearchResult;
+import org.wso2.carbon.user.core.model.Condition;
 import org.wso2.carbon.utils.Secret;
 import org.wso2.carbon.utils.UnsupportedSecretTypeException;
 import org.wso2.carbon.utils.multitenancy.MultitenantConstants;
@@ -85,11 +127,44 @@ import org.wso2.carbon.mongodb.query.MongoDBQueryException;
  */
 public class MongoDBUserStoreManager extends AbstractUserStoreManager {
 
-    private static final String CASE_INSENSITIVE_USERNAME = "CaseInsensitiveUsername";
+    private static final long DEFAULT_EMBEDDED_ROLE_RECONCILE_INTERVAL = 3600;
+    private static final double DEFAULT_USER_NAME_FILTER_FALSE_POSITIVE_RATE = 0.01;
+    private static final long DEFAULT_USER_NAME_FILTER_REBUILD_INTERVAL = 3600;
+    private static final long DEFAULT_USER_NAME_FILTER_REFRESH_INTERVAL = 10;
+    private static final long DEFAULT_ID_CACHE_TIMEOUT = 300;
+    private static final int ID_CACHE_SIZE = 10000;
+    private static final int ATTRIBUTE_CACHE_SIZE = 10000;
+    private static final int AUTHENTICATION_CACHE_SIZE = 10000;
+    private static final int DEFAULT_LOGIN_THROTTLE_THRESHOLD = 5;
+    private static final long DEFAULT_LOGIN_THROTTLE_BASE_DELAY = 1;
+    private static final long DEFAULT_LOGIN_THROTTLE_MAX_DELAY = 900;
+    private static final long DEFAULT_LOGIN_THROTTLE_FLUSH_INTERVAL = 5;
+    private static final int DEFAULT_WRITE_BEHIND_BUFFER_SIZE = 10000;
+    private static final long DEFAULT_WRITE_BEHIND_FLUSH_INTERVAL = 5;
+    private static final String CREDENTIAL_MAC_ALGORITHM = "HmacSHA256";
     private static DataSource dataSourceLocal = null;
     private static final Log log = LogFactory.getLog(MongoDBUserStoreManager.class);
-    private DB db;
+    private volatile DB db;
+    private volatile MongoDatabase typedDatabase;
     private SecureRandom random = new SecureRandom();
+    private MongoDBEmbeddedRoleManager embeddedRoleManager;
+    private volatile MongoDBUserNameFilter userNameFilter;
+    private volatile MongoDBLoginThrottle loginThrottle;
+    private volatile MongoDBAttributeWriteBuffer attributeWriteBuffer;
+    private Set<String> writeBehindAttributes = Collections.emptySet();
+    private MongoDBLocalCache<String, Integer> userIdCache = new MongoDBLocalCache<>(0, 0);
+    private MongoDBLocalCache<String, Map<String, Map<String, String>>> attributeCache = new MongoDBLocalCache<>(0, 0);
+    private String passwordScheme;
+    private String passwordParams;
+    private boolean rehashOnLogin;
+    private String legacyDigestFunction;
+    private boolean storeSaltedPasswords;
+    private MongoDBLocalCache<String, String> authenticationCache = new MongoDBLocalCache<>(0, 0);
+    private final byte[] credentialMacKey = new byte[32];
+    private MongoDBOperationTable operations = new MongoDBOperationTable(Collections.<String, String>emptyMap());
+    private int cursorBatchSize = MongoDatabaseUtil.DEFAULT_BATCH_SIZE;
+    private boolean embeddedRoleMembership;
+    private String storeKey;
 
     /**
      * Empty Constructor.
@@ -107,6 +182,38 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         this.realmConfig = configuration;
         this.tenantId = tenantId;
         realmConfig.setUserStoreProperties(MongoDBRealmUtil.getMongoProperties(realmConfig.getUserStoreProperties()));
+        operations = new MongoDBOperationTable(realmConfig.getUserStoreProperties());
+        // Key of the per store and tenant helpers shared by every manager of the tenant
+        storeKey = realmConfig.getUserStoreProperty(MongoDBRealmConstants.URL) + "#" + tenantId;
+        long idCacheTimeout;
+        try {
+            idCacheTimeout = Long.parseLong(realmConfig.getUserStoreProperty(MongoDBRealmConstants.ID_CACHE_TIMEOUT));
+        } catch (Exception e) {
+            idCacheTimeout = DEFAULT_ID_CACHE_TIMEOUT;
+        }
+        userIdCache = new MongoDBLocalCache<>(ID_CACHE_SIZE, idCacheTimeout);
+        long attributeCacheTimeout;
+        try {
+            attributeCacheTimeout = Long.parseLong(
+                    realmConfig.getUserStoreProperty(MongoDBRealmConstants.ATTRIBUTE_CACHE_TIMEOUT));
+        } catch (Exception e) {
+            attributeCacheTimeout = 0;
+        }
+        attributeCache = new MongoDBLocalCache<>(ATTRIBUTE_CACHE_SIZE, attributeCacheTimeout);
+        long authenticationCacheTimeout;
+        try {
+            authenticationCacheTimeout = Long.parseLong(
+                    realmConfig.getUserStoreProperty(MongoDBRealmConstants.AUTHENTICATION_CACHE_TIMEOUT));
+        } catch (Exception e) {
+            authenticationCacheTimeout = 0;
+        }
+        authenticationCache = new MongoDBLocalCache<>(AUTHENTICATION_CACHE_SIZE, authenticationCacheTimeout);
+        // Never leaves the node, so cached MACs are useless to anyone reading a heap dump without the key
+        random.nextBytes(credentialMacKey);
+        initPasswordHashing();
+        cursorBatchSize = resolveCursorBatchSize();
+        embeddedRoleMembership = Boolean.parseBoolean(
+                realmConfig.getUserStoreProperty(MongoDBRealmConstants.EMBEDDED_ROLE_MEMBERSHIP));
         if (realmConfig.getUserStoreProperty(UserCoreConstants.RealmConfig.READ_GROUPS_ENABLED) != null) {
             readGroupsEnabled = Boolean.parseBoolean(
                     realmConfig.getUserStoreProperty(UserCoreConstants.RealmConfig.READ_GROUPS_ENABLED));
@@ -141,17 +248,18 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         this.db = db;
         this.dataSource = dataSourceLocal;
 
-        if (db == null) {
-            db = MongoDatabaseUtil.getRealmDataSource(realmConfig);
+        if (this.db == null) {
+            this.db = MongoDatabaseUtil.getRealmDataSource(realmConfig);
         }
         if (dataSource == null) {
             dataSource = DatabaseUtil.getRealmDataSource(realmConfig);
         }
-        if (db == null || dataSource == null) {
+        if (this.db == null || dataSource == null) {
             throw new UserStoreException("User management data source is null");
         }
         doInitialSetup();
         this.persistDomain();
+        initEmbeddedRoleMembership();
 
         // Required to add the initial admin data for primary user stores
         if (addInitData && realmConfig.isPrimary()) {
@@ -211,14 +319,7 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
             log.debug("value of skipInitData: " + skipInitData);
         }
         try {
-            db = loadUserStoreSpecificDataSource();
-            if (db == null) {
-                db = (DB) properties.get(UserCoreConstants.DATA_SOURCE);
-            }
-            if (db == null) {
-                db = MongoDatabaseUtil.getRealmDataSource(realmConfig);
-                properties.put(UserCoreConstants.DATA_SOURCE, db);
-            }
+            loadUserStoreSpecificDataSource();
         } catch (UserStoreException e) {
             log.error("Failed to load the data source", e);
         }
@@ -235,6 +336,7 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
 
         this.persistDomain();
         doInitialSetup();
+        initEmbeddedRoleMembership();
         if (!skipInitData && realmConfig.isPrimary()) {
             addInitialAdminData(Boolean.parseBoolean(realmConfig.getAddAdmin()), !isInitSetupDone());
         }
@@ -260,21 +362,115 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         if (profileName == null) {
             profileName = UserCoreConstants.DEFAULT_PROFILE;
         }
-        MongoPreparedStatement prepStmt = null;
-        String[] propertyNamesSorted = propertyNames.clone();
-        Arrays.sort(propertyNamesSorted);
+        MongoDBAttributeWriteBuffer buffer = attributeWriteBuffer;
+        Map<String, String> pending = buffer == null ? null : buffer.getPending(getUserCacheKey(userName), profileName);
+        // The cache is bypassed while writes are pending so that it never holds the values they replace
+        Map<String, String> attributes = pending == null ? getProfileAttributes(userName, profileName) :
+                loadProfileAttributes(userName, profileName);
         Map<String, String> map = new HashMap<>();
+        for (String propertyName : propertyNames) {
+            String value = pending != null && pending.containsKey(propertyName) ? pending.get(propertyName) :
+                    attributes.get(propertyName);
+            if (value != null) {
+                map.put(propertyName, value);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Get all attributes of a user profile, from the attribute cache when it is enabled. Attributes loaded while
+     * the user was invalidated are returned but not cached.
+     *
+     * @param userName    username of user
+     * @param profileName profile name of user
+     * @return Map of attribute values by attribute name
+     * @throws UserStoreException if any exception occurred
+     */
+    private Map<String, String> getProfileAttributes(String userName, String profileName) throws UserStoreException {
+        if (!attributeCache.isEnabled()) {
+            return loadProfileAttributes(userName, profileName);
+        }
+        String userKey = getUserCacheKey(userName);
+        long generation = attributeCache.getGeneration(userKey);
+        Map<String, Map<String, String>> profiles = attributeCache.get(userKey);
+        if (profiles != null) {
+            Map<String, String> attributes = profiles.get(profileName);
+            if (attributes != null) {
+                return attributes;
+            }
+        }
+        Map<String, String> attributes = Collections.unmodifiableMap(loadProfileAttributes(userName, profileName));
+        if (profiles == null) {
+            profiles = new ConcurrentHashMap<>();
+            profiles.put(profileName, attributes);
+            attributeCache.put(userKey, profiles, generation);
+        } else if (attributeCache.getGeneration(userKey) == generation) {
+            // An invalidation after this check removes the whole map of profiles, including this entry
+            profiles.put(profileName, attributes);
+        }
+        return attributes;
+    }
 
+    /**
+     * Read the attributes of a user profile. The user ID is resolved through the ID cache and the attribute
+     * document is read with a point query on {UM_USER_ID, UM_PROFILE_ID, UM_TENANT_ID}. Templates configured as a
+     * $lookup aggregation from UM_USER_ATTRIBUTE are still run as such.
+     *
+     * @param userName    username of user
+     * @param profileName profile name of user
+     * @return Map of attribute values by attribute name
+     * @throws UserStoreException if any exception occurred
+     */
+    private Map<String, String> loadProfileAttributes(String userName, String profileName)
+            throws UserStoreException {
+        String mongoQuery = operations.getQuery(MongoDBOperation.GET_PROPS_FOR_PROFILE);
+        if (mongoQuery.contains(MongoDBCoreConstants.LOOKUP_FIELD)) {
+            return aggregateProfileAttributes(mongoQuery, userName, profileName);
+        }
+        Map<String, String> map = new HashMap<>();
+        MongoPreparedStatement prepStmt = null;
+        DB dbConnection = loadUserStoreSpecificDataSource();
         try {
-            if (db == null) {
-                db = loadUserStoreSpecificDataSource();
+            int userId = getCachedUserID(dbConnection, userName);
+            if (userId == 0) {
+                return map;
+            }
+            prepStmt = new MongoPreparedStatementImpl(dbConnection, mongoQuery);
+            prepStmt.setInt(MongoDBCoreConstants.UM_USER_ID, userId);
+            prepStmt.setString(MongoDBCoreConstants.UM_PROFILE_ID, profileName);
+            if (operations.isTenantBound(MongoDBOperation.GET_PROPS_FOR_PROFILE)) {
+                prepStmt.setInt(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
             }
-            String mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.GET_PROPS_FOR_PROFILE);
-            prepStmt = new MongoPreparedStatementImpl(db, mongoQuery);
+            DBCursor cursor = prepStmt.find();
+            while (cursor.hasNext()) {
+                DBObject object = cursor.next();
+                object.removeField(MongoDBCoreConstants.ID);
+                object.removeField(MongoDBCoreConstants.UM_ATTRS);
+                for (String key : object.keySet()) {
+                    map.put(key, object.get(key).toString());
+                }
+            }
+        } catch (MongoDBQueryException e) {
+            throw new UserStoreException("Error occurred while reading the attributes of user: " + userName, e);
+        } finally {
+            if (prepStmt != null) {
+                prepStmt.close();
+            }
+        }
+        return map;
+    }
+
+    private Map<String, String> aggregateProfileAttributes(String mongoQuery, String userName, String profileName)
+            throws UserStoreException {
+        MongoPreparedStatement prepStmt = null;
+        Map<String, String> map = new HashMap<>();
+        try {
+            prepStmt = new MongoPreparedStatementImpl(loadUserStoreSpecificDataSource(), mongoQuery);
             prepStmt.setString(MongoDBCoreConstants.USERS_UM_USER_NAME, userName);
             prepStmt.setString(MongoDBCoreConstants.UM_PROFILE_NAME, profileName);
 
-            if (mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
+            if (operations.isTenantBound(MongoDBOperation.GET_PROPS_FOR_PROFILE)) {
                 prepStmt.setInt(MongoDBCoreConstants.USERS_UM_TENANT_ID, tenantId);
                 prepStmt.setInt(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
             }
@@ -284,13 +480,9 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
             for (DBObject object : results) {
                 object.removeField(MongoDBCoreConstants.ID);
                 object.removeField(MongoDBCoreConstants.USERS_FIELD);
-                Set<String> keys = object.keySet();
-                for (String key : keys) {
-                    String value = object.get(key).toString();
-                    if (Arrays.binarySearch(propertyNamesSorted, key) < 0) {
-                        continue;
-                    }
-                    map.put(key, value);
+                object.removeField(MongoDBCoreConstants.UM_ATTRS);
+                for (String key : object.keySet()) {
+                    map.put(key, object.get(key).toString());
                 }
             }
         } finally {
@@ -301,6 +493,15 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         return map;
     }
 
+    /**
+     * Drop the cached attributes of a user after they have been changed.
+     *
+     * @param userName of user
+     */
+    private void invalidateAttributeCache(String userName) {
+        attributeCache.remove(getUserCacheKey(userName));
+    }
+
     /**
      * Check whether the supplied role is available in user store.
      *
@@ -348,11 +549,11 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         String roleName = context.getRoleName();
         Map<String, Object> map = new HashMap<>();
         map.put(MongoDBCoreConstants.UM_ROLE_NAME, roleName);
-        String mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.GET_IS_ROLE_EXISTING);
+        String mongoQuery = operations.getQuery(MongoDBOperation.GET_IS_ROLE_EXISTING);
         if (mongoQuery == null) {
             throw new UserStoreException("Mongo query cannot be null");
         }
-        if (mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
+        if (operations.isTenantBound(MongoDBOperation.GET_IS_ROLE_EXISTING)) {
             map.put(MongoDBCoreConstants.UM_TENANT_ID, ((JDBCRoleContext) context).getTenantId());
             isExisting = isValueExisting(mongoQuery, map);
         } else {
@@ -364,10 +565,8 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
     private boolean isValueExisting(String mongoQuery, Map<String, Object> params) throws UserStoreException {
         try {
             boolean isExisting = false;
-            if (db == null) {
-                db = loadUserStoreSpecificDataSource();
-            }
-            if (MongoDatabaseUtil.getIntegerValueFromDatabase(db, mongoQuery, params) > -1) {
+            if (MongoDatabaseUtil.getIntegerValueFromDatabase(loadUserStoreSpecificDataSource(), mongoQuery,
+                    params) > -1) {
                 isExisting = true;
             }
             return isExisting;
@@ -384,37 +583,60 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
      */
     protected boolean doCheckExistingUser(String userName) throws UserStoreException {
 
-        Map<String, Object> map = new HashMap<>();
-        String mongoQuery;
-        if (isCaseSensitiveUsername()) {
-            mongoQuery = realmConfig.getUserStoreProperty(
-                    MongoDBCaseInsensitiveConstants.GET_IS_USER_EXISTING_CASE_INSENSITIVE);
-        } else {
-            mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.GET_IS_USER_EXISTING);
+        if (isKnownMissingUser(userName)) {
+            return false;
         }
-        if (mongoQuery == null) {
+
+        if (operations.getQuery(MongoDBOperation.GET_IS_USER_EXISTING) == null) {
             throw new UserStoreException("Mongo query is null. Cannot check the existence of user");
         }
         boolean isExisting;
-        map.put(MongoDBCoreConstants.UM_USER_NAME, userName);
-        String isUnique = realmConfig.getUserStoreProperty(UserCoreConstants.RealmConfig.PROPERTY_USERNAME_UNIQUE);
-        if ("true".equals(isUnique)
+        if (operations.isUserNameUniqueAcrossTenants()
                 && !CarbonConstants.REGISTRY_ANONNYMOUS_USERNAME.equals(userName)) {
-            String uniquenessMongo = realmConfig.getUserStoreProperty(MongoDBRealmConstants.USER_NAME_UNIQUE);
-            isExisting = isValueExisting(uniquenessMongo, map);
+            isExisting = isUserExisting(MongoDBOperation.USER_NAME_UNIQUE, userName, false);
             if (log.isDebugEnabled()) {
                 log.debug("The username should be unique across tenants.");
             }
-        } else if (mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
-            map.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
-            isExisting = isValueExisting(mongoQuery, map);
         } else {
-            isExisting = isValueExisting(mongoQuery, map);
+            isExisting = isUserExisting(MongoDBOperation.GET_IS_USER_EXISTING, userName, true);
         }
 
         return isExisting;
     }
 
+    /**
+     * Check whether a user name matches an existence query. A compiled query is executed without building a
+     * prepared statement.
+     *
+     * @param operation  existence query to execute
+     * @param userName   to check
+     * @param bindTenant whether the tenant is bound when the query has a tenant parameter
+     * @return boolean status
+     * @throws UserStoreException if the query fails
+     */
+    private boolean isUserExisting(MongoDBOperation operation, String userName, boolean bindTenant)
+            throws UserStoreException {
+        CompiledMongoQuery compiled = operations.getCompiledQuery(operation);
+        if (compiled == null) {
+            Map<String, Object> map = new HashMap<>();
+            map.put(MongoDBCoreConstants.UM_USER_NAME, userName);
+            if (bindTenant && operations.isTenantBound(operation)) {
+                map.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
+            }
+            return isValueExisting(operations.getQuery(operation), map);
+        }
+        Object[] values = compiled.newValues();
+        compiled.bind(values, MongoDBCoreConstants.UM_USER_NAME, userName);
+        if (bindTenant) {
+            compiled.bind(values, MongoDBCoreConstants.UM_TENANT_ID, tenantId);
+        }
+        try {
+            return compiled.findOne(getTypedDatabase(), values, BsonDocument.class) != null;
+        } catch (MongoDBQueryException e) {
+            throw new UserStoreException("Error while checking the existence of value", e);
+        }
+    }
+
     /**
      * Get user list from provided properties.
      *
@@ -429,32 +651,53 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         if (profileName == null) {
             profileName = UserCoreConstants.DEFAULT_PROFILE;
         }
-        MongoPreparedStatement prepStmt = null;
-        String[] users = new String[0];
         List<String> list = new ArrayList<>();
+        DB dbConnection = loadUserStoreSpecificDataSource();
         try {
-            db = loadUserStoreSpecificDataSource();
-            String mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.GET_USERS_FOR_PROP);
-            prepStmt = new MongoPreparedStatementImpl(db, mongoQuery);
-            prepStmt.setString(MongoDBCoreConstants.UM_ATTR_NAME, property);
-            prepStmt.setString(MongoDBCoreConstants.UM_ATTR_VALUE, value);
-            prepStmt.setString(MongoDBCoreConstants.UM_PROFILE_ID, profileName);
-            DBCursor cursor = prepStmt.find();
-            while (cursor.hasNext()) {
-                String name = cursor.next().get(MongoDBCoreConstants.UM_USER_NAME).toString();
-                list.add(name);
-            }
-            if (list.size() > 0) {
-                users = list.toArray(new String[list.size()]);
-            }
-        } catch (MongoDBQueryException e) {
-            throw new UserStoreException("MongoDBQueryException occurred while getting the user list", e);
-        } finally {
-            if (prepStmt != null) {
-                prepStmt.close();
+            // Served by the multikey {UM_ATTRS.k, UM_ATTRS.v, UM_TENANT_ID} index
+            DBObject attributeQuery = new BasicDBObject(MongoDBCoreConstants.UM_ATTRS,
+                    MongoDBUserAttributeLayout.getSearchCondition(property, value))
+                    .append(MongoDBCoreConstants.UM_TENANT_ID, tenantId)
+                    .append(MongoDBCoreConstants.UM_PROFILE_ID, profileName);
+            DBObject attributeProjection = new BasicDBObject(MongoDBCoreConstants.UM_USER_ID, 1)
+                    .append(MongoDBCoreConstants.ID, 0);
+            BasicDBList userIds = new BasicDBList();
+            DBCursor attributeCursor = dbConnection.getCollection(MongoDBCoreConstants.UM_USER_ATTRIBUTE)
+                    .find(attributeQuery, attributeProjection).batchSize(getCursorBatchSize());
+            try {
+                while (attributeCursor.hasNext()) {
+                    Object userId = attributeCursor.next().get(MongoDBCoreConstants.UM_USER_ID);
+                    if (userId != null) {
+                        userIds.add(userId);
+                    }
+                }
+            } finally {
+                attributeCursor.close();
+            }
+            if (userIds.isEmpty()) {
+                return new String[0];
+            }
+            DBObject userQuery = new BasicDBObject(MongoDBCoreConstants.UM_ID,
+                    new BasicDBObject(MongoDBCoreConstants.IN_FIELD, userIds))
+                    .append(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
+            DBObject userProjection = new BasicDBObject(MongoDBCoreConstants.UM_USER_NAME, 1)
+                    .append(MongoDBCoreConstants.ID, 0);
+            DBCursor userCursor = dbConnection.getCollection(MongoDBCoreConstants.UM_USER)
+                    .find(userQuery, userProjection).batchSize(getCursorBatchSize());
+            try {
+                while (userCursor.hasNext()) {
+                    Object name = userCursor.next().get(MongoDBCoreConstants.UM_USER_NAME);
+                    if (name != null) {
+                        list.add(name.toString());
+                    }
+                }
+            } finally {
+                userCursor.close();
             }
+        } catch (MongoException e) {
+            throw new UserStoreException("Error occurred while getting the user list", e);
         }
-        return users;
+        return list.toArray(new String[list.size()]);
     }
 
     /**
@@ -476,100 +719,374 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
             log.error("Anonymous user trying to login");
             return false;
         }
-
-        String mongoQuery;
-        String password;
-        boolean isAuthed = false;
-        MongoPreparedStatement prepStmt = null;
-        try {
-            if (isCaseSensitiveUsername()) {
-                mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.SELECT_USER);
-            } else {
-                mongoQuery = realmConfig.getUserStoreProperty(
-                        MongoDBCaseInsensitiveConstants.SELECT_USER_CASE_INSENSITIVE
-                );
-            }
-            prepStmt = new MongoPreparedStatementImpl(db, mongoQuery);
+        if (isKnownMissingUser(userName)) {
             if (log.isDebugEnabled()) {
-                log.debug(mongoQuery);
+                log.debug("User " + userName + " does not exist in the user store");
             }
-            prepStmt.setString(MongoDBCoreConstants.UM_USER_NAME, userName);
-            if (mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
-                prepStmt.setInt(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
+            return false;
+        }
+
+        MongoDBLoginThrottle throttle = getLoginThrottle();
+        String throttleKey = getUserCacheKey(userName);
+        if (throttle != null && throttle.isBlocked(throttleKey)) {
+            if (log.isDebugEnabled()) {
+                log.debug("Login attempt from: '" + userName + "' rejected as the user is throttled");
             }
-            DBCursor cursor = prepStmt.find();
-            if (cursor.hasNext()) {
-                DBObject object = cursor.next();
-                String storedPassword = object.get(MongoDBCoreConstants.UM_USER_PASSWORD).toString();
-                String saltValue = null;
-                if ("true".equalsIgnoreCase(
-                        realmConfig.getUserStoreProperty(MongoDBRealmConstants.STORE_SALTED_PASSWORDS))) {
-                    saltValue = object.get(MongoDBCoreConstants.UM_SALT_VALUE).toString();
+            return false;
+        }
+
+        String authenticationKey = null;
+        String credentialMac = null;
+        long credentialGeneration = 0;
+        if (authenticationCache.isEnabled()) {
+            authenticationKey = getAuthenticationCacheKey(userName);
+            // Read before the user, so that a credential change during the login keeps it out of the cache
+            credentialGeneration = authenticationCache.getGeneration(authenticationKey);
+            credentialMac = getCredentialMac(credential);
+            String cachedMac = authenticationCache.get(authenticationKey);
+            if (cachedMac != null && MessageDigest.isEqual(cachedMac.getBytes(StandardCharsets.UTF_8),
+                    credentialMac.getBytes(StandardCharsets.UTF_8))) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Login attempt from: '" + userName + "'; Is login successful: true (cached)");
                 }
+                return true;
+            }
+        }
 
-                boolean requireChange =
-                        Boolean.parseBoolean(object.get(MongoDBCoreConstants.UM_REQUIRE_CHANGE).toString());
-                Date timestamp = (Date) object.get(MongoDBCoreConstants.UM_CHANGED_TIME);
+        boolean isAuthed = false;
+        try {
+            MongoDBUser user = findUser(userName);
+            if (user != null) {
+                Date timestamp = user.getChangedTime();
                 GregorianCalendar gc = new GregorianCalendar();
                 gc.add(GregorianCalendar.HOUR, -24);
                 Date date = gc.getTime();
 
-                if (requireChange && (timestamp.getTime() < date.getTime())) {
+                if (throttle != null) {
+                    throttle.merge(throttleKey, user.getId(), user.getFailedLoginCount(), user.getLastFailedLogin(),
+                            user.getLoginBlockedUntil());
+                }
+                if (user.isRequireChange() && (timestamp == null || timestamp.getTime() < date.getTime())) {
+                    isAuthed = false;
+                } else if (throttle != null && throttle.isBlocked(throttleKey)) {
+                    // Blocked through another node
                     isAuthed = false;
                 } else {
-                    password = this.preparePassword(credential, saltValue);
-                    if ((storedPassword != null) && (storedPassword.equals(password))) {
-                        isAuthed = true;
+                    isAuthed = verifyPassword(user, credential);
+                    if (isAuthed && credentialMac != null && !user.isRequireChange()) {
+                        authenticationCache.put(authenticationKey, credentialMac, credentialGeneration);
+                    }
+                    if (throttle != null) {
+                        if (isAuthed) {
+                            throttle.onSuccess(throttleKey, user.getId(), user.getFailedLoginCount() > 0);
+                        } else {
+                            throttle.onFailure(throttleKey, user.getId());
+                        }
                     }
                 }
             }
-        } catch (MongoDBQueryException e) {
+        } catch (MongoDBQueryException | MongoException e) {
             throw new UserStoreException("MongoDBQueryException occurred while authenticating", e);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Login attempt from: '" + userName + "'; Is login successful: " + isAuthed);
+        }
+        return isAuthed;
+    }
+
+    /**
+     * Find the stored user of a user name. A compiled select query is executed without building a prepared
+     * statement.
+     *
+     * @param userName of user
+     * @return MongoDBUser or null if the user does not exist
+     * @throws UserStoreException    if the data source cannot be loaded
+     * @throws MongoDBQueryException if the query cannot be built
+     */
+    private MongoDBUser findUser(String userName) throws UserStoreException, MongoDBQueryException {
+        String mongoQuery = operations.getQuery(MongoDBOperation.SELECT_USER);
+        if (log.isDebugEnabled()) {
+            log.debug(mongoQuery);
+        }
+        CompiledMongoQuery compiled = operations.getCompiledQuery(MongoDBOperation.SELECT_USER);
+        if (compiled != null) {
+            Object[] values = compiled.newValues();
+            compiled.bind(values, MongoDBCoreConstants.UM_USER_NAME, userName);
+            compiled.bind(values, MongoDBCoreConstants.UM_TENANT_ID, tenantId);
+            return compiled.findOne(getTypedDatabase(), values, MongoDBUser.class);
+        }
+        TypedMongoPreparedStatement<MongoDBUser> prepStmt = null;
+        try {
+            prepStmt = new TypedMongoPreparedStatement<>(loadUserStoreSpecificDataSource(), mongoQuery,
+                    MongoDBUser.class);
+            prepStmt.setString(MongoDBCoreConstants.UM_USER_NAME, userName);
+            if (operations.isTenantBound(MongoDBOperation.SELECT_USER)) {
+                prepStmt.setInt(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
+            }
+            return prepStmt.findOne();
         } finally {
             if (prepStmt != null) {
                 prepStmt.close();
             }
         }
-        if (log.isDebugEnabled()) {
-            log.debug("Login attempt from: '" + userName + "'; Is login successful: " + isAuthed);
+    }
+
+    /**
+     * Get the database of the user store decoding typed rows, resolved once per manager.
+     *
+     * @return MongoDatabase of the user store
+     * @throws UserStoreException if the data source cannot be loaded
+     */
+    private MongoDatabase getTypedDatabase() throws UserStoreException {
+        MongoDatabase database = typedDatabase;
+        if (database == null) {
+            database = TypedMongoPreparedStatement.getDatabase(loadUserStoreSpecificDataSource());
+            typedDatabase = database;
         }
-        return isAuthed;
+        return database;
     }
 
-    private String preparePassword(Object password, String saltValue) throws UserStoreException {
+    /**
+     * Verify a credential against the stored hash, using the scheme the hash was written with. When
+     * PasswordRehashOnLogin is enabled, a successful login upgrades a hash written with another scheme or work factor
+     * in the background.
+     *
+     * @param user       stored user
+     * @param credential to verify
+     * @return boolean true if the credential matches
+     * @throws UserStoreException if the stored scheme is not supported or hashing fails
+     */
+    private boolean verifyPassword(MongoDBUser user, Object credential) throws UserStoreException {
+        String storedPassword = user.getPassword();
+        if (storedPassword == null) {
+            return false;
+        }
+        String scheme = user.getPasswordScheme();
+        String params = user.getPasswordParams();
+        String saltValue = user.getSaltValue();
+        if (scheme == null || scheme.isEmpty()) {
+            // Written before the scheme was stored, hashed with the configured digest function
+            scheme = MongoDBDigestPasswordHasher.SCHEME;
+            params = legacyDigestFunction;
+            if (!storeSaltedPasswords) {
+                saltValue = null;
+            }
+        }
         Secret credentialObj;
         try {
-            credentialObj = Secret.getSecret(password);
+            credentialObj = Secret.getSecret(credential);
         } catch (UnsupportedSecretTypeException e) {
             throw new UserStoreException("Unsupported credential type", e);
         }
-
+        char[] password = credentialObj.getChars().clone();
         try {
-            String passwordString;
-            if (saltValue != null) {
-                credentialObj.addChars(saltValue.toCharArray());
+            String hash = preparePassword(credentialObj, saltValue, scheme, params);
+            boolean matched = MessageDigest.isEqual(storedPassword.getBytes(StandardCharsets.UTF_8),
+                    hash.getBytes(StandardCharsets.UTF_8));
+            if (matched && isRehashRequired(user)) {
+                rehashPassword(user, password);
+                password = null;
+            }
+            return matched;
+        } finally {
+            if (password != null) {
+                Arrays.fill(password, '\0');
             }
-            String digestFunction = realmConfig.getUserStoreProperties().get(MongoDBRealmConstants.DIGEST_FUNCTION);
-            if (digestFunction != null) {
-                if (digestFunction.equals(UserCoreConstants.RealmConfig.PASSWORD_HASH_METHOD_PLAIN_TEXT)) {
-                    passwordString = new String(credentialObj.getChars());
-                    return passwordString;
-                }
+        }
+    }
 
-                MessageDigest digest = MessageDigest.getInstance(digestFunction);
-                byte[] byteValue = digest.digest(credentialObj.getBytes());
-                passwordString = Base64.encode(byteValue);
-            } else {
-                passwordString = new String(credentialObj.getChars());
+    /**
+     * Compute the keyed MAC of a credential under which a successful authentication is cached, so that the cache
+     * never holds the credential or an unkeyed hash of it.
+     *
+     * @param credential presented credential
+     * @return String Base64 encoded MAC
+     * @throws UserStoreException if the credential type is not supported
+     */
+    private String getCredentialMac(Object credential) throws UserStoreException {
+        Secret credentialObj;
+        try {
+            credentialObj = Secret.getSecret(credential);
+        } catch (UnsupportedSecretTypeException e) {
+            throw new UserStoreException("Unsupported credential type", e);
+        }
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(credentialObj.getChars()));
+        try {
+            Mac mac = Mac.getInstance(CREDENTIAL_MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(credentialMacKey, CREDENTIAL_MAC_ALGORITHM));
+            mac.update(bytes);
+            return Base64.encode(mac.doFinal());
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new UserStoreException("Error occurred while computing the credential MAC", e);
+        } finally {
+            if (bytes.hasArray()) {
+                Arrays.fill(bytes.array(), (byte) 0);
             }
-            return passwordString;
-        } catch (NoSuchAlgorithmException e) {
-            throw new UserStoreException("Error occurred while preparing password", e);
+        }
+    }
+
+    private String getAuthenticationCacheKey(String userName) {
+        return tenantId + ":" + getUserCacheKey(userName);
+    }
+
+    /**
+     * Drop the cached authentication of a user after its credential has changed or it has been deleted.
+     *
+     * @param userName of user
+     */
+    private void invalidateAuthenticationCache(String userName) {
+        authenticationCache.remove(getAuthenticationCacheKey(userName));
+    }
+
+    private String preparePassword(Object password, String saltValue, String scheme, String params)
+            throws UserStoreException {
+        MongoDBPasswordHasher hasher = MongoDBPasswordHashing.getHasher(scheme);
+        if (hasher == null) {
+            throw new UserStoreException("Unsupported password hashing scheme " + scheme);
+        }
+        Secret credentialObj;
+        try {
+            credentialObj = Secret.getSecret(password);
+        } catch (UnsupportedSecretTypeException e) {
+            throw new UserStoreException("Unsupported credential type", e);
+        }
+        try {
+            return MongoDBPasswordHashing.hash(hasher, credentialObj.getChars(), saltValue, params);
         } finally {
             credentialObj.clear();
         }
     }
 
+    /**
+     * Resolve the scheme and parameters new password hashes are written with. A store configured with plain text
+     * passwords and no explicit scheme keeps them.
+     */
+    private void initPasswordHashing() {
+        String scheme = realmConfig.getUserStoreProperty(MongoDBRealmConstants.PASSWORD_HASHING_SCHEME);
+        String digestFunction = realmConfig.getUserStoreProperty(MongoDBRealmConstants.DIGEST_FUNCTION);
+        legacyDigestFunction = digestFunction;
+        storeSaltedPasswords = "true".equalsIgnoreCase(
+                realmConfig.getUserStoreProperty(MongoDBRealmConstants.STORE_SALTED_PASSWORDS));
+        if (scheme == null || scheme.trim().isEmpty()) {
+            scheme = UserCoreConstants.RealmConfig.PASSWORD_HASH_METHOD_PLAIN_TEXT.equals(digestFunction) ?
+                    MongoDBDigestPasswordHasher.SCHEME : MongoDBPbkdf2PasswordHasher.SCHEME;
+        } else if (MongoDBPasswordHashing.getHasher(scheme.trim()) == null) {
+            log.warn("Unsupported password hashing scheme " + scheme + ". Using " +
+                    MongoDBPbkdf2PasswordHasher.SCHEME);
+            scheme = MongoDBPbkdf2PasswordHasher.SCHEME;
+        }
+        passwordScheme = scheme.trim();
+        if (MongoDBPbkdf2PasswordHasher.SCHEME.equals(passwordScheme)) {
+            int iterations;
+            try {
+                iterations = Integer.parseInt(
+                        realmConfig.getUserStoreProperty(MongoDBRealmConstants.PASSWORD_HASHING_ITERATIONS));
+            } catch (Exception e) {
+                iterations = MongoDBPbkdf2PasswordHasher.DEFAULT_ITERATIONS;
+            }
+            passwordParams = String.valueOf(iterations > 0 ? iterations :
+                    MongoDBPbkdf2PasswordHasher.DEFAULT_ITERATIONS);
+        } else {
+            passwordParams = digestFunction == null ? "" : digestFunction;
+        }
+        String rehash = realmConfig.getUserStoreProperty(MongoDBRealmConstants.PASSWORD_REHASH_ON_LOGIN);
+        // Off by default, nodes of an older release cannot verify the upgraded hashes during a rolling upgrade
+        rehashOnLogin = Boolean.parseBoolean(rehash);
+    }
+
+    /**
+     * Check whether the configured add and update queries store the hashing scheme. Custom queries written before
+     * the scheme existed do not, and then passwords keep being written with the legacy digest function.
+     *
+     * @return boolean status
+     */
+    private boolean isPasswordSchemeStored() {
+        return operations.isPasswordSchemeStored();
+    }
+
+    private boolean isRehashRequired(MongoDBUser user) {
+        return rehashOnLogin && isPasswordSchemeStored() &&
+                !(passwordScheme.equals(user.getPasswordScheme()) && passwordParams.equals(user.getPasswordParams()));
+    }
+
+    /**
+     * Prepare the hash of a new password along with its salt, scheme and parameters.
+     *
+     * @param credential new password
+     * @param map        of query parameters to add the values to
+     * @return String salt value, null if the password is not salted
+     * @throws UserStoreException if hashing fails
+     */
+    private String preparePasswordValues(Object credential, Map<String, Object> map) throws UserStoreException {
+        String scheme = "";
+        String params = "";
+        String saltValue = null;
+        if (isPasswordSchemeStored()) {
+            scheme = passwordScheme;
+            params = passwordParams;
+        }
+        if (MongoDBPbkdf2PasswordHasher.SCHEME.equals(scheme) || storeSaltedPasswords) {
+            saltValue = generateSaltValue();
+        }
+        String password = scheme.isEmpty() ?
+                preparePassword(credential, saltValue, MongoDBDigestPasswordHasher.SCHEME, legacyDigestFunction) :
+                preparePassword(credential, saltValue, scheme, params);
+        map.put(MongoDBCoreConstants.UM_USER_PASSWORD, password);
+        map.put(MongoDBCoreConstants.UM_PASSWORD_SCHEME, scheme);
+        map.put(MongoDBCoreConstants.UM_PASSWORD_PARAMS, params);
+        return saltValue;
+    }
+
+    /**
+     * Upgrade the password hash of a user to the configured scheme in the background. The write only applies while
+     * the stored hash is unchanged, so a concurrent password update is never overwritten.
+     *
+     * @param user     stored user
+     * @param password characters of the verified password, cleared once the upgrade is done
+     */
+    private void rehashPassword(final MongoDBUser user, final char[] password) {
+        final String scheme = passwordScheme;
+        final String params = passwordParams;
+        boolean accepted = MongoDBPasswordHashing.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    MongoDBPasswordHasher hasher = MongoDBPasswordHashing.getHasher(scheme);
+                    String saltValue = null;
+                    if (MongoDBPbkdf2PasswordHasher.SCHEME.equals(scheme) || storeSaltedPasswords) {
+                        saltValue = generateSaltValue();
+                    }
+                    String hash = hasher.hash(password, saltValue, params);
+                    DBObject query = new BasicDBObject(MongoDBCoreConstants.UM_ID, user.getId())
+                            .append(MongoDBCoreConstants.UM_TENANT_ID, user.getTenantId())
+                            .append(MongoDBCoreConstants.UM_USER_PASSWORD, user.getPassword());
+                    DBObject values = new BasicDBObject(MongoDBCoreConstants.UM_USER_PASSWORD, hash)
+                            .append(MongoDBCoreConstants.UM_SALT_VALUE, saltValue == null ? "" : saltValue)
+                            .append(MongoDBCoreConstants.UM_PASSWORD_SCHEME, scheme)
+                            .append(MongoDBCoreConstants.UM_PASSWORD_PARAMS, params);
+                    WriteResult result = loadUserStoreSpecificDataSource().getCollection(MongoDBCoreConstants.UM_USER)
+                            .update(query, new BasicDBObject(MongoDBCoreConstants.SET_FIELD, values));
+                    if (log.isDebugEnabled()) {
+                        log.debug("Upgraded the password hash of user " + user.getUserName() + " to " + scheme +
+                                ": " + result.isUpdateOfExisting());
+                    }
+                } catch (UserStoreException | MongoException e) {
+                    log.error("Failed to upgrade the password hash of user " + user.getUserName(), e);
+                } finally {
+                    Arrays.fill(password, '\0');
+                }
+            }
+        });
+        if (!accepted) {
+            // The hash is upgraded on a later login instead
+            Arrays.fill(password, '\0');
+            if (log.isDebugEnabled()) {
+                log.debug("Skipped upgrading the password hash of user " + user.getUserName() +
+                        " as the hashing queue is full");
+            }
+        }
+    }
+
     /**
      * Add new user to mongodb user store.
      *
@@ -605,38 +1122,27 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
      */
     protected void doUpdateCredentialByAdmin(String userName, Object newCredential) throws UserStoreException {
         String mongoQuery;
-        if (isCaseSensitiveUsername()) {
-            mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.UPDATE_USER_PASSWORD);
-        } else {
-            mongoQuery = realmConfig.getUserStoreProperty(
-                    MongoDBCaseInsensitiveConstants.UPDATE_USER_PASSWORD_CASE_INSENSITIVE);
-        }
+        mongoQuery = operations.getQuery(MongoDBOperation.UPDATE_USER_PASSWORD);
         Map<String, Object> map = new HashMap<>();
-        String saltValue = null;
         if (mongoQuery == null) {
             throw new UserStoreException("Mongo query is null. Cannot update credentials");
         }
-        if ("true".equalsIgnoreCase(realmConfig.getUserStoreProperties().get(
-                MongoDBRealmConstants.STORE_SALTED_PASSWORDS))) {
-            saltValue = generateSaltValue();
-        }
-        String password = this.preparePassword(newCredential, saltValue);
+        String saltValue = preparePasswordValues(newCredential, map);
         map.put(MongoDBCoreConstants.UM_USER_NAME, userName);
-        map.put(MongoDBCoreConstants.UM_USER_PASSWORD, password);
 
-        if (mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID) && saltValue == null) {
+        if (operations.isTenantBound(MongoDBOperation.UPDATE_USER_PASSWORD) && saltValue == null) {
             map.put(MongoDBCoreConstants.UM_REQUIRE_CHANGE, false);
             map.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
             map.put(MongoDBCoreConstants.UM_CHANGED_TIME, new Date());
             map.put(MongoDBCoreConstants.UM_SALT_VALUE, "");
             updateStringValuesToDatabase(null, mongoQuery, map);
-        } else if (mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID) && saltValue != null) {
+        } else if (operations.isTenantBound(MongoDBOperation.UPDATE_USER_PASSWORD) && saltValue != null) {
             map.put(MongoDBCoreConstants.UM_REQUIRE_CHANGE, false);
             map.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
             map.put(MongoDBCoreConstants.UM_CHANGED_TIME, new Date());
             map.put(MongoDBCoreConstants.UM_SALT_VALUE, saltValue);
             updateStringValuesToDatabase(null, mongoQuery, map);
-        } else if (!mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID) && saltValue == null) {
+        } else if (!operations.isTenantBound(MongoDBOperation.UPDATE_USER_PASSWORD) && saltValue == null) {
             map.put(MongoDBCoreConstants.UM_REQUIRE_CHANGE, false);
             map.put(MongoDBCoreConstants.UM_CHANGED_TIME, new Date());
             map.put(MongoDBCoreConstants.UM_SALT_VALUE, "");
@@ -647,14 +1153,14 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
             map.put(MongoDBCoreConstants.UM_SALT_VALUE, saltValue);
             updateStringValuesToDatabase(null, mongoQuery, map);
         }
+        invalidateAuthenticationCache(userName);
     }
 
     private String generateSaltValue() {
         // Create a random salt, returning 128-bit (16 bytes) of binary data
-        SecureRandom secureRandom = new SecureRandom();
         byte[] bytes = new byte[16];
         // SecureRandom is automatically seeded by calling nextBytes
-        secureRandom.nextBytes(bytes);
+        random.nextBytes(bytes);
         return Base64.encode(bytes);
     }
 
@@ -718,6 +1224,7 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
                 for (Map.Entry<String, Object> entry : map.entrySet()) {
                     query.append(entry.getKey(), entry.getValue());
                 }
+                query.append(MongoDBCoreConstants.UM_ATTRS, MongoDBUserAttributeLayout.toAttributeArray(query));
                 collection.insert(query);
             } else {
                 BasicDBObject condition = null;
@@ -739,8 +1246,7 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
                     }
                 }
                 if (condition != null && setQuery != null) {
-                    setQuery = new BasicDBObject(MongoDBCoreConstants.SET_FIELD, setQuery);
-                    collection.update(condition, setQuery);
+                    MongoDBUserAttributeLayout.update(collection, condition, setQuery);
                 }
             }
         }
@@ -798,25 +1304,316 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         if (user_id == 0) {
             log.warn("No registered user found for given user name");
         } else {
-            String mongoQuery;
-            String mongoQuery2;
-            String mongoQuery3;
             Map<String, Object> map = new HashMap<>();
-            mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.ON_DELETE_USER_REMOVE_USER_ROLE);
-            mongoQuery2 = realmConfig.getUserStoreProperty(MongoDBRealmConstants.ON_DELETE_USER_REMOVE_ATTRIBUTE);
-            mongoQuery3 = realmConfig.getUserStoreProperty(MongoDBRealmConstants.DELETE_USER);
-            if (mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
-                map.put(MongoDBCoreConstants.UM_USER_ID, user_id);
-                map.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
-                map.put(MongoDBCoreConstants.UM_USER_NAME, userName);
-                map.put(MongoDBCoreConstants.UM_ID, user_id);
-                this.deleteStringValuesFromDatabase(dbConnection, mongoQuery, map);
-                this.deleteStringValuesFromDatabase(dbConnection, mongoQuery2, map);
-                this.deleteStringValuesFromDatabase(dbConnection, mongoQuery3, map);
+            map.put(MongoDBCoreConstants.UM_USER_ID, user_id);
+            map.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
+            map.put(MongoDBCoreConstants.UM_USER_NAME, userName);
+            map.put(MongoDBCoreConstants.UM_ID, user_id);
+            // Waits for a flush of the user's buffered attributes so it cannot insert them again after the delete
+            discardBufferedAttributes(userName, null);
+            // The role mappings and attributes do not depend on each other, only the user has to be removed last
+            deleteConcurrently(dbConnection, map, operations.getQuery(MongoDBOperation.ON_DELETE_USER_REMOVE_USER_ROLE),
+                    operations.getQuery(MongoDBOperation.ON_DELETE_USER_REMOVE_ATTRIBUTE));
+            this.deleteStringValuesFromDatabase(dbConnection, operations.getQuery(MongoDBOperation.DELETE_USER), map);
+            forgetUser(userName);
+        }
+    }
+
+    /**
+     * Delete a set of users in batches. As with {@link #deleteUser(String)}, each user first goes through the user
+     * store manager listeners and the pre delete listeners, any of which can skip it. The IDs of a batch are then
+     * resolved with one $in query, the role mappings and attributes are removed with one $in delete per collection,
+     * run concurrently, then the users. Finally the caches of the kernel and of this user store manager are cleared
+     * and the post delete listeners are notified. Users which do not exist are skipped.
+     *
+     * @param userNames of the users to delete, without the domain
+     * @throws UserStoreException if the user store is read only, the admin or anonymous user is among the users, a
+     *                            listener fails or a delete fails
+     */
+    public void deleteUsers(String[] userNames) throws UserStoreException {
+        if (isReadOnly()) {
+            throw new UserStoreException("Invalid operation. User store is read only");
+        }
+        String adminUser = realmConfig.getAdminUserName();
+        for (String userName : userNames) {
+            if (isCaseSensitiveUsername() ? userName.equals(adminUser) : userName.equalsIgnoreCase(adminUser)) {
+                throw new UserStoreException("Cannot delete admin user");
+            }
+            if (CarbonConstants.REGISTRY_ANONNYMOUS_USERNAME.equals(userName)) {
+                throw new UserStoreException(CarbonConstants.REGISTRY_ANONNYMOUS_USERNAME + " can not be deleted");
+            }
+        }
+        DB dbConnection = loadUserStoreSpecificDataSource();
+        boolean deleted = false;
+        try {
+            for (int start = 0; start < userNames.length; start += cursorBatchSize) {
+                // Requested names by name key, for the users no listener skipped
+                Map<String, String> batch = new HashMap<>();
+                for (int i = start; i < Math.min(userNames.length, start + cursorBatchSize); i++) {
+                    if (notifyPreDeleteUser(userNames[i])) {
+                        batch.put(getUserCacheKey(userNames[i]), userNames[i]);
+                    }
+                }
+                Map<Integer, String> found = findIDS(dbConnection, MongoDBCoreConstants.UM_USER,
+                        MongoDBCoreConstants.UM_USER_NAME, batch.values().toArray(new String[batch.size()]),
+                        isCaseSensitiveUsername());
+                if (found.isEmpty()) {
+                    continue;
+                }
+                Set<String> userNamesFound = new HashSet<>();
+                for (String nameKey : found.values()) {
+                    String userName = batch.get(nameKey);
+                    if (userName != null && userNamesFound.add(userName)) {
+                        // Waits for a flush of the user's buffered attributes so it cannot insert them again
+                        discardBufferedAttributes(userName, null);
+                    }
+                }
+                BasicDBList userIds = new BasicDBList();
+                userIds.addAll(found.keySet());
+                DBObject byUser = new BasicDBObject(MongoDBCoreConstants.UM_USER_ID,
+                        new BasicDBObject(MongoDBCoreConstants.IN_FIELD, userIds))
+                        .append(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
+                runConcurrently(getRemoveTasks(dbConnection, byUser, MongoDBCoreConstants.UM_USER_ROLE,
+                        MongoDBCoreConstants.UM_USER_ATTRIBUTE));
+                dbConnection.getCollection(MongoDBCoreConstants.UM_USER).remove(new BasicDBObject(
+                        MongoDBCoreConstants.UM_ID, new BasicDBObject(MongoDBCoreConstants.IN_FIELD, userIds))
+                        .append(MongoDBCoreConstants.UM_TENANT_ID, tenantId));
+                deleted = true;
+                for (String userName : userNamesFound) {
+                    forgetUser(userName);
+                    clearUserRolesCache(userName);
+                    notifyPostDeleteUser(userName);
+                }
+            }
+        } catch (MongoDBQueryException | MongoException e) {
+            throw new UserStoreException("Error occurred while deleting users", e);
+        } finally {
+            MongoDatabaseUtil.closeConnection(dbConnection);
+            MongoDBUserNameFilter filter = userNameFilter;
+            if (deleted && filter != null) {
+                // A Bloom filter cannot drop entries, rebuild it without the deleted users
+                filter.scheduleRebuild();
             }
         }
     }
 
+    private boolean notifyPreDeleteUser(String userName) throws UserStoreException {
+        for (UserStoreManagerListener listener : UMListenerServiceComponent.getUserStoreManagerListeners()) {
+            if (!listener.deleteUser(userName, this)) {
+                return false;
+            }
+        }
+        for (UserOperationEventListener listener : UMListenerServiceComponent.getUserOperationEventListeners()) {
+            if (!listener.doPreDeleteUser(userName, this)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void notifyPostDeleteUser(String userName) throws UserStoreException {
+        for (UserOperationEventListener listener : UMListenerServiceComponent.getUserOperationEventListeners()) {
+            if (!listener.doPostDeleteUser(userName, this)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Delete every user, role, role mapping and attribute of the tenant of this user store manager. Buffered
+     * attributes and login counters of the tenant are dropped first, then the mappings, including shared roles
+     * assigned to or owned by the tenant, and the attributes are removed concurrently before the users and roles.
+     *
+     * @throws UserStoreException if the user store is read only, the tenant is the super tenant or a delete fails
+     */
+    public void deleteTenantData() throws UserStoreException {
+        if (isReadOnly()) {
+            throw new UserStoreException("Invalid operation. User store is read only");
+        }
+        if (tenantId == MultitenantConstants.SUPER_TENANT_ID) {
+            throw new UserStoreException("Cannot delete the data of the super tenant");
+        }
+        // Nothing buffered may be written back once the documents are gone
+        MongoDBAttributeWriteBuffer buffer = attributeWriteBuffer;
+        if (buffer != null) {
+            buffer.discardAll();
+        }
+        MongoDBLoginThrottle throttle = loginThrottle;
+        if (throttle != null) {
+            throttle.clear();
+        }
+        DB dbConnection = loadUserStoreSpecificDataSource();
+        try {
+            DBObject byTenant = new BasicDBObject(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
+            List<Callable<Void>> children = getRemoveTasks(dbConnection, byTenant, MongoDBCoreConstants.UM_USER_ROLE,
+                    MongoDBCoreConstants.UM_USER_ATTRIBUTE);
+            children.addAll(getRemoveTasks(dbConnection, new BasicDBObject(MongoDBCoreConstants.UM_USER_TENANT_ID,
+                    tenantId), MongoDBCoreConstants.UM_SHARED_USER_ROLE));
+            children.addAll(getRemoveTasks(dbConnection, new BasicDBObject(MongoDBCoreConstants.UM_ROLE_TENANT_ID,
+                    tenantId), MongoDBCoreConstants.UM_SHARED_USER_ROLE));
+            runConcurrently(children);
+            runConcurrently(getRemoveTasks(dbConnection, byTenant, MongoDBCoreConstants.UM_USER,
+                    MongoDBCoreConstants.UM_ROLE));
+        } catch (MongoDBQueryException | MongoException e) {
+            throw new UserStoreException("Error occurred while deleting the data of tenant " + tenantId, e);
+        } finally {
+            MongoDatabaseUtil.closeConnection(dbConnection);
+            // Part of the data may be gone even if a delete failed
+            userIdCache.clear();
+            attributeCache.clear();
+            authenticationCache.clear();
+        }
+    }
+
+    /**
+     * Drop everything held in memory for a user after it has been deleted.
+     *
+     * @param userName of deleted user
+     */
+    private void forgetUser(String userName) {
+        userIdCache.remove(getUserCacheKey(userName));
+        invalidateAttributeCache(userName);
+        invalidateAuthenticationCache(userName);
+        MongoDBLoginThrottle throttle = loginThrottle;
+        if (throttle != null) {
+            throttle.remove(getUserCacheKey(userName));
+        }
+        discardBufferedAttributes(userName, null);
+    }
+
+    /**
+     * Run independent delete queries concurrently with the same parameters.
+     *
+     * @param dbConnection of user store
+     * @param params       of the queries
+     * @param mongoQueries to run
+     * @throws UserStoreException if any of the deletes fails, after all of them have completed
+     */
+    private void deleteConcurrently(final DB dbConnection, final Map<String, Object> params, String... mongoQueries)
+            throws UserStoreException {
+        List<Callable<Void>> tasks = new ArrayList<>(mongoQueries.length);
+        for (final String mongoQuery : mongoQueries) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws UserStoreException {
+                    deleteStringValuesFromDatabase(dbConnection, mongoQuery, params);
+                    return null;
+                }
+            });
+        }
+        try {
+            runConcurrently(tasks);
+        } catch (MongoDBQueryException e) {
+            throw new UserStoreException("Error occurred while deleting dependent documents", e);
+        }
+    }
+
+    /**
+     * Build one task per collection removing the documents which match a condition.
+     *
+     * @param dbConnection of user store
+     * @param condition    of the documents to remove
+     * @param collections  to remove the documents from
+     * @return List of tasks, to be run with {@link #runConcurrently(List)}
+     */
+    private List<Callable<Void>> getRemoveTasks(final DB dbConnection, final DBObject condition,
+                                                String... collections) {
+        List<Callable<Void>> tasks = new ArrayList<>(collections.length);
+        for (final String collection : collections) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    WriteResult result = dbConnection.getCollection(collection).remove(condition);
+                    if (log.isDebugEnabled()) {
+                        log.debug("Removed " + result.getN() + " documents from " + collection);
+                    }
+                    return null;
+                }
+            });
+        }
+        return tasks;
+    }
+
+    /**
+     * Run tasks on the shared executor and wait for all of them, so that a failure never leaves a task running
+     * while the caller goes on to delete the parent documents.
+     *
+     * @param tasks to run
+     * @throws MongoDBQueryException first failure of the tasks
+     */
+    private void runConcurrently(List<Callable<Void>> tasks) throws MongoDBQueryException {
+        List<CompletableFuture<Void>> futures = new ArrayList<>(tasks.size());
+        for (Callable<Void> task : tasks) {
+            futures.add(MongoDBTaskExecutor.supplyAsync(task));
+        }
+        MongoDBQueryException failure = null;
+        for (CompletableFuture<Void> future : futures) {
+            try {
+                MongoDBTaskExecutor.join(future);
+            } catch (MongoDBQueryException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Buffer attribute values of a user in the write-behind buffer when every one of them is a write-behind
+     * attribute. Values dropped by a full buffer are reported as buffered, as the caller does not wait for them.
+     * Values refused by a buffer closed with the bundle are reported as not buffered, so that they are written
+     * directly.
+     *
+     * @param dbConnection of user store
+     * @param userName     of user
+     * @param values       attribute values by attribute name
+     * @param profileName  of the attributes
+     * @return boolean true if the values were handed to the buffer
+     * @throws UserStoreException if the user ID lookup fails
+     */
+    private boolean bufferAttributes(DB dbConnection, String userName, Map<String, String> values, String profileName)
+            throws UserStoreException {
+        MongoDBAttributeWriteBuffer buffer = getAttributeWriteBuffer();
+        if (buffer == null || values.isEmpty() || !writeBehindAttributes.containsAll(values.keySet())) {
+            return false;
+        }
+        int userId;
+        try {
+            userId = getCachedUserID(dbConnection, userName);
+        } catch (MongoDBQueryException e) {
+            throw new UserStoreException("Error occurred while getting the user id of user: " + userName, e);
+        }
+        if (userId == 0) {
+            return false;
+        }
+        if (!buffer.offer(getUserCacheKey(userName), userId, profileName, values)) {
+            if (buffer.isClosed()) {
+                return false;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Dropped the buffered attribute write of user " + userName + " as the buffer is full");
+            }
+        }
+        invalidateAttributeCache(userName);
+        return true;
+    }
+
+    /**
+     * Drop buffered values which are overwritten or deleted directly, so that a later flush does not restore them.
+     *
+     * @param userName   of user
+     * @param attributes names of the attributes, null for every attribute of the user
+     */
+    private void discardBufferedAttributes(String userName, Collection<String> attributes) {
+        MongoDBAttributeWriteBuffer buffer = attributeWriteBuffer;
+        if (buffer != null) {
+            buffer.discard(getUserCacheKey(userName), attributes);
+        }
+    }
+
     /**
      * Set user claim value of registered user in user store.
      *
@@ -838,19 +1635,26 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         DB dbConnection = loadUserStoreSpecificDataSource();
         try {
             String property = getClaimAtrribute(claimURI, userName, null);
+            if (bufferAttributes(dbConnection, userName, Collections.singletonMap(property, claimValue),
+                    profileName)) {
+                return;
+            }
             int userId = getUserId(userName);
+            discardBufferedAttributes(userName, Collections.singleton(property));
             String value = getProperty(dbConnection, userId);
             Map<String, Object> map = new HashMap<>();
             map.put(MongoDBCoreConstants.UM_USER_ID, userId);
             map.put(MongoDBCoreConstants.UM_PROFILE_ID, profileName);
+            map.put(property, claimValue);
             if (value == null) {
                 addProperty(dbConnection, map);
             } else {
-                map.put(property, value);
                 updateProperty(dbConnection, map);
             }
         } catch (org.wso2.carbon.user.api.UserStoreException e) {
             throw new UserStoreException("Error occurred while getting claim attribute for user: " + userName, e);
+        } finally {
+            invalidateAttributeCache(userName);
         }
     }
 
@@ -864,14 +1668,14 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
      */
     private String getProperty(DB dbConnection, int userId) throws UserStoreException {
         String mongoQuery;
-        mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.GET_PROP_FOR_PROFILE);
+        mongoQuery = operations.getQuery(MongoDBOperation.GET_PROP_FOR_PROFILE);
         if (mongoQuery == null) {
             throw new UserStoreException("Mongo query is null. Cannot get property");
         }
         String value = null;
         MongoPreparedStatement prepStmt = new MongoPreparedStatementImpl(dbConnection, mongoQuery);
         prepStmt.setInt(MongoDBCoreConstants.UM_USER_ID, userId);
-        if (mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
+        if (operations.isTenantBound(MongoDBOperation.GET_PROP_FOR_PROFILE)) {
             prepStmt.setInt(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
         }
         try {
@@ -899,9 +1703,21 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         if (profileName == null) {
             profileName = UserCoreConstants.DEFAULT_PROFILE;
         }
-        claims.putIfAbsent(UserCoreConstants.PROFILE_CONFIGURATION, UserCoreConstants.DEFAULT_PROFILE_CONFIGURATION);
         DB dbConnection = loadUserStoreSpecificDataSource();
         try {
+            if (attributeWriteBuffer != null && !claims.containsKey(UserCoreConstants.PROFILE_CONFIGURATION)) {
+                Map<String, String> values = new HashMap<>();
+                for (Map.Entry<String, String> entry : claims.entrySet()) {
+                    if (entry.getValue().length() > 0) {
+                        values.put(getClaimAtrribute(entry.getKey(), userName, null), entry.getValue());
+                    }
+                }
+                if (bufferAttributes(dbConnection, userName, values, profileName)) {
+                    return;
+                }
+            }
+            claims.putIfAbsent(UserCoreConstants.PROFILE_CONFIGURATION,
+                    UserCoreConstants.DEFAULT_PROFILE_CONFIGURATION);
             Iterator<Map.Entry<String, String>> ite = claims.entrySet().iterator();
             Map<String, Object> map = new HashMap<>();
             while (ite.hasNext()) {
@@ -914,6 +1730,7 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
                 }
             }
             int userId = getUserId(userName);
+            discardBufferedAttributes(userName, map.keySet());
             map.put(MongoDBCoreConstants.UM_USER_ID, userId);
             map.put(MongoDBCoreConstants.UM_PROFILE_ID, profileName);
             String userValueExists = getProperty(dbConnection, userId);
@@ -925,22 +1742,18 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         } catch (org.wso2.carbon.user.api.UserStoreException e) {
             throw new UserStoreException("Error occurred while getting claim attribute for user: " + userName, e);
         } finally {
+            invalidateAttributeCache(userName);
             MongoDatabaseUtil.closeConnection(dbConnection);
         }
     }
 
     private void updateProperty(DB dbConnection, Map<String, Object> map) throws UserStoreException {
         String mongoQuery;
-        if (isCaseSensitiveUsername()) {
-            mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.UPDATE_USER_PROPERTY);
-        } else {
-            mongoQuery = realmConfig.getUserStoreProperty(
-                    MongoDBCaseInsensitiveConstants.UPDATE_USER_PROPERTY_CASE_INSENSITIVE);
-        }
+        mongoQuery = operations.getQuery(MongoDBOperation.UPDATE_USER_PROPERTY);
         if (mongoQuery == null) {
             throw new UserStoreException("Mongo query is null. Cannot update property");
         }
-        if (mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
+        if (operations.isTenantBound(MongoDBOperation.UPDATE_USER_PROPERTY)) {
             map.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
             updateUserClaimValuesToDatabase(dbConnection, map, true);
         } else {
@@ -976,6 +1789,7 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         } catch (MongoDBQueryException e) {
             throw new UserStoreException("MongoDBQueryException occurred. Cannot delete user claim value", e);
         } finally {
+            invalidateAttributeCache(userName);
             MongoDatabaseUtil.closeConnection(dbConnection);
         }
     }
@@ -985,12 +1799,11 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         String mongoQuery;
         String query;
         Map<String, Object> map = new HashMap<>();
+        discardBufferedAttributes(userName, Collections.singleton(property));
+        mongoQuery = operations.getQuery(MongoDBOperation.DELETE_USER_PROPERTY);
         if (isCaseSensitiveUsername()) {
-            mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.DELETE_USER_PROPERTY);
             query = MongoDBRealmConstants.ADD_USER_TO_ROLE_MONGO_QUERY_CONDITION1;
         } else {
-            mongoQuery = realmConfig.getUserStoreProperty(
-                    MongoDBCaseInsensitiveConstants.DELETE_USER_PROPERTY_CASE_INSENSITIVE);
             query = MongoDBCaseInsensitiveConstants.SELECT_USER_MONGO_CASE_INSENSITIVE;
         }
 
@@ -1007,12 +1820,15 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
             if (mongoQuery == null) {
                 throw new UserStoreException("Mongo query is null. Cannot delete property");
             }
-            if (mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
+            if (operations.isTenantBound(MongoDBOperation.DELETE_USER_PROPERTY)) {
                 map.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
                 updateStringValuesToDatabase(dbConnection, mongoQuery, map);
             } else {
                 updateStringValuesToDatabase(dbConnection, mongoQuery, map);
             }
+            MongoDBUserAttributeLayout.sync(dbConnection.getCollection(MongoDBCoreConstants.UM_USER_ATTRIBUTE),
+                    new BasicDBObject(MongoDBCoreConstants.UM_USER_ID, userId)
+                            .append(MongoDBCoreConstants.UM_PROFILE_ID, profileName));
         }
     }
 
@@ -1041,6 +1857,7 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         } catch (MongoDBQueryException e) {
             throw new UserStoreException("MongoDBQueryException occurred. Cannot delete user claim values", e);
         } finally {
+            invalidateAttributeCache(userName);
             MongoDatabaseUtil.closeConnection(dbConnection);
         }
     }
@@ -1060,15 +1877,8 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         roleName = ctx.getRoleName();
         int roleTenantId = ctx.getTenantId();
         boolean isShared = ctx.isShared();
-        String mongoQuery;
-        if (isCaseSensitiveUsername()) {
-            mongoQuery = realmConfig.getUserStoreProperty(isShared ? MongoDBRealmConstants.REMOVE_USER_FROM_SHARED_ROLE
-                    : MongoDBRealmConstants.REMOVE_USER_FROM_ROLE);
-        } else {
-            mongoQuery = realmConfig.getUserStoreProperty(isShared ?
-                    MongoDBCaseInsensitiveConstants.REMOVE_USER_FROM_SHARED_ROLE_CASE_INSENSITIVE
-                    : MongoDBCaseInsensitiveConstants.REMOVE_USER_FROM_ROLE_CASE_INSENSITIVE);
-        }
+        String mongoQuery = operations.getQuery(isShared ? MongoDBOperation.REMOVE_USER_FROM_SHARED_ROLE
+                : MongoDBOperation.REMOVE_USER_FROM_ROLE);
         if (mongoQuery == null) {
             throw new UserStoreException("Mongo query is null. Cannot update user list of given role");
         }
@@ -1076,44 +1886,57 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         try {
             String mongoQuery2;
             if (isShared) {
-                mongoQuery2 = realmConfig.getUserStoreProperty(MongoDBRealmConstants.ADD_SHARED_ROLE_TO_USER);
+                mongoQuery2 = operations.getQuery(MongoDBOperation.ADD_SHARED_ROLE_TO_USER);
             } else {
-                mongoQuery2 = realmConfig.getUserStoreProperty(MongoDBRealmConstants.ADD_USER_TO_ROLE);
+                mongoQuery2 = operations.getQuery(MongoDBOperation.ADD_USER_TO_ROLE);
             }
             if (mongoQuery2 == null) {
                 throw new UserStoreException("Mongo query is null. Cannot update user list of given role");
             }
-            int userIds[];
+            String[] roles = {roleName};
+            CompletableFuture<int[]> roleIdsFuture = getRolesIDSAsync(dbConnection, roles);
+            // Resolve added and removed users separately so that each mapping change targets the right users
+            int[] newUserIds = new int[0];
+            if (newUsers != null && newUsers.length > 0) {
+                newUserIds = getUserIDS(dbConnection, newUsers);
+            }
+            int[] deletedUserIds = new int[0];
             if (deletedUsers != null && deletedUsers.length > 0) {
-                userIds = getUserIDS(dbConnection, deletedUsers);
-            } else {
-                userIds = getUserIDS(dbConnection, newUsers);
+                deletedUserIds = getUserIDS(dbConnection, deletedUsers);
             }
-
-            String[] roles = {roleName};
-            int roleIds[] = getRolesIDS(dbConnection, roles);
+            int roleIds[] = MongoDBTaskExecutor.join(roleIdsFuture);
             Map<String, Object> mapRole = new HashMap<>();
-            mapRole.put(MongoDBCoreConstants.UM_USER_ID, userIds);
             mapRole.put(MongoDBCoreConstants.UM_ROLE_ID, roleIds[0]);
             if (isShared) {
                 mapRole.put(MongoDBCoreConstants.UM_ROLE_TENANT_ID, roleTenantId);
                 mapRole.put(MongoDBCoreConstants.UM_USER_TENANT_ID, this.tenantId);
-                if (newUsers.length > 0) {
+                if (newUserIds.length > 0) {
+                    mapRole.put(MongoDBCoreConstants.UM_USER_ID, newUserIds);
                     MongoDatabaseUtil.updateUserRoleMappingInBatchMode(dbConnection, mongoQuery2, mapRole);
                 }
-                if (deletedUsers != null && deletedUsers.length > 0) {
+                if (deletedUserIds.length > 0) {
+                    mapRole.put(MongoDBCoreConstants.UM_USER_ID, deletedUserIds);
                     MongoDatabaseUtil.deleteUserMappingInBatchMode(dbConnection, mongoQuery, mapRole);
                 }
             } else {
                 mapRole.put(MongoDBCoreConstants.UM_TENANT_ID, roleTenantId);
-                if (newUsers.length > 0) {
+                MongoDBEmbeddedRoleManager roleManager = getEmbeddedRoleManager();
+                if (newUserIds.length > 0) {
                     int userRoleId = MongoDatabaseUtil.getIncrementedSequence(dbConnection,
                             MongoDBCoreConstants.UM_USER_ROLE);
                     mapRole.put(MongoDBCoreConstants.UM_ID, userRoleId);
+                    mapRole.put(MongoDBCoreConstants.UM_USER_ID, newUserIds);
                     MongoDatabaseUtil.updateUserRoleMappingInBatchMode(dbConnection, mongoQuery2, mapRole);
+                    if (roleManager != null) {
+                        roleManager.addRoleToUsers(newUserIds, roleIds[0], roleName);
+                    }
                 }
-                if (deletedUsers != null && deletedUsers.length > 0) {
+                if (deletedUserIds.length > 0) {
+                    mapRole.put(MongoDBCoreConstants.UM_USER_ID, deletedUserIds);
                     MongoDatabaseUtil.deleteUserMappingInBatchMode(dbConnection, mongoQuery, mapRole);
+                    if (roleManager != null) {
+                        roleManager.removeRoleFromUsers(deletedUserIds, roleIds[0]);
+                    }
                 }
             }
         } catch (MongoDBQueryException e) {
@@ -1150,44 +1973,31 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
                 Integer[] sharedTenantIds = breakdown.getSharedTenantIds();
                 Map<String, Object> mapRole = new HashMap<>();
                 if (roles.length > 0) {
-                    if (isCaseSensitiveUsername()) {
-                        mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.REMOVE_ROLE_FROM_USER);
-                    } else {
-                        mongoQuery = realmConfig.getUserStoreProperty(
-                                MongoDBCaseInsensitiveConstants.REMOVE_ROLE_FROM_USER_CASE_INSENSITIVE);
-                    }
+                    mongoQuery = operations.getQuery(MongoDBOperation.REMOVE_ROLE_FROM_USER);
                     if (mongoQuery.equals("")) {
                         throw new UserStoreException("Mongo query is empty. Cannot update role list of user");
                     }
-                    MongoPreparedStatement prepStmt2 = new MongoPreparedStatementImpl(dbConnection,
-                            MongoDBRealmConstants.GET_USER_ID_FROM_USERNAME_MONGO_QUERY);
-                    prepStmt2.setString(MongoDBCoreConstants.UM_USER_NAME, userName);
-                    int rolesID[] = getRolesIDS(dbConnection, roles);
-                    int userID;
-                    if (mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
-                        prepStmt2.setInt(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
-                    }
-                    DBCursor cursor = prepStmt2.find();
-                    userID = Integer.parseInt(cursor.next().get(MongoDBCoreConstants.UM_ID).toString());
+                    // Resolve the role ids and the user id concurrently
+                    CompletableFuture<int[]> rolesIDFuture = getRolesIDSAsync(dbConnection, roles);
+                    int userID = getUserIDS(dbConnection, new String[]{userName})[0];
+                    int rolesID[] = MongoDBTaskExecutor.join(rolesIDFuture);
 
                     mapRole.put(MongoDBCoreConstants.UM_USER_ID, userID);
                     mapRole.put(MongoDBCoreConstants.UM_ROLE_ID, rolesID);
-                    if (mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
+                    if (operations.isTenantBound(MongoDBOperation.REMOVE_ROLE_FROM_USER)) {
                         mapRole.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
                         MongoDatabaseUtil.deleteUserRoleMappingInBatchMode(dbConnection, mongoQuery, mapRole);
                     } else {
                         MongoDatabaseUtil.deleteUserRoleMappingInBatchMode(dbConnection, mongoQuery, mapRole);
                     }
+                    MongoDBEmbeddedRoleManager roleManager = getEmbeddedRoleManager();
+                    if (roleManager != null) {
+                        roleManager.removeRolesFromUser(userID, rolesID);
+                    }
                 }
 
                 if (sharedRoles.length > 0) {
-                    if (isCaseSensitiveUsername()) {
-                        mongoQuery = realmConfig.getUserStoreProperty(
-                                MongoDBRealmConstants.REMOVE_USER_FROM_SHARED_ROLE);
-                    } else {
-                        mongoQuery = realmConfig.getUserStoreProperty(
-                                MongoDBCaseInsensitiveConstants.REMOVE_USER_FROM_SHARED_ROLE_CASE_INSENSITIVE);
-                    }
+                    mongoQuery = operations.getQuery(MongoDBOperation.REMOVE_USER_FROM_SHARED_ROLE);
                     if (mongoQuery == null) {
                         throw new UserStoreException("Mongo query is null. Cannot update role list of user");
                     }
@@ -1202,9 +2012,10 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
                 String[] roles = breakdown.getRoles();
                 String[] sharedRoles = breakdown.getSharedRoles();
                 Integer[] sharedTenantIds = breakdown.getSharedTenantIds();
-                int roleIds[] = getRolesIDS(dbConnection, roles);
+                CompletableFuture<int[]> roleIdsFuture = getRolesIDSAsync(dbConnection, roles);
                 String users[] = {userName};
                 int userIds[] = getUserIDS(dbConnection, users);
+                int roleIds[] = MongoDBTaskExecutor.join(roleIdsFuture);
                 Map<String, Object> map = new HashMap<>();
                 int userRoleId = MongoDatabaseUtil.getIncrementedSequence(dbConnection,
                         MongoDBCoreConstants.UM_USER_ROLE);
@@ -1212,35 +2023,24 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
                 map.put(MongoDBCoreConstants.UM_ROLE_ID, roleIds);
                 map.put(MongoDBCoreConstants.UM_USER_ID, userIds[0]);
 
-                if (roles.length > 0) {
-                    if (isCaseSensitiveUsername()) {
-                        mongoQuery2 = realmConfig.getUserStoreProperty(MongoDBRealmConstants.ADD_ROLE_TO_USER);
-                    } else {
-                        mongoQuery2 = realmConfig.getUserStoreProperty(
-                                MongoDBCaseInsensitiveConstants.ADD_ROLE_TO_USER_CASE_INSENSITIVE);
-                    }
-                }
-                if (mongoQuery2 == null) {
-                    if (isCaseSensitiveUsername()) {
-                        mongoQuery2 = realmConfig.getUserStoreProperty(MongoDBRealmConstants.ADD_ROLE_TO_USER);
-                    } else {
-                        mongoQuery2 = realmConfig.getUserStoreProperty(
-                                MongoDBCaseInsensitiveConstants.ADD_ROLE_TO_USER_CASE_INSENSITIVE);
-                    }
-                }
+                mongoQuery2 = operations.getQuery(MongoDBOperation.ADD_ROLE_TO_USER);
                 if (mongoQuery2 == null) {
                     throw new UserStoreException("Mongo query is null. Cannot update role list of user");
                 } else {
-                    if (mongoQuery2.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
+                    if (operations.isTenantBound(MongoDBOperation.ADD_ROLE_TO_USER)) {
                         map.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
                         MongoDatabaseUtil.updateUserRoleMappingInBatchMode(dbConnection, mongoQuery2, map);
                     } else {
                         MongoDatabaseUtil.updateUserRoleMappingInBatchMode(dbConnection, mongoQuery2, map);
                     }
                 }
+                MongoDBEmbeddedRoleManager roleManager = getEmbeddedRoleManager();
+                if (roleManager != null) {
+                    roleManager.addRolesToUser(userIds[0], roleIds, roles);
+                }
 
                 if (sharedRoles.length > 0) {
-                    mongoQuery2 = realmConfig.getUserStoreProperty(MongoDBRealmConstants.ADD_SHARED_ROLE_TO_USER);
+                    mongoQuery2 = operations.getQuery(MongoDBOperation.ADD_SHARED_ROLE_TO_USER);
                     if (mongoQuery2 == null) {
                         throw new UserStoreException("Mongo query is null. Cannot update role list of user");
                     }
@@ -1303,22 +2103,31 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         if (log.isDebugEnabled()) {
             log.debug("Getting roles of user: " + userName + " with filter: " + filter);
         }
-        String mongoQuery;
+        MongoDBEmbeddedRoleManager roleManager = getEmbeddedRoleReader();
+        if (roleManager != null) {
+            try {
+                // Resolving the ID first keeps the read on the user ID index, also for case insensitive names
+                int userId = getCachedUserID(loadUserStoreSpecificDataSource(), userName);
+                if (userId == 0) {
+                    return new String[0];
+                }
+                return roleManager.getRoleNamesOfUser(userId, userName, filter);
+            } catch (MongoDBQueryException e) {
+                throw new UserStoreException("MongoDBQueryException occurred. Cannot get external role list of user",
+                        e);
+            }
+        }
+        String mongoQuery = operations.getQuery(MongoDBOperation.GET_USER_ROLE);
         String query;
         if (isCaseSensitiveUsername()) {
             query = MongoDBRealmConstants.GET_USER_ID_FROM_USERNAME_MONGO_QUERY;
-            mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.GET_USER_ROLE);
         } else {
             query = MongoDBCaseInsensitiveConstants.GET_USER_ID_FROM_USERNAME_MONGO_CASE_INSENSITIVE;
-            mongoQuery = realmConfig.getUserStoreProperty(
-                    MongoDBCaseInsensitiveConstants.GET_USER_ROLE_CASE_INSENSITIVE);
         }
-        MongoPreparedStatement prepStmt = new MongoPreparedStatementImpl(this.db, query);
+        MongoPreparedStatement prepStmt = new MongoPreparedStatementImpl(loadUserStoreSpecificDataSource(), query);
         prepStmt.setString(MongoDBCoreConstants.UM_USER_NAME, userName);
-
-        if (MongoDBRealmConstants.GET_USER_ID_FROM_USERNAME_MONGO_QUERY.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
-            prepStmt.setInt(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
-        }
+        // Both built-in user id queries bind the tenant
+        prepStmt.setInt(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
         try {
             DBCursor cursor = prepStmt.find();
             int userId = 0;
@@ -1326,14 +2135,13 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
 
                 userId = Integer.parseInt(cursor.next().get(MongoDBCoreConstants.UM_ID).toString());
             }
-            List<String> roles = new ArrayList<>();
             String[] names;
             if (mongoQuery == null) {
                 throw new UserStoreException("Mongo query is null. Cannot get external role list of user");
             }
             Map<String, Object> map = new HashMap<>();
             map.put(MongoDBCoreConstants.USERS_UM_ID, userId);
-            if (mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
+            if (operations.isTenantBound(MongoDBOperation.GET_USER_ROLE)) {
 
                 map.put(MongoDBCoreConstants.USER_ROLE_UM_TENANT_ID, tenantId);
                 map.put(MongoDBCoreConstants.USERS_UM_ID, tenantId);
@@ -1342,8 +2150,7 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
             } else {
                 names = getStringValuesFromDatabase(mongoQuery, map);
             }
-            Collections.addAll(roles, names);
-            return roles.toArray(new String[roles.size()]);
+            return names;
         } catch (MongoDBQueryException e) {
             throw new UserStoreException("MongoDBQueryException occurred. Cannot get external role list of user", e);
         }
@@ -1354,7 +2161,8 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         String[] values;
         DB dbConnection = loadUserStoreSpecificDataSource();
         try {
-            values = MongoDatabaseUtil.getStringValuesFromDatabase(dbConnection, mongoQuery, params, true, true);
+            values = MongoDatabaseUtil.getStringValuesFromDatabase(dbConnection, mongoQuery, params, true, true, -1,
+                    getCursorBatchSize());
         } catch (MongoDBQueryException e) {
             throw new UserStoreException("Error while getting string values from database", e);
         } finally {
@@ -1391,7 +2199,7 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
             log.debug("Looking for shared roles for user: " + userName + " for tenant: " + tenantDomain);
         }
         if (isSharedGroupEnabled()) {
-            String mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.GET_SHARED_ROLES_FOR_USER);
+            String mongoQuery = operations.getQuery(MongoDBOperation.GET_SHARED_ROLES_FOR_USER);
             return getRoleNamesWithDomain(mongoQuery, userName, tenantId);
         }
         return new String[0];
@@ -1441,30 +2249,25 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         String mongoQuery2;
         Map<String, Object> mapRole = new HashMap<>();
         try {
-            mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.ADD_ROLE);
+            mongoQuery = operations.getQuery(MongoDBOperation.ADD_ROLE);
             map.put(MongoDBCoreConstants.UM_ROLE_NAME, roleName);
             int roleId = MongoDatabaseUtil.getIncrementedSequence(dbConnection, MongoDBCoreConstants.UM_ROLE);
             map.put(MongoDBCoreConstants.UM_ID, roleId);
             map.put(MongoDBCoreConstants.UM_SHARED_ROLE, 0);
-            if (mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
+            if (operations.isTenantBound(MongoDBOperation.ADD_ROLE)) {
                 map.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
                 this.updateStringValuesToDatabase(dbConnection, mongoQuery, map);
             } else {
                 this.updateStringValuesToDatabase(dbConnection, mongoQuery, map);
             }
             if (userList != null) {
-                if (isCaseSensitiveUsername()) {
-                    mongoQuery2 = realmConfig.getUserStoreProperty(MongoDBRealmConstants.ADD_USER_TO_ROLE);
-                } else {
-                    mongoQuery2 = realmConfig.getUserStoreProperty(
-                            MongoDBCaseInsensitiveConstants.ADD_USER_TO_ROLE_CASE_INSENSITIVE);
-                }
+                mongoQuery2 = operations.getQuery(MongoDBOperation.ADD_USER_TO_ROLE);
                 if (mongoQuery2 == null) {
                     throw new UserStoreException("Mongo query is null. Cannot add role");
                 }
-                MongoPreparedStatement prepStmt = new MongoPreparedStatementImpl(this.db,
+                MongoPreparedStatement prepStmt = new MongoPreparedStatementImpl(loadUserStoreSpecificDataSource(),
                         MongoDBRealmConstants.ADD_USER_TO_ROLE_MONGO_QUERY_CONDITION1);
-                if (mongoQuery2.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
+                if (operations.isTenantBound(MongoDBOperation.ADD_USER_TO_ROLE)) {
                     String mongoCondition = MongoDBRealmConstants.GET_IS_ROLE_EXISTING_MONGO_QUERY;
                     MongoPreparedStatement prepStmt2 = new MongoPreparedStatementImpl(dbConnection, mongoCondition);
                     prepStmt2.setString(MongoDBCoreConstants.UM_ROLE_NAME, roleName);
@@ -1480,6 +2283,10 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
                     mapRole.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
                     if (userID.length != 0) {
                         MongoDatabaseUtil.updateUserRoleMappingInBatchMode(dbConnection, mongoQuery2, mapRole);
+                        MongoDBEmbeddedRoleManager roleManager = getEmbeddedRoleManager();
+                        if (roleManager != null) {
+                            roleManager.addRoleToUsers(userID, roleId, roleName);
+                        }
                     }
                 } else {
                     String mongoCondition = MongoDBRealmConstants.GET_IS_ROLE_EXISTING_MONGO_QUERY;
@@ -1511,10 +2318,10 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         Map<String, Object> map = new HashMap<>();
         DB dbConnection = loadUserStoreSpecificDataSource();
         try {
-            String mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.ADD_SHARED_ROLE);
+            String mongoQuery = operations.getQuery(MongoDBOperation.ADD_SHARED_ROLE);
             map.put(MongoDBCoreConstants.UM_ROLE_NAME, roleName);
             map.put(MongoDBCoreConstants.UM_SHARED_ROLE, roleName);
-            if (mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
+            if (operations.isTenantBound(MongoDBOperation.ADD_SHARED_ROLE)) {
 
                 map.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
                 this.updateStringValuesToDatabase(dbConnection, mongoQuery, map);
@@ -1523,19 +2330,14 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
             }
             if (userList != null) {
                 String mongoQuery2;
-                if (isCaseSensitiveUsername()) {
-                    mongoQuery2 = realmConfig.getUserStoreProperty(MongoDBRealmConstants.ADD_SHARED_ROLE_TO_USER);
-                } else {
-                    mongoQuery2 = realmConfig.getUserStoreProperty(
-                            MongoDBCaseInsensitiveConstants.ADD_SHARED_ROLE_TO_USER_CASE_INSENSITIVE);
-                }
+                mongoQuery2 = operations.getQuery(MongoDBOperation.ADD_SHARED_ROLE_TO_USER);
                 String[] roles = {roleName};
                 int roleID[] = getRolesIDS(dbConnection, roles);
                 int[] userID = getUserIDS(dbConnection, userList);
                 Map<String, Object> mapRole = new HashMap<>();
                 mapRole.put(MongoDBCoreConstants.UM_USER_ID, roleID[0]);
                 mapRole.put(MongoDBCoreConstants.UM_ROLE_ID, userID);
-                if (mongoQuery2.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
+                if (operations.isTenantBound(MongoDBOperation.ADD_SHARED_ROLE_TO_USER)) {
 
                     mapRole.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
                     MongoDatabaseUtil.updateUserRoleMappingInBatchMode(dbConnection, mongoQuery2,
@@ -1552,32 +2354,85 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
     }
 
     private int[] getUserIDS(DB dbConnection, String[] userList) throws MongoDBQueryException {
-        String query;
-        if (isCaseSensitiveUsername()) {
-            query = MongoDBRealmConstants.GET_USER_ID_FROM_USERNAME_MONGO_QUERY;
-        } else {
-            query = MongoDBCaseInsensitiveConstants.GET_USER_ID_FROM_USERNAME_MONGO_CASE_INSENSITIVE;
+        return getIDS(dbConnection, MongoDBCoreConstants.UM_USER, MongoDBCoreConstants.UM_USER_NAME, userList,
+                isCaseSensitiveUsername());
+    }
+
+    /**
+     * Resolve the UM_ID of each name with one $in query per batch of names, so that long user or role lists never
+     * fan out into a query per name.
+     *
+     * @param dbConnection  of user store
+     * @param collection    holding the names
+     * @param nameField     field holding the name
+     * @param names         to resolve
+     * @param caseSensitive whether the names are matched case sensitively
+     * @return int[] ids in the order of the names, 0 for names which do not exist
+     * @throws MongoDBQueryException if a lookup fails
+     */
+    private int[] getIDS(DB dbConnection, String collection, String nameField, String[] names, boolean caseSensitive)
+            throws MongoDBQueryException {
+        Map<String, Integer> found = new HashMap<>();
+        for (Map.Entry<Integer, String> entry : findIDS(dbConnection, collection, nameField, names, caseSensitive)
+                .entrySet()) {
+            found.put(entry.getValue(), entry.getKey());
+        }
+        int ids[] = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            Integer id = found.get(toNameKey(names[i], caseSensitive));
+            ids[i] = id == null ? 0 : id;
         }
-        int userID[] = new int[userList.length];
-        int index = 0;
-        for (String user : userList) {
+        return ids;
+    }
 
-            MongoPreparedStatement prepStmt = new MongoPreparedStatementImpl(dbConnection, query);
-            if (query.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
-                prepStmt.setInt(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
-            }
-            prepStmt.setString(MongoDBCoreConstants.UM_USER_NAME, user);
-            DBCursor cursor = prepStmt.find();
-            if (cursor.hasNext()) {
-                int id = (int) Double.parseDouble(cursor.next().get(MongoDBCoreConstants.UM_ID).toString());
-                if (id > 0) {
-                    userID[index] = id;
+    /**
+     * Find the UM_ID of every document matching one of the names, with one $in query per batch of names. Matching
+     * case insensitively can find several documents for a name.
+     *
+     * @param dbConnection  of user store
+     * @param collection    holding the names
+     * @param nameField     field holding the name
+     * @param names         to resolve
+     * @param caseSensitive whether the names are matched case sensitively
+     * @return Map of the name of each id, lower cased unless matched case sensitively
+     * @throws MongoDBQueryException if a lookup fails
+     */
+    private Map<Integer, String> findIDS(DB dbConnection, String collection, String nameField, String[] names,
+                                         boolean caseSensitive) throws MongoDBQueryException {
+        Map<Integer, String> found = new HashMap<>();
+        DBObject projection = new BasicDBObject(nameField, 1).append(MongoDBCoreConstants.UM_ID, 1)
+                .append(MongoDBCoreConstants.ID, 0);
+        try {
+            for (int start = 0; start < names.length; start += cursorBatchSize) {
+                BasicDBList values = new BasicDBList();
+                for (int i = start; i < Math.min(names.length, start + cursorBatchSize); i++) {
+                    values.add(caseSensitive ? names[i] : Pattern.compile(
+                            "^" + MongoDBUserAttributeLayout.escapeRegex(names[i]) + "$", Pattern.CASE_INSENSITIVE));
+                }
+                DBObject query = new BasicDBObject(nameField, new BasicDBObject(MongoDBCoreConstants.IN_FIELD, values))
+                        .append(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
+                DBCursor cursor = dbConnection.getCollection(collection).find(query, projection)
+                        .batchSize(cursorBatchSize);
+                try {
+                    while (cursor.hasNext()) {
+                        DBObject document = cursor.next();
+                        int id = (int) Double.parseDouble(document.get(MongoDBCoreConstants.UM_ID).toString());
+                        if (id > 0) {
+                            found.put(id, toNameKey(document.get(nameField).toString(), caseSensitive));
+                        }
+                    }
+                } finally {
+                    cursor.close();
                 }
             }
-            index++;
-            prepStmt.close();
+        } catch (MongoException e) {
+            throw new MongoDBQueryException("Failed to resolve the ids of " + collection, e);
         }
-        return userID;
+        return found;
+    }
+
+    private static String toNameKey(String name, boolean caseSensitive) {
+        return caseSensitive ? name : name.toLowerCase(Locale.ENGLISH);
     }
 
     /**
@@ -1588,29 +2443,26 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
      */
     protected void doDeleteRole(String roleName) throws UserStoreException {
         Map<String, Object> map = new HashMap<>();
-        String mongoQuery1 = realmConfig.getUserStoreProperty(MongoDBRealmConstants.ON_DELETE_ROLE_REMOVE_USER_ROLE);
+        String mongoQuery1 = operations.getQuery(MongoDBOperation.ON_DELETE_ROLE_REMOVE_USER_ROLE);
         if (mongoQuery1 == null) {
             throw new UserStoreException("Mongo query is null. Cannot delete role");
         }
-        String mongoQuery2 = realmConfig.getUserStoreProperty(MongoDBRealmConstants.DELETE_ROLE);
+        String mongoQuery2 = operations.getQuery(MongoDBOperation.DELETE_ROLE);
         if (mongoQuery2 == null) {
             throw new UserStoreException("Mongo query is null. Cannot delete role");
         }
         DB dbConnection = loadUserStoreSpecificDataSource();
         try {
-            String roles[] = {roleName};
-            int roleIds[] = getRolesIDS(dbConnection, roles);
-            map.put(MongoDBCoreConstants.UM_ROLE_ID, roleIds[0]);
-            if (mongoQuery1.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
-
-                map.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
-                map.put(MongoDBCoreConstants.UM_ID, roleIds[0]);
-                this.deleteStringValuesFromDatabase(dbConnection, mongoQuery1, map);
-                this.deleteStringValuesFromDatabase(dbConnection, mongoQuery2, map);
-            } else {
-                map.put(MongoDBCoreConstants.UM_ID, roleIds[0]);
-                this.deleteStringValuesFromDatabase(dbConnection, mongoQuery1, map);
-                this.deleteStringValuesFromDatabase(dbConnection, mongoQuery2, map);
+            // Resolve the role once and bind the same parameters to both deletes, the mappings go first
+            int roleId = getRolesIDS(dbConnection, new String[]{roleName})[0];
+            map.put(MongoDBCoreConstants.UM_ROLE_ID, roleId);
+            map.put(MongoDBCoreConstants.UM_ID, roleId);
+            map.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
+            this.deleteStringValuesFromDatabase(dbConnection, mongoQuery1, map);
+            this.deleteStringValuesFromDatabase(dbConnection, mongoQuery2, map);
+            MongoDBEmbeddedRoleManager roleManager = getEmbeddedRoleManager();
+            if (roleManager != null) {
+                roleManager.removeRole(roleName);
             }
         } catch (MongoDBQueryException e) {
             throw new UserStoreException("Error occurred while deleting role: " + roleName, e);
@@ -1633,7 +2485,7 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
             throw new UserStoreException("Role name: " + newRoleName +
                     " already exists in the system. Please pick another name");
         }
-        String mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.UPDATE_ROLE_NAME);
+        String mongoQuery = operations.getQuery(MongoDBOperation.UPDATE_ROLE_NAME);
         map.put(MongoDBCoreConstants.UM_ROLE_NAME, newRoleName);
         if (mongoQuery == null) {
             throw new UserStoreException("Mongo query is null. Cannot update role name");
@@ -1644,12 +2496,16 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
             String roles[] = {roleName};
             int roleIds[] = getRolesIDS(dbConnection, roles);
             map.put(MongoDBCoreConstants.UM_ID, roleIds[0]);
-            if (mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
+            if (operations.isTenantBound(MongoDBOperation.UPDATE_ROLE_NAME)) {
                 map.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
                 this.updateStringValuesToDatabase(dbConnection, mongoQuery, map);
             } else {
                 this.updateStringValuesToDatabase(dbConnection, mongoQuery, map);
             }
+            MongoDBEmbeddedRoleManager roleManager = getEmbeddedRoleManager();
+            if (roleManager != null) {
+                roleManager.renameRole(roleName, newRoleName);
+            }
         } catch (MongoDBQueryException e) {
             throw new UserStoreException("Error occurred while updating role name: " + roleName, e);
         } finally {
@@ -1673,6 +2529,10 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         if (maxItemLimit == 0) {
             return roles;
         }
+        int givenMax = operations.getMaxRoleListLength();
+        if (maxItemLimit < 0 || maxItemLimit > givenMax) {
+            maxItemLimit = givenMax;
+        }
         try {
             if (filter != null && filter.trim().length() != 0) {
                 filter = filter.trim();
@@ -1681,37 +2541,37 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
             } else {
                 filter = "%";
             }
-            List<String> lst = new LinkedList<>();
             dbConnection = loadUserStoreSpecificDataSource();
             if (dbConnection == null) {
 
                 throw new UserStoreException("Null connection");
             }
-            mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.GET_ROLE_LIST);
+            mongoQuery = operations.getQuery(MongoDBOperation.GET_ROLE_LIST);
             prepStmt = new MongoPreparedStatementImpl(dbConnection, mongoQuery);
             prepStmt.setString(MongoDBCoreConstants.UM_ROLE_NAME, filter);
-            if (mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
+            if (operations.isTenantBound(MongoDBOperation.GET_ROLE_LIST)) {
                 prepStmt.setInt(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
             }
-            DBCursor cursor;
+            DBCursor cursor = null;
             try {
                 cursor = prepStmt.find();
                 if (cursor != null) {
-                    while (cursor.hasNext()) {
+                    cursor.batchSize(Math.min(maxItemLimit, getCursorBatchSize())).limit(maxItemLimit);
+                    List<String> lst = new ArrayList<>(Math.min(maxItemLimit, getCursorBatchSize()));
+                    // Append the domain if exist
+                    String domain = operations.getDomainName();
+                    while (cursor.hasNext() && lst.size() < maxItemLimit) {
                         String name = cursor.next().get(MongoDBCoreConstants.UM_ROLE_NAME).toString();
-                        // Append the domain if exist
-                        String domain =
-                                realmConfig.getUserStoreProperty(UserCoreConstants.RealmConfig.PROPERTY_DOMAIN_NAME);
-                        name = UserCoreUtil.addDomainToName(name, domain);
-                        lst.add(name);
+                        lst.add(UserCoreUtil.addDomainToName(name, domain));
                     }
-                }
-                if (lst.size() > 0) {
                     roles = lst.toArray(new String[lst.size()]);
                 }
-
             } catch (MongoDBQueryException e) {
                 throw new UserStoreException("Error while fetching roles according to the filter", e);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
             }
         } finally {
             MongoDatabaseUtil.closeConnection(dbConnection);
@@ -1732,19 +2592,11 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         DB dbConnection = null;
         String mongoQuery;
         MongoPreparedStatement prepStmt;
-        //noinspection deprecation
-        AggregationOutput cursor;
+        Cursor cursor = null;
         if (maxItemLimit == 0) {
             return new String[0];
         }
-        int givenMax;
-        try {
-            givenMax = Integer.parseInt(
-                    realmConfig.getUserStoreProperty(UserCoreConstants.RealmConfig.PROPERTY_MAX_USER_LIST)
-            );
-        } catch (Exception e) {
-            givenMax = UserCoreConstants.MAX_USER_ROLE_LIST;
-        }
+        int givenMax = operations.getMaxUserListLength();
         if (maxItemLimit < 0 || maxItemLimit > givenMax) {
             maxItemLimit = givenMax;
         }
@@ -1757,25 +2609,30 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
                 filter = "%";
             }
 
-            List<String> lst = new LinkedList<>();
             dbConnection = loadUserStoreSpecificDataSource();
             if (dbConnection == null) {
                 throw new UserStoreException("Data source is null. Cannot list users");
             }
 
-            if (isCaseSensitiveUsername()) {
-                mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.GET_USER_FILTER);
-            } else {
-                mongoQuery = realmConfig.getUserStoreProperty(
-                        MongoDBCaseInsensitiveConstants.GET_USER_FILTER_CASE_INSENSITIVE);
-            }
+            mongoQuery = operations.getQuery(MongoDBOperation.GET_USER_FILTER);
             prepStmt = new MongoPreparedStatementImpl(dbConnection, mongoQuery);
             prepStmt.setString(MongoDBCoreConstants.UM_USER_NAME, filter);
-            if (mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
+            if (operations.isTenantBound(MongoDBOperation.GET_USER_FILTER)) {
                 prepStmt.setInt(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
             }
+            int batchSize = Math.min(maxItemLimit, getCursorBatchSize());
+            List<String> lst = new ArrayList<>(batchSize);
             try {
-                cursor = prepStmt.aggregate();
+                cursor = prepStmt.aggregate(batchSize);
+                // append the domain if exist
+                String domain = operations.getDomainName();
+                while (cursor.hasNext() && lst.size() < maxItemLimit) {
+                    String name = cursor.next().get(MongoDBCoreConstants.UM_USER_NAME).toString();
+                    if (CarbonConstants.REGISTRY_ANONNYMOUS_USERNAME.equals(name)) {
+                        continue;
+                    }
+                    lst.add(UserCoreUtil.addDomainToName(name, domain));
+                }
             } catch (MongoException e) {
                 String errorMessage =
                         "Error while fetching users according to filter : " + filter + " & max Item limit " +
@@ -1784,23 +2641,12 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
                     log.debug(errorMessage, e);
                 }
                 throw new UserStoreException(errorMessage, e);
-            }
-            if (cursor != null) {
-                for (DBObject object : cursor.results()) {
-                    String name = object.get(MongoDBCoreConstants.UM_USER_NAME).toString();
-                    if (CarbonConstants.REGISTRY_ANONNYMOUS_USERNAME.equals(name)) {
-                        continue;
-                    }
-                    // append the domain if exist
-                    String domain =
-                            realmConfig.getUserStoreProperty(UserCoreConstants.RealmConfig.PROPERTY_DOMAIN_NAME);
-                    name = UserCoreUtil.addDomainToName(name, domain);
-                    lst.add(name);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
                 }
             }
-            if (lst.size() > 0) {
-                users = lst.toArray(new String[lst.size()]);
-            }
+            users = lst.toArray(new String[lst.size()]);
             Arrays.sort(users);
         } finally {
             MongoDatabaseUtil.closeConnection(dbConnection);
@@ -1808,6 +2654,65 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         return users;
     }
 
+    /**
+     * Get a page of the users matching a condition. The condition is compiled into a single aggregation, so the
+     * users are filtered, sorted by user name and paged by the server. When the offset is past the last matching
+     * user, the matching users are counted so that the skipped user count is exact.
+     *
+     * @param condition   to match
+     * @param profileName of the attributes in the condition
+     * @param limit       maximum number of users to return
+     * @param offset      1 based position of the first user to return
+     * @param sortBy      ignored, users are sorted by user name
+     * @param sortOrder   ASC or DESC
+     * @return PaginatedSearchResult of the users
+     * @throws UserStoreException if any exception occurred
+     */
+    @Override
+    protected PaginatedSearchResult doGetUserList(Condition condition, String profileName, int limit, int offset,
+                                                  String sortBy, String sortOrder) throws UserStoreException {
+        PaginatedSearchResult result = new PaginatedSearchResult();
+        if (limit == 0) {
+            return result;
+        }
+        int givenMax = operations.getMaxUserListLength();
+        if (limit < 0 || limit > givenMax) {
+            limit = givenMax;
+        }
+        offset = offset <= 0 ? 0 : offset - 1;
+        if (profileName == null) {
+            profileName = UserCoreConstants.DEFAULT_PROFILE;
+        }
+        MongoDBConditionCompiler compiler = new MongoDBConditionCompiler(loadUserStoreSpecificDataSource(), tenantId,
+                profileName, isCaseSensitiveUsername());
+        compiler.setUseIndexHints(operations.isUserSearchIndexHints());
+        compiler.setDomainName(operations.getDomainName());
+        List<String> users = new ArrayList<>(Math.min(limit, getCursorBatchSize()));
+        String domain = operations.getDomainName();
+        MongoCursor<BasicDBObject> cursor = null;
+        try {
+            cursor = compiler.execute(condition, sortOrder, offset, limit, getCursorBatchSize());
+            boolean found = false;
+            while (cursor.hasNext()) {
+                found = true;
+                Object name = cursor.next().get(MongoDBCoreConstants.UM_USER_NAME);
+                if (name != null && !CarbonConstants.REGISTRY_ANONNYMOUS_USERNAME.equals(name.toString())) {
+                    users.add(UserCoreUtil.addDomainToName(name.toString(), domain));
+                }
+            }
+            // The kernel carries the rest of the offset over to the next user store, so report how much was used
+            result.setSkippedUserCount(found || offset == 0 ? offset : compiler.count(condition, offset));
+        } catch (MongoDBQueryException | MongoException e) {
+            throw new UserStoreException("Error occurred while searching users for the condition", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        result.setUsers(users.toArray(new String[users.size()]));
+        return result;
+    }
+
     /**
      * Get internal role names of given user.
      *
@@ -1827,6 +2732,10 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
      * @throws UserStoreException if any exception occurred
      */
     public boolean doCheckIsUserInRole(String userName, String roleName) throws UserStoreException {
+        if (!isSharedGroupEnabled()) {
+            return !getMemberRoles(userName, new String[]{roleName}, true).isEmpty();
+        }
+        // Shared roles are mapped outside UM_USER_ROLE, so compare against the full role list of the user
         String[] roles = doGetExternalRoleListOfUser(userName, "*");
         if (roles != null) {
             for (String role : roles) {
@@ -1838,6 +2747,139 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         return false;
     }
 
+    /**
+     * Check the membership of a user in several roles of this user store with a single query.
+     *
+     * @param userName  to check
+     * @param roleNames to check the membership in
+     * @return Map of the membership status by role name, in the order of the given roles
+     * @throws UserStoreException if any exception occurred
+     */
+    public Map<String, Boolean> isUserInRoles(String userName, String[] roleNames) throws UserStoreException {
+        Map<String, Boolean> membership = new LinkedHashMap<>();
+        for (String roleName : roleNames) {
+            membership.put(roleName, Boolean.FALSE);
+        }
+        if (isSharedGroupEnabled()) {
+            // Shared roles are mapped outside UM_USER_ROLE, so check them against the role list of the user
+            for (String roleName : roleNames) {
+                String name = MongoDBRealmUtil.removeOwnDomain(roleName, operations.getDomainName());
+                membership.put(roleName, name != null && doCheckIsUserInRole(userName, name));
+            }
+            return membership;
+        }
+        for (String roleName : getMemberRoles(userName, roleNames, false)) {
+            membership.put(roleName, Boolean.TRUE);
+        }
+        return membership;
+    }
+
+    /**
+     * Check whether a user is in at least one of the given roles of this user store. The query stops at the first
+     * matching role.
+     *
+     * @param userName  to check
+     * @param roleNames to check the membership in
+     * @return boolean status
+     * @throws UserStoreException if any exception occurred
+     */
+    public boolean isUserInAnyRole(String userName, String[] roleNames) throws UserStoreException {
+        if (isSharedGroupEnabled()) {
+            for (String roleName : roleNames) {
+                String name = MongoDBRealmUtil.removeOwnDomain(roleName, operations.getDomainName());
+                if (name != null && doCheckIsUserInRole(userName, name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return !getMemberRoles(userName, roleNames, true).isEmpty();
+    }
+
+    /**
+     * Find the given roles which are assigned to a user. Role names match case insensitively. The role IDs are read
+     * from UM_ROLE, since other nodes cannot invalidate a cached role ID, concurrently with the user ID
+     * on a user ID cache miss unless already running on a task of the bounded pool. UM_USER_ROLE is then queried
+     * once with $in on the candidate role IDs, covered by the user role index. Roles of other domains are never
+     * assigned through this user store.
+     *
+     * @param userName  of user
+     * @param roleNames candidate roles
+     * @param firstOnly whether to stop at the first assigned role
+     * @return List of the assigned roles
+     * @throws UserStoreException if any exception occurred
+     */
+    private List<String> getMemberRoles(String userName, String[] roleNames, boolean firstOnly)
+            throws UserStoreException {
+        List<String> members = new ArrayList<>();
+        if (roleNames.length == 0) {
+            return members;
+        }
+        List<String> ownNames = new ArrayList<>(roleNames.length);
+        List<String> ownRoles = new ArrayList<>(roleNames.length);
+        for (String roleName : roleNames) {
+            String name = MongoDBRealmUtil.removeOwnDomain(roleName, operations.getDomainName());
+            if (name != null) {
+                ownNames.add(name);
+                ownRoles.add(roleName);
+            }
+        }
+        if (ownNames.isEmpty()) {
+            return members;
+        }
+        final String[] names = ownNames.toArray(new String[ownNames.size()]);
+        final DB dbConnection = loadUserStoreSpecificDataSource();
+        try {
+            Integer cachedUserId = userIdCache.get(getUserCacheKey(userName));
+            int userId;
+            Map<Integer, String> roleIds;
+            if (cachedUserId != null) {
+                userId = cachedUserId;
+                roleIds = getRoleIDSIgnoreCase(dbConnection, names);
+            } else {
+                CompletableFuture<Map<Integer, String>> roleIdsFuture = MongoDBTaskExecutor.supplyAsync(
+                        new Callable<Map<Integer, String>>() {
+                            @Override
+                            public Map<Integer, String> call() throws MongoDBQueryException {
+                                return getRoleIDSIgnoreCase(dbConnection, names);
+                            }
+                        });
+                userId = getCachedUserID(dbConnection, userName);
+                roleIds = MongoDBTaskExecutor.join(roleIdsFuture);
+            }
+            if (userId == 0 || roleIds.isEmpty()) {
+                return members;
+            }
+            BasicDBList candidates = new BasicDBList();
+            candidates.addAll(roleIds.keySet());
+            DBObject query = new BasicDBObject(MongoDBCoreConstants.UM_USER_ID, userId)
+                    .append(MongoDBCoreConstants.UM_ROLE_ID, new BasicDBObject(MongoDBCoreConstants.IN_FIELD,
+                            candidates))
+                    .append(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
+            DBObject projection = new BasicDBObject(MongoDBCoreConstants.UM_ROLE_ID, 1).append("_id", 0);
+            DBCursor cursor = dbConnection.getCollection(MongoDBCoreConstants.UM_USER_ROLE).find(query, projection);
+            if (firstOnly) {
+                cursor.limit(1);
+            }
+            try {
+                while (cursor.hasNext()) {
+                    int roleId = ((Number) cursor.next().get(MongoDBCoreConstants.UM_ROLE_ID)).intValue();
+                    String key = roleIds.get(roleId);
+                    for (int i = 0; i < names.length; i++) {
+                        if (toNameKey(names[i], false).equals(key) && !members.contains(ownRoles.get(i))) {
+                            members.add(ownRoles.get(i));
+                        }
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (MongoDBQueryException | MongoException e) {
+            throw new UserStoreException("Error occurred while checking the roles of user: " + userName, e);
+        }
+        return members;
+    }
+
     /**
      * Get shared role names of user store.
      *
@@ -1873,7 +2915,7 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
             if (dbConnection == null) {
                 throw new UserStoreException("Data source is null. Cannot get shared roles");
             }
-            mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.GET_SHARED_ROLE_LIST);
+            mongoQuery = operations.getQuery(MongoDBOperation.GET_SHARED_ROLE_LIST);
             prepStmt = new MongoPreparedStatementImpl(dbConnection, mongoQuery);
             prepStmt.setString(MongoDBCoreConstants.UM_ROLE_NAME, filter);
             cursor = prepStmt.find();
@@ -1884,8 +2926,7 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
                     int roleTenantId =
                             Integer.parseInt(cursor.next().get(MongoDBCoreConstants.UM_TENANT_ID).toString());
                     // Append the domain if exist
-                    String domain =
-                            realmConfig.getUserStoreProperty(UserCoreConstants.RealmConfig.PROPERTY_DOMAIN_NAME);
+                    String domain = operations.getDomainName();
                     name = UserCoreUtil.addDomainToName(name, domain);
                     name = UserCoreUtil.addTenantDomainToEntry(name, String.valueOf(roleTenantId));
                     lst.add(name);
@@ -1917,44 +2958,369 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
 
     private String[] getUserListOfMongoDBRole(RoleContext ctx) throws UserStoreException {
         String roleName = ctx.getRoleName();
-        String[] names = null;
         String mongoQuery;
         Map<String, Object> map = new HashMap<>();
-
-        if (!ctx.isShared()) {
-            mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.GET_USERS_IN_ROLE);
+        final List<String> userList = new ArrayList<>();
+        final String domainName = operations.getDomainName();
+        StringValueHandler collector = new StringValueHandler() {
+            @Override
+            public boolean handle(String user) {
+                userList.add(UserCoreUtil.addDomainToName(user, domainName));
+                return true;
+            }
+        };
+
+        MongoDBEmbeddedRoleManager roleManager = getEmbeddedRoleReader();
+        if (!ctx.isShared() && roleManager != null) {
+            try {
+                for (String user : roleManager.getUserNamesOfRole(roleName)) {
+                    collector.handle(user);
+                }
+            } catch (MongoDBQueryException e) {
+                throw new UserStoreException("Error while getting users of role: " + roleName, e);
+            }
+        } else if (!ctx.isShared()) {
+            mongoQuery = operations.getQuery(MongoDBOperation.GET_USERS_IN_ROLE);
             if (mongoQuery == null) {
                 throw new UserStoreException("Mongo query is null. Cannot get roles list");
             }
             map.put(MongoDBCoreConstants.ROLE_UM_ROLE_NAME, roleName);
-            if (mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
+            if (operations.isTenantBound(MongoDBOperation.GET_USERS_IN_ROLE)) {
                 map.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
                 map.put(MongoDBCoreConstants.ROLE_UM_TENANT_ID, tenantId);
                 map.put(MongoDBCoreConstants.USER_ROLE_UM_TENANT_ID, tenantId);
-                names = getStringValuesFromDatabase(mongoQuery, map);
-            } else {
-                names = getStringValuesFromDatabase(mongoQuery, map);
             }
-        } else if (ctx.isShared()) {
+            streamStringValuesFromDatabase(mongoQuery, map, collector);
+        } else {
             map.put(MongoDBCoreConstants.UM_ROLE_NAME, roleName);
-            mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.GET_USERS_IN_SHARED_ROLE);
-            names = getStringValuesFromDatabase(mongoQuery, map);
+            mongoQuery = operations.getQuery(MongoDBOperation.GET_USERS_IN_SHARED_ROLE);
+            streamStringValuesFromDatabase(mongoQuery, map, collector);
         }
-        List<String> userList = new ArrayList<>();
-        String domainName = realmConfig.getUserStoreProperty(UserCoreConstants.RealmConfig.PROPERTY_DOMAIN_NAME);
+        return userList.toArray(new String[userList.size()]);
+    }
 
-        if (names != null) {
-            for (String user : names) {
-                user = UserCoreUtil.addDomainToName(user, domainName);
-                userList.add(user);
-            }
-            names = userList.toArray(new String[userList.size()]);
+    /**
+     * Stream the values of an aggregation query to a handler instead of collecting them into an array.
+     *
+     * @param mongoQuery to execute
+     * @param params     to filter from database
+     * @param handler    receiving the values
+     * @throws UserStoreException if the query fails
+     */
+    private void streamStringValuesFromDatabase(String mongoQuery, Map<String, Object> params,
+                                                StringValueHandler handler) throws UserStoreException {
+        DB dbConnection = loadUserStoreSpecificDataSource();
+        try {
+            MongoDatabaseUtil.streamStringValuesFromDatabase(dbConnection, mongoQuery, params, true, true,
+                    getCursorBatchSize(), handler);
+        } catch (MongoDBQueryException e) {
+            throw new UserStoreException("Error while getting string values from database", e);
+        } finally {
+            MongoDatabaseUtil.closeConnection(dbConnection);
+        }
+    }
+
+    /**
+     * Get the number of documents fetched per round trip when streaming cursors.
+     *
+     * @return int batch size
+     */
+    private int getCursorBatchSize() {
+        return cursorBatchSize;
+    }
+
+    private int resolveCursorBatchSize() {
+        try {
+            int batchSize = Integer.parseInt(realmConfig.getUserStoreProperty(MongoDBRealmConstants.CURSOR_BATCH_SIZE));
+            return batchSize > 0 ? batchSize : MongoDatabaseUtil.DEFAULT_BATCH_SIZE;
+        } catch (NumberFormatException e) {
+            return MongoDatabaseUtil.DEFAULT_BATCH_SIZE;
         }
-        return names;
     }
 
+    /**
+     * Get the data source of the user store. It is resolved once per manager from the per realm holder in
+     * {@link MongoDatabaseUtil}, so later calls only read a volatile field.
+     *
+     * @return DB of the user store
+     * @throws UserStoreException if the data source cannot be created
+     */
     private DB loadUserStoreSpecificDataSource() throws UserStoreException {
-        return MongoDatabaseUtil.createRealmDataSource(realmConfig);
+        DB localDB = db;
+        if (localDB == null) {
+            synchronized (this) {
+                localDB = db;
+                if (localDB == null) {
+                    localDB = MongoDatabaseUtil.getRealmDataSource(realmConfig);
+                    db = localDB;
+                }
+            }
+        }
+        return localDB;
+    }
+
+    /**
+     * Run the initial setup and bootstrap the indexes required by the user store queries.
+     *
+     * @throws UserStoreException if index validation is strict and fails
+     */
+    @Override
+    protected void doInitialSetup() throws UserStoreException {
+        super.doInitialSetup();
+        boolean virtualThreads = Boolean.parseBoolean(
+                realmConfig.getUserStoreProperty(MongoDBRealmConstants.VIRTUAL_THREAD_EXECUTION));
+        try {
+            MongoDBTaskExecutor.configure(Integer.parseInt(
+                    realmConfig.getUserStoreProperty(MongoDBRealmConstants.ASYNC_POOL_SIZE)), virtualThreads);
+        } catch (NumberFormatException e) {
+            MongoDBTaskExecutor.configure(0, virtualThreads);
+        }
+        int hashingPoolSize;
+        int hashingQueueSize;
+        try {
+            hashingPoolSize = Integer.parseInt(
+                    realmConfig.getUserStoreProperty(MongoDBRealmConstants.PASSWORD_HASHING_POOL_SIZE));
+        } catch (NumberFormatException e) {
+            hashingPoolSize = 0;
+        }
+        try {
+            hashingQueueSize = Integer.parseInt(
+                    realmConfig.getUserStoreProperty(MongoDBRealmConstants.PASSWORD_HASHING_QUEUE_SIZE));
+        } catch (NumberFormatException e) {
+            hashingQueueSize = 0;
+        }
+        long hashingStatsInterval;
+        try {
+            hashingStatsInterval = Long.parseLong(
+                    realmConfig.getUserStoreProperty(MongoDBRealmConstants.PASSWORD_HASHING_STATS_INTERVAL));
+        } catch (NumberFormatException e) {
+            hashingStatsInterval = MongoDBPasswordHashing.DEFAULT_STATS_INTERVAL;
+        }
+        MongoDBPasswordHashing.configure(hashingPoolSize, hashingQueueSize, hashingStatsInterval);
+        new MongoDBIndexManager(loadUserStoreSpecificDataSource(), realmConfig, isCaseSensitiveUsername(),
+                isSharedGroupEnabled()).bootstrap();
+        userNameFilter = createUserNameFilter();
+        loginThrottle = createLoginThrottle();
+        attributeWriteBuffer = createAttributeWriteBuffer();
+        MongoDBUserAttributeLayout.backfill(realmConfig.getUserStoreProperty(MongoDBRealmConstants.URL),
+                loadUserStoreSpecificDataSource());
+    }
+
+    /**
+     * Create the user name filter of the tenant when it is enabled. The filter is per tenant, so it is not used when
+     * user names have to be unique across tenants.
+     *
+     * @return MongoDBUserNameFilter or null if disabled
+     * @throws UserStoreException if loading the data source fails
+     */
+    private MongoDBUserNameFilter createUserNameFilter() throws UserStoreException {
+        if (!Boolean.parseBoolean(realmConfig.getUserStoreProperty(MongoDBRealmConstants.USER_NAME_FILTER_ENABLED))
+                || "true".equals(
+                realmConfig.getUserStoreProperty(UserCoreConstants.RealmConfig.PROPERTY_USERNAME_UNIQUE))) {
+            return null;
+        }
+        double falsePositiveRate;
+        try {
+            falsePositiveRate = Double.parseDouble(
+                    realmConfig.getUserStoreProperty(MongoDBRealmConstants.USER_NAME_FILTER_FALSE_POSITIVE_RATE));
+        } catch (Exception e) {
+            falsePositiveRate = DEFAULT_USER_NAME_FILTER_FALSE_POSITIVE_RATE;
+        }
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            falsePositiveRate = DEFAULT_USER_NAME_FILTER_FALSE_POSITIVE_RATE;
+        }
+        long interval;
+        try {
+            interval = Long.parseLong(
+                    realmConfig.getUserStoreProperty(MongoDBRealmConstants.USER_NAME_FILTER_REBUILD_INTERVAL));
+        } catch (Exception e) {
+            interval = DEFAULT_USER_NAME_FILTER_REBUILD_INTERVAL;
+        }
+        long refreshInterval;
+        try {
+            refreshInterval = Long.parseLong(
+                    realmConfig.getUserStoreProperty(MongoDBRealmConstants.USER_NAME_FILTER_REFRESH_INTERVAL));
+        } catch (Exception e) {
+            refreshInterval = DEFAULT_USER_NAME_FILTER_REFRESH_INTERVAL;
+        }
+        return MongoDBUserNameFilter.getInstance(storeKey, loadUserStoreSpecificDataSource(), tenantId,
+                falsePositiveRate, interval, refreshInterval, getCursorBatchSize());
+    }
+
+    /**
+     * Create the failed login throttle of the tenant when it is enabled.
+     *
+     * @return MongoDBLoginThrottle or null if disabled
+     * @throws UserStoreException if loading the data source fails
+     */
+    private MongoDBLoginThrottle createLoginThrottle() throws UserStoreException {
+        if (!Boolean.parseBoolean(realmConfig.getUserStoreProperty(MongoDBRealmConstants.LOGIN_THROTTLE_ENABLED))) {
+            return null;
+        }
+        int threshold;
+        try {
+            threshold = Integer.parseInt(
+                    realmConfig.getUserStoreProperty(MongoDBRealmConstants.LOGIN_THROTTLE_THRESHOLD));
+        } catch (Exception e) {
+            threshold = DEFAULT_LOGIN_THROTTLE_THRESHOLD;
+        }
+        long baseDelay;
+        try {
+            baseDelay = Long.parseLong(
+                    realmConfig.getUserStoreProperty(MongoDBRealmConstants.LOGIN_THROTTLE_BASE_DELAY));
+        } catch (Exception e) {
+            baseDelay = DEFAULT_LOGIN_THROTTLE_BASE_DELAY;
+        }
+        long maxDelay;
+        try {
+            maxDelay = Long.parseLong(realmConfig.getUserStoreProperty(MongoDBRealmConstants.LOGIN_THROTTLE_MAX_DELAY));
+        } catch (Exception e) {
+            maxDelay = DEFAULT_LOGIN_THROTTLE_MAX_DELAY;
+        }
+        long flushInterval;
+        try {
+            flushInterval = Long.parseLong(
+                    realmConfig.getUserStoreProperty(MongoDBRealmConstants.LOGIN_THROTTLE_FLUSH_INTERVAL));
+        } catch (Exception e) {
+            flushInterval = DEFAULT_LOGIN_THROTTLE_FLUSH_INTERVAL;
+        }
+        return MongoDBLoginThrottle.getInstance(storeKey, loadUserStoreSpecificDataSource(), tenantId,
+                Math.max(1, threshold), Math.max(1, baseDelay), Math.max(baseDelay, maxDelay),
+                flushInterval > 0 ? flushInterval : DEFAULT_LOGIN_THROTTLE_FLUSH_INTERVAL);
+    }
+
+    /**
+     * Get the login throttle of the tenant, creating it again if it was dropped after being idle.
+     *
+     * @return MongoDBLoginThrottle or null if disabled
+     * @throws UserStoreException if the data source cannot be loaded
+     */
+    private MongoDBLoginThrottle getLoginThrottle() throws UserStoreException {
+        MongoDBLoginThrottle throttle = loginThrottle;
+        if (throttle != null && throttle.isClosed()) {
+            throttle = createLoginThrottle();
+            loginThrottle = throttle;
+        }
+        return throttle;
+    }
+
+    /**
+     * Get the write-behind buffer of the tenant, creating it again if it was closed with the bundle.
+     *
+     * @return MongoDBAttributeWriteBuffer or null if disabled
+     * @throws UserStoreException if the data source cannot be loaded
+     */
+    private MongoDBAttributeWriteBuffer getAttributeWriteBuffer() throws UserStoreException {
+        MongoDBAttributeWriteBuffer buffer = attributeWriteBuffer;
+        if (buffer != null && buffer.isClosed()) {
+            buffer = createAttributeWriteBuffer();
+            attributeWriteBuffer = buffer;
+        }
+        return buffer;
+    }
+
+    /**
+     * Create the write-behind buffer of the tenant when write-behind attributes are configured.
+     *
+     * @return MongoDBAttributeWriteBuffer or null if disabled
+     * @throws UserStoreException if loading the data source fails
+     */
+    private MongoDBAttributeWriteBuffer createAttributeWriteBuffer() throws UserStoreException {
+        String attributes = realmConfig.getUserStoreProperty(MongoDBRealmConstants.WRITE_BEHIND_ATTRIBUTES);
+        if (attributes == null || attributes.trim().isEmpty()) {
+            return null;
+        }
+        Set<String> names = new HashSet<>();
+        for (String name : attributes.split(",")) {
+            if (!name.trim().isEmpty()) {
+                names.add(name.trim());
+            }
+        }
+        writeBehindAttributes = Collections.unmodifiableSet(names);
+        int bufferSize;
+        try {
+            bufferSize = Integer.parseInt(
+                    realmConfig.getUserStoreProperty(MongoDBRealmConstants.WRITE_BEHIND_BUFFER_SIZE));
+        } catch (Exception e) {
+            bufferSize = DEFAULT_WRITE_BEHIND_BUFFER_SIZE;
+        }
+        long flushInterval;
+        try {
+            flushInterval = Long.parseLong(
+                    realmConfig.getUserStoreProperty(MongoDBRealmConstants.WRITE_BEHIND_FLUSH_INTERVAL));
+        } catch (Exception e) {
+            flushInterval = DEFAULT_WRITE_BEHIND_FLUSH_INTERVAL;
+        }
+        return MongoDBAttributeWriteBuffer.getInstance(storeKey, loadUserStoreSpecificDataSource(), tenantId,
+                bufferSize > 0 ? bufferSize : DEFAULT_WRITE_BEHIND_BUFFER_SIZE,
+                flushInterval > 0 ? flushInterval : DEFAULT_WRITE_BEHIND_FLUSH_INTERVAL);
+    }
+
+    /**
+     * Check whether a user is known not to exist. A miss of the user name filter is answered without a query, users
+     * added through another node are read into the filter by its periodic refresh.
+     *
+     * @param userName to check
+     * @return boolean true if the user does not exist, false if it may exist
+     */
+    private boolean isKnownMissingUser(String userName) throws UserStoreException {
+        MongoDBUserNameFilter filter = userNameFilter;
+        if (filter != null && filter.isClosed()) {
+            filter = createUserNameFilter();
+            userNameFilter = filter;
+        }
+        return filter != null && !CarbonConstants.REGISTRY_ANONNYMOUS_USERNAME.equals(userName)
+                && !filter.mightContain(userName);
+    }
+
+    /**
+     * Schedule the embedded role membership reconciler if the mode is enabled.
+     */
+    private void initEmbeddedRoleMembership() {
+        try {
+            MongoDBEmbeddedRoleManager roleManager = getEmbeddedRoleManager();
+            if (roleManager == null) {
+                return;
+            }
+            long interval;
+            try {
+                interval = Long.parseLong(
+                        realmConfig.getUserStoreProperty(MongoDBRealmConstants.EMBEDDED_ROLE_RECONCILE_INTERVAL));
+            } catch (Exception e) {
+                interval = DEFAULT_EMBEDDED_ROLE_RECONCILE_INTERVAL;
+            }
+            MongoDBEmbeddedRoleReconciler.schedule(storeKey, roleManager, interval);
+        } catch (UserStoreException | MongoException e) {
+            log.error("Failed to initialize embedded role membership", e);
+        }
+    }
+
+    /**
+     * Get the embedded role membership manager of the user store.
+     *
+     * @return MongoDBEmbeddedRoleManager or null if embedded role membership is disabled
+     * @throws UserStoreException if the data source cannot be loaded
+     */
+    private MongoDBEmbeddedRoleManager getEmbeddedRoleManager() throws UserStoreException {
+        if (!embeddedRoleMembership) {
+            return null;
+        }
+        if (embeddedRoleManager == null) {
+            embeddedRoleManager = new MongoDBEmbeddedRoleManager(loadUserStoreSpecificDataSource(), tenantId);
+        }
+        return embeddedRoleManager;
+    }
+
+    /**
+     * Get the embedded role membership manager for reads. Reads keep using UM_USER_ROLE until the first reconcile
+     * of the tenant has populated the embedded role arrays.
+     *
+     * @return MongoDBEmbeddedRoleManager or null if the embedded role arrays cannot serve reads yet
+     * @throws UserStoreException if the data source cannot be loaded
+     */
+    private MongoDBEmbeddedRoleManager getEmbeddedRoleReader() throws UserStoreException {
+        MongoDBEmbeddedRoleManager roleManager = getEmbeddedRoleManager();
+        return roleManager != null && roleManager.isReconciled() ? roleManager : null;
     }
 
     /**
@@ -1967,16 +3333,11 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
     public String[] getProfileNames(String userName) throws UserStoreException {
         userName = UserCoreUtil.removeDomainFromName(userName);
         String mongoQuery;
-        if (isCaseSensitiveUsername()) {
-            mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.GET_PROFILE_NAMES_FOR_USER);
-        } else {
-            mongoQuery = realmConfig.getUserStoreProperty(
-                    MongoDBCaseInsensitiveConstants.GET_PROFILE_NAMES_FOR_USER_CASE_INSENSITIVE);
-        }
+        mongoQuery = operations.getQuery(MongoDBOperation.GET_PROFILE_NAMES_FOR_USER);
         if (mongoQuery == null) {
             throw new UserStoreException("Mongo query is null. Cannot retrieve profile names");
         }
-        MongoPreparedStatement prepStmt = new MongoPreparedStatementImpl(this.db,
+        MongoPreparedStatement prepStmt = new MongoPreparedStatementImpl(loadUserStoreSpecificDataSource(),
                 MongoDBRealmConstants.GET_PROFILE_NAMES_FOR_USER_MONGO_QUERY_CONDITION);
         prepStmt.setInt(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
         prepStmt.setString(MongoDBCoreConstants.UM_USER_NAME, userName);
@@ -1987,7 +3348,7 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
                 int userId = Integer.parseInt(cursor.next().get(MongoDBCoreConstants.UM_ID).toString());
                 Map<String, Object> map = new HashMap<>();
                 map.put(MongoDBCoreConstants.UM_USER_ID, userId);
-                if (mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
+                if (operations.isTenantBound(MongoDBOperation.GET_PROFILE_NAMES_FOR_USER)) {
                     map.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
                     names = getDistinctStringValues(mongoQuery, map);
                 } else {
@@ -2022,13 +3383,13 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
      * @throws UserStoreException if any exception occurred
      */
     public String[] getAllProfileNames() throws UserStoreException {
-        String mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.GET_PROFILE_NAMES);
+        String mongoQuery = operations.getQuery(MongoDBOperation.GET_PROFILE_NAMES);
         if (mongoQuery == null) {
             throw new UserStoreException("Mongo query is null. Cannot get profile names");
         }
         String[] names;
         Map<String, Object> map = new HashMap<>();
-        if (mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
+        if (operations.isTenantBound(MongoDBOperation.GET_PROFILE_NAMES)) {
             map.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
             names = getDistinctStringValues(mongoQuery, map);
         } else {
@@ -2059,19 +3420,14 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         String mongoQuery;
         Map<String, Object> map = new HashMap<>();
         map.put(MongoDBCoreConstants.UM_USER_NAME, username);
-        if (isCaseSensitiveUsername()) {
-            mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.GET_USER_ID_FROM_USERNAME);
-        } else {
-            mongoQuery = realmConfig.getUserStoreProperty(
-                    MongoDBCaseInsensitiveConstants.GET_USER_ID_FROM_USERNAME_CASE_INSENSITIVE);
-        }
+        mongoQuery = operations.getQuery(MongoDBOperation.GET_USER_ID_FROM_USERNAME);
         if (mongoQuery == null) {
             throw new UserStoreException("Mongo query is null. Cannot get user ID");
         }
         int id;
         DB dbConnection = loadUserStoreSpecificDataSource();
         try {
-            if (mongoQuery.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
+            if (operations.isTenantBound(MongoDBOperation.GET_USER_ID_FROM_USERNAME)) {
                 map.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
                 id = MongoDatabaseUtil.getIntegerValueFromDatabase(dbConnection, mongoQuery, map);
             } else {
@@ -2099,12 +3455,7 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         Map<String, Object> map = new HashMap<>();
         map.put(MongoDBCoreConstants.UM_USER_NAME, username);
         String mongoQuery;
-        if (isCaseSensitiveUsername()) {
-            mongoQuery = realmConfig.getUserStoreProperty(MongoDBRealmConstants.GET_TENANT_ID_FROM_USERNAME);
-        } else {
-            mongoQuery = realmConfig.getUserStoreProperty(
-                    MongoDBCaseInsensitiveConstants.GET_TENANT_ID_FROM_USERNAME_CASE_INSENSITIVE);
-        }
+        mongoQuery = operations.getQuery(MongoDBOperation.GET_TENANT_ID_FROM_USERNAME);
         if (mongoQuery == null) {
             throw new UserStoreException("Mongo query is null. Cannot get tenant ID");
         }
@@ -2256,15 +3607,8 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         Map<String, Object> map = new HashMap<>();
         Map<String, Object> mapRole = new HashMap<>();
         try {
-            mongoStmt1 = realmConfig.getUserStoreProperty(MongoDBRealmConstants.ADD_USER);
-            String saltValue = null;
-            if ("true".equals(realmConfig.getUserStoreProperties().get(MongoDBRealmConstants.STORE_SALTED_PASSWORDS))) {
-                byte[] bytes = new byte[16];
-                random.nextBytes(bytes);
-                saltValue = Base64.encode(bytes);
-            }
-            String password = this.preparePassword(credentialObj, saltValue);
-            map.put(MongoDBCoreConstants.UM_USER_PASSWORD, password);
+            mongoStmt1 = operations.getQuery(MongoDBOperation.ADD_USER);
+            String saltValue = preparePasswordValues(credentialObj, map);
             map.put(MongoDBCoreConstants.UM_USER_NAME, userName);
             map.put(MongoDBCoreConstants.UM_REQUIRE_CHANGE, requirePasswordChange);
             map.put(MongoDBCoreConstants.UM_CHANGED_TIME, new Date());
@@ -2272,15 +3616,15 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
             map.put(MongoDBCoreConstants.UM_ID, id);
 
             // Do all 4 possibilities
-            if (mongoStmt1.contains(MongoDBCoreConstants.UM_TENANT_ID) && (saltValue == null)) {
+            if (operations.isTenantBound(MongoDBOperation.ADD_USER) && (saltValue == null)) {
                 map.put(MongoDBCoreConstants.UM_SALT_VALUE, "");
                 map.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
                 this.updateUserValue(dbConnection, mongoStmt1, map);
-            } else if (mongoStmt1.contains(MongoDBCoreConstants.UM_TENANT_ID) && (saltValue != null)) {
+            } else if (operations.isTenantBound(MongoDBOperation.ADD_USER) && (saltValue != null)) {
                 map.put(MongoDBCoreConstants.UM_SALT_VALUE, saltValue);
                 map.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
                 this.updateUserValue(dbConnection, mongoStmt1, map);
-            } else if (!mongoStmt1.contains(MongoDBCoreConstants.UM_TENANT_ID) && (saltValue == null)) {
+            } else if (!operations.isTenantBound(MongoDBOperation.ADD_USER) && (saltValue == null)) {
                 map.put(MongoDBCoreConstants.UM_SALT_VALUE, "");
                 map.put(MongoDBCoreConstants.UM_TENANT_ID, 0);
                 this.updateUserValue(dbConnection, mongoStmt1, map);
@@ -2289,6 +3633,12 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
                 map.put(MongoDBCoreConstants.UM_TENANT_ID, 0);
                 this.updateUserValue(dbConnection, mongoStmt1, map);
             }
+            MongoDBUserNameFilter filter = userNameFilter;
+            if (filter != null) {
+                filter.put(userName);
+            }
+            // Attributes of a missing user may have been cached as empty
+            invalidateAttributeCache(userName);
 
             String[] roles;
             if (CarbonConstants.REGISTRY_ANONNYMOUS_USERNAME.equals(userName)) {
@@ -2312,7 +3662,7 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
             }
             if (roles.length > 1) {
                 // Add user to role
-                mongoStmt2 = realmConfig.getUserStoreProperty(MongoDBRealmConstants.ADD_ROLE_TO_USER);
+                mongoStmt2 = operations.getQuery(MongoDBOperation.ADD_ROLE_TO_USER);
 
                 int rolesID[] = getRolesIDS(dbConnection, roles);
                 String[] users = {userName};
@@ -2324,6 +3674,10 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
                 mapRole.put(MongoDBCoreConstants.UM_USER_ID, userID[0]);
                 mapRole.put(MongoDBCoreConstants.UM_ROLE_ID, rolesID);
                 MongoDatabaseUtil.updateUserRoleMappingInBatchMode(dbConnection, mongoStmt2, mapRole);
+                MongoDBEmbeddedRoleManager roleManager = getEmbeddedRoleManager();
+                if (roleManager != null) {
+                    roleManager.addRolesToUser(userID[0], rolesID, roles);
+                }
 
                 if (claims != null) {
                     // add the properties
@@ -2354,28 +3708,45 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
         }
     }
 
-    private int[] getRolesIDS(DB dbConnection, String[] roles) throws MongoDBQueryException {
-        String query = MongoDBRealmConstants.GET_IS_ROLE_EXISTING_MONGO_QUERY;
-        int rolesID[] = new int[roles.length];
-        int index = 0;
-        for (String role : roles) {
-            MongoPreparedStatement prepStmt = new MongoPreparedStatementImpl(dbConnection, query);
-            if (query.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
-                prepStmt.setInt(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
+    private CompletableFuture<int[]> getRolesIDSAsync(final DB dbConnection, final String[] roles) {
+        return MongoDBTaskExecutor.supplyAsync(new Callable<int[]>() {
+            @Override
+            public int[] call() throws MongoDBQueryException {
+                return getRolesIDS(dbConnection, roles);
             }
-            prepStmt.setString(MongoDBCoreConstants.UM_ROLE_NAME, role);
-            DBCursor cursor = prepStmt.find();
-            if (cursor.hasNext()) {
+        });
+    }
 
-                int id = (int) Double.parseDouble(cursor.next().get(MongoDBCoreConstants.UM_ID).toString());
-                if (id > 0) {
-                    rolesID[index] = id;
-                }
+    private int[] getRolesIDS(DB dbConnection, String[] roles) throws MongoDBQueryException {
+        return getIDS(dbConnection, MongoDBCoreConstants.UM_ROLE, MongoDBCoreConstants.UM_ROLE_NAME, roles, true);
+    }
+
+    private Map<Integer, String> getRoleIDSIgnoreCase(DB dbConnection, String[] roles) throws MongoDBQueryException {
+        return findIDS(dbConnection, MongoDBCoreConstants.UM_ROLE, MongoDBCoreConstants.UM_ROLE_NAME, roles, false);
+    }
+
+    /**
+     * Resolve the user ID through the user ID cache.
+     *
+     * @param dbConnection of user store
+     * @param userName     to resolve
+     * @return int id, 0 if the user does not exist
+     * @throws MongoDBQueryException if the lookup fails
+     */
+    private int getCachedUserID(DB dbConnection, String userName) throws MongoDBQueryException {
+        String key = getUserCacheKey(userName);
+        Integer id = userIdCache.get(key);
+        if (id == null) {
+            id = getUserIDS(dbConnection, new String[]{userName})[0];
+            if (id > 0) {
+                userIdCache.put(key, id);
             }
-            index++;
-            prepStmt.close();
         }
-        return rolesID;
+        return id;
+    }
+
+    private String getUserCacheKey(String userName) {
+        return isCaseSensitiveUsername() ? userName : userName.toLowerCase(Locale.ENGLISH);
     }
 
     /**
@@ -2432,11 +3803,11 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
      * @throws UserStoreException If any exception occurred
      */
     private void addProperty(DB dbConnection, Map<String, Object> map) throws UserStoreException {
-        String mongoStmt = realmConfig.getUserStoreProperty(MongoDBRealmConstants.ADD_USER_PROPERTY);
+        String mongoStmt = operations.getQuery(MongoDBOperation.ADD_USER_PROPERTY);
         if (mongoStmt == null) {
             throw new UserStoreException("Mongo query is null. Cannot add property");
         }
-        if (mongoStmt.contains(MongoDBCoreConstants.UM_TENANT_ID)) {
+        if (operations.isTenantBound(MongoDBOperation.ADD_USER_PROPERTY)) {
             map.put(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
             updateUserClaimValuesToDatabase(dbConnection, map, false);
         } else {
@@ -2452,12 +3823,9 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
      */
     private boolean checkExistingUserName(String userName) throws UserStoreException {
         boolean isExisting;
-        String isUnique = realmConfig.getUserStoreProperty(UserCoreConstants.RealmConfig.PROPERTY_USERNAME_UNIQUE);
-        if (this.db == null) {
-            this.db = loadUserStoreSpecificDataSource();
-        }
-        DBCollection collection = this.db.getCollection(MongoDBCoreConstants.UM_USER);
-        if ("true".equals(isUnique) && !CarbonConstants.REGISTRY_ANONNYMOUS_USERNAME.equals(userName)) {
+        DBCollection collection = loadUserStoreSpecificDataSource().getCollection(MongoDBCoreConstants.UM_USER);
+        if (operations.isUserNameUniqueAcrossTenants()
+                && !CarbonConstants.REGISTRY_ANONNYMOUS_USERNAME.equals(userName)) {
             BasicDBObject uniqueUser = new BasicDBObject(MongoDBCoreConstants.UM_USER_NAME, userName);
             DBCursor cursor = collection.find(uniqueUser);
             isExisting = cursor.hasNext();
@@ -2534,8 +3902,7 @@ public class MongoDBUserStoreManager extends AbstractUserStoreManager {
     }
 
     private boolean isCaseSensitiveUsername() {
-        String isUsernameCaseInsensitiveString = realmConfig.getUserStoreProperty(CASE_INSENSITIVE_USERNAME);
-        return !Boolean.parseBoolean(isUsernameCaseInsensitiveString);
+        return operations.isCaseSensitiveUsername();
     }
 
     public static class RoleBreakdown {
@@ -22,6 +22,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.wso2.carbon.mongodb.user.store.mgt.caseinsensitive.MongoDBCaseInsensitiveConstants;
+import org.wso2.carbon.mongodb.util.MongoDBPasswordHashing;
+import org.wso2.carbon.mongodb.util.MongoDBPbkdf2PasswordHasher;
 import org.wso2.carbon.user.api.Property;
 import org.wso2.carbon.user.core.UserStoreConfigConstants;
 
@@ -96,6 +98,36 @@ public class MongoDBUserStoreProperties {
         setAdvancedProperty("UserNameUniqueAcrossTenants", "false");
         setAdvancedProperty("validationQuery", "");
         setAdvancedProperty("validationInterval", "");
+        setAdvancedProperty(MongoDBRealmConstants.EMBEDDED_ROLE_MEMBERSHIP, "false");
+        setAdvancedProperty(MongoDBRealmConstants.EMBEDDED_ROLE_RECONCILE_INTERVAL, "3600");
+        setAdvancedProperty(MongoDBRealmConstants.INDEX_VALIDATION, "warn");
+        setAdvancedProperty(MongoDBRealmConstants.CURSOR_BATCH_SIZE, "500");
+        setAdvancedProperty(MongoDBRealmConstants.ASYNC_POOL_SIZE, "");
+        setAdvancedProperty(MongoDBRealmConstants.VIRTUAL_THREAD_EXECUTION, "false");
+        setAdvancedProperty(MongoDBRealmConstants.USER_NAME_FILTER_ENABLED, "false");
+        setAdvancedProperty(MongoDBRealmConstants.USER_NAME_FILTER_FALSE_POSITIVE_RATE, "0.01");
+        setAdvancedProperty(MongoDBRealmConstants.USER_NAME_FILTER_REBUILD_INTERVAL, "3600");
+        setAdvancedProperty(MongoDBRealmConstants.USER_NAME_FILTER_REFRESH_INTERVAL, "10");
+        setAdvancedProperty(MongoDBRealmConstants.ID_CACHE_TIMEOUT, "300");
+        setAdvancedProperty(MongoDBRealmConstants.ATTRIBUTE_CACHE_TIMEOUT, "0");
+        setAdvancedProperty(MongoDBRealmConstants.USER_SEARCH_INDEX_HINTS, "false");
+        setAdvancedProperty(MongoDBRealmConstants.PASSWORD_HASHING_SCHEME, MongoDBPbkdf2PasswordHasher.SCHEME);
+        setAdvancedProperty(MongoDBRealmConstants.PASSWORD_HASHING_ITERATIONS,
+                String.valueOf(MongoDBPbkdf2PasswordHasher.DEFAULT_ITERATIONS));
+        setAdvancedProperty(MongoDBRealmConstants.PASSWORD_HASHING_POOL_SIZE, "0");
+        setAdvancedProperty(MongoDBRealmConstants.PASSWORD_HASHING_QUEUE_SIZE, "100");
+        setAdvancedProperty(MongoDBRealmConstants.PASSWORD_HASHING_STATS_INTERVAL,
+                String.valueOf(MongoDBPasswordHashing.DEFAULT_STATS_INTERVAL));
+        setAdvancedProperty(MongoDBRealmConstants.PASSWORD_REHASH_ON_LOGIN, "false");
+        setAdvancedProperty(MongoDBRealmConstants.AUTHENTICATION_CACHE_TIMEOUT, "0");
+        setAdvancedProperty(MongoDBRealmConstants.LOGIN_THROTTLE_ENABLED, "false");
+        setAdvancedProperty(MongoDBRealmConstants.LOGIN_THROTTLE_THRESHOLD, "5");
+        setAdvancedProperty(MongoDBRealmConstants.LOGIN_THROTTLE_BASE_DELAY, "1");
+        setAdvancedProperty(MongoDBRealmConstants.LOGIN_THROTTLE_MAX_DELAY, "900");
+        setAdvancedProperty(MongoDBRealmConstants.LOGIN_THROTTLE_FLUSH_INTERVAL, "5");
+        setAdvancedProperty(MongoDBRealmConstants.WRITE_BEHIND_ATTRIBUTES, "");
+        setAdvancedProperty(MongoDBRealmConstants.WRITE_BEHIND_BUFFER_SIZE, "10000");
+        setAdvancedProperty(MongoDBRealmConstants.WRITE_BEHIND_FLUSH_INTERVAL, "5");
         setAdvancedProperty("SelectUserMONGO_QUERY",
                 "{'collection' : 'UM_USER','UM_USER_NAME' : '?','UM_TENANT_ID' : '?'}");
         setAdvancedProperty(MongoDBCaseInsensitiveConstants.SELECT_USER_CASE_INSENSITIVE,
@@ -140,10 +172,8 @@ public class MongoDBUserStoreProperties {
                 "'UM_TENANT_ID' : '?','projection' : {'UM_ID' : 1}}");
         setAdvancedProperty(MongoDBCaseInsensitiveConstants.GET_IS_USER_EXISTING_CASE_INSENSITIVE,
                 MongoDBCaseInsensitiveConstants.GET_IS_USER_EXISTING_MONGO_CASE_INSENSITIVE);
-        setAdvancedProperty("GetUserPropertiesForProfileMONGO_QUERY", "{'collection' : 'UM_USER_ATTRIBUTE','$match' :" +
-                " {'UM_PROFILE_ID' : '?','UM_TENANT_ID' : '?','users.UM_USER_NAME' : '?','users.UM_TENANT_ID' : '?'}," +
-                "'$lookup' : {'from' : 'UM_USER','localField' : 'UM_USER_ID','foreignField' : 'UM_ID'," +
-                "'as' : 'users'},'$unwind' : {'path' : '$users','preserveNullAndEmptyArrays' : false}}");
+        setAdvancedProperty("GetUserPropertiesForProfileMONGO_QUERY",
+                MongoDBRealmConstants.GET_PROPS_FOR_PROFILE_MONGO_QUERY);
         setAdvancedProperty(MongoDBCaseInsensitiveConstants.GET_PROPS_FOR_PROFILE_CASE_INSENSITIVE, "Get User " +
                 MongoDBCaseInsensitiveConstants.GET_PROPS_FOR_PROFILE_MONGO_CASE_INSENSITIVE);
         setAdvancedProperty("GetUserPropertyForProfileMONGO_QUERY",
@@ -176,8 +206,9 @@ public class MongoDBUserStoreProperties {
                 MongoDBCaseInsensitiveConstants.GET_TENANT_ID_FROM_USERNAME_MONGO_CASE_INSENSITIVE);
 
         setAdvancedProperty("AddUserMONGO_QUERY", "{'collection' : 'UM_USER','UM_USER_NAME' : '?'," +
-                "'UM_USER_PASSWORD' : '?','UM_SALT_VALUE' : '?','UM_REQUIRE_CHANGE' : '?','UM_CHANGED_TIME' : '?'," +
-                "'UM_TENANT_ID' : '?','UM_ID' : '?'}");
+                "'UM_USER_PASSWORD' : '?','UM_SALT_VALUE' : '?','UM_PASSWORD_SCHEME' : '?'," +
+                "'UM_PASSWORD_PARAMS' : '?','UM_REQUIRE_CHANGE' : '?','UM_CHANGED_TIME' : '?','UM_TENANT_ID' : '?'," +
+                "'UM_ID' : '?'}");
         setAdvancedProperty("AddUserToRoleMONGO_QUERY",
                 "{'collection' : 'UM_USER_ROLE','UM_USER_ID' : '?','UM_ROLE_ID' : '?','UM_TENANT_ID' : '?'}");
         setAdvancedProperty(MongoDBCaseInsensitiveConstants.ADD_USER_TO_ROLE_CASE_INSENSITIVE, "Add User To Role " +
@@ -221,7 +252,8 @@ public class MongoDBUserStoreProperties {
 
         setAdvancedProperty("UpdateUserPasswordMONGO_QUERY", "{'collection' : 'UM_USER','UM_USER_NAME' : '?'," +
                 "'UM_TENANT_ID' : '?','projection' : {'$set'  : {'UM_USER_PASSWORD' : '?','UM_SALT_VALUE' : '?'," +
-                "'UM_REQUIRE_CHANGE' : '?','UM_CHANGED_TIME' : '?'}}}");
+                "'UM_PASSWORD_SCHEME' : '?','UM_PASSWORD_PARAMS' : '?','UM_REQUIRE_CHANGE' : '?'," +
+                "'UM_CHANGED_TIME' : '?'}}}");
         setAdvancedProperty(MongoDBCaseInsensitiveConstants.UPDATE_USER_PASSWORD_CASE_INSENSITIVE,
                 MongoDBCaseInsensitiveConstants.UPDATE_USER_PASSWORD_MONGO_CASE_INSENSITIVE);
         setAdvancedProperty("UpdateRoleNameMONGO_QUERY", "{'collection' : 'UM_ROLE','UM_ID' : '?'," +
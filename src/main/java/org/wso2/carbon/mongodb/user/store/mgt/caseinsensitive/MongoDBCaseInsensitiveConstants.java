@@ -111,7 +111,8 @@ public class MongoDBCaseInsensitiveConstants {
             "{'collection' : 'UM_USER_ATTRIBUTE','UM_USER_ID' : '?',UM_TENANT_ID : '?'}";
     public static final String UPDATE_USER_PASSWORD_MONGO_CASE_INSENSITIVE = "{'collection' : 'UM_USER'," +
             "'UM_USER_NAME' : {'$regex' : '?','$options' : 'i'},'UM_TENANT_ID' : '?','projection' : {'$set'  : " +
-            "{'UM_USER_PASSWORD' : '?','UM_SALT_VALUE' : '?','UM_REQUIRE_CHANGE' : '?','UM_CHANGED_TIME' : '?'}}}";
+            "{'UM_USER_PASSWORD' : '?','UM_SALT_VALUE' : '?','UM_PASSWORD_SCHEME' : '?','UM_PASSWORD_PARAMS' : '?'," +
+            "'UM_REQUIRE_CHANGE' : '?','UM_CHANGED_TIME' : '?'}}}";
     public static final String UPDATE_USER_PROPERTY_MONGO_CASE_INSENSITIVE = "{'collection' : 'UM_USER_ATTRIBUTE'," +
             "'UM_USER_ID' : '?','UM_ATTR_NAME' : '?','UM_PROFILE_ID' : '?','UM_TENANT_ID' : '?','projection' : " +
             "{$set' : '{'UM_ATTR_VALUE' : '?'}}}";
@@ -25,6 +25,11 @@ import org.osgi.service.component.ComponentContext;
 
 import org.wso2.carbon.context.PrivilegedCarbonContext;
 import org.wso2.carbon.mongodb.user.store.mgt.MongoDBUserStoreManager;
+import org.wso2.carbon.mongodb.user.store.mgt.role.MongoDBEmbeddedRoleReconciler;
+import org.wso2.carbon.mongodb.util.MongoDBAttributeWriteBuffer;
+import org.wso2.carbon.mongodb.util.MongoDBLoginThrottle;
+import org.wso2.carbon.mongodb.util.MongoDBScheduler;
+import org.wso2.carbon.mongodb.util.MongoDBUserNameFilter;
 import org.wso2.carbon.user.api.UserStoreManager;
 import org.wso2.carbon.user.core.service.RealmService;
 import org.wso2.carbon.user.core.tracker.UserStoreManagerRegistry;
@@ -71,6 +76,23 @@ public class MongoDBUserStoreMgtDSComponent {
         }
     }
 
+    /**
+     * To deactivate the MongoDB OSGI component. The background tasks are stopped first, then buffered attribute
+     * writes and login counters are flushed one last time.
+     *
+     * @param context ComponentContext
+     */
+    protected void deactivate(ComponentContext context) {
+        MongoDBScheduler.shutdown();
+        MongoDBAttributeWriteBuffer.shutdown();
+        MongoDBLoginThrottle.shutdown();
+        MongoDBUserNameFilter.shutdown();
+        MongoDBEmbeddedRoleReconciler.shutdown();
+        if (log.isDebugEnabled()) {
+            log.debug("MongoDBUserStoreMgtDSComponent deactivated");
+        }
+    }
+
     /**
      * Bind method.
      *
@@ -0,0 +1,517 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.user.store.mgt.role;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.mongodb.query.MongoDBQueryException;
+import org.wso2.carbon.mongodb.user.store.mgt.MongoDBCoreConstants;
+import org.wso2.carbon.mongodb.util.MongoDBUserAttributeLayout;
+
+/**
+ * Maintains the role membership array embedded in UM_USER documents.
+ * <p>
+ * UM_USER_ROLE stays the source of truth. Each user document additionally keeps
+ * {@code UM_ROLES : [{UM_ROLE_ID, UM_ROLE_NAME}]} so that the roles of a user can be read with a single point read
+ * and the users of a role can be listed with a single query on the multikey index
+ * {@code {UM_TENANT_ID : 1, UM_ROLES.UM_ROLE_NAME : 1}}.
+ * <p>
+ * The arrays are only read once a reconcile of the tenant has completed on any node, which is recorded in the
+ * UM_EMBEDDED_ROLE_STATE collection. Until then reads keep using UM_USER_ROLE while the arrays are maintained.
+ */
+public class MongoDBEmbeddedRoleManager {
+
+    private static final Log log = LogFactory.getLog(MongoDBEmbeddedRoleManager.class);
+    private static final int RECONCILE_BATCH_SIZE = 500;
+    private static final long RECONCILED_CHECK_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+
+    private final DB db;
+    private final int tenantId;
+    private volatile boolean reconciled;
+    private volatile long nextReconciledCheck;
+
+    /**
+     * Constructor with two parameters.
+     *
+     * @param db       mongodb data source of the user store
+     * @param tenantId tenant the role memberships belong to
+     */
+    public MongoDBEmbeddedRoleManager(DB db, int tenantId) {
+        this.db = db;
+        this.tenantId = tenantId;
+    }
+
+    /**
+     * Check whether the embedded role arrays of the tenant have been populated by a completed reconcile and can
+     * serve reads. A missing marker is looked up again at most every 30 seconds.
+     *
+     * @return boolean status
+     */
+    public boolean isReconciled() {
+        if (reconciled) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now < nextReconciledCheck) {
+            return false;
+        }
+        nextReconciledCheck = now + RECONCILED_CHECK_INTERVAL;
+        try {
+            if (db.getCollection(MongoDBCoreConstants.UM_EMBEDDED_ROLE_STATE).findOne(createStateQuery()) != null) {
+                reconciled = true;
+            }
+        } catch (MongoException e) {
+            log.warn("Failed to read the embedded role state of tenant: " + tenantId, e);
+        }
+        return reconciled;
+    }
+
+    /**
+     * Add roles to the embedded role array of a user.
+     *
+     * @param userId    UM_ID of the user
+     * @param roleIds   UM_ID of the roles
+     * @param roleNames role names in the same order as roleIds
+     * @throws MongoDBQueryException if the update fails
+     */
+    public void addRolesToUser(int userId, int[] roleIds, String[] roleNames) throws MongoDBQueryException {
+        List<DBObject> entries = new ArrayList<>(roleIds.length);
+        for (int i = 0; i < roleIds.length; i++) {
+            if (roleIds[i] > 0) {
+                entries.add(createRoleEntry(roleIds[i], roleNames[i]));
+            }
+        }
+        if (userId <= 0 || entries.isEmpty()) {
+            return;
+        }
+        DBObject update = new BasicDBObject(MongoDBCoreConstants.ADD_TO_SET_FIELD,
+                new BasicDBObject(MongoDBCoreConstants.UM_ROLES,
+                        new BasicDBObject(MongoDBCoreConstants.EACH_FIELD, entries)));
+        try {
+            getUserCollection().update(createUserQuery(userId), update);
+        } catch (MongoException e) {
+            throw new MongoDBQueryException("Failed to add embedded roles of user: " + userId, e);
+        }
+    }
+
+    /**
+     * Add a role to the embedded role array of several users.
+     *
+     * @param userIds  UM_ID of the users
+     * @param roleId   UM_ID of the role
+     * @param roleName name of the role
+     * @throws MongoDBQueryException if the update fails
+     */
+    public void addRoleToUsers(int[] userIds, int roleId, String roleName) throws MongoDBQueryException {
+        if (roleId <= 0 || userIds.length == 0) {
+            return;
+        }
+        DBObject update = new BasicDBObject(MongoDBCoreConstants.ADD_TO_SET_FIELD,
+                new BasicDBObject(MongoDBCoreConstants.UM_ROLES, createRoleEntry(roleId, roleName)));
+        try {
+            getUserCollection().update(createUsersQuery(userIds), update, false, true);
+        } catch (MongoException e) {
+            throw new MongoDBQueryException("Failed to add embedded role: " + roleName, e);
+        }
+    }
+
+    /**
+     * Remove roles from the embedded role array of a user.
+     *
+     * @param userId  UM_ID of the user
+     * @param roleIds UM_ID of the roles to remove
+     * @throws MongoDBQueryException if the update fails
+     */
+    public void removeRolesFromUser(int userId, int[] roleIds) throws MongoDBQueryException {
+        if (userId <= 0 || roleIds.length == 0) {
+            return;
+        }
+        DBObject update = new BasicDBObject(MongoDBCoreConstants.PULL_FIELD,
+                new BasicDBObject(MongoDBCoreConstants.UM_ROLES, new BasicDBObject(MongoDBCoreConstants.UM_ROLE_ID,
+                        new BasicDBObject(MongoDBCoreConstants.IN_FIELD, toList(roleIds)))));
+        try {
+            getUserCollection().update(createUserQuery(userId), update);
+        } catch (MongoException e) {
+            throw new MongoDBQueryException("Failed to remove embedded roles of user: " + userId, e);
+        }
+    }
+
+    /**
+     * Remove a role from the embedded role array of several users.
+     *
+     * @param userIds UM_ID of the users
+     * @param roleId  UM_ID of the role to remove
+     * @throws MongoDBQueryException if the update fails
+     */
+    public void removeRoleFromUsers(int[] userIds, int roleId) throws MongoDBQueryException {
+        if (roleId <= 0 || userIds.length == 0) {
+            return;
+        }
+        DBObject update = new BasicDBObject(MongoDBCoreConstants.PULL_FIELD,
+                new BasicDBObject(MongoDBCoreConstants.UM_ROLES,
+                        new BasicDBObject(MongoDBCoreConstants.UM_ROLE_ID, roleId)));
+        try {
+            getUserCollection().update(createUsersQuery(userIds), update, false, true);
+        } catch (MongoException e) {
+            throw new MongoDBQueryException("Failed to remove embedded role: " + roleId, e);
+        }
+    }
+
+    /**
+     * Remove a deleted role from every user holding it.
+     *
+     * @param roleName name of the deleted role
+     * @throws MongoDBQueryException if the update fails
+     */
+    public void removeRole(String roleName) throws MongoDBQueryException {
+        DBObject update = new BasicDBObject(MongoDBCoreConstants.PULL_FIELD,
+                new BasicDBObject(MongoDBCoreConstants.UM_ROLES,
+                        new BasicDBObject(MongoDBCoreConstants.UM_ROLE_NAME, roleName)));
+        try {
+            getUserCollection().update(createRoleQuery(roleName), update, false, true);
+        } catch (MongoException e) {
+            throw new MongoDBQueryException("Failed to remove embedded role: " + roleName, e);
+        }
+    }
+
+    /**
+     * Rename a role in every user holding it.
+     *
+     * @param roleName    current name of the role
+     * @param newRoleName new name of the role
+     * @throws MongoDBQueryException if the update fails
+     */
+    public void renameRole(String roleName, String newRoleName) throws MongoDBQueryException {
+        DBObject update = new BasicDBObject(MongoDBCoreConstants.SET_FIELD,
+                new BasicDBObject(MongoDBCoreConstants.UM_ROLES_MATCHED_UM_ROLE_NAME, newRoleName));
+        try {
+            getUserCollection().update(createRoleQuery(roleName), update, false, true);
+        } catch (MongoException e) {
+            throw new MongoDBQueryException("Failed to rename embedded role: " + roleName, e);
+        }
+    }
+
+    /**
+     * Get the role names of a user with a single point read on the user ID index.
+     *
+     * @param userId   UM_ID of the user
+     * @param userName name of the user, used in error messages
+     * @param filter   role name filter where '*' and '?' are wildcards, null or empty for every role
+     * @return String[] of role names
+     * @throws MongoDBQueryException if the read fails
+     */
+    public String[] getRoleNamesOfUser(int userId, String userName, String filter) throws MongoDBQueryException {
+        DBObject query = new BasicDBObject(MongoDBCoreConstants.UM_ID, userId)
+                .append(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
+        DBObject projection = new BasicDBObject(MongoDBCoreConstants.UM_ROLES, 1)
+                .append(MongoDBCoreConstants.ID, 0);
+        try {
+            DBObject user = getUserCollection().findOne(query, projection);
+            if (user == null || !(user.get(MongoDBCoreConstants.UM_ROLES) instanceof List)) {
+                return new String[0];
+            }
+            Pattern pattern = toFilterPattern(filter);
+            List<String> roleNames = new ArrayList<>();
+            for (Object entry : (List<?>) user.get(MongoDBCoreConstants.UM_ROLES)) {
+                String roleName = ((DBObject) entry).get(MongoDBCoreConstants.UM_ROLE_NAME).toString();
+                if (pattern == null || pattern.matcher(roleName).matches()) {
+                    roleNames.add(roleName);
+                }
+            }
+            return roleNames.toArray(new String[roleNames.size()]);
+        } catch (MongoException e) {
+            throw new MongoDBQueryException("Failed to read embedded roles of user: " + userName, e);
+        }
+    }
+
+    /**
+     * Get the users of a role with a single indexed query.
+     *
+     * @param roleName name of the role
+     * @return String[] of user names
+     * @throws MongoDBQueryException if the query fails
+     */
+    public String[] getUserNamesOfRole(String roleName) throws MongoDBQueryException {
+        DBObject projection = new BasicDBObject(MongoDBCoreConstants.UM_USER_NAME, 1)
+                .append(MongoDBCoreConstants.ID, 0);
+        List<String> userNames = new ArrayList<>();
+        DBCursor cursor = null;
+        try {
+            cursor = getUserCollection().find(createRoleQuery(roleName), projection);
+            while (cursor.hasNext()) {
+                userNames.add(cursor.next().get(MongoDBCoreConstants.UM_USER_NAME).toString());
+            }
+        } catch (MongoException e) {
+            throw new MongoDBQueryException("Failed to read embedded users of role: " + roleName, e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return userNames.toArray(new String[userNames.size()]);
+    }
+
+    /**
+     * Repair drift between the embedded role arrays and UM_USER_ROLE.
+     *
+     * @return number of user documents that were repaired
+     * @throws MongoDBQueryException if reading or repairing fails
+     */
+    public int reconcile() throws MongoDBQueryException {
+        int repaired = 0;
+        try {
+            Map<Integer, String> roleNames = getRoleNames();
+            Set<Integer> mappedUserIds = new HashSet<>();
+            DBObject match = new BasicDBObject(MongoDBCoreConstants.MATCH_FIELD,
+                    new BasicDBObject(MongoDBCoreConstants.UM_TENANT_ID, tenantId));
+            DBObject group = new BasicDBObject(MongoDBCoreConstants.GROUP_FIELD,
+                    new BasicDBObject(MongoDBCoreConstants.ID, "$" + MongoDBCoreConstants.UM_USER_ID)
+                            .append(MongoDBCoreConstants.UM_ROLES, new BasicDBObject(
+                                    MongoDBCoreConstants.ADD_TO_SET_FIELD, "$" + MongoDBCoreConstants.UM_ROLE_ID)));
+            List<DBObject> pipeline = new ArrayList<>(2);
+            pipeline.add(match);
+            pipeline.add(group);
+            AggregationOptions options = AggregationOptions.builder().batchSize(RECONCILE_BATCH_SIZE)
+                    .outputMode(AggregationOptions.OutputMode.CURSOR).build();
+            Cursor mappings = db.getCollection(MongoDBCoreConstants.UM_USER_ROLE).aggregate(pipeline, options);
+            try {
+                while (mappings.hasNext()) {
+                    DBObject mapping = mappings.next();
+                    int userId = toInt(mapping.get(MongoDBCoreConstants.ID));
+                    mappedUserIds.add(userId);
+                    List<DBObject> expected = new ArrayList<>();
+                    for (Object roleId : (List<?>) mapping.get(MongoDBCoreConstants.UM_ROLES)) {
+                        String roleName = roleNames.get(toInt(roleId));
+                        if (roleName != null) {
+                            expected.add(createRoleEntry(toInt(roleId), roleName));
+                        }
+                    }
+                    if (repairUser(userId, expected)) {
+                        repaired++;
+                    }
+                }
+            } finally {
+                mappings.close();
+            }
+
+            // Users still holding embedded roles without any mapping left in UM_USER_ROLE
+            DBObject query = new BasicDBObject(MongoDBCoreConstants.UM_TENANT_ID, tenantId)
+                    .append(MongoDBCoreConstants.UM_ROLES_UM_ROLE_NAME, new BasicDBObject("$exists", true));
+            DBCursor cursor = getUserCollection().find(query, new BasicDBObject(MongoDBCoreConstants.UM_ID, 1))
+                    .batchSize(RECONCILE_BATCH_SIZE);
+            try {
+                while (cursor.hasNext()) {
+                    int userId = toInt(cursor.next().get(MongoDBCoreConstants.UM_ID));
+                    if (!mappedUserIds.contains(userId) && repairUser(userId, new ArrayList<DBObject>())) {
+                        repaired++;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            if (!reconciled) {
+                db.getCollection(MongoDBCoreConstants.UM_EMBEDDED_ROLE_STATE).update(createStateQuery(),
+                        new BasicDBObject(MongoDBCoreConstants.SET_FIELD,
+                                new BasicDBObject(MongoDBCoreConstants.UM_RECONCILED_TIME, new Date())), true, false);
+                reconciled = true;
+            }
+        } catch (MongoException e) {
+            throw new MongoDBQueryException("Failed to reconcile embedded roles of tenant: " + tenantId, e);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Reconciled embedded roles of tenant: " + tenantId + ", repaired users: " + repaired);
+        }
+        return repaired;
+    }
+
+    /**
+     * Bring the embedded roles of a user in line with the expected entries. Entries are added with $addToSet and
+     * removed with $pull, and each of them is checked against UM_USER_ROLE again right before, so that a role
+     * assigned or removed while the reconcile runs is not undone.
+     *
+     * @param userId   UM_ID of the user
+     * @param expected entries built from UM_USER_ROLE
+     * @return boolean true if the user was repaired
+     */
+    private boolean repairUser(int userId, List<DBObject> expected) {
+        DBObject user = getUserCollection().findOne(createUserQuery(userId),
+                new BasicDBObject(MongoDBCoreConstants.UM_ROLES, 1).append(MongoDBCoreConstants.ID, 0));
+        if (user == null) {
+            return false;
+        }
+        Map<String, DBObject> current = new HashMap<>();
+        if (user.get(MongoDBCoreConstants.UM_ROLES) instanceof List) {
+            for (Object entry : (List<?>) user.get(MongoDBCoreConstants.UM_ROLES)) {
+                current.put(toEntryKey((DBObject) entry), (DBObject) entry);
+            }
+        }
+        List<DBObject> missing = new ArrayList<>();
+        Set<String> target = new HashSet<>();
+        for (DBObject entry : expected) {
+            target.add(toEntryKey(entry));
+            if (!current.containsKey(toEntryKey(entry)) && isMapped(userId, entry)) {
+                missing.add(entry);
+            }
+        }
+        List<DBObject> stale = new ArrayList<>();
+        for (Map.Entry<String, DBObject> entry : current.entrySet()) {
+            if (!target.contains(entry.getKey()) && !isMapped(userId, entry.getValue())) {
+                stale.add(new BasicDBObject(MongoDBCoreConstants.UM_ROLE_ID,
+                        entry.getValue().get(MongoDBCoreConstants.UM_ROLE_ID))
+                        .append(MongoDBCoreConstants.UM_ROLE_NAME,
+                                entry.getValue().get(MongoDBCoreConstants.UM_ROLE_NAME)));
+            }
+        }
+        if (!missing.isEmpty()) {
+            getUserCollection().update(createUserQuery(userId), new BasicDBObject(
+                    MongoDBCoreConstants.ADD_TO_SET_FIELD, new BasicDBObject(MongoDBCoreConstants.UM_ROLES,
+                    new BasicDBObject(MongoDBCoreConstants.EACH_FIELD, missing))));
+        }
+        for (DBObject entry : stale) {
+            getUserCollection().update(createUserQuery(userId), new BasicDBObject(MongoDBCoreConstants.PULL_FIELD,
+                    new BasicDBObject(MongoDBCoreConstants.UM_ROLES, entry)));
+        }
+        return !missing.isEmpty() || !stale.isEmpty();
+    }
+
+    /**
+     * Check whether UM_USER_ROLE currently maps a user to the role of an entry under the name of the entry.
+     *
+     * @param userId UM_ID of the user
+     * @param entry  embedded role entry
+     * @return boolean status
+     */
+    private boolean isMapped(int userId, DBObject entry) {
+        int roleId = toInt(entry.get(MongoDBCoreConstants.UM_ROLE_ID));
+        DBObject role = db.getCollection(MongoDBCoreConstants.UM_ROLE).findOne(
+                new BasicDBObject(MongoDBCoreConstants.UM_ID, roleId)
+                        .append(MongoDBCoreConstants.UM_TENANT_ID, tenantId),
+                new BasicDBObject(MongoDBCoreConstants.UM_ROLE_NAME, 1).append(MongoDBCoreConstants.ID, 0));
+        if (role == null || !String.valueOf(role.get(MongoDBCoreConstants.UM_ROLE_NAME))
+                .equals(String.valueOf(entry.get(MongoDBCoreConstants.UM_ROLE_NAME)))) {
+            return false;
+        }
+        return db.getCollection(MongoDBCoreConstants.UM_USER_ROLE).findOne(
+                new BasicDBObject(MongoDBCoreConstants.UM_USER_ID, userId)
+                        .append(MongoDBCoreConstants.UM_ROLE_ID, roleId)
+                        .append(MongoDBCoreConstants.UM_TENANT_ID, tenantId)) != null;
+    }
+
+    private Map<Integer, String> getRoleNames() {
+        Map<Integer, String> roleNames = new HashMap<>();
+        DBObject projection = new BasicDBObject(MongoDBCoreConstants.UM_ID, 1)
+                .append(MongoDBCoreConstants.UM_ROLE_NAME, 1).append(MongoDBCoreConstants.ID, 0);
+        DBCursor cursor = db.getCollection(MongoDBCoreConstants.UM_ROLE)
+                .find(new BasicDBObject(MongoDBCoreConstants.UM_TENANT_ID, tenantId), projection)
+                .batchSize(RECONCILE_BATCH_SIZE);
+        try {
+            while (cursor.hasNext()) {
+                DBObject role = cursor.next();
+                roleNames.put(toInt(role.get(MongoDBCoreConstants.UM_ID)),
+                        role.get(MongoDBCoreConstants.UM_ROLE_NAME).toString());
+            }
+        } finally {
+            cursor.close();
+        }
+        return roleNames;
+    }
+
+    private DBCollection getUserCollection() {
+        return db.getCollection(MongoDBCoreConstants.UM_USER);
+    }
+
+    private DBObject createStateQuery() {
+        return new BasicDBObject(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
+    }
+
+    private DBObject createUserQuery(int userId) {
+        return new BasicDBObject(MongoDBCoreConstants.UM_ID, userId).append(MongoDBCoreConstants.UM_TENANT_ID,
+                tenantId);
+    }
+
+    private DBObject createUsersQuery(int[] userIds) {
+        return new BasicDBObject(MongoDBCoreConstants.UM_ID,
+                new BasicDBObject(MongoDBCoreConstants.IN_FIELD, toList(userIds)))
+                .append(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
+    }
+
+    private DBObject createRoleQuery(String roleName) {
+        return new BasicDBObject(MongoDBCoreConstants.UM_TENANT_ID, tenantId)
+                .append(MongoDBCoreConstants.UM_ROLES_UM_ROLE_NAME, roleName);
+    }
+
+    private static DBObject createRoleEntry(int roleId, String roleName) {
+        return new BasicDBObject(MongoDBCoreConstants.UM_ROLE_ID, roleId)
+                .append(MongoDBCoreConstants.UM_ROLE_NAME, roleName);
+    }
+
+    private static Pattern toFilterPattern(String filter) {
+        if (filter == null || filter.trim().isEmpty() || "*".equals(filter.trim())) {
+            return null;
+        }
+        StringBuilder regex = new StringBuilder();
+        for (char c : filter.trim().toCharArray()) {
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else {
+                regex.append(MongoDBUserAttributeLayout.escapeRegex(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+    }
+
+    private static String toEntryKey(DBObject entry) {
+        return toInt(entry.get(MongoDBCoreConstants.UM_ROLE_ID)) + ":" + entry.get(MongoDBCoreConstants.UM_ROLE_NAME);
+    }
+
+    private static List<Integer> toList(int[] ids) {
+        List<Integer> values = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            if (id > 0) {
+                values.add(id);
+            }
+        }
+        return values;
+    }
+
+    private static int toInt(Object value) {
+        return (int) Double.parseDouble(value.toString());
+    }
+}
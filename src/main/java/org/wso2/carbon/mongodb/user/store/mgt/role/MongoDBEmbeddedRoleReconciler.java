@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.user.store.mgt.role;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.mongodb.util.MongoDBScheduler;
+
+/**
+ * Background task which periodically repairs drift between the embedded role arrays and UM_USER_ROLE.
+ */
+public class MongoDBEmbeddedRoleReconciler implements Runnable {
+
+    private static final Log log = LogFactory.getLog(MongoDBEmbeddedRoleReconciler.class);
+    private static final Set<String> scheduledStores = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+
+    private final MongoDBEmbeddedRoleManager roleManager;
+
+    private MongoDBEmbeddedRoleReconciler(MongoDBEmbeddedRoleManager roleManager) {
+        this.roleManager = roleManager;
+    }
+
+    /**
+     * Schedule the reconciler of a user store once. The first run starts immediately so that existing users get
+     * their embedded role arrays populated when the mode is switched on.
+     *
+     * @param storeKey        unique key of the user store and tenant
+     * @param roleManager     embedded role manager of the user store
+     * @param intervalSeconds delay between two runs
+     */
+    public static void schedule(String storeKey, MongoDBEmbeddedRoleManager roleManager, long intervalSeconds) {
+        if (scheduledStores.add(storeKey)) {
+            MongoDBScheduler.scheduleWithFixedDelay(new MongoDBEmbeddedRoleReconciler(roleManager), 0,
+                    intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Forget the scheduled user stores once the shared scheduler has stopped, so that they are scheduled again on
+     * their next initialization. Called when the bundle is deactivated.
+     */
+    public static void shutdown() {
+        scheduledStores.clear();
+    }
+
+    @Override
+    public void run() {
+        try {
+            int repaired = roleManager.reconcile();
+            if (repaired > 0) {
+                log.info("Repaired embedded role membership of " + repaired + " users");
+            }
+        } catch (Throwable e) {
+            // Never let an error cancel the periodic task
+            log.error("Error while reconciling embedded role membership", e);
+        }
+    }
+}
@@ -0,0 +1,513 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.mongodb.user.store.mgt.MongoDBCoreConstants;
+
+/**
+ * Write-behind buffer of frequently written user attributes, such as the last login time, of the users of a tenant.
+ * <p>
+ * Writes are coalesced per user and profile in memory, keeping only the latest value of each attribute, and are
+ * flushed periodically as one unordered bulk write. The buffer holds at most a fixed number of users; writes for
+ * further users are dropped and counted rather than blocking the caller. Pending values are lost if the node
+ * stops without {@link #shutdown()}, so only attributes which tolerate that should be buffered.
+ * <p>
+ * Values discarded while their flush is in flight are left out of it, or, once the write has been sent, the
+ * discard waits for it so that a direct write or delete following the discard always lands last. A batch whose
+ * write fails is queued again behind any newer values. Each update sets the values together with the attribute
+ * array, guarded by the array read before, and falls back to a guarded single update if the document changed in
+ * between. Profiles without a document are upserted on {UM_USER_ID, UM_PROFILE_ID, UM_TENANT_ID}, so a document
+ * written directly since the read is updated rather than duplicated.
+ * <p>
+ * Once the bundle is deactivated the buffers are closed: they are flushed one last time and refuse new values, so
+ * that callers write them directly.
+ */
+public final class MongoDBAttributeWriteBuffer implements Runnable {
+
+    private static final Log log = LogFactory.getLog(MongoDBAttributeWriteBuffer.class);
+    private static final int FLUSH_CHUNK_SIZE = 500;
+    private static final long DROP_LOG_INTERVAL = 1000;
+    private static final ConcurrentMap<String, MongoDBAttributeWriteBuffer> buffers = new ConcurrentHashMap<>();
+
+    private final DB db;
+    private final int tenantId;
+    private final int maxUsers;
+    private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Pending> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder droppedCount = new LongAdder();
+    private final LongAdder flushedCount = new LongAdder();
+    private volatile boolean closed;
+
+    private MongoDBAttributeWriteBuffer(DB db, int tenantId, int maxUsers) {
+        this.db = db;
+        this.tenantId = tenantId;
+        this.maxUsers = maxUsers;
+    }
+
+    /**
+     * Get the buffer of a tenant, creating it and scheduling its flushes on first use.
+     *
+     * @param storeKey             unique key of the user store and tenant
+     * @param db                   data source of the user store
+     * @param tenantId             tenant of the users
+     * @param maxUsers             maximum number of users with pending writes
+     * @param flushIntervalSeconds delay between two flushes
+     * @return MongoDBAttributeWriteBuffer of the tenant
+     */
+    public static MongoDBAttributeWriteBuffer getInstance(String storeKey, DB db, int tenantId, int maxUsers,
+                                                          long flushIntervalSeconds) {
+        MongoDBAttributeWriteBuffer buffer = buffers.get(storeKey);
+        if (buffer != null) {
+            return buffer;
+        }
+        MongoDBAttributeWriteBuffer created = new MongoDBAttributeWriteBuffer(db, tenantId, maxUsers);
+        buffer = buffers.putIfAbsent(storeKey, created);
+        if (buffer != null) {
+            return buffer;
+        }
+        MongoDBScheduler.scheduleWithFixedDelay(created, flushIntervalSeconds, flushIntervalSeconds,
+                TimeUnit.SECONDS);
+        return created;
+    }
+
+    /**
+     * Close every buffer and flush it one last time once the shared scheduler has stopped, and drop the buffers so
+     * that the next use schedules new ones. Called when the bundle is deactivated.
+     */
+    public static void shutdown() {
+        for (Map.Entry<String, MongoDBAttributeWriteBuffer> entry : buffers.entrySet()) {
+            entry.getValue().closed = true;
+            buffers.remove(entry.getKey(), entry.getValue());
+            entry.getValue().run();
+        }
+    }
+
+    /**
+     * Check whether the buffer has been closed with the bundle, in which case it refuses new values and a new one
+     * has to be obtained through {@link #getInstance}.
+     *
+     * @return boolean status
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Buffer attribute values of a user profile, replacing pending values of the same attributes.
+     *
+     * @param userKey     normalized user name
+     * @param userId      UM_ID of the user
+     * @param profileName profile of the attributes
+     * @param values      attribute values by attribute name
+     * @return boolean false if the buffer is full and the values were dropped, or closed and the values were refused
+     */
+    public boolean offer(String userKey, int userId, String profileName, Map<String, String> values) {
+        if (closed) {
+            return false;
+        }
+        while (true) {
+            Pending entry = pending.get(userKey);
+            if (entry == null) {
+                if (pending.size() >= maxUsers) {
+                    droppedCount.increment();
+                    long dropped = droppedCount.sum();
+                    if (dropped % DROP_LOG_INTERVAL == 1) {
+                        log.warn("Attribute write buffer of tenant " + tenantId + " is full. Dropped " + dropped +
+                                " writes so far");
+                    }
+                    return false;
+                }
+                Pending created = new Pending(userId);
+                entry = pending.putIfAbsent(userKey, created);
+                if (entry == null) {
+                    entry = created;
+                }
+            }
+            // A closed entry is being flushed, retry with a new one
+            if (entry.put(profileName, values)) {
+                if (closed) {
+                    // The last flush may have run before the put
+                    run();
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Get the values of a user profile which are not written yet.
+     *
+     * @param userKey     normalized user name
+     * @param profileName profile of the attributes
+     * @return Map of attribute values or null if nothing is pending
+     */
+    public Map<String, String> getPending(String userKey, String profileName) {
+        Map<String, String> values = null;
+        Pending flushing = inFlight.get(userKey);
+        if (flushing != null) {
+            values = flushing.get(profileName);
+        }
+        Pending entry = pending.get(userKey);
+        if (entry != null) {
+            Map<String, String> newer = entry.get(profileName);
+            if (newer != null) {
+                if (values == null) {
+                    values = newer;
+                } else {
+                    values.putAll(newer);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Drop pending values of a user which have been overwritten or deleted directly. If the values are being
+     * written, wait until the write is done.
+     *
+     * @param userKey    normalized user name
+     * @param attributes names of the attributes to drop, null to drop every pending value of the user
+     */
+    public void discard(String userKey, Collection<String> attributes) {
+        Pending flushing = inFlight.get(userKey);
+        if (flushing != null) {
+            flushing.supersede(attributes);
+        }
+        Pending entry = pending.get(userKey);
+        if (entry != null && entry.discard(attributes)) {
+            pending.remove(userKey, entry);
+        }
+    }
+
+    /**
+     * Drop every pending value, waiting for a running flush. Used before the data of the tenant is deleted.
+     */
+    public void discardAll() {
+        for (String userKey : inFlight.keySet()) {
+            discard(userKey, null);
+        }
+        for (String userKey : pending.keySet()) {
+            discard(userKey, null);
+        }
+    }
+
+    /**
+     * Get the number of writes dropped because the buffer was full.
+     *
+     * @return long dropped writes
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * Get the number of user profiles written by the flushes.
+     *
+     * @return long flushed user profiles
+     */
+    public long getFlushedCount() {
+        return flushedCount.sum();
+    }
+
+    /**
+     * Get the number of users with pending writes.
+     *
+     * @return int pending users
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public void run() {
+        try {
+            flush();
+        } catch (Throwable e) {
+            // Never let an error cancel the periodic task
+            log.error("Error while flushing the attribute write buffer of tenant " + tenantId, e);
+        }
+    }
+
+    private void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        Map<String, Pending> batch = new HashMap<>();
+        for (String userKey : pending.keySet()) {
+            Pending entry = pending.get(userKey);
+            if (entry == null) {
+                continue;
+            }
+            inFlight.put(userKey, entry);
+            pending.remove(userKey, entry);
+            entry.close();
+            batch.put(userKey, entry);
+            if (batch.size() == FLUSH_CHUNK_SIZE) {
+                write(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            write(batch);
+        }
+    }
+
+    private void write(Map<String, Pending> batch) {
+        Map<String, Map<String, Map<String, String>>> written = new HashMap<>();
+        try {
+            DBCollection collection = db.getCollection(MongoDBCoreConstants.UM_USER_ATTRIBUTE);
+            BasicDBList userIds = new BasicDBList();
+            for (Pending entry : batch.values()) {
+                userIds.add(entry.userId);
+            }
+            // Documents are read to guard the attribute array and to find the profiles which need an insert
+            Map<String, DBObject> documents = new HashMap<>();
+            DBCursor cursor = collection.find(new BasicDBObject(MongoDBCoreConstants.UM_USER_ID,
+                    new BasicDBObject(MongoDBCoreConstants.IN_FIELD, userIds))
+                    .append(MongoDBCoreConstants.UM_TENANT_ID, tenantId))
+                    .batchSize(MongoDatabaseUtil.DEFAULT_BATCH_SIZE);
+            try {
+                while (cursor.hasNext()) {
+                    DBObject document = cursor.next();
+                    documents.put(document.get(MongoDBCoreConstants.UM_USER_ID) + "#" +
+                            document.get(MongoDBCoreConstants.UM_PROFILE_ID), document);
+                }
+            } finally {
+                cursor.close();
+            }
+            BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+            List<DBObject[]> updates = new ArrayList<>();
+            List<DBObject[]> upserts = new ArrayList<>();
+            int count = 0;
+            for (Map.Entry<String, Pending> userEntry : batch.entrySet()) {
+                Pending entry = userEntry.getValue();
+                // Discards from here on wait for the write instead of changing it
+                Map<String, Map<String, String>> profiles = entry.startWrite();
+                written.put(userEntry.getKey(), profiles);
+                for (Map.Entry<String, Map<String, String>> profile : profiles.entrySet()) {
+                    DBObject document = documents.get(entry.userId + "#" + profile.getKey());
+                    if (document == null) {
+                        DBObject key = new BasicDBObject(MongoDBCoreConstants.UM_USER_ID, entry.userId)
+                                .append(MongoDBCoreConstants.UM_PROFILE_ID, profile.getKey())
+                                .append(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
+                        BasicDBObject values = new BasicDBObject(profile.getValue());
+                        DBObject inserted = new BasicDBObject(MongoDBCoreConstants.UM_ID,
+                                MongoDatabaseUtil.getIncrementedSequence(db, MongoDBCoreConstants.UM_USER_ATTRIBUTE))
+                                .append(MongoDBCoreConstants.UM_ATTRS,
+                                        MongoDBUserAttributeLayout.toAttributeArray(values));
+                        bulk.find(key).upsert().updateOne(new BasicDBObject(MongoDBCoreConstants.SET_FIELD, values)
+                                .append(MongoDBCoreConstants.SET_ON_INSERT_FIELD, inserted));
+                        upserts.add(new DBObject[]{key, new BasicDBObject(profile.getValue())});
+                    } else {
+                        Object attributes = document.get(MongoDBCoreConstants.UM_ATTRS);
+                        DBObject id = new BasicDBObject(MongoDBCoreConstants.ID,
+                                document.get(MongoDBCoreConstants.ID));
+                        document.putAll(profile.getValue());
+                        BasicDBObject values = new BasicDBObject(profile.getValue());
+                        values.put(MongoDBCoreConstants.UM_ATTRS,
+                                MongoDBUserAttributeLayout.toAttributeArray(document));
+                        bulk.find(new BasicDBObject(id.toMap()).append(MongoDBCoreConstants.UM_ATTRS,
+                                attributes != null ? attributes :
+                                        new BasicDBObject(MongoDBCoreConstants.EXISTS_FIELD, false)))
+                                .updateOne(new BasicDBObject(MongoDBCoreConstants.SET_FIELD, values));
+                        updates.add(new DBObject[]{id, new BasicDBObject(profile.getValue())});
+                    }
+                    count++;
+                }
+            }
+            if (count > 0) {
+                BulkWriteResult result = bulk.execute();
+                if (result.getUpserts().size() < upserts.size()) {
+                    // A document was written directly since the read, its attribute array misses the new values
+                    updates.addAll(upserts);
+                } else if (result.getMatchedCount() == updates.size()) {
+                    updates.clear();
+                }
+                // Some documents changed since they were read, apply those values with a guarded single update
+                for (DBObject[] update : updates) {
+                    MongoDBUserAttributeLayout.update(collection, update[0], update[1]);
+                }
+                flushedCount.add(count);
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Flushed " + count + " buffered user profiles of tenant " + tenantId);
+            }
+        } catch (RuntimeException e) {
+            // Queue the values again unless newer values or a discard replaced them
+            for (Map.Entry<String, Map<String, Map<String, String>>> entry : written.entrySet()) {
+                requeue(entry.getKey(), batch.get(entry.getKey()).userId, entry.getValue());
+            }
+            for (Map.Entry<String, Pending> entry : batch.entrySet()) {
+                if (!written.containsKey(entry.getKey())) {
+                    requeue(entry.getKey(), entry.getValue().userId, entry.getValue().startWrite());
+                }
+            }
+            throw e;
+        } finally {
+            for (Map.Entry<String, Pending> entry : batch.entrySet()) {
+                entry.getValue().endWrite();
+                inFlight.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void requeue(String userKey, int userId, Map<String, Map<String, String>> profiles) {
+        for (Map.Entry<String, Map<String, String>> profile : profiles.entrySet()) {
+            while (true) {
+                Pending entry = pending.get(userKey);
+                if (entry == null) {
+                    Pending created = new Pending(userId);
+                    entry = pending.putIfAbsent(userKey, created);
+                    if (entry == null) {
+                        entry = created;
+                    }
+                }
+                if (entry.putIfAbsent(profile.getKey(), profile.getValue())) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Pending attribute values of a user, by profile.
+     */
+    private static final class Pending {
+
+        private final int userId;
+        private final Map<String, Map<String, String>> profiles = new HashMap<>();
+        private boolean closed;
+        private boolean writing;
+
+        Pending(int userId) {
+            this.userId = userId;
+        }
+
+        synchronized boolean put(String profileName, Map<String, String> values) {
+            if (closed) {
+                return false;
+            }
+            Map<String, String> profile = profiles.get(profileName);
+            if (profile == null) {
+                profile = new HashMap<>();
+                profiles.put(profileName, profile);
+            }
+            profile.putAll(values);
+            return true;
+        }
+
+        synchronized boolean putIfAbsent(String profileName, Map<String, String> values) {
+            if (closed) {
+                return false;
+            }
+            Map<String, String> profile = profiles.get(profileName);
+            if (profile == null) {
+                profile = new HashMap<>();
+                profiles.put(profileName, profile);
+            }
+            for (Map.Entry<String, String> value : values.entrySet()) {
+                profile.putIfAbsent(value.getKey(), value.getValue());
+            }
+            return true;
+        }
+
+        synchronized Map<String, String> get(String profileName) {
+            Map<String, String> profile = profiles.get(profileName);
+            return profile == null ? null : new HashMap<>(profile);
+        }
+
+        synchronized boolean discard(Collection<String> attributes) {
+            if (closed) {
+                return false;
+            }
+            removeAttributes(attributes);
+            // An empty entry is closed so that a concurrent offer retries with a new one once it is removed
+            closed = profiles.isEmpty();
+            return closed;
+        }
+
+        synchronized void close() {
+            closed = true;
+        }
+
+        synchronized void supersede(Collection<String> attributes) {
+            while (writing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            removeAttributes(attributes);
+        }
+
+        synchronized Map<String, Map<String, String>> startWrite() {
+            writing = true;
+            Map<String, Map<String, String>> copy = new HashMap<>();
+            for (Map.Entry<String, Map<String, String>> profile : profiles.entrySet()) {
+                if (!profile.getValue().isEmpty()) {
+                    copy.put(profile.getKey(), new HashMap<>(profile.getValue()));
+                }
+            }
+            return copy;
+        }
+
+        synchronized void endWrite() {
+            writing = false;
+            notifyAll();
+        }
+
+        private void removeAttributes(Collection<String> attributes) {
+            if (attributes == null) {
+                profiles.clear();
+            } else {
+                List<String> empty = new ArrayList<>();
+                for (Map.Entry<String, Map<String, String>> profile : profiles.entrySet()) {
+                    profile.getValue().keySet().removeAll(attributes);
+                    if (profile.getValue().isEmpty()) {
+                        empty.add(profile.getKey());
+                    }
+                }
+                profiles.keySet().removeAll(empty);
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.axiom.om.util.Base64;
+import org.wso2.carbon.user.core.UserCoreConstants;
+import org.wso2.carbon.user.core.UserStoreException;
+import org.wso2.carbon.utils.Secret;
+import org.wso2.carbon.utils.UnsupportedSecretTypeException;
+
+/**
+ * Single pass message digest over the password followed by the salt, as written before hashing schemes were
+ * stored. The parameter is the digest function, or PLAIN_TEXT or empty to keep the password as is.
+ */
+public class MongoDBDigestPasswordHasher implements MongoDBPasswordHasher {
+
+    public static final String SCHEME = "Digest";
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    public boolean isAdaptive() {
+        return false;
+    }
+
+    @Override
+    public String hash(char[] password, String saltValue, String parameters) throws UserStoreException {
+        Secret credentialObj;
+        try {
+            credentialObj = Secret.getSecret(password.clone());
+        } catch (UnsupportedSecretTypeException e) {
+            throw new UserStoreException("Unsupported credential type", e);
+        }
+        try {
+            if (saltValue != null) {
+                credentialObj.addChars(saltValue.toCharArray());
+            }
+            if (parameters == null || parameters.isEmpty() ||
+                    parameters.equals(UserCoreConstants.RealmConfig.PASSWORD_HASH_METHOD_PLAIN_TEXT)) {
+                return new String(credentialObj.getChars());
+            }
+            MessageDigest digest = MessageDigest.getInstance(parameters);
+            return Base64.encode(digest.digest(credentialObj.getBytes()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new UserStoreException("Error occurred while preparing password", e);
+        } finally {
+            credentialObj.clear();
+        }
+    }
+}
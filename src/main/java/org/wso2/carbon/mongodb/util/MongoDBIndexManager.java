@@ -0,0 +1,494 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import org.wso2.carbon.mongodb.user.store.mgt.MongoDBCoreConstants;
+import org.wso2.carbon.mongodb.user.store.mgt.MongoDBRealmConstants;
+import org.wso2.carbon.mongodb.user.store.mgt.caseinsensitive.MongoDBCaseInsensitiveConstants;
+import org.wso2.carbon.user.api.RealmConfiguration;
+import org.wso2.carbon.user.core.UserStoreException;
+
+/**
+ * Creates and validates the indexes the user store queries rely on.
+ * <p>
+ * The required indexes are declared here instead of in a script which has to be run by hand. Missing indexes are
+ * created in the background and every query template executed by the user store is then checked for a supporting
+ * index among the indexes which actually exist, with a warning for each template that will scan. With
+ * {@code IndexValidation=strict} missing indexes are created synchronously and the user store fails to start if an
+ * index cannot be created or a template has no supporting index.
+ */
+public class MongoDBIndexManager {
+
+    public static final String VALIDATION_NONE = "none";
+    public static final String VALIDATION_WARN = "warn";
+    public static final String VALIDATION_STRICT = "strict";
+
+    private static final Log log = LogFactory.getLog(MongoDBIndexManager.class);
+    private static final String UNIQUE = "unique";
+    private static final String BACKGROUND = "background";
+    private static final String KEY = "key";
+    private static final String FROM = "from";
+    private static final String FOREIGN_FIELD = "foreignField";
+
+    private static final List<IndexDefinition> REQUIRED_INDEXES = new ArrayList<>();
+    private static final String[] QUERY_TEMPLATES = {
+            MongoDBRealmConstants.GET_ROLE_LIST, MongoDBRealmConstants.GET_IS_ROLE_EXISTING,
+            MongoDBRealmConstants.GET_USERS_IN_ROLE, MongoDBRealmConstants.GET_PROPS_FOR_PROFILE,
+            MongoDBRealmConstants.GET_PROP_FOR_PROFILE, MongoDBRealmConstants.GET_PROFILE_NAMES,
+            MongoDBRealmConstants.DELETE_ROLE, MongoDBRealmConstants.ON_DELETE_ROLE_REMOVE_USER_ROLE,
+            MongoDBRealmConstants.DELETE_USER, MongoDBRealmConstants.ON_DELETE_USER_REMOVE_USER_ROLE,
+            MongoDBRealmConstants.ON_DELETE_USER_REMOVE_ATTRIBUTE, MongoDBRealmConstants.UPDATE_ROLE_NAME,
+            MongoDBRealmConstants.USER_NAME_UNIQUE, MongoDBRealmConstants.GET_USERS_FOR_PROP
+    };
+    private static final String[] CASE_SENSITIVE_QUERY_TEMPLATES = {
+            MongoDBRealmConstants.SELECT_USER, MongoDBRealmConstants.GET_USER_FILTER,
+            MongoDBRealmConstants.GET_USER_ROLE, MongoDBRealmConstants.GET_IS_USER_EXISTING,
+            MongoDBRealmConstants.GET_PROFILE_NAMES_FOR_USER, MongoDBRealmConstants.GET_USER_ID_FROM_USERNAME,
+            MongoDBRealmConstants.GET_TENANT_ID_FROM_USERNAME, MongoDBRealmConstants.REMOVE_USER_FROM_ROLE,
+            MongoDBRealmConstants.REMOVE_ROLE_FROM_USER, MongoDBRealmConstants.UPDATE_USER_PASSWORD,
+            MongoDBRealmConstants.UPDATE_USER_PROPERTY, MongoDBRealmConstants.DELETE_USER_PROPERTY
+    };
+    private static final String[] CASE_INSENSITIVE_QUERY_TEMPLATES = {
+            MongoDBCaseInsensitiveConstants.SELECT_USER_CASE_INSENSITIVE,
+            MongoDBCaseInsensitiveConstants.GET_USER_FILTER_CASE_INSENSITIVE,
+            MongoDBCaseInsensitiveConstants.GET_USER_ROLE_CASE_INSENSITIVE,
+            MongoDBCaseInsensitiveConstants.GET_IS_USER_EXISTING_CASE_INSENSITIVE,
+            MongoDBCaseInsensitiveConstants.GET_PROFILE_NAMES_FOR_USER_CASE_INSENSITIVE,
+            MongoDBCaseInsensitiveConstants.GET_USER_ID_FROM_USERNAME_CASE_INSENSITIVE,
+            MongoDBCaseInsensitiveConstants.GET_TENANT_ID_FROM_USERNAME_CASE_INSENSITIVE,
+            MongoDBCaseInsensitiveConstants.REMOVE_USER_FROM_ROLE_CASE_INSENSITIVE,
+            MongoDBCaseInsensitiveConstants.REMOVE_ROLE_FROM_USER_CASE_INSENSITIVE,
+            MongoDBCaseInsensitiveConstants.UPDATE_USER_PASSWORD_CASE_INSENSITIVE,
+            MongoDBCaseInsensitiveConstants.UPDATE_USER_PROPERTY_CASE_INSENSITIVE,
+            MongoDBCaseInsensitiveConstants.DELETE_USER_PROPERTY_CASE_INSENSITIVE
+    };
+    private static final String[] SHARED_ROLE_QUERY_TEMPLATES = {
+            MongoDBRealmConstants.GET_SHARED_ROLE_LIST, MongoDBRealmConstants.GET_SHARED_ROLES_FOR_USER,
+            MongoDBRealmConstants.GET_USERS_IN_SHARED_ROLE, MongoDBRealmConstants.REMOVE_USER_FROM_SHARED_ROLE,
+            MongoDBRealmConstants.ADD_SHARED_ROLE
+    };
+
+    private static final Set<String> bootstrappedStores = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+    private static final ExecutorService indexBuilder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "MongoDBIndexBuilder");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        String umId = MongoDBCoreConstants.UM_ID;
+        String tenantId = MongoDBCoreConstants.UM_TENANT_ID;
+        addRequiredIndex(MongoDBCoreConstants.UM_USER, true, umId, tenantId);
+        addRequiredIndex(MongoDBCoreConstants.UM_USER, true, MongoDBCoreConstants.UM_USER_NAME, tenantId);
+        addRequiredIndex(MongoDBCoreConstants.UM_USER, false, tenantId, MongoDBCoreConstants.UM_USER_NAME);
+        addRequiredIndex(MongoDBCoreConstants.UM_ROLE, true, umId, tenantId);
+        addRequiredIndex(MongoDBCoreConstants.UM_ROLE, true, MongoDBCoreConstants.UM_ROLE_NAME, tenantId);
+        addRequiredIndex(MongoDBCoreConstants.UM_ROLE, false, tenantId, MongoDBCoreConstants.UM_ROLE_NAME);
+        addRequiredIndex(MongoDBCoreConstants.UM_USER_ROLE, true, umId, tenantId);
+        addRequiredIndex(MongoDBCoreConstants.UM_USER_ROLE, true, MongoDBCoreConstants.UM_USER_ID,
+                MongoDBCoreConstants.UM_ROLE_ID, tenantId);
+        addRequiredIndex(MongoDBCoreConstants.UM_USER_ROLE, false, MongoDBCoreConstants.UM_ROLE_ID, tenantId);
+        addRequiredIndex(MongoDBCoreConstants.UM_USER_ATTRIBUTE, true, umId, tenantId);
+        addRequiredIndex(MongoDBCoreConstants.UM_USER_ATTRIBUTE, false, MongoDBCoreConstants.UM_USER_ID,
+                MongoDBCoreConstants.UM_PROFILE_ID, tenantId);
+        addRequiredIndex(MongoDBCoreConstants.UM_USER_ATTRIBUTE, false, tenantId,
+                MongoDBCoreConstants.UM_PROFILE_ID);
+        addRequiredIndex(MongoDBCoreConstants.UM_USER_ATTRIBUTE, false,
+                MongoDBCoreConstants.UM_ATTRS + "." + MongoDBCoreConstants.UM_ATTRS_KEY,
+                MongoDBCoreConstants.UM_ATTRS + "." + MongoDBCoreConstants.UM_ATTRS_VALUE, tenantId);
+        addRequiredIndex(MongoDBCoreConstants.UM_SHARED_USER_ROLE, true, MongoDBCoreConstants.UM_USER_ID,
+                MongoDBCoreConstants.UM_ROLE_ID, MongoDBCoreConstants.UM_USER_TENANT_ID,
+                MongoDBCoreConstants.UM_ROLE_TENANT_ID);
+        addRequiredIndex(MongoDBCoreConstants.UM_DOMAIN, false, MongoDBCoreConstants.UM_DOMAIN_NAME, tenantId);
+        addRequiredIndex(MongoDBCoreConstants.COUNTERS, false, MongoDBCoreConstants.NAME);
+    }
+
+    private final DB db;
+    private final RealmConfiguration realmConfig;
+    private final boolean caseSensitiveUsername;
+    private final boolean sharedGroupsEnabled;
+    private final List<IndexDefinition> requiredIndexes = new ArrayList<>(REQUIRED_INDEXES);
+    private final List<String> unsupportedTemplates = new CopyOnWriteArrayList<>();
+    private final List<String> failedIndexes = new CopyOnWriteArrayList<>();
+
+    /**
+     * Constructor with four parameters.
+     *
+     * @param db                    mongodb data source of the user store
+     * @param realmConfig           realm configuration holding the query templates
+     * @param caseSensitiveUsername whether the case sensitive or insensitive templates are in use
+     * @param sharedGroupsEnabled   whether the shared role templates are in use
+     */
+    public MongoDBIndexManager(DB db, RealmConfiguration realmConfig, boolean caseSensitiveUsername,
+                               boolean sharedGroupsEnabled) {
+        this.db = db;
+        this.realmConfig = realmConfig;
+        this.caseSensitiveUsername = caseSensitiveUsername;
+        this.sharedGroupsEnabled = sharedGroupsEnabled;
+        if (Boolean.parseBoolean(realmConfig.getUserStoreProperty(MongoDBRealmConstants.EMBEDDED_ROLE_MEMBERSHIP))) {
+            requiredIndexes.add(new IndexDefinition(MongoDBCoreConstants.UM_USER, false, MongoDBCoreConstants
+                    .UM_TENANT_ID, MongoDBCoreConstants.UM_ROLES_UM_ROLE_NAME));
+        }
+    }
+
+    /**
+     * Create the missing indexes and validate the query templates once per user store.
+     *
+     * @throws UserStoreException if validation is strict and an index is missing or a template is unsupported
+     */
+    public void bootstrap() throws UserStoreException {
+        String validation = realmConfig.getUserStoreProperty(MongoDBRealmConstants.INDEX_VALIDATION);
+        if (VALIDATION_NONE.equalsIgnoreCase(validation)) {
+            return;
+        }
+        if (!bootstrappedStores.add(realmConfig.getUserStoreProperty(MongoDBRealmConstants.URL))) {
+            return;
+        }
+        boolean strict = VALIDATION_STRICT.equalsIgnoreCase(validation);
+        try {
+            for (IndexDefinition index : getMissingIndexes()) {
+                if (strict) {
+                    createIndex(index);
+                } else {
+                    final IndexDefinition missingIndex = index;
+                    indexBuilder.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            createIndex(missingIndex);
+                        }
+                    });
+                }
+            }
+            if (strict) {
+                validateTemplates();
+            } else {
+                // Queued behind the index builds, so that the templates are checked against the built indexes
+                indexBuilder.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            validateTemplates();
+                        } catch (MongoException e) {
+                            log.error("Failed to validate the query templates of the user store", e);
+                        }
+                    }
+                });
+            }
+        } catch (MongoException e) {
+            if (strict) {
+                bootstrappedStores.remove(realmConfig.getUserStoreProperty(MongoDBRealmConstants.URL));
+                throw new UserStoreException("Failed to validate the indexes of the user store", e);
+            }
+            log.error("Failed to validate the indexes of the user store", e);
+        }
+        if (strict && !(failedIndexes.isEmpty() && unsupportedTemplates.isEmpty())) {
+            bootstrappedStores.remove(realmConfig.getUserStoreProperty(MongoDBRealmConstants.URL));
+            throw new UserStoreException("Index validation failed. Indexes that could not be created: " +
+                    failedIndexes + ", query templates without a supporting index: " + unsupportedTemplates);
+        }
+    }
+
+    /**
+     * Get the indexes the user store requires.
+     *
+     * @return List of required index definitions
+     */
+    public List<IndexDefinition> getRequiredIndexes() {
+        return Collections.unmodifiableList(requiredIndexes);
+    }
+
+    /**
+     * Get the query templates found without a supporting index by the last validation. In warn mode the validation
+     * runs in the background after the missing indexes have been built.
+     *
+     * @return List of template property names
+     */
+    public List<String> getUnsupportedTemplates() {
+        return Collections.unmodifiableList(unsupportedTemplates);
+    }
+
+    /**
+     * Get the required indexes which do not exist in the database.
+     *
+     * @return List of missing index definitions
+     */
+    public List<IndexDefinition> getMissingIndexes() {
+        Map<String, List<DBObject>> existing = new HashMap<>();
+        List<IndexDefinition> missing = new ArrayList<>();
+        for (IndexDefinition index : requiredIndexes) {
+            List<DBObject> keys = existing.get(index.getCollection());
+            if (keys == null) {
+                keys = getExistingIndexKeys(index.getCollection());
+                existing.put(index.getCollection(), keys);
+            }
+            boolean found = false;
+            for (DBObject key : keys) {
+                if (index.matches(key)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                missing.add(index);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Check every query template executed by the user store for a supporting index and report the unsupported ones.
+     * A template is supported when an index on its collection leads with one of its root filter fields and the
+     * foreign field of each of its lookups leads an index on the joined collection.
+     */
+    private void validateTemplates() {
+        unsupportedTemplates.clear();
+        List<String> templates = new ArrayList<>();
+        Collections.addAll(templates, QUERY_TEMPLATES);
+        Collections.addAll(templates, caseSensitiveUsername ? CASE_SENSITIVE_QUERY_TEMPLATES :
+                CASE_INSENSITIVE_QUERY_TEMPLATES);
+        if (sharedGroupsEnabled) {
+            Collections.addAll(templates, SHARED_ROLE_QUERY_TEMPLATES);
+        }
+        Map<String, Set<String>> leadingFields = getLeadingIndexFields();
+        for (String templateName : templates) {
+            String template = realmConfig.getUserStoreProperty(templateName);
+            if (template == null || template.trim().isEmpty()) {
+                continue;
+            }
+            JSONObject query;
+            try {
+                query = new JSONObject(template);
+            } catch (JSONException e) {
+                log.warn("Query template " + templateName + " could not be parsed for index validation");
+                continue;
+            }
+            String unsupported = getUnsupportedCollection(query, leadingFields);
+            if (unsupported != null) {
+                unsupportedTemplates.add(templateName);
+                log.warn("Query template " + templateName + " has no supporting index on collection " +
+                        unsupported + ". It will scan the collection");
+            }
+        }
+        if (!unsupportedTemplates.isEmpty() || !failedIndexes.isEmpty()) {
+            log.warn("Index validation of the user store found " + unsupportedTemplates.size() +
+                    " query templates without a supporting index " + unsupportedTemplates + " and " +
+                    failedIndexes.size() + " indexes that could not be created " + failedIndexes);
+        } else if (log.isDebugEnabled()) {
+            log.debug("Every query template of the user store has a supporting index");
+        }
+    }
+
+    private String getUnsupportedCollection(JSONObject query, Map<String, Set<String>> leadingFields) {
+        String collection = query.getString(MongoDBCoreConstants.COLLECTION_FIELD);
+        boolean joined = query.has(MongoDBCoreConstants.LOOKUP_FIELD);
+        Set<String> filterFields = new HashSet<>();
+        JSONObject filter = query.has(MongoDBCoreConstants.MATCH_FIELD) ?
+                query.getJSONObject(MongoDBCoreConstants.MATCH_FIELD) : query;
+        Iterator<String> keys = filter.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (key.startsWith("$") || MongoDBCoreConstants.COLLECTION_FIELD.equals(key) ||
+                    MongoDBCoreConstants.PROJECTION_FIELD.equals(key) ||
+                    MongoDBCoreConstants.DISTINCT_FIELD.equals(key) || (joined && key.contains("."))) {
+                continue;
+            }
+            filterFields.add(key);
+        }
+        if (!leadsIndex(leadingFields, collection, filterFields)) {
+            return collection;
+        }
+        for (String lookupField : new String[]{MongoDBCoreConstants.LOOKUP_FIELD, MongoDBCoreConstants.LOOKUP_SUB}) {
+            Object lookup = query.opt(lookupField);
+            List<JSONObject> lookups = new ArrayList<>();
+            if (lookup instanceof JSONObject) {
+                lookups.add((JSONObject) lookup);
+            } else if (lookup instanceof JSONArray) {
+                for (int i = 0; i < ((JSONArray) lookup).length(); i++) {
+                    lookups.add(((JSONArray) lookup).getJSONObject(i));
+                }
+            }
+            for (JSONObject join : lookups) {
+                String from = join.optString(FROM);
+                Set<String> foreignField = Collections.singleton(join.optString(FOREIGN_FIELD));
+                if (!leadsIndex(leadingFields, from, foreignField)) {
+                    return from;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean leadsIndex(Map<String, Set<String>> leadingFields, String collection, Set<String> fields) {
+        Set<String> leading = leadingFields.get(collection);
+        if (leading == null) {
+            return false;
+        }
+        for (String field : fields) {
+            if (leading.contains(field)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the leading field of every index which exists in the database by collection.
+     */
+    private Map<String, Set<String>> getLeadingIndexFields() {
+        Map<String, Set<String>> leadingFields = new HashMap<>();
+        Set<String> collections = new HashSet<>();
+        for (IndexDefinition index : requiredIndexes) {
+            collections.add(index.getCollection());
+        }
+        for (String collection : collections) {
+            for (DBObject key : getExistingIndexKeys(collection)) {
+                Iterator<String> fields = key.keySet().iterator();
+                if (fields.hasNext()) {
+                    addLeadingField(leadingFields, collection, fields.next());
+                }
+            }
+        }
+        return leadingFields;
+    }
+
+    private static void addLeadingField(Map<String, Set<String>> leadingFields, String collection, String field) {
+        Set<String> fields = leadingFields.get(collection);
+        if (fields == null) {
+            fields = new HashSet<>();
+            leadingFields.put(collection, fields);
+        }
+        fields.add(field);
+    }
+
+    private List<DBObject> getExistingIndexKeys(String collection) {
+        List<DBObject> keys = new ArrayList<>();
+        for (DBObject index : db.getCollection(collection).getIndexInfo()) {
+            keys.add((DBObject) index.get(KEY));
+        }
+        return keys;
+    }
+
+    private void createIndex(IndexDefinition index) {
+        try {
+            DBObject options = new BasicDBObject(BACKGROUND, true).append(UNIQUE, index.isUnique());
+            db.getCollection(index.getCollection()).createIndex(index.toKeys(), options);
+            log.info("Created index " + index + " of the user store");
+        } catch (MongoException e) {
+            failedIndexes.add(index.toString());
+            log.error("Failed to create index " + index + " of the user store", e);
+        }
+    }
+
+    private static void addRequiredIndex(String collection, boolean unique, String... fields) {
+        REQUIRED_INDEXES.add(new IndexDefinition(collection, unique, fields));
+    }
+
+    /**
+     * Ascending index required by the user store.
+     */
+    public static class IndexDefinition {
+
+        private final String collection;
+        private final boolean unique;
+        private final String[] fields;
+
+        IndexDefinition(String collection, boolean unique, String... fields) {
+            this.collection = collection;
+            this.unique = unique;
+            this.fields = fields;
+        }
+
+        public String getCollection() {
+            return collection;
+        }
+
+        public boolean isUnique() {
+            return unique;
+        }
+
+        public String[] getFields() {
+            return fields.clone();
+        }
+
+        DBObject toKeys() {
+            BasicDBObject keys = new BasicDBObject();
+            for (String field : fields) {
+                keys.append(field, 1);
+            }
+            return keys;
+        }
+
+        /**
+         * Check whether an existing index has the same fields in the same order, all ascending. Any positive
+         * numeric value counts as ascending so indexes created by older scripts are recognised.
+         */
+        boolean matches(DBObject key) {
+            if (key == null || key.keySet().size() != fields.length) {
+                return false;
+            }
+            int i = 0;
+            for (String field : key.keySet()) {
+                Object direction = key.get(field);
+                if (!fields[i++].equals(field) || !(direction instanceof Number) ||
+                        ((Number) direction).doubleValue() <= 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(collection).append('{');
+            for (int i = 0; i < fields.length; i++) {
+                builder.append(i == 0 ? "" : ",").append(fields[i]).append(":1");
+            }
+            return builder.append('}').append(unique ? " unique" : "").toString();
+        }
+    }
+}
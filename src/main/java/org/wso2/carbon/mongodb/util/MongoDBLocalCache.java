@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded node local cache whose entries expire after a fixed time. Entries are not shared between nodes, so the
+ * expiry bounds how long a change made through another node stays invisible.
+ * <p>
+ * A value loaded from the database can be stale by the time it is put, when the key was removed while it loaded.
+ * Loaders read {@link #getGeneration(Object)} before loading and put with {@link #put(Object, Object, long)}, which
+ * drops the value if the key was removed in between. Generations are kept per stripe of keys, so removing a key can
+ * also drop a concurrent put of another key of the same stripe.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class MongoDBLocalCache<K, V> {
+
+    private static final int GENERATION_STRIPES = 64;
+
+    private final ConcurrentMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+    private final int maxSize;
+    private final long timeToLiveNanos;
+
+    /**
+     * Constructor with two parameters.
+     *
+     * @param maxSize           maximum number of entries
+     * @param timeToLiveSeconds time after which an entry expires, non positive to disable the cache
+     */
+    public MongoDBLocalCache(int maxSize, long timeToLiveSeconds) {
+        this.maxSize = maxSize;
+        this.timeToLiveNanos = TimeUnit.SECONDS.toNanos(timeToLiveSeconds);
+    }
+
+    /**
+     * Check whether entries are kept at all.
+     *
+     * @return boolean status
+     */
+    public boolean isEnabled() {
+        return maxSize > 0 && timeToLiveNanos > 0;
+    }
+
+    /**
+     * Get the value of a key.
+     *
+     * @param key to look up
+     * @return value or null if missing or expired
+     */
+    public V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired(System.nanoTime())) {
+            entries.remove(key, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Put the value of a key. When the cache is full, expired entries are dropped first and then arbitrary ones.
+     *
+     * @param key   to store
+     * @param value to store
+     */
+    public void put(K key, V value) {
+        if (!isEnabled()) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (entries.size() >= maxSize) {
+            evict(now);
+        }
+        entries.put(key, new Entry<>(value, now + timeToLiveNanos));
+    }
+
+    /**
+     * Put the value of a key unless the key was removed since the generation was read.
+     *
+     * @param key        to store
+     * @param value      to store
+     * @param generation of the key read with {@link #getGeneration(Object)} before the value was loaded
+     */
+    public void put(K key, V value, long generation) {
+        if (!isEnabled() || getGeneration(key) != generation) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (entries.size() >= maxSize) {
+            evict(now);
+        }
+        Entry<V> entry = new Entry<>(value, now + timeToLiveNanos);
+        entries.put(key, entry);
+        // A removal after the check above may have run before the put, so drop the entry if that happened
+        if (getGeneration(key) != generation) {
+            entries.remove(key, entry);
+        }
+    }
+
+    /**
+     * Get the generation of a key, which changes whenever the key is removed.
+     *
+     * @param key to look up
+     * @return long generation
+     */
+    public long getGeneration(K key) {
+        return generations.get(stripe(key));
+    }
+
+    /**
+     * Remove the value of a key.
+     *
+     * @param key to remove
+     */
+    public void remove(K key) {
+        generations.incrementAndGet(stripe(key));
+        entries.remove(key);
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear() {
+        for (int i = 0; i < GENERATION_STRIPES; i++) {
+            generations.incrementAndGet(i);
+        }
+        entries.clear();
+    }
+
+    private int stripe(K key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (GENERATION_STRIPES - 1);
+    }
+
+    private void evict(long now) {
+        Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getValue().isExpired(now)) {
+                iterator.remove();
+            }
+        }
+        iterator = entries.entrySet().iterator();
+        while (entries.size() >= maxSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static final class Entry<V> {
+
+        private final V value;
+        private final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now - expiresAt >= 0;
+        }
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.util;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.mongodb.user.store.mgt.MongoDBCoreConstants;
+
+/**
+ * Failed login counters of the users of a tenant, rejecting attempts on a throttled user without any I/O.
+ * <p>
+ * After a number of consecutive failures a user is blocked for a window which doubles with every further failure,
+ * up to a maximum. Failures are counted in memory and flushed in the background to the UM_LOGIN_FAILURES
+ * sub-document of the user with $inc, so the persisted count is the sum over all nodes, which each node takes over
+ * when it next reads the user. A successful login subtracts only the failures this node has seen, so failures
+ * recorded by other nodes in the meantime survive it, and the sub-document is removed once the count drops to
+ * zero. Only existing users are tracked, so guessing unknown names does not grow the counters. A throttle which
+ * has been idle for a while is dropped along with its flush task and created again on next use.
+ */
+public final class MongoDBLoginThrottle implements Runnable {
+
+    private static final Log log = LogFactory.getLog(MongoDBLoginThrottle.class);
+    private static final int MAX_BACKOFF_EXPONENT = 30;
+    private static final long IDLE_TIMEOUT = TimeUnit.HOURS.toMillis(1);
+    private static final String INC_FIELD = "$inc";
+    private static final String MAX_FIELD = "$max";
+    private static final String LTE_FIELD = "$lte";
+    private static final ConcurrentMap<String, MongoDBLoginThrottle> throttles = new ConcurrentHashMap<>();
+
+    private final String storeKey;
+    private final DB db;
+    private final int tenantId;
+    private final int threshold;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final ConcurrentMap<String, State> states = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private volatile long lastUsed = System.currentTimeMillis();
+    private volatile boolean closed;
+    private ScheduledFuture<?> flushTask;
+
+    private MongoDBLoginThrottle(String storeKey, DB db, int tenantId, int threshold, long baseDelayMillis,
+                                 long maxDelayMillis) {
+        this.storeKey = storeKey;
+        this.db = db;
+        this.tenantId = tenantId;
+        this.threshold = threshold;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Get the throttle of a tenant, creating it and scheduling its flushes on first use.
+     *
+     * @param storeKey             unique key of the user store and tenant
+     * @param db                   data source of the user store
+     * @param tenantId             tenant of the users
+     * @param threshold            consecutive failures after which a user is blocked
+     * @param baseDelaySeconds     first blocking window
+     * @param maxDelaySeconds      longest blocking window
+     * @param flushIntervalSeconds delay between two flushes of the counters
+     * @return MongoDBLoginThrottle of the tenant
+     */
+    public static MongoDBLoginThrottle getInstance(String storeKey, DB db, int tenantId, int threshold,
+                                                   long baseDelaySeconds, long maxDelaySeconds,
+                                                   long flushIntervalSeconds) {
+        MongoDBLoginThrottle throttle = throttles.get(storeKey);
+        if (throttle != null) {
+            return throttle;
+        }
+        MongoDBLoginThrottle created = new MongoDBLoginThrottle(storeKey, db, tenantId, threshold,
+                TimeUnit.SECONDS.toMillis(baseDelaySeconds), TimeUnit.SECONDS.toMillis(maxDelaySeconds));
+        throttle = throttles.putIfAbsent(storeKey, created);
+        if (throttle != null) {
+            return throttle;
+        }
+        synchronized (created) {
+            created.flushTask = MongoDBScheduler.scheduleWithFixedDelay(created, flushIntervalSeconds,
+                    flushIntervalSeconds, TimeUnit.SECONDS);
+        }
+        return created;
+    }
+
+    /**
+     * Flush the counters of every throttle one last time and drop the throttles once the shared scheduler has
+     * stopped. Managers get a new throttle through {@link #getInstance} on their next use. Called when the bundle is
+     * deactivated.
+     */
+    public static void shutdown() {
+        for (MongoDBLoginThrottle throttle : throttles.values()) {
+            throttle.closed = true;
+            throttles.remove(throttle.storeKey, throttle);
+            throttle.run();
+        }
+    }
+
+    /**
+     * Check whether the throttle has been dropped after being idle, in which case a new one has to be obtained
+     * through {@link #getInstance}.
+     *
+     * @return boolean status
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Check whether a user is inside a blocking window.
+     *
+     * @param userKey normalized user name
+     * @return boolean true if login attempts must be rejected
+     */
+    public boolean isBlocked(String userKey) {
+        lastUsed = System.currentTimeMillis();
+        State state = states.get(userKey);
+        return state != null && state.blockedUntil > System.currentTimeMillis();
+    }
+
+    /**
+     * Record a failed login of an existing user, opening or extending its blocking window.
+     *
+     * @param userKey normalized user name
+     * @param userId  UM_ID of the user
+     */
+    public void onFailure(String userKey, int userId) {
+        State state = getState(userKey, userId);
+        synchronized (state) {
+            state.pending.incrementAndGet();
+            int failures = state.failures.incrementAndGet();
+            long now = System.currentTimeMillis();
+            state.lastFailure = now;
+            if (failures >= threshold) {
+                int exponent = Math.min(failures - threshold, MAX_BACKOFF_EXPONENT);
+                long delay = Math.min(maxDelayMillis, baseDelayMillis << exponent);
+                state.blockedUntil = Math.max(state.blockedUntil, now + delay);
+            }
+        }
+        dirty.add(userKey);
+    }
+
+    /**
+     * Record a successful login, clearing the failures of the user known to this node.
+     *
+     * @param userKey   normalized user name
+     * @param userId    UM_ID of the user
+     * @param persisted whether the user document holds failures to clear
+     */
+    public void onSuccess(String userKey, int userId, boolean persisted) {
+        State state = persisted ? getState(userKey, userId) : states.get(userKey);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            // Unflushed failures are dropped, flushed ones are subtracted from the persisted count
+            state.pending.set(0);
+            state.cleared += state.persisted;
+            state.persisted = 0;
+            state.failures.set(0);
+            state.blockedUntil = 0;
+        }
+        dirty.add(userKey);
+    }
+
+    /**
+     * Take over the failures persisted by all nodes into the counter of a user. Failures idle for longer than the
+     * longest window are ignored, as they would have expired in memory too, and are removed from the document
+     * unless another failure has been recorded since.
+     *
+     * @param userKey      normalized user name
+     * @param userId       UM_ID of the user
+     * @param failures     persisted failure count
+     * @param lastFailure  persisted time of the last failure, may be null
+     * @param blockedUntil persisted end of the blocking window, may be null
+     */
+    public void merge(String userKey, int userId, int failures, Date lastFailure, Date blockedUntil) {
+        boolean expired = lastFailure == null || System.currentTimeMillis() - lastFailure.getTime() > maxDelayMillis;
+        boolean stale = expired && lastFailure != null && failures > 0;
+        State state = (expired || failures <= 0) && !stale ? states.get(userKey) : getState(userKey, userId);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            if (stale) {
+                state.staleLastFailure = lastFailure.getTime();
+                dirty.add(userKey);
+            }
+            int persisted = expired ? 0 : Math.max(0, failures);
+            int pending = state.pending.get();
+            state.persisted = persisted;
+            state.failures.set(Math.max(0, persisted - state.cleared) + pending);
+            if (!expired && lastFailure.getTime() > state.lastFailure) {
+                state.lastFailure = lastFailure.getTime();
+            }
+            long persistedBlock = expired || blockedUntil == null ? 0 : blockedUntil.getTime();
+            // A window opened by unflushed failures is not in the document yet
+            state.blockedUntil = pending > 0 ? Math.max(state.blockedUntil, persistedBlock) : persistedBlock;
+        }
+    }
+
+    /**
+     * Get the failure count of a user as seen by this node.
+     *
+     * @param userKey normalized user name
+     * @return int failures, 0 if the user is not tracked
+     */
+    int getFailures(String userKey) {
+        State state = states.get(userKey);
+        return state == null ? 0 : state.failures.get();
+    }
+
+    /**
+     * Forget the counter of a deleted user.
+     *
+     * @param userKey normalized user name
+     */
+    public void remove(String userKey) {
+        states.remove(userKey);
+        dirty.remove(userKey);
+    }
+
+    /**
+     * Forget the counters of every user. Used before the data of the tenant is deleted.
+     */
+    public void clear() {
+        states.clear();
+        dirty.clear();
+    }
+
+    @Override
+    public void run() {
+        try {
+            flush();
+            expire();
+        } catch (Throwable e) {
+            // Never let an error cancel the periodic task, unflushed counters are retried on the next run
+            log.error("Error while flushing the login failures of tenant " + tenantId, e);
+        }
+    }
+
+    private State getState(String userKey, int userId) {
+        lastUsed = System.currentTimeMillis();
+        State state = states.get(userKey);
+        if (state == null) {
+            State created = new State(userId);
+            state = states.putIfAbsent(userKey, created);
+            if (state == null) {
+                state = created;
+            }
+        }
+        return state;
+    }
+
+    private void flush() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        BulkWriteOperation bulk = db.getCollection(MongoDBCoreConstants.UM_USER).initializeOrderedBulkOperation();
+        // Counts written per user and the positions of their writes in the ordered batch, -1 if not written
+        Map<String, long[]> flushed = new HashMap<>();
+        int writes = 0;
+        String countField = MongoDBCoreConstants.UM_LOGIN_FAILURES + "." + MongoDBCoreConstants.UM_LOGIN_FAILURE_COUNT;
+        String lastFailureField = MongoDBCoreConstants.UM_LOGIN_FAILURES + "." +
+                MongoDBCoreConstants.UM_LOGIN_LAST_FAILURE;
+        String blockedUntilField = MongoDBCoreConstants.UM_LOGIN_FAILURES + "." +
+                MongoDBCoreConstants.UM_LOGIN_BLOCKED_UNTIL;
+        for (Iterator<String> iterator = dirty.iterator(); iterator.hasNext(); ) {
+            String userKey = iterator.next();
+            iterator.remove();
+            State state = states.get(userKey);
+            if (state == null) {
+                continue;
+            }
+            int added;
+            int cleared;
+            long lastFailure;
+            long blockedUntil;
+            long staleLastFailure;
+            synchronized (state) {
+                added = state.pending.getAndSet(0);
+                cleared = state.cleared;
+                state.cleared = 0;
+                staleLastFailure = state.staleLastFailure;
+                state.staleLastFailure = 0;
+                lastFailure = state.lastFailure;
+                blockedUntil = state.blockedUntil;
+            }
+            if (added == 0 && cleared == 0 && staleLastFailure == 0) {
+                continue;
+            }
+            DBObject query = new BasicDBObject(MongoDBCoreConstants.UM_ID, state.userId)
+                    .append(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
+            long[] written = new long[]{added, cleared, staleLastFailure, -1, -1};
+            flushed.put(userKey, written);
+            if (staleLastFailure != 0) {
+                written[3] = writes++;
+                // Only while no node has recorded a failure since the one read
+                bulk.find(new BasicDBObject(query.toMap()).append(lastFailureField, new Date(staleLastFailure)))
+                        .updateOne(new BasicDBObject(MongoDBCoreConstants.UNSET_FIELD,
+                                new BasicDBObject(MongoDBCoreConstants.UM_LOGIN_FAILURES, "")));
+            }
+            if (added == 0 && cleared == 0) {
+                continue;
+            }
+            BasicDBObject update = new BasicDBObject(INC_FIELD, new BasicDBObject(countField, added - cleared));
+            if (cleared > 0) {
+                // The window of this node is reset by the success, or reopened by failures since then
+                update.append(MongoDBCoreConstants.SET_FIELD, new BasicDBObject(blockedUntilField,
+                        new Date(blockedUntil)));
+            } else {
+                update.append(MAX_FIELD, new BasicDBObject(blockedUntilField, new Date(blockedUntil)));
+            }
+            if (added > 0) {
+                BasicDBObject max = (BasicDBObject) update.get(MAX_FIELD);
+                if (max == null) {
+                    update.append(MAX_FIELD, new BasicDBObject(lastFailureField, new Date(lastFailure)));
+                } else {
+                    max.append(lastFailureField, new Date(lastFailure));
+                }
+            }
+            written[4] = writes++;
+            bulk.find(query).updateOne(update);
+            if (cleared > 0) {
+                writes++;
+                bulk.find(new BasicDBObject(query.toMap()).append(countField, new BasicDBObject(LTE_FIELD, 0)))
+                        .updateOne(new BasicDBObject(MongoDBCoreConstants.UNSET_FIELD,
+                                new BasicDBObject(MongoDBCoreConstants.UM_LOGIN_FAILURES, "")));
+            }
+        }
+        if (flushed.isEmpty()) {
+            return;
+        }
+        try {
+            bulk.execute();
+        } catch (MongoException e) {
+            // An ordered batch stops at the first failed write, give back what was not written to the next run
+            int failed = 0;
+            if (e instanceof BulkWriteException && !((BulkWriteException) e).getWriteErrors().isEmpty()) {
+                failed = ((BulkWriteException) e).getWriteErrors().get(0).getIndex();
+            }
+            for (Map.Entry<String, long[]> entry : flushed.entrySet()) {
+                long[] written = entry.getValue();
+                State state = states.get(entry.getKey());
+                if (state == null || (written[3] < failed && written[4] < failed)) {
+                    continue;
+                }
+                synchronized (state) {
+                    if (written[4] >= failed) {
+                        state.pending.addAndGet((int) written[0]);
+                        state.cleared += (int) written[1];
+                    }
+                    if (written[3] >= failed && state.staleLastFailure == 0) {
+                        state.staleLastFailure = written[2];
+                    }
+                }
+                dirty.add(entry.getKey());
+            }
+            throw e;
+        }
+        for (Map.Entry<String, long[]> entry : flushed.entrySet()) {
+            State state = states.get(entry.getKey());
+            if (state != null) {
+                synchronized (state) {
+                    state.persisted = Math.max(0, state.persisted + (int) entry.getValue()[0]);
+                }
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Flushed the login failures of " + flushed.size() + " users of tenant " + tenantId);
+        }
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<String, State>> iterator = states.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, State> entry = iterator.next();
+            State state = entry.getValue();
+            synchronized (state) {
+                // Cleared counters and counters idle for longer than the longest window are not needed any more
+                if (!dirty.contains(entry.getKey()) && state.pending.get() == 0 && state.cleared == 0 &&
+                        state.staleLastFailure == 0 && state.blockedUntil <= now &&
+                        (state.failures.get() == 0 || now - state.lastFailure > maxDelayMillis)) {
+                    iterator.remove();
+                }
+            }
+        }
+        if (states.isEmpty() && dirty.isEmpty() && now - lastUsed > Math.max(IDLE_TIMEOUT, maxDelayMillis)) {
+            closed = true;
+            throttles.remove(storeKey, this);
+            synchronized (this) {
+                flushTask.cancel(false);
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Dropped the idle login throttle of tenant " + tenantId);
+            }
+        }
+    }
+
+    /**
+     * Failed login counter of a user. The failure count is the persisted count of all nodes less the failures
+     * cleared by this node, plus the failures of this node not flushed yet.
+     */
+    private static final class State {
+
+        private final int userId;
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicInteger pending = new AtomicInteger();
+        private int persisted;
+        private int cleared;
+        private long staleLastFailure;
+        private volatile long blockedUntil;
+        private volatile long lastFailure = System.currentTimeMillis();
+
+        State(int userId) {
+            this.userId = userId;
+        }
+    }
+}
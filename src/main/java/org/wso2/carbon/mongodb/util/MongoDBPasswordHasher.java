@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.util;
+
+import org.wso2.carbon.user.core.UserStoreException;
+
+/**
+ * Password hashing scheme. The scheme identifier and the parameters a hash was computed with are stored next to
+ * UM_USER_PASSWORD so that hashes of different schemes and work factors can be verified side by side.
+ */
+public interface MongoDBPasswordHasher {
+
+    /**
+     * Get the identifier of the scheme stored in UM_PASSWORD_SCHEME.
+     *
+     * @return String scheme identifier
+     */
+    String getScheme();
+
+    /**
+     * Check whether the scheme is slow by design. Only adaptive schemes are run on the hashing pool.
+     *
+     * @return boolean status
+     */
+    boolean isAdaptive();
+
+    /**
+     * Hash a password. Implementations do not keep or modify the password characters.
+     *
+     * @param password   characters of the password
+     * @param saltValue  Base64 encoded salt, may be null when the scheme does not require one
+     * @param parameters scheme parameters stored in UM_PASSWORD_PARAMS
+     * @return String encoded hash
+     * @throws UserStoreException if the password cannot be hashed with the given parameters
+     */
+    String hash(char[] password, String saltValue, String parameters) throws UserStoreException;
+}
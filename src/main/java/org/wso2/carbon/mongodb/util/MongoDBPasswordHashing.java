@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.user.core.UserStoreException;
+
+/**
+ * Registry of the password hashing schemes and the per node pool running them.
+ * <p>
+ * Adaptive schemes are CPU bound by design. Hashing on a pool with a fixed number of threads caps the CPU a burst
+ * of logins can take, leaving the remaining cores to other requests while the callers wait for their turn. The
+ * wait queue is bounded as well: once it is full, new hashing requests fail immediately instead of piling up
+ * request threads behind the pool. Queue depth, rejections and hash times are logged at a fixed interval whenever
+ * there was hashing activity, and are available through the getters for monitoring. Schemes that
+ * are not adaptive, such as the legacy digest, cost about as much as the hand off and run on the caller thread.
+ */
+public final class MongoDBPasswordHashing {
+
+    public static final long DEFAULT_STATS_INTERVAL = 300;
+    private static final int DEFAULT_POOL_SIZE = Runtime.getRuntime().availableProcessors();
+    private static final int DEFAULT_QUEUE_SIZE = 100;
+    private static final long REJECTION_LOG_INTERVAL = 1000;
+    private static final Log log = LogFactory.getLog(MongoDBPasswordHashing.class);
+    private static final Map<String, MongoDBPasswordHasher> hashers = new HashMap<>();
+    private static final LongAdder hashCount = new LongAdder();
+    private static final LongAdder hashTimeNanos = new LongAdder();
+    private static final LongAdder waitTimeNanos = new LongAdder();
+    private static final LongAdder rejectedCount = new LongAdder();
+    private static volatile ThreadPoolExecutor executor;
+    private static ScheduledFuture<?> statsTask;
+    private static long reportedHashCount;
+    private static long reportedHashTimeNanos;
+    private static long reportedWaitTimeNanos;
+    private static long reportedRejectedCount;
+
+    static {
+        register(new MongoDBDigestPasswordHasher());
+        register(new MongoDBPbkdf2PasswordHasher());
+    }
+
+    private MongoDBPasswordHashing() {
+    }
+
+    /**
+     * Get the hasher of a scheme.
+     *
+     * @param scheme identifier stored in UM_PASSWORD_SCHEME
+     * @return MongoDBPasswordHasher or null if the scheme is not supported
+     */
+    public static MongoDBPasswordHasher getHasher(String scheme) {
+        return scheme == null ? null : hashers.get(scheme);
+    }
+
+    /**
+     * Create the hashing pool if it does not exist yet, and schedule the statistics log unless it is running.
+     *
+     * @param poolSize             number of hashing threads, non positive for the number of processors
+     * @param queueSize            number of hashing requests allowed to wait for a thread, non positive for the
+     *                             default
+     * @param statsIntervalSeconds interval of the hashing statistics log, non positive to disable it
+     */
+    public static void configure(int poolSize, int queueSize, long statsIntervalSeconds) {
+        if (executor == null) {
+            synchronized (MongoDBPasswordHashing.class) {
+                if (executor == null) {
+                    executor = createExecutor(poolSize > 0 ? poolSize : DEFAULT_POOL_SIZE,
+                            queueSize > 0 ? queueSize : DEFAULT_QUEUE_SIZE);
+                }
+            }
+        }
+        scheduleStats(statsIntervalSeconds);
+    }
+
+    private static synchronized void scheduleStats(long statsIntervalSeconds) {
+        // The task is cancelled when the shared scheduler stops with the bundle
+        if (statsIntervalSeconds > 0 && (statsTask == null || statsTask.isDone())) {
+            statsTask = MongoDBScheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    logStats();
+                }
+            }, statsIntervalSeconds, statsIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Hash a password on the hashing pool and wait for the result. Schemes which are not adaptive hash on the
+     * caller thread.
+     *
+     * @param hasher     of the scheme
+     * @param password   characters of the password
+     * @param saltValue  Base64 encoded salt, may be null
+     * @param parameters scheme parameters
+     * @return String encoded hash
+     * @throws UserStoreException if the hashing queue is full, hashing fails or the caller is interrupted
+     */
+    public static String hash(final MongoDBPasswordHasher hasher, final char[] password, final String saltValue,
+                              final String parameters) throws UserStoreException {
+        if (!hasher.isAdaptive()) {
+            return hasher.hash(password, saltValue, parameters);
+        }
+        final long submitted = System.nanoTime();
+        try {
+            return getExecutor().submit(new Callable<String>() {
+                @Override
+                public String call() throws UserStoreException {
+                    long started = System.nanoTime();
+                    waitTimeNanos.add(started - submitted);
+                    try {
+                        return hasher.hash(password, saltValue, parameters);
+                    } finally {
+                        hashTimeNanos.add(System.nanoTime() - started);
+                        hashCount.increment();
+                    }
+                }
+            }).get();
+        } catch (RejectedExecutionException e) {
+            onRejected();
+            throw new UserStoreException("Password hashing queue is full. Rejecting the request", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UserStoreException("Interrupted while hashing the password", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UserStoreException) {
+                throw (UserStoreException) e.getCause();
+            }
+            throw new UserStoreException("Error occurred while hashing the password", e.getCause());
+        }
+    }
+
+    /**
+     * Run a background task, such as upgrading a password hash, on the hashing pool. The task must hash on its
+     * own thread rather than through {@link #hash}.
+     *
+     * @param task to run
+     * @return boolean false if the task was rejected because the queue is full
+     */
+    public static boolean execute(Runnable task) {
+        try {
+            getExecutor().execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            onRejected();
+            return false;
+        }
+    }
+
+    /**
+     * Get the number of hashing requests waiting for a thread.
+     *
+     * @return int queue depth
+     */
+    public static int getQueueDepth() {
+        return getExecutor().getQueue().size();
+    }
+
+    /**
+     * Get the number of threads currently hashing.
+     *
+     * @return int active threads
+     */
+    public static int getActiveCount() {
+        return getExecutor().getActiveCount();
+    }
+
+    /**
+     * Get the number of hashing requests rejected because the queue was full.
+     *
+     * @return long rejected requests
+     */
+    public static long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * Get the number of completed hashes.
+     *
+     * @return long completed hashes
+     */
+    public static long getHashCount() {
+        return hashCount.sum();
+    }
+
+    /**
+     * Get the average time spent hashing, excluding the wait for a thread.
+     *
+     * @return double milliseconds per hash
+     */
+    public static double getAverageHashTimeMillis() {
+        long count = hashCount.sum();
+        return count == 0 ? 0 : hashTimeNanos.sum() / (count * 1e6);
+    }
+
+    /**
+     * Get the average time a hashing request waited for a thread.
+     *
+     * @return double milliseconds per hash
+     */
+    public static double getAverageWaitTimeMillis() {
+        long count = hashCount.sum();
+        return count == 0 ? 0 : waitTimeNanos.sum() / (count * 1e6);
+    }
+
+    private static ThreadPoolExecutor getExecutor() {
+        configure(DEFAULT_POOL_SIZE, DEFAULT_QUEUE_SIZE, DEFAULT_STATS_INTERVAL);
+        return executor;
+    }
+
+    /**
+     * Log the hashing statistics of the last interval, unless nothing was hashed or rejected in it.
+     */
+    private static void logStats() {
+        long count = hashCount.sum();
+        long hashTime = hashTimeNanos.sum();
+        long waitTime = waitTimeNanos.sum();
+        long rejected = rejectedCount.sum();
+        long intervalCount = count - reportedHashCount;
+        long intervalRejected = rejected - reportedRejectedCount;
+        if (intervalCount > 0 || intervalRejected > 0) {
+            double averageHashTime = intervalCount == 0 ? 0 :
+                    (hashTime - reportedHashTimeNanos) / (intervalCount * 1e6);
+            double averageWaitTime = intervalCount == 0 ? 0 :
+                    (waitTime - reportedWaitTimeNanos) / (intervalCount * 1e6);
+            log.info("Password hashing: " + intervalCount + " hashes, average hash time " + averageHashTime +
+                    " ms, average wait time " + averageWaitTime + " ms, " + intervalRejected +
+                    " rejected requests. Queue depth: " + executor.getQueue().size() + ", active threads: " +
+                    executor.getActiveCount());
+        }
+        reportedHashCount = count;
+        reportedHashTimeNanos = hashTime;
+        reportedWaitTimeNanos = waitTime;
+        reportedRejectedCount = rejected;
+    }
+
+    private static void onRejected() {
+        rejectedCount.increment();
+        long rejected = rejectedCount.sum();
+        // Rejections come in bursts, log the first one and then one in every interval
+        if (rejected % REJECTION_LOG_INTERVAL == 1) {
+            log.warn("Password hashing queue is full. Rejected " + rejected + " requests so far. Queue depth: " +
+                    executor.getQueue().size() + ", average hash time: " + getAverageHashTimeMillis() + " ms");
+        }
+    }
+
+    private static void register(MongoDBPasswordHasher hasher) {
+        hashers.put(hasher.getScheme(), hasher);
+    }
+
+    private static ThreadPoolExecutor createExecutor(int poolSize, int queueSize) {
+        return new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "MongoDBPasswordHasher-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.AbortPolicy());
+    }
+}
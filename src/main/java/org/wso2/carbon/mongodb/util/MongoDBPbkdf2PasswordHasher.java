@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.util;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.apache.axiom.om.util.Base64;
+import org.wso2.carbon.user.core.UserStoreException;
+
+/**
+ * PBKDF2 with HMAC-SHA256 deriving a 256 bit key. The parameter is the iteration count, which is the work factor
+ * of the scheme.
+ */
+public class MongoDBPbkdf2PasswordHasher implements MongoDBPasswordHasher {
+
+    public static final String SCHEME = "PBKDF2WithHmacSHA256";
+    public static final int DEFAULT_ITERATIONS = 310000;
+    private static final int KEY_LENGTH = 256;
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    public boolean isAdaptive() {
+        return true;
+    }
+
+    @Override
+    public String hash(char[] password, String saltValue, String parameters) throws UserStoreException {
+        int iterations;
+        try {
+            iterations = Integer.parseInt(parameters);
+        } catch (NumberFormatException e) {
+            throw new UserStoreException("Invalid iteration count " + parameters + " for " + SCHEME, e);
+        }
+        if (saltValue == null || saltValue.isEmpty()) {
+            throw new UserStoreException("A salt is required to hash a password with " + SCHEME);
+        }
+        PBEKeySpec spec = new PBEKeySpec(password, Base64.decode(saltValue), iterations, KEY_LENGTH);
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance(SCHEME);
+            return Base64.encode(factory.generateSecret(spec).getEncoded());
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new UserStoreException("Error occurred while preparing password", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -20,14 +20,39 @@ package org.wso2.carbon.mongodb.util;
 
 import java.util.Map;
 
+import org.wso2.carbon.CarbonConstants;
 import org.wso2.carbon.mongodb.user.store.mgt.MongoDBRealmConstants;
 import org.wso2.carbon.mongodb.user.store.mgt.caseinsensitive.MongoDBCaseInsensitiveConstants;
+import org.wso2.carbon.user.core.UserCoreConstants;
 
 /**
  * Map default MongoDB User store queries if they are not configured in user-mgt.xml.
  */
 public class MongoDBRealmUtil {
 
+    /**
+     * Remove the domain of this user store from a user or role name. Names of other domains, such as Internal or a
+     * secondary user store, do not belong to this user store.
+     *
+     * @param name       user or role name, with or without a domain
+     * @param domainName domain of this user store, null for the primary user store
+     * @return String name without the domain, or null if the name belongs to another domain
+     */
+    public static String removeOwnDomain(String name, String domainName) {
+        if (name == null) {
+            return null;
+        }
+        int index = name.indexOf(CarbonConstants.DOMAIN_SEPARATOR);
+        if (index < 0) {
+            return name;
+        }
+        String ownDomain = domainName == null ? UserCoreConstants.PRIMARY_DEFAULT_DOMAIN_NAME : domainName;
+        if (!ownDomain.equalsIgnoreCase(name.substring(0, index))) {
+            return null;
+        }
+        return name.substring(index + CarbonConstants.DOMAIN_SEPARATOR.length());
+    }
+
     /**
      * Get MongoDB user store properties (Sets default properties if already not available).
      *
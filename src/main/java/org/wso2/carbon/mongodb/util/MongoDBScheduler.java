@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.util;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Scheduler shared by the background tasks of every user store of the JVM: user name filter builds, login counter
+ * and attribute flushes, embedded role reconciles and hashing statistics.
+ * <p>
+ * The scheduler is created on first use and stopped when the bundle is deactivated, after which the next task
+ * creates it again.
+ */
+public final class MongoDBScheduler {
+
+    private static final Log log = LogFactory.getLog(MongoDBScheduler.class);
+    private static final int POOL_SIZE = 2;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static ScheduledExecutorService scheduler;
+
+    private MongoDBScheduler() {
+    }
+
+    /**
+     * Run a task periodically with a fixed delay between the end of a run and the start of the next.
+     *
+     * @param task         to run
+     * @param initialDelay delay before the first run
+     * @param delay        delay between two runs
+     * @param unit         of the delays
+     * @return ScheduledFuture to cancel the task
+     */
+    public static ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long initialDelay, long delay,
+                                                            TimeUnit unit) {
+        return getScheduler().scheduleWithFixedDelay(task, initialDelay, delay, unit);
+    }
+
+    /**
+     * Run a task once, as soon as a scheduler thread is free.
+     *
+     * @param task to run
+     * @return ScheduledFuture of the run
+     */
+    public static ScheduledFuture<?> execute(Runnable task) {
+        return getScheduler().schedule(task, 0, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop every task and wait for running ones to complete. Called when the bundle is deactivated.
+     */
+    public static void shutdown() {
+        ScheduledExecutorService current;
+        synchronized (MongoDBScheduler.class) {
+            current = scheduler;
+            scheduler = null;
+        }
+        if (current == null) {
+            return;
+        }
+        current.shutdown();
+        try {
+            if (!current.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Background tasks of the user store did not stop within " + SHUTDOWN_TIMEOUT_SECONDS +
+                        " seconds");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newScheduledThreadPool(POOL_SIZE, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MongoDBScheduler-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler;
+    }
+}
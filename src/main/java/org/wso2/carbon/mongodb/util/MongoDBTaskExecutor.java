@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.context.PrivilegedCarbonContext;
+import org.wso2.carbon.mongodb.query.MongoDBQueryException;
+
+/**
+ * Shared executor running independent user store lookups concurrently and backing the asynchronous user store API.
+ * <p>
+ * With {@code VirtualThreadExecution=true} each task runs on its own virtual thread when the JDK supports it. The
+ * bundle targets Java 8, so the virtual thread executor is looked up reflectively.
+ * <p>
+ * The executor is shared by every user store of the JVM. {@code AsyncPoolSize} and {@code VirtualThreadExecution}
+ * are taken from the first user store that initializes, later user stores asking for other settings only get a
+ * warning. Tasks run with the tenant of the carbon context they were submitted from.
+ */
+public final class MongoDBTaskExecutor {
+
+    private static final int DEFAULT_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+    private static final String VIRTUAL_THREAD_FACTORY_METHOD = "newVirtualThreadPerTaskExecutor";
+    private static final Log log = LogFactory.getLog(MongoDBTaskExecutor.class);
+    private static final ThreadLocal<Boolean> runningTask = new ThreadLocal<>();
+    private static volatile ExecutorService executor;
+    private static volatile boolean virtual;
+    private static int configuredPoolSize;
+    private static boolean configuredVirtualThreads;
+
+    private MongoDBTaskExecutor() {
+    }
+
+    /**
+     * Create the executor with the given pool size if it does not exist yet.
+     *
+     * @param poolSize number of threads, non positive for the default
+     */
+    public static void configure(int poolSize) {
+        configure(poolSize, false);
+    }
+
+    /**
+     * Create the executor if it does not exist yet. Virtual threads are used when requested and supported by the
+     * running JDK, otherwise a bounded pool of platform threads is created.
+     *
+     * @param poolSize       number of platform threads, non positive for the default
+     * @param virtualThreads whether to run each task on its own virtual thread
+     */
+    public static void configure(int poolSize, boolean virtualThreads) {
+        int size = poolSize > 0 ? poolSize : DEFAULT_POOL_SIZE;
+        synchronized (MongoDBTaskExecutor.class) {
+            if (executor == null) {
+                ExecutorService created = null;
+                if (virtualThreads) {
+                    created = createVirtualThreadExecutor();
+                    virtual = created != null;
+                }
+                if (created == null) {
+                    created = createExecutor(size);
+                }
+                configuredPoolSize = size;
+                configuredVirtualThreads = virtualThreads;
+                executor = created;
+            } else if (size != configuredPoolSize || virtualThreads != configuredVirtualThreads) {
+                log.warn("The user store executor is shared by every user store and is already running with pool " +
+                        "size " + configuredPoolSize + " and virtual threads " + configuredVirtualThreads +
+                        ". Ignoring pool size " + size + " and virtual threads " + virtualThreads);
+            }
+        }
+    }
+
+    /**
+     * Check whether tasks run on virtual threads. Only then is it cheap to fan out a task per lookup and block on
+     * the results from inside another task.
+     *
+     * @return boolean status
+     */
+    public static boolean isVirtualThreads() {
+        return virtual;
+    }
+
+    /**
+     * Get the shared executor.
+     *
+     * @return ExecutorService instance
+     */
+    public static ExecutorService getExecutor() {
+        ExecutorService current = executor;
+        if (current == null) {
+            configure(DEFAULT_POOL_SIZE);
+            current = executor;
+        }
+        return current;
+    }
+
+    /**
+     * Run a task on the shared executor. The tenant and user of the calling carbon context are restored on the pool
+     * thread for the duration of the task. Checked exceptions complete the future exceptionally.
+     * <p>
+     * A task submitted from a task of a bounded pool runs inline on the calling thread instead. Otherwise every pool
+     * thread could end up waiting for a nested task which is never scheduled.
+     *
+     * @param task to run
+     * @param <T>  result type
+     * @return CompletableFuture of the result
+     */
+    public static <T> CompletableFuture<T> supplyAsync(final Callable<T> task) {
+        if (!virtual && runningTask.get() != null) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            try {
+                future.complete(task.call());
+            } catch (Exception e) {
+                future.completeExceptionally(e instanceof RuntimeException ? e : new CompletionException(e));
+            }
+            return future;
+        }
+        PrivilegedCarbonContext carbonContext = PrivilegedCarbonContext.getThreadLocalCarbonContext();
+        final int tenantId = carbonContext.getTenantId();
+        final String tenantDomain = carbonContext.getTenantDomain();
+        final String username = carbonContext.getUsername();
+        return CompletableFuture.supplyAsync(new Supplier<T>() {
+            @Override
+            public T get() {
+                runningTask.set(Boolean.TRUE);
+                try {
+                    PrivilegedCarbonContext.startTenantFlow();
+                    try {
+                        PrivilegedCarbonContext taskContext = PrivilegedCarbonContext.getThreadLocalCarbonContext();
+                        taskContext.setTenantId(tenantId);
+                        taskContext.setTenantDomain(tenantDomain);
+                        taskContext.setUsername(username);
+                        return task.call();
+                    } finally {
+                        PrivilegedCarbonContext.endTenantFlow();
+                    }
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                } finally {
+                    runningTask.remove();
+                }
+            }
+        }, getExecutor());
+    }
+
+    /**
+     * Wait for a task and rethrow its failure.
+     *
+     * @param future of the task
+     * @param <T>    result type
+     * @return result of the task
+     * @throws MongoDBQueryException if the task failed
+     */
+    public static <T> T join(CompletableFuture<T> future) throws MongoDBQueryException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof MongoDBQueryException) {
+                throw (MongoDBQueryException) e.getCause();
+            }
+            throw new MongoDBQueryException("Failed to run the user store task", e.getCause());
+        }
+    }
+
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod(VIRTUAL_THREAD_FACTORY_METHOD);
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn("Virtual threads are not supported by the running JDK. Using a bounded thread pool");
+            if (log.isDebugEnabled()) {
+                log.debug("Failed to create the virtual thread executor", e);
+            }
+            return null;
+        }
+    }
+
+    private static ExecutorService createExecutor(int poolSize) {
+        return Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "MongoDBUserStoreTask-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.mongodb.user.store.mgt.MongoDBCoreConstants;
+
+/**
+ * Searchable layout of the user attributes.
+ * <p>
+ * Attributes are stored as dynamic fields of the UM_USER_ATTRIBUTE document of a user profile, which no index can
+ * serve for a search by attribute value. Every document therefore also carries the attributes as an
+ * {@code UM_ATTRS : [{k : name, v : value}]} array, covered by the multikey
+ * {@code {UM_ATTRS.k, UM_ATTRS.v, UM_TENANT_ID}} index. Attribute updates write the fields and the array in one
+ * update, guarded by the array read before it, and writes done through query templates rewrite the array the same
+ * way afterwards. A guarded write that lost a race re-reads the document, so the array always ends up computed
+ * from the latest fields. Documents written before the layout existed, or left out of date by a failed write, are
+ * repaired in the background.
+ */
+public final class MongoDBUserAttributeLayout {
+
+    private static final Log log = LogFactory.getLog(MongoDBUserAttributeLayout.class);
+    private static final String WILDCARD = "*";
+    private static final int MAX_WRITE_ATTEMPTS = 5;
+    private static final String REGEX_META_CHARACTERS = "\\^$.|?*+()[]{}";
+    private static final Set<String> META_FIELDS = new HashSet<>(Arrays.asList(MongoDBCoreConstants.ID,
+            MongoDBCoreConstants.UM_ID, MongoDBCoreConstants.UM_USER_ID, MongoDBCoreConstants.UM_PROFILE_ID,
+            MongoDBCoreConstants.UM_TENANT_ID, MongoDBCoreConstants.UM_ATTRS));
+    private static final Set<String> backfilledStores = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+
+    private MongoDBUserAttributeLayout() {
+    }
+
+    /**
+     * Build the attribute array of an attribute document from its dynamic fields.
+     *
+     * @param document attribute document of a user profile
+     * @return BasicDBList of {k, v} entries
+     */
+    public static BasicDBList toAttributeArray(DBObject document) {
+        BasicDBList attributes = new BasicDBList();
+        for (String key : document.keySet()) {
+            Object value = document.get(key);
+            if (!META_FIELDS.contains(key) && value != null) {
+                attributes.add(new BasicDBObject(MongoDBCoreConstants.UM_ATTRS_KEY, key)
+                        .append(MongoDBCoreConstants.UM_ATTRS_VALUE, value.toString()));
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * Set attribute fields of the document matching a condition, writing the attribute array in the same update.
+     *
+     * @param collection UM_USER_ATTRIBUTE collection
+     * @param condition  selecting the document of a user profile
+     * @param values     attribute fields to set
+     * @return boolean whether a document was updated
+     */
+    public static boolean update(DBCollection collection, DBObject condition, DBObject values) {
+        for (int attempt = 0; attempt < MAX_WRITE_ATTEMPTS; attempt++) {
+            DBObject document = collection.findOne(condition);
+            if (document == null) {
+                return false;
+            }
+            Object attributes = document.get(MongoDBCoreConstants.UM_ATTRS);
+            document.putAll(values);
+            BasicDBObject setQuery = new BasicDBObject(values.toMap());
+            setQuery.append(MongoDBCoreConstants.UM_ATTRS, toAttributeArray(document));
+            if (collection.update(getGuard(document, attributes),
+                    new BasicDBObject(MongoDBCoreConstants.SET_FIELD, setQuery)).getN() > 0) {
+                return true;
+            }
+        }
+        // Keep losing to concurrent writers, set the fields alone and rewrite the array once they settle
+        boolean updated = collection.update(condition, new BasicDBObject(MongoDBCoreConstants.SET_FIELD, values))
+                .getN() > 0;
+        sync(collection, condition);
+        return updated;
+    }
+
+    /**
+     * Rewrite the attribute array of the documents matching a condition, skipping documents whose array is up to
+     * date.
+     *
+     * @param collection UM_USER_ATTRIBUTE collection
+     * @param condition  selecting the documents of a user profile
+     * @return int number of rewritten documents
+     */
+    public static int sync(DBCollection collection, DBObject condition) {
+        DBCursor cursor = collection.find(condition).batchSize(MongoDatabaseUtil.DEFAULT_BATCH_SIZE);
+        int count = 0;
+        try {
+            while (cursor.hasNext()) {
+                if (sync(collection, cursor.next())) {
+                    count++;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return count;
+    }
+
+    private static boolean sync(DBCollection collection, DBObject document) {
+        Object id = document.get(MongoDBCoreConstants.ID);
+        for (int attempt = 0; attempt < MAX_WRITE_ATTEMPTS && document != null; attempt++) {
+            Object attributes = document.get(MongoDBCoreConstants.UM_ATTRS);
+            BasicDBList expected = toAttributeArray(document);
+            if (expected.equals(attributes)) {
+                return false;
+            }
+            if (collection.update(getGuard(document, attributes), new BasicDBObject(MongoDBCoreConstants.SET_FIELD,
+                    new BasicDBObject(MongoDBCoreConstants.UM_ATTRS, expected))).getN() > 0) {
+                return true;
+            }
+            document = collection.findOne(new BasicDBObject(MongoDBCoreConstants.ID, id));
+        }
+        if (document != null) {
+            log.warn("Could not rewrite the attribute array of user attribute document " + id +
+                    " due to concurrent writes, it is repaired on the next write or restart");
+        }
+        return false;
+    }
+
+    /**
+     * Build the condition matching a document only while its attribute array is still the one that was read.
+     * Every field write is followed by an array write, so a change of the fields in between is either already
+     * reflected in the array read or will rewrite the array again.
+     *
+     * @param document   attribute document that was read
+     * @param attributes attribute array of the document, null if missing
+     * @return DBObject guard condition
+     */
+    private static DBObject getGuard(DBObject document, Object attributes) {
+        return new BasicDBObject(MongoDBCoreConstants.ID, document.get(MongoDBCoreConstants.ID))
+                .append(MongoDBCoreConstants.UM_ATTRS, attributes != null ? attributes
+                        : new BasicDBObject(MongoDBCoreConstants.EXISTS_FIELD, false));
+    }
+
+    /**
+     * Build the search condition on the attribute array. A value containing '*' matches as a wildcard, anchored at
+     * the start so that the index bounds stay narrow.
+     *
+     * @param attributeName  to match
+     * @param attributeValue to match, may contain '*'
+     * @return DBObject condition on UM_ATTRS
+     */
+    public static DBObject getSearchCondition(String attributeName, String attributeValue) {
+        Object value = attributeValue;
+        if (attributeValue.contains(WILDCARD)) {
+            StringBuilder regex = new StringBuilder("^");
+            String[] parts = attributeValue.split(Pattern.quote(WILDCARD), -1);
+            for (int i = 0; i < parts.length; i++) {
+                if (i > 0) {
+                    regex.append(".*");
+                }
+                regex.append(escapeRegex(parts[i]));
+            }
+            value = Pattern.compile(regex.append('$').toString());
+        }
+        return new BasicDBObject(MongoDBCoreConstants.ELEM_MATCH_FIELD,
+                new BasicDBObject(MongoDBCoreConstants.UM_ATTRS_KEY, attributeName)
+                        .append(MongoDBCoreConstants.UM_ATTRS_VALUE, value));
+    }
+
+    /**
+     * Escape the regular expression meta characters of a literal, keeping it a plain prefix for index bounds.
+     *
+     * @param literal to escape
+     * @return String escaped literal
+     */
+    public static String escapeRegex(String literal) {
+        StringBuilder escaped = new StringBuilder(literal.length());
+        for (char c : literal.toCharArray()) {
+            if (REGEX_META_CHARACTERS.indexOf(c) >= 0) {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Backfill the attribute array of documents written before the layout existed and repair arrays left out of
+     * date by a failed write. Runs once per store in the background.
+     *
+     * @param storeKey unique key of the user store
+     * @param db       data source of the user store
+     */
+    public static void backfill(final String storeKey, final DB db) {
+        if (!backfilledStores.add(storeKey)) {
+            return;
+        }
+        MongoDBTaskExecutor.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DBCollection collection = db.getCollection(MongoDBCoreConstants.UM_USER_ATTRIBUTE);
+                    int count = sync(collection, new BasicDBObject());
+                    if (count > 0) {
+                        log.info("Rewrote the attribute array of " + count + " user attribute documents");
+                    }
+                } catch (MongoException e) {
+                    backfilledStores.remove(storeKey);
+                    log.error("Failed to backfill the attribute array of the user attributes", e);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.util;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.mongodb.user.store.mgt.MongoDBCoreConstants;
+
+/**
+ * Bloom filter of the user names of a tenant, used to answer existence probes for unknown users without a round
+ * trip to MongoDB.
+ * <p>
+ * A hit only means that the user may exist and must still be confirmed with a query, a miss is final. Users added
+ * through another node are picked up by a short periodic refresh reading only the users with a UM_ID above the
+ * highest one seen, less a look back for IDs allocated concurrently but inserted late. Names are lower cased before
+ * hashing, so the same filter serves case sensitive and case insensitive stores. Deleted users stay in the filter
+ * until the next rebuild, which only costs a query.
+ */
+public final class MongoDBUserNameFilter implements Runnable {
+
+    private static final Log log = LogFactory.getLog(MongoDBUserNameFilter.class);
+    private static final int MIN_EXPECTED_USERS = 1024;
+    private static final int GROWTH_FACTOR = 2;
+    private static final double LN2 = Math.log(2);
+    private static final int REFRESH_LOOK_BACK = 1024;
+    private static final ConcurrentMap<String, MongoDBUserNameFilter> filters = new ConcurrentHashMap<>();
+
+    private final String storeKey;
+    private final DB db;
+    private final int tenantId;
+    private final double falsePositiveRate;
+    private final int batchSize;
+    private volatile Bits current;
+    private volatile Bits building;
+    private volatile long highestUserId;
+    private volatile boolean closed;
+
+    private MongoDBUserNameFilter(String storeKey, DB db, int tenantId, double falsePositiveRate, int batchSize) {
+        this.storeKey = storeKey;
+        this.db = db;
+        this.tenantId = tenantId;
+        this.falsePositiveRate = falsePositiveRate;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Get the filter of a tenant, creating it and scheduling its builds on first use. The first build starts
+     * immediately in the background; until it completes every probe is answered as a possible hit.
+     *
+     * @param storeKey               unique key of the user store and tenant
+     * @param db                     data source of the user store
+     * @param tenantId               tenant of the users
+     * @param falsePositiveRate      target false positive rate, between 0 and 1
+     * @param rebuildIntervalSeconds delay between two rebuilds, non positive to never rebuild
+     * @param refreshIntervalSeconds delay between two reads of the users added since, non positive to never read
+     * @param batchSize              cursor batch size used while streaming the user names
+     * @return MongoDBUserNameFilter of the tenant
+     */
+    public static MongoDBUserNameFilter getInstance(String storeKey, DB db, int tenantId, double falsePositiveRate,
+                                                    long rebuildIntervalSeconds, long refreshIntervalSeconds,
+                                                    int batchSize) {
+        MongoDBUserNameFilter filter = filters.get(storeKey);
+        if (filter != null) {
+            return filter;
+        }
+        MongoDBUserNameFilter created = new MongoDBUserNameFilter(storeKey, db, tenantId, falsePositiveRate,
+                batchSize);
+        filter = filters.putIfAbsent(storeKey, created);
+        if (filter != null) {
+            return filter;
+        }
+        if (rebuildIntervalSeconds > 0) {
+            MongoDBScheduler.scheduleWithFixedDelay(created, 0, rebuildIntervalSeconds, TimeUnit.SECONDS);
+        } else {
+            MongoDBScheduler.execute(created);
+        }
+        if (refreshIntervalSeconds > 0) {
+            final MongoDBUserNameFilter refreshed = created;
+            MongoDBScheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refreshed.refresh();
+                    } catch (Throwable e) {
+                        // Never let an error cancel the periodic task, the next refresh reads the same users again
+                        log.error("Error while refreshing the user name filter of tenant " + refreshed.tenantId, e);
+                    }
+                }
+            }, refreshIntervalSeconds, refreshIntervalSeconds, TimeUnit.SECONDS);
+        }
+        return created;
+    }
+
+    /**
+     * Forget every filter once the shared scheduler has stopped, so that the next use builds and schedules them
+     * again. Called when the bundle is deactivated.
+     */
+    public static void shutdown() {
+        for (MongoDBUserNameFilter filter : filters.values()) {
+            filter.closed = true;
+            filters.remove(filter.storeKey, filter);
+        }
+    }
+
+    /**
+     * Check whether the filter has been dropped with the bundle, in which case it is no longer refreshed and a new
+     * one has to be obtained through {@link #getInstance}.
+     *
+     * @return boolean status
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Check whether a user may exist.
+     *
+     * @param userName to check
+     * @return false if the user was not known to this node at the last rebuild or refresh or since
+     */
+    public boolean mightContain(String userName) {
+        Bits bits = current;
+        return bits == null || bits.mightContain(normalize(userName));
+    }
+
+    /**
+     * Record a user that has been added to the user store.
+     *
+     * @param userName of the new user
+     */
+    public void put(String userName) {
+        String key = normalize(userName);
+        Bits bits = current;
+        if (bits != null) {
+            bits.put(key);
+        }
+        // A rebuild which started before the user was written would miss it otherwise
+        Bits next = building;
+        if (next != null) {
+            next.put(key);
+        }
+        // The rebuild may have swapped in its filter after the first read and cleared the building one since
+        Bits latest = current;
+        if (latest != null && latest != bits) {
+            latest.put(key);
+        }
+    }
+
+    /**
+     * Rebuild the filter in the background, so that users deleted in bulk stop hitting it.
+     */
+    public void scheduleRebuild() {
+        MongoDBScheduler.execute(this);
+    }
+
+    /**
+     * Check whether the filter has been built and answers probes.
+     *
+     * @return boolean status
+     */
+    public boolean isReady() {
+        return current != null;
+    }
+
+    @Override
+    public void run() {
+        try {
+            rebuild();
+        } catch (Throwable e) {
+            // Never let an error cancel the periodic task, the previous filter keeps serving probes
+            building = null;
+            log.error("Error while building the user name filter of tenant " + tenantId, e);
+        }
+    }
+
+    private void rebuild() {
+        DBCollection collection = db.getCollection(MongoDBCoreConstants.UM_USER);
+        DBObject query = new BasicDBObject(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
+        long expected = Math.max(collection.count(query) * GROWTH_FACTOR, MIN_EXPECTED_USERS);
+        Bits next = new Bits(expected, falsePositiveRate);
+        building = next;
+        // Start the refreshes from the highest UM_ID of any tenant, so that they never scan older users again
+        DBCursor highest = collection.find(new BasicDBObject(), new BasicDBObject(MongoDBCoreConstants.UM_ID, 1))
+                .sort(new BasicDBObject(MongoDBCoreConstants.UM_ID, -1)).limit(1);
+        try {
+            if (highest.hasNext()) {
+                Object userId = highest.next().get(MongoDBCoreConstants.UM_ID);
+                if (userId instanceof Number && ((Number) userId).longValue() > highestUserId) {
+                    highestUserId = ((Number) userId).longValue();
+                }
+            }
+        } finally {
+            highest.close();
+        }
+        long count = read(collection, query, next);
+        current = next;
+        building = null;
+        if (log.isDebugEnabled()) {
+            log.debug("Built the user name filter of tenant " + tenantId + " with " + count + " users");
+        }
+    }
+
+    private void refresh() {
+        Bits bits = current;
+        if (bits == null || building != null) {
+            // The running build reads the new users anyway
+            return;
+        }
+        DBObject query = new BasicDBObject(MongoDBCoreConstants.UM_ID,
+                new BasicDBObject("$gt", highestUserId - REFRESH_LOOK_BACK))
+                .append(MongoDBCoreConstants.UM_TENANT_ID, tenantId);
+        long count = read(db.getCollection(MongoDBCoreConstants.UM_USER), query, bits);
+        if (log.isDebugEnabled() && count > 0) {
+            log.debug("Refreshed the user name filter of tenant " + tenantId + " with " + count + " users");
+        }
+    }
+
+    private long read(DBCollection collection, DBObject query, Bits bits) {
+        DBObject projection = new BasicDBObject(MongoDBCoreConstants.UM_USER_NAME, 1)
+                .append(MongoDBCoreConstants.UM_ID, 1).append("_id", 0);
+        DBCursor cursor = collection.find(query, projection).batchSize(batchSize);
+        long count = 0;
+        try {
+            while (cursor.hasNext()) {
+                DBObject user = cursor.next();
+                Object userName = user.get(MongoDBCoreConstants.UM_USER_NAME);
+                if (userName != null) {
+                    bits.put(normalize(userName.toString()));
+                    count++;
+                }
+                Object userId = user.get(MongoDBCoreConstants.UM_ID);
+                if (userId instanceof Number && ((Number) userId).longValue() > highestUserId) {
+                    highestUserId = ((Number) userId).longValue();
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return count;
+    }
+
+    private static String normalize(String userName) {
+        return userName.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Bit array of the filter, using double hashing to derive the probe positions.
+     */
+    private static final class Bits {
+
+        private final AtomicLongArray words;
+        private final long size;
+        private final int hashes;
+
+        Bits(long expected, double falsePositiveRate) {
+            long bits = (long) Math.ceil(-expected * Math.log(falsePositiveRate) / (LN2 * LN2));
+            int wordCount = (int) Math.min(Integer.MAX_VALUE, (bits + 63) >>> 6);
+            this.words = new AtomicLongArray(wordCount);
+            this.size = (long) wordCount << 6;
+            this.hashes = Math.max(1, (int) Math.round((double) size / expected * LN2));
+        }
+
+        void put(String key) {
+            long hash1 = hash(key);
+            long hash2 = mix(hash1);
+            for (int i = 0; i < hashes; i++) {
+                long index = ((hash1 + i * hash2) & Long.MAX_VALUE) % size;
+                int word = (int) (index >>> 6);
+                long mask = 1L << index;
+                long value = words.get(word);
+                while ((value & mask) == 0 && !words.compareAndSet(word, value, value | mask)) {
+                    value = words.get(word);
+                }
+            }
+        }
+
+        boolean mightContain(String key) {
+            long hash1 = hash(key);
+            long hash2 = mix(hash1);
+            for (int i = 0; i < hashes; i++) {
+                long index = ((hash1 + i * hash2) & Long.MAX_VALUE) % size;
+                if ((words.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static long hash(String key) {
+            // 64 bit FNV-1a over the characters of the key
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < key.length(); i++) {
+                hash ^= key.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+
+        private static long mix(long hash) {
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return hash | 1;
+        }
+    }
+}
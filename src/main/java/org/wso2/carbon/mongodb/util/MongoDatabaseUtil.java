@@ -22,16 +22,20 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.mongodb.DB;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientURI;
+import com.mongodb.Cursor;
 import com.mongodb.DBCursor;
 import com.mongodb.BulkWriteResult;
 import com.mongodb.AggregationOutput;
 import com.mongodb.DBObject;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
+import com.mongodb.MongoException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -50,21 +54,36 @@ import org.wso2.carbon.user.core.UserStoreException;
  */
 public class MongoDatabaseUtil {
 
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
     private static final Log log = LogFactory.getLog(MongoDatabaseUtil.class);
-    private static long connectionsClosed;
 
-    private static DB db = null;
+    private static final ConcurrentMap<String, DB> realmDataSources = new ConcurrentHashMap<>();
 
     /**
-     * Return the realm data source of user store.
+     * Return the realm data source of user store. One client is kept per connection URL and user so that
+     * secondary user stores pointing at different databases do not share a handle.
      *
      * @param realmConfiguration of user store
      * @return DB connection
      * @throws UserStoreException if any error occurred
      */
-    public static synchronized DB getRealmDataSource(RealmConfiguration realmConfiguration) throws UserStoreException {
+    public static DB getRealmDataSource(RealmConfiguration realmConfiguration) throws UserStoreException {
+        String realmKey = realmConfiguration.getUserStoreProperty(MongoDBRealmConstants.URL) + "|" +
+                realmConfiguration.getUserStoreProperty(MongoDBRealmConstants.USERNAME);
+        DB realmDB = realmDataSources.get(realmKey);
+        if (realmDB != null) {
+            return realmDB;
+        }
         try {
-            return (db == null ? createRealmDataSource(realmConfiguration) : db);
+            DB createdDB = createRealmDataSource(realmConfiguration);
+            realmDB = realmDataSources.putIfAbsent(realmKey, createdDB);
+            if (realmDB == null) {
+                return createdDB;
+            }
+            // Another thread initialized the realm first, release the extra client
+            createdDB.getMongo().close();
+            return realmDB;
         } catch (UserStoreException e) {
             throw new UserStoreException("Failed to retrieve realm data source", e);
         }
@@ -118,8 +137,7 @@ public class MongoDatabaseUtil {
         }
 
         //noinspection deprecation
-        db = mongoClient.getDB(clientURI.getDatabase());
-        return db;
+        return mongoClient.getDB(clientURI.getDatabase());
     }
 
     /**
@@ -383,14 +401,13 @@ public class MongoDatabaseUtil {
     }
 
     /**
-     * Close the DB connection.
+     * Close the DB connection. The DB handle is shared and pooled by the driver, so nothing has to be released and
+     * no state is touched on the request path.
      *
      * @param dbConnection to close
      */
     public static void closeConnection(DB dbConnection) {
-        if (dbConnection != null) {
-            incrementConnectionsClosed();
-        }
+        // Kept so that callers release connections the same way if the handle ever stops being shared
     }
 
     private static void closeStatement(MongoPreparedStatement preparedStatement) {
@@ -417,12 +434,6 @@ public class MongoDatabaseUtil {
         closeConnection(dbConnection);
     }
 
-    private static synchronized void incrementConnectionsClosed() {
-        if (connectionsClosed != Long.MAX_VALUE) {
-            connectionsClosed++;
-        }
-    }
-
     /**
      * Update exact user role with params from database.
      *
@@ -488,9 +499,91 @@ public class MongoDatabaseUtil {
     public static String[] getStringValuesFromDatabase(DB dbConnection, String mongoQuery, Map<String, Object> params,
                                                        boolean isAggregate, boolean multipleLookUp)
             throws MongoDBQueryException {
+        return getStringValuesFromDatabase(dbConnection, mongoQuery, params, isAggregate, multipleLookUp, -1,
+                DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Retrieve at most maxItemLimit string values from database.
+     *
+     * @param dbConnection   of user store
+     * @param mongoQuery     query to execute in mongodb
+     * @param params         values to filter from database
+     * @param isAggregate    status
+     * @param multipleLookUp status
+     * @param maxItemLimit   maximum number of values to return, negative for no limit
+     * @param batchSize      number of documents fetched per round trip
+     * @return String[] of values
+     * @throws MongoDBQueryException if find operation of MongoPreparedStatement fails
+     */
+    public static String[] getStringValuesFromDatabase(DB dbConnection, String mongoQuery, Map<String, Object> params,
+                                                       boolean isAggregate, boolean multipleLookUp,
+                                                       final int maxItemLimit, int batchSize)
+            throws MongoDBQueryException {
+
+        if (maxItemLimit == 0) {
+            return new String[0];
+        }
+        final List<String> values = new ArrayList<>(maxItemLimit > 0 ? Math.min(maxItemLimit, batchSize) :
+                batchSize);
+        streamStringValuesFromDatabase(dbConnection, mongoQuery, params, isAggregate, multipleLookUp, batchSize,
+                new StringValueHandler() {
+                    @Override
+                    public boolean handle(String value) {
+                        values.add(value);
+                        return maxItemLimit < 0 || values.size() < maxItemLimit;
+                    }
+                });
+        return values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * Stream string values from database to a handler without materializing the result.
+     *
+     * @param dbConnection   of user store
+     * @param mongoQuery     query to execute in mongodb
+     * @param params         values to filter from database
+     * @param isAggregate    status
+     * @param multipleLookUp status
+     * @param batchSize      number of documents fetched per round trip
+     * @param handler        receiving the values, returns false to stop reading
+     * @return int number of values passed to the handler
+     * @throws MongoDBQueryException if find operation of MongoPreparedStatement fails
+     */
+    public static int streamStringValuesFromDatabase(DB dbConnection, String mongoQuery, Map<String, Object> params,
+                                                     boolean isAggregate, boolean multipleLookUp, int batchSize,
+                                                     StringValueHandler handler) throws MongoDBQueryException {
+        return streamStringValuesFromDatabase(dbConnection, mongoQuery, params, isAggregate, multipleLookUp, null,
+                batchSize, handler);
+    }
+
+    /**
+     * Stream a single field of the documents matched by a find query to a handler. Only the named field is
+     * projected, so each row is read straight from the decoded document without serializing it.
+     *
+     * @param dbConnection of user store
+     * @param mongoQuery   find query to execute in mongodb
+     * @param params       values to filter from database
+     * @param valueField   field to return the value of
+     * @param batchSize    number of documents fetched per round trip
+     * @param handler      receiving the values, returns false to stop reading
+     * @return int number of values passed to the handler
+     * @throws MongoDBQueryException if find operation of MongoPreparedStatement fails
+     */
+    public static int streamStringValuesFromDatabase(DB dbConnection, String mongoQuery, Map<String, Object> params,
+                                                     String valueField, int batchSize, StringValueHandler handler)
+            throws MongoDBQueryException {
+        return streamStringValuesFromDatabase(dbConnection, mongoQuery, params, false, false, valueField, batchSize,
+                handler);
+    }
+
+    private static int streamStringValuesFromDatabase(DB dbConnection, String mongoQuery, Map<String, Object> params,
+                                                      boolean isAggregate, boolean multipleLookUp, String valueField,
+                                                      int batchSize, StringValueHandler handler)
+            throws MongoDBQueryException {
 
         MongoPreparedStatement prepStmt = null;
-        String[] values = new String[0];
+        Cursor cursor = null;
         JSONObject jsonKeys = new JSONObject(mongoQuery);
         List<String> keys;
         if (isAggregate) {
@@ -518,45 +611,64 @@ public class MongoDatabaseUtil {
                     }
                 }
             }
+            String projectionKey = valueField;
             if (!isAggregate) {
-                DBCursor cursor = prepStmt.find();
-                List<String> lst = new ArrayList<>();
-                while (cursor.hasNext()) {
-                    lst.add(cursor.next().toString());
+                if (projectionKey == null) {
+                    projectionKey = getProjectedField(jsonKeys, MongoDBCoreConstants.PROJECTION_FIELD);
                 }
-                if (lst.size() > 0) {
-                    values = lst.toArray(new String[lst.size()]);
+                if (projectionKey == null) {
+                    throw new MongoDBQueryException("Query does not project a field to return: " + mongoQuery);
                 }
+                cursor = prepStmt.find(new BasicDBObject(projectionKey, 1).append(MongoDBCoreConstants.ID, 0))
+                        .batchSize(batchSize);
             } else {
                 prepStmt.setMultiLookUp(multipleLookUp);
-                //noinspection deprecation
-                AggregationOutput result = prepStmt.aggregate();
-                Iterable<DBObject> ite = result.results();
-                List<String> lst = new ArrayList<>();
-                Iterator<DBObject> foundResults = ite.iterator();
-                List<String> projection = getKeys(jsonKeys.getJSONObject(MongoDBCoreConstants.PROJECT_FIELD));
-                String projectionKey = "";
-                for (String pKey : projection) {
-                    if (pKey.equals(MongoDBCoreConstants.ID)) {
-                        continue;
-                    }
-                    projectionKey = pKey;
-                }
-                while (foundResults.hasNext()) {
-                    lst.add(foundResults.next().get(projectionKey).toString());
+                cursor = prepStmt.aggregate(batchSize);
+                projectionKey = getProjectedField(jsonKeys, MongoDBCoreConstants.PROJECT_FIELD);
+            }
+            int count = 0;
+            while (cursor.hasNext()) {
+                Object value = cursor.next().get(projectionKey);
+                if (value == null) {
+                    continue;
                 }
-                if (lst.size() > 0) {
-                    values = lst.toArray(new String[lst.size()]);
+                count++;
+                if (!handler.handle(value.toString())) {
+                    break;
                 }
             }
-            return values;
-        } catch (MongoDBQueryException e) {
+            return count;
+        } catch (MongoDBQueryException | MongoException e) {
             throw new MongoDBQueryException("Failed to retrieve the string values from database", e);
         } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
             MongoDatabaseUtil.closeAllConnections(dbConnection, prepStmt);
         }
     }
 
+    /**
+     * Get the field projected by a query, ignoring the _id field.
+     *
+     * @param query           JSON query
+     * @param projectionField name of the projection attribute of the query
+     * @return last projected field or null if the query has no projection
+     */
+    private static String getProjectedField(JSONObject query, String projectionField) {
+        JSONObject projection = query.optJSONObject(projectionField);
+        if (projection == null) {
+            return null;
+        }
+        String projectedField = null;
+        for (String key : getKeys(projection)) {
+            if (!MongoDBCoreConstants.ID.equals(key)) {
+                projectedField = key;
+            }
+        }
+        return projectedField;
+    }
+
     /**
      * Get auto increment sequence.
      *
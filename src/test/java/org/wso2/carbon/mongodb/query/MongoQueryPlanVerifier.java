@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.query;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.MongoException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import org.wso2.carbon.mongodb.user.store.mgt.MongoDBCoreConstants;
+import org.wso2.carbon.mongodb.user.store.mgt.MongoDBRealmConstants;
+import org.wso2.carbon.mongodb.util.MongoDBIndexManager;
+import org.wso2.carbon.mongodb.util.MongoDBRealmUtil;
+import org.wso2.carbon.mongodb.util.MongoDBUserAttributeLayout;
+import org.wso2.carbon.user.api.RealmConfiguration;
+import org.wso2.carbon.user.core.UserStoreException;
+
+/**
+ * Runs every default query template under explain("executionStats") against a seeded dataset and fails when a
+ * template scans a collection or examines far more documents than it returns.
+ * <p>
+ * Usage: {@code MongoQueryPlanVerifier <connection url> [users] [max examined/returned ratio]}. The dataset is seeded
+ * into a dedicated tenant which is removed again after the run, so it must only be pointed at a scratch database.
+ * It is a development tool kept with the test sources and is not part of the user store bundle.
+ */
+public class MongoQueryPlanVerifier {
+
+    private static final Log log = LogFactory.getLog(MongoQueryPlanVerifier.class);
+    private static final int SEED_TENANT_ID = 987654321;
+    private static final int DEFAULT_USER_COUNT = 2000;
+    private static final int DEFAULT_MAX_RATIO = 10;
+    private static final int ROLE_COUNT = 50;
+    private static final int ROLES_PER_USER = 3;
+    private static final String SEED_PROFILE = "default";
+    private static final String SEED_ATTRIBUTE = "givenName";
+    private static final String[] ATTRIBUTE_NAMES = {SEED_ATTRIBUTE, "lastName", "mail", "telephone", "country"};
+    private static final String PARAMETER = "?";
+    private static final String INSERT_TEMPLATE_PREFIX = "Add";
+    private static final String COLLSCAN = "COLLSCAN";
+    private static final String STAGE = "stage";
+    private static final String INPUT_STAGE = "inputStage";
+    private static final String INPUT_STAGES = "inputStages";
+    private static final String QUERY_PLANNER = "queryPlanner";
+    private static final String WINNING_PLAN = "winningPlan";
+    private static final String EXECUTION_STATS = "executionStats";
+    private static final String N_RETURNED = "nReturned";
+    private static final String DOCS_EXAMINED = "totalDocsExamined";
+
+    private final DB db;
+    private final int userCount;
+    private final int maxRatio;
+
+    /**
+     * Constructor with three parameters.
+     *
+     * @param db        database to seed and explain against
+     * @param userCount number of users to seed
+     * @param maxRatio  highest accepted ratio of examined to returned documents
+     */
+    public MongoQueryPlanVerifier(DB db, int userCount, int maxRatio) {
+        this.db = db;
+        this.userCount = userCount;
+        this.maxRatio = maxRatio;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: MongoQueryPlanVerifier <connection url> [users] [max examined/returned ratio]");
+            System.exit(2);
+        }
+        MongoClientURI uri = new MongoClientURI(args[0]);
+        MongoClient client = new MongoClient(uri);
+        int exitCode;
+        try {
+            MongoQueryPlanVerifier verifier = new MongoQueryPlanVerifier(client.getDB(uri.getDatabase()),
+                    args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_USER_COUNT,
+                    args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_MAX_RATIO);
+            List<String> failures = verifier.verify(args[0]);
+            for (String failure : failures) {
+                System.out.println("FAILED " + failure);
+            }
+            exitCode = failures.isEmpty() ? 0 : 1;
+        } catch (MongoDBQueryException | MongoException e) {
+            log.error("Failed to verify the query plans", e);
+            exitCode = 2;
+        } finally {
+            client.close();
+        }
+        System.exit(exitCode);
+    }
+
+    /**
+     * Create the required indexes, seed the dataset and explain every default query template. Templates without a
+     * supporting index are reported as failures.
+     *
+     * @param url connection url of the database, used to key the index bootstrap
+     * @return List of failed templates with the reason
+     * @throws MongoDBQueryException if seeding the dataset fails
+     */
+    public List<String> verify(String url) throws MongoDBQueryException {
+        Map<String, String> templates = new TreeMap<>(MongoDBRealmUtil.getMongoProperties(
+                new HashMap<String, String>()));
+        RealmConfiguration realmConfig = new RealmConfiguration();
+        Map<String, String> properties = new HashMap<>(templates);
+        properties.put(MongoDBRealmConstants.URL, url);
+        // Strict builds the missing indexes before validating, but must not stop the run
+        properties.put(MongoDBRealmConstants.INDEX_VALIDATION, MongoDBIndexManager.VALIDATION_STRICT);
+        realmConfig.setUserStoreProperties(properties);
+        MongoDBIndexManager indexManager = new MongoDBIndexManager(db, realmConfig, true, true);
+        List<String> failures = new ArrayList<>();
+        try {
+            indexManager.bootstrap();
+        } catch (UserStoreException e) {
+            log.warn(e.getMessage());
+        }
+        for (String template : indexManager.getUnsupportedTemplates()) {
+            failures.add(template + ": no supporting index");
+        }
+        try {
+            seed();
+            for (Map.Entry<String, String> template : templates.entrySet()) {
+                String failure = verifyTemplate(template.getKey(), template.getValue());
+                if (failure != null) {
+                    failures.add(failure);
+                }
+            }
+        } finally {
+            cleanUp();
+        }
+        return failures;
+    }
+
+    /**
+     * Explain a single template and check its plan.
+     *
+     * @param name     property name of the template
+     * @param template JSON query template
+     * @return failure description or null if the plan is accepted
+     */
+    private String verifyTemplate(String name, String template) {
+        if (name.startsWith(INSERT_TEMPLATE_PREFIX)) {
+            return null;
+        }
+        Set<String> parameters = new LinkedHashSet<>();
+        try {
+            collectParameters(new JSONObject(template), null, parameters);
+        } catch (JSONException e) {
+            return name + ": template is not valid JSON";
+        }
+        MongoPreparedStatement prepStmt = new MongoPreparedStatementImpl(db, template);
+        DBObject explain;
+        try {
+            for (String parameter : parameters) {
+                bind(prepStmt, parameter);
+            }
+            explain = prepStmt.explain();
+        } catch (MongoDBQueryException | RuntimeException e) {
+            return name + ": explain failed - " + e.getMessage();
+        } finally {
+            prepStmt.close();
+        }
+
+        DBObject planner = (DBObject) find(explain, QUERY_PLANNER);
+        DBObject stats = (DBObject) find(explain, EXECUTION_STATS);
+        Set<String> stages = new LinkedHashSet<>();
+        if (planner != null) {
+            collectStages((DBObject) planner.get(WINNING_PLAN), stages);
+        }
+        long returned = stats == null ? 0 : toLong(stats.get(N_RETURNED));
+        long examined = stats == null ? 0 : toLong(stats.get(DOCS_EXAMINED));
+        System.out.println(name + ": stages=" + stages + " examined=" + examined + " returned=" + returned);
+        if (stages.contains(COLLSCAN)) {
+            return name + ": winning plan scans the collection " + stages;
+        }
+        if (examined > (long) maxRatio * Math.max(returned, 1)) {
+            return name + ": examined " + examined + " documents to return " + returned;
+        }
+        return null;
+    }
+
+    /**
+     * Collect the names of the template parameters. A case insensitive $regex is bound through its parent field.
+     */
+    private static void collectParameters(JSONObject object, String parent, Set<String> parameters) {
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = object.get(key);
+            if (value instanceof JSONObject) {
+                collectParameters((JSONObject) value, key, parameters);
+            } else if (PARAMETER.equals(value)) {
+                parameters.add(MongoDBCoreConstants.REGEX_FIELD.equals(key) ? parent : key);
+            }
+        }
+    }
+
+    /**
+     * Bind a representative value of the seeded dataset to a parameter.
+     */
+    private void bind(MongoPreparedStatement prepStmt, String parameter) {
+        String field = parameter.substring(parameter.lastIndexOf('.') + 1);
+        switch (field) {
+            case MongoDBCoreConstants.UM_TENANT_ID:
+            case MongoDBCoreConstants.UM_USER_TENANT_ID:
+            case MongoDBCoreConstants.UM_ROLE_TENANT_ID:
+                prepStmt.setInt(parameter, SEED_TENANT_ID);
+                break;
+            case MongoDBCoreConstants.UM_ID:
+            case MongoDBCoreConstants.UM_USER_ID:
+                prepStmt.setInt(parameter, userCount / 2);
+                break;
+            case MongoDBCoreConstants.UM_ROLE_ID:
+                prepStmt.setInt(parameter, ROLE_COUNT / 2);
+                break;
+            case MongoDBCoreConstants.UM_USER_NAME:
+                prepStmt.setString(parameter, userName(userCount / 2));
+                break;
+            case MongoDBCoreConstants.UM_ROLE_NAME:
+                prepStmt.setString(parameter, roleName(ROLE_COUNT / 2));
+                break;
+            case MongoDBCoreConstants.UM_PROFILE_ID:
+            case MongoDBCoreConstants.UM_PROFILE_NAME:
+                prepStmt.setString(parameter, SEED_PROFILE);
+                break;
+            case MongoDBCoreConstants.UM_ATTR_NAME:
+                prepStmt.setString(parameter, SEED_ATTRIBUTE);
+                break;
+            case MongoDBCoreConstants.UM_ATTR_VALUE:
+                prepStmt.setString(parameter, attributeValue(SEED_ATTRIBUTE, userCount / 2));
+                break;
+            default:
+                prepStmt.setString(parameter, "seed");
+        }
+    }
+
+    private void seed() throws MongoDBQueryException {
+        try {
+            BulkWriteOperation users = db.getCollection(MongoDBCoreConstants.UM_USER)
+                    .initializeUnorderedBulkOperation();
+            BulkWriteOperation attributes = db.getCollection(MongoDBCoreConstants.UM_USER_ATTRIBUTE)
+                    .initializeUnorderedBulkOperation();
+            BulkWriteOperation userRoles = db.getCollection(MongoDBCoreConstants.UM_USER_ROLE)
+                    .initializeUnorderedBulkOperation();
+            BulkWriteOperation roles = db.getCollection(MongoDBCoreConstants.UM_ROLE)
+                    .initializeUnorderedBulkOperation();
+            for (int roleId = 1; roleId <= ROLE_COUNT; roleId++) {
+                roles.insert(new BasicDBObject(MongoDBCoreConstants.UM_ID, roleId)
+                        .append(MongoDBCoreConstants.UM_ROLE_NAME, roleName(roleId))
+                        .append(MongoDBCoreConstants.UM_TENANT_ID, SEED_TENANT_ID)
+                        .append(MongoDBCoreConstants.UM_SHARED_ROLE, 0));
+            }
+            int userRoleId = 0;
+            for (int userId = 1; userId <= userCount; userId++) {
+                users.insert(new BasicDBObject(MongoDBCoreConstants.UM_ID, userId)
+                        .append(MongoDBCoreConstants.UM_USER_NAME, userName(userId))
+                        .append(MongoDBCoreConstants.UM_USER_PASSWORD, "seed")
+                        .append(MongoDBCoreConstants.UM_SALT_VALUE, "seed")
+                        .append(MongoDBCoreConstants.UM_REQUIRE_CHANGE, false)
+                        .append(MongoDBCoreConstants.UM_TENANT_ID, SEED_TENANT_ID));
+                // One document per user profile with the attributes as fields, as the user store writes them
+                BasicDBObject attribute = new BasicDBObject(MongoDBCoreConstants.UM_ID, userId)
+                        .append(MongoDBCoreConstants.UM_USER_ID, userId)
+                        .append(MongoDBCoreConstants.UM_PROFILE_ID, SEED_PROFILE)
+                        .append(MongoDBCoreConstants.UM_TENANT_ID, SEED_TENANT_ID);
+                for (String name : ATTRIBUTE_NAMES) {
+                    attribute.append(name, attributeValue(name, userId));
+                }
+                attribute.append(MongoDBCoreConstants.UM_ATTRS, MongoDBUserAttributeLayout.toAttributeArray(attribute));
+                attributes.insert(attribute);
+                for (int i = 0; i < ROLES_PER_USER; i++) {
+                    userRoles.insert(new BasicDBObject(MongoDBCoreConstants.UM_ID, ++userRoleId)
+                            .append(MongoDBCoreConstants.UM_USER_ID, userId)
+                            .append(MongoDBCoreConstants.UM_ROLE_ID, (userId + i) % ROLE_COUNT + 1)
+                            .append(MongoDBCoreConstants.UM_TENANT_ID, SEED_TENANT_ID));
+                }
+            }
+            roles.execute();
+            users.execute();
+            attributes.execute();
+            userRoles.execute();
+        } catch (MongoException e) {
+            cleanUp();
+            throw new MongoDBQueryException("Failed to seed the query plan dataset", e);
+        }
+    }
+
+    private void cleanUp() {
+        DBObject seeded = new BasicDBObject(MongoDBCoreConstants.UM_TENANT_ID, SEED_TENANT_ID);
+        for (String collection : new String[]{MongoDBCoreConstants.UM_USER, MongoDBCoreConstants.UM_ROLE,
+                MongoDBCoreConstants.UM_USER_ROLE, MongoDBCoreConstants.UM_USER_ATTRIBUTE}) {
+            db.getCollection(collection).remove(seeded);
+        }
+    }
+
+    /**
+     * Find a field in the explain output. Aggregations nest the planner output in their first stage.
+     */
+    private static Object find(Object node, String field) {
+        if (node instanceof DBObject) {
+            DBObject object = (DBObject) node;
+            if (object.containsField(field)) {
+                return object.get(field);
+            }
+            for (String key : object.keySet()) {
+                Object found = find(object.get(key), field);
+                if (found != null) {
+                    return found;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void collectStages(DBObject plan, Set<String> stages) {
+        if (plan == null) {
+            return;
+        }
+        if (plan.containsField(STAGE)) {
+            stages.add(String.valueOf(plan.get(STAGE)));
+        }
+        collectStages((DBObject) plan.get(INPUT_STAGE), stages);
+        Object inputStages = plan.get(INPUT_STAGES);
+        if (inputStages instanceof List) {
+            for (Object inputStage : (List) inputStages) {
+                collectStages((DBObject) inputStage, stages);
+            }
+        }
+    }
+
+    private static long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static String userName(int userId) {
+        return "planuser" + userId;
+    }
+
+    private static String roleName(int roleId) {
+        return "planrole" + roleId;
+    }
+
+    private static String attributeValue(String attribute, int userId) {
+        return attribute + userId;
+    }
+}
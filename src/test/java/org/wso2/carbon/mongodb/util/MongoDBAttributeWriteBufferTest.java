@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests of the in-memory state of {@link MongoDBAttributeWriteBuffer}. The buffers point to a server which does not
+ * exist, so a flush fails on its read after the server selection timeout, which leaves time to change the buffer
+ * while the flush is in flight.
+ */
+public class MongoDBAttributeWriteBufferTest {
+
+    private static final AtomicInteger storeCount = new AtomicInteger();
+    private static final int SERVER_SELECTION_TIMEOUT = 2000;
+    private static final long FLUSH_START_TIMEOUT = 1000;
+    private static final int TENANT_ID = -1234;
+    private static final int MAX_USERS = 2;
+    private static final long FLUSH_INTERVAL_SECONDS = 3600;
+    private static final String USER = "admin";
+    private static final int USER_ID = 1;
+    private static final String PROFILE = "default";
+    private static final String LAST_LOGIN = "lastLoginTime";
+    private static final String LOGIN_COUNT = "loginCount";
+
+    private static MongoClient client;
+    private MongoDBAttributeWriteBuffer buffer;
+
+    @BeforeClass
+    public static void setUpClass() {
+        client = new MongoClient(new ServerAddress("localhost", 1),
+                MongoClientOptions.builder().serverSelectionTimeout(SERVER_SELECTION_TIMEOUT).build());
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        MongoDBAttributeWriteBuffer.shutdown();
+        MongoDBScheduler.shutdown();
+        client.close();
+    }
+
+    @Before
+    public void setUp() {
+        buffer = MongoDBAttributeWriteBuffer.getInstance("test#" + storeCount.incrementAndGet(),
+                client.getDB("test"), TENANT_ID, MAX_USERS, FLUSH_INTERVAL_SECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        buffer.discardAll();
+    }
+
+    @Test
+    public void testOfferKeepsLatestValues() {
+        Assert.assertTrue(buffer.offer(USER, USER_ID, PROFILE, values(LAST_LOGIN, "1", LOGIN_COUNT, "1")));
+        Assert.assertTrue(buffer.offer(USER, USER_ID, PROFILE, values(LAST_LOGIN, "2")));
+        Assert.assertEquals(values(LAST_LOGIN, "2", LOGIN_COUNT, "1"), buffer.getPending(USER, PROFILE));
+        Assert.assertNull(buffer.getPending(USER, "other"));
+        Assert.assertNull(buffer.getPending("other", PROFILE));
+        Assert.assertEquals(1, buffer.getPendingCount());
+    }
+
+    @Test
+    public void testFullBufferDropsNewUsers() {
+        Assert.assertTrue(buffer.offer("user1", 1, PROFILE, values(LAST_LOGIN, "1")));
+        Assert.assertTrue(buffer.offer("user2", 2, PROFILE, values(LAST_LOGIN, "1")));
+        Assert.assertFalse(buffer.offer("user3", 3, PROFILE, values(LAST_LOGIN, "1")));
+        Assert.assertEquals(1, buffer.getDroppedCount());
+        Assert.assertNull(buffer.getPending("user3", PROFILE));
+        // Users already buffered still take new values
+        Assert.assertTrue(buffer.offer("user1", 1, PROFILE, values(LAST_LOGIN, "2")));
+        Assert.assertEquals(1, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void testDiscard() {
+        buffer.offer(USER, USER_ID, PROFILE, values(LAST_LOGIN, "1", LOGIN_COUNT, "1"));
+        buffer.discard(USER, Collections.singletonList(LAST_LOGIN));
+        Assert.assertEquals(values(LOGIN_COUNT, "1"), buffer.getPending(USER, PROFILE));
+
+        buffer.discard(USER, Collections.singletonList(LOGIN_COUNT));
+        Assert.assertNull(buffer.getPending(USER, PROFILE));
+        Assert.assertEquals(0, buffer.getPendingCount());
+
+        // The emptied entry is replaced by a new one
+        Assert.assertTrue(buffer.offer(USER, USER_ID, PROFILE, values(LAST_LOGIN, "2")));
+        Assert.assertEquals(values(LAST_LOGIN, "2"), buffer.getPending(USER, PROFILE));
+    }
+
+    @Test
+    public void testDiscardAll() {
+        buffer.offer("user1", 1, PROFILE, values(LAST_LOGIN, "1"));
+        buffer.offer("user2", 2, PROFILE, values(LAST_LOGIN, "1"));
+        buffer.discardAll();
+        Assert.assertEquals(0, buffer.getPendingCount());
+        Assert.assertNull(buffer.getPending("user1", PROFILE));
+        Assert.assertNull(buffer.getPending("user2", PROFILE));
+    }
+
+    @Test
+    public void testFailedFlushRequeuesValues() {
+        buffer.offer(USER, USER_ID, PROFILE, values(LAST_LOGIN, "1", LOGIN_COUNT, "1"));
+        buffer.run();
+        Assert.assertEquals(values(LAST_LOGIN, "1", LOGIN_COUNT, "1"), buffer.getPending(USER, PROFILE));
+        Assert.assertEquals(1, buffer.getPendingCount());
+        Assert.assertEquals(0, buffer.getFlushedCount());
+    }
+
+    @Test
+    public void testNewerValueWinsOverRequeuedValue() throws InterruptedException {
+        buffer.offer(USER, USER_ID, PROFILE, values(LAST_LOGIN, "1", LOGIN_COUNT, "1"));
+        Thread flush = startFlush();
+        // Values being written stay visible
+        Assert.assertEquals(values(LAST_LOGIN, "1", LOGIN_COUNT, "1"), buffer.getPending(USER, PROFILE));
+        Assert.assertTrue(buffer.offer(USER, USER_ID, PROFILE, values(LAST_LOGIN, "2")));
+        Assert.assertEquals(values(LAST_LOGIN, "2", LOGIN_COUNT, "1"), buffer.getPending(USER, PROFILE));
+        flush.join();
+        Assert.assertEquals(values(LAST_LOGIN, "2", LOGIN_COUNT, "1"), buffer.getPending(USER, PROFILE));
+    }
+
+    @Test
+    public void testDiscardDuringFlushDropsValue() throws InterruptedException {
+        buffer.offer(USER, USER_ID, PROFILE, values(LAST_LOGIN, "1", LOGIN_COUNT, "1"));
+        Thread flush = startFlush();
+        buffer.discard(USER, Collections.singletonList(LAST_LOGIN));
+        Assert.assertEquals(values(LOGIN_COUNT, "1"), buffer.getPending(USER, PROFILE));
+        flush.join();
+        Assert.assertEquals(values(LOGIN_COUNT, "1"), buffer.getPending(USER, PROFILE));
+    }
+
+    @Test
+    public void testDiscardAllDuringFlushDropsValues() throws InterruptedException {
+        buffer.offer(USER, USER_ID, PROFILE, values(LAST_LOGIN, "1"));
+        Thread flush = startFlush();
+        buffer.discardAll();
+        Assert.assertNull(buffer.getPending(USER, PROFILE));
+        flush.join();
+        Assert.assertNull(buffer.getPending(USER, PROFILE));
+        Assert.assertEquals(0, buffer.getPendingCount());
+    }
+
+    @Test
+    public void testClosedBufferRefusesValues() {
+        MongoDBAttributeWriteBuffer.shutdown();
+        Assert.assertTrue(buffer.isClosed());
+        Assert.assertFalse(buffer.offer(USER, USER_ID, PROFILE, values(LAST_LOGIN, "1")));
+        Assert.assertNull(buffer.getPending(USER, PROFILE));
+
+        MongoDBAttributeWriteBuffer created = MongoDBAttributeWriteBuffer.getInstance("test#" +
+                storeCount.incrementAndGet(), client.getDB("test"), TENANT_ID, MAX_USERS, FLUSH_INTERVAL_SECONDS);
+        Assert.assertFalse(created.isClosed());
+    }
+
+    /**
+     * Start a flush of the buffer and wait until it has taken the pending values.
+     *
+     * @return Thread of the flush
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private Thread startFlush() throws InterruptedException {
+        Thread flush = new Thread(buffer);
+        flush.start();
+        long deadline = System.currentTimeMillis() + FLUSH_START_TIMEOUT;
+        while (buffer.getPendingCount() > 0) {
+            if (System.currentTimeMillis() > deadline) {
+                Assert.fail("Flush did not start within " + FLUSH_START_TIMEOUT + " ms");
+            }
+            Thread.sleep(1);
+        }
+        return flush;
+    }
+
+    private static Map<String, String> values(String... namesAndValues) {
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            values.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return values;
+    }
+}
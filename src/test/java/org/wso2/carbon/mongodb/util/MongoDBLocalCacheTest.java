@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.util;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of {@link MongoDBLocalCache}, in particular that a value loaded across a removal of its key is never kept.
+ */
+public class MongoDBLocalCacheTest {
+
+    private static final int RACE_ROUNDS = 2000;
+    private static final int LOGIN_THREADS = 4;
+
+    @Test
+    public void testPutAndGet() {
+        MongoDBLocalCache<String, String> cache = new MongoDBLocalCache<>(10, 60);
+        cache.put("admin", "1");
+        cache.put("user", "2", cache.getGeneration("user"));
+        Assert.assertEquals("1", cache.get("admin"));
+        Assert.assertEquals("2", cache.get("user"));
+        Assert.assertNull(cache.get("missing"));
+    }
+
+    @Test
+    public void testDisabledCacheKeepsNothing() {
+        MongoDBLocalCache<String, String> cache = new MongoDBLocalCache<>(0, 0);
+        Assert.assertFalse(cache.isEnabled());
+        cache.put("admin", "1");
+        cache.put("user", "2", cache.getGeneration("user"));
+        Assert.assertNull(cache.get("admin"));
+        Assert.assertNull(cache.get("user"));
+        Assert.assertFalse(new MongoDBLocalCache<String, String>(10, 0).isEnabled());
+        Assert.assertFalse(new MongoDBLocalCache<String, String>(0, 60).isEnabled());
+    }
+
+    @Test
+    public void testEntryExpires() throws InterruptedException {
+        MongoDBLocalCache<String, String> cache = new MongoDBLocalCache<>(10, 1);
+        cache.put("admin", "1");
+        Thread.sleep(1100);
+        Assert.assertNull(cache.get("admin"));
+    }
+
+    @Test
+    public void testFullCacheStaysBounded() {
+        MongoDBLocalCache<Integer, Integer> cache = new MongoDBLocalCache<>(10, 60);
+        for (int i = 0; i < 100; i++) {
+            cache.put(i, i);
+        }
+        int kept = 0;
+        for (int i = 0; i < 100; i++) {
+            if (cache.get(i) != null) {
+                kept++;
+            }
+        }
+        Assert.assertTrue("Cache holds " + kept + " entries", kept > 0 && kept <= 10);
+        Assert.assertEquals(Integer.valueOf(99), cache.get(99));
+    }
+
+    @Test
+    public void testRemoveChangesGeneration() {
+        MongoDBLocalCache<String, String> cache = new MongoDBLocalCache<>(10, 60);
+        long generation = cache.getGeneration("admin");
+        cache.remove("admin");
+        Assert.assertNotEquals(generation, cache.getGeneration("admin"));
+    }
+
+    @Test
+    public void testPutAfterRemoveIsDropped() {
+        MongoDBLocalCache<String, String> cache = new MongoDBLocalCache<>(10, 60);
+        cache.put("admin", "old");
+        long generation = cache.getGeneration("admin");
+        cache.remove("admin");
+        cache.put("admin", "stale", generation);
+        Assert.assertNull(cache.get("admin"));
+
+        cache.put("admin", "fresh", cache.getGeneration("admin"));
+        Assert.assertEquals("fresh", cache.get("admin"));
+    }
+
+    @Test
+    public void testPutAfterClearIsDropped() {
+        MongoDBLocalCache<String, String> cache = new MongoDBLocalCache<>(10, 60);
+        long adminGeneration = cache.getGeneration("admin");
+        long userGeneration = cache.getGeneration("user");
+        cache.clear();
+        cache.put("admin", "stale", adminGeneration);
+        cache.put("user", "stale", userGeneration);
+        Assert.assertNull(cache.get("admin"));
+        Assert.assertNull(cache.get("user"));
+    }
+
+    @Test
+    public void testPutAfterRemoveOfSameStripeIsDropped() {
+        MongoDBLocalCache<Integer, String> cache = new MongoDBLocalCache<>(10, 60);
+        // Small integers hash to themselves, so keys 64 apart share a stripe
+        long generation = cache.getGeneration(1);
+        cache.remove(65);
+        cache.put(1, "stale", generation);
+        Assert.assertNull(cache.get(1));
+    }
+
+    @Test
+    public void testPutRacingRemoveIsNeverKept() throws Exception {
+        final MongoDBLocalCache<String, String> cache = new MongoDBLocalCache<>(10, 60);
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < RACE_ROUNDS; i++) {
+            final long generation = cache.getGeneration("admin");
+            Thread loader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        barrier.await();
+                        cache.put("admin", "stale", generation);
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+            loader.start();
+            barrier.await();
+            cache.remove("admin");
+            loader.join();
+            Assert.assertNull(failure.get());
+            Assert.assertNull("Stale value kept in round " + i, cache.get("admin"));
+        }
+    }
+
+    @Test
+    public void testCredentialUpdatedDuringLoginIsNotCached() {
+        MongoDBLocalCache<String, String> cache = new MongoDBLocalCache<>(10, 60);
+        String key = "-1234/admin";
+        cache.put(key, "oldMac", cache.getGeneration(key));
+
+        // A login reads the generation and the user, the password is then updated before the login caches it
+        long generation = cache.getGeneration(key);
+        cache.remove(key);
+        cache.put(key, "oldMac", generation);
+        Assert.assertNull(cache.get(key));
+
+        cache.put(key, "newMac", cache.getGeneration(key));
+        Assert.assertEquals("newMac", cache.get(key));
+    }
+
+    @Test
+    public void testLoginsRacingClearAreNeverKept() throws Exception {
+        final MongoDBLocalCache<String, String> cache = new MongoDBLocalCache<>(100, 60);
+        final CyclicBarrier barrier = new CyclicBarrier(LOGIN_THREADS + 1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < RACE_ROUNDS / 10; i++) {
+            Thread[] logins = new Thread[LOGIN_THREADS];
+            for (int j = 0; j < LOGIN_THREADS; j++) {
+                final String key = "-1234/user" + j;
+                final long generation = cache.getGeneration(key);
+                logins[j] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            barrier.await();
+                            cache.put(key, "staleMac", generation);
+                        } catch (Throwable e) {
+                            failure.set(e);
+                        }
+                    }
+                });
+                logins[j].start();
+            }
+            barrier.await();
+            cache.clear();
+            for (Thread login : logins) {
+                login.join();
+            }
+            Assert.assertNull(failure.get());
+            for (int j = 0; j < LOGIN_THREADS; j++) {
+                Assert.assertNull("Stale credential kept in round " + i, cache.get("-1234/user" + j));
+            }
+        }
+    }
+}
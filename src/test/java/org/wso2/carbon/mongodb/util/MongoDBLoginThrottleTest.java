@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2018, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.mongodb.util;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the in-memory counters of {@link MongoDBLoginThrottle}. The flush interval is long enough that no flush
+ * runs during a test, so no database is needed.
+ */
+public class MongoDBLoginThrottleTest {
+
+    private static final AtomicInteger storeCount = new AtomicInteger();
+    private static final int TENANT_ID = -1234;
+    private static final int THRESHOLD = 3;
+    private static final long BASE_DELAY_SECONDS = 60;
+    private static final long MAX_DELAY_SECONDS = 600;
+    private static final long FLUSH_INTERVAL_SECONDS = 3600;
+    private static final String USER = "admin";
+    private static final int USER_ID = 1;
+
+    private MongoDBLoginThrottle throttle;
+
+    @Before
+    public void setUp() {
+        throttle = MongoDBLoginThrottle.getInstance("test#" + storeCount.incrementAndGet(), null, TENANT_ID,
+                THRESHOLD, BASE_DELAY_SECONDS, MAX_DELAY_SECONDS, FLUSH_INTERVAL_SECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        // Nothing is left to flush to the missing database
+        throttle.clear();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        MongoDBLoginThrottle.shutdown();
+        MongoDBScheduler.shutdown();
+    }
+
+    @Test
+    public void testBlockedAtThreshold() {
+        for (int i = 1; i < THRESHOLD; i++) {
+            throttle.onFailure(USER, USER_ID);
+            Assert.assertFalse(throttle.isBlocked(USER));
+        }
+        throttle.onFailure(USER, USER_ID);
+        Assert.assertTrue(throttle.isBlocked(USER));
+        Assert.assertEquals(THRESHOLD, throttle.getFailures(USER));
+        Assert.assertFalse(throttle.isBlocked("other"));
+    }
+
+    @Test
+    public void testMergeAddsPersistedFailuresToPending() {
+        throttle.onFailure(USER, USER_ID);
+        throttle.merge(USER, USER_ID, 3, new Date(), null);
+        Assert.assertEquals(4, throttle.getFailures(USER));
+    }
+
+    @Test
+    public void testMergeTakesOverPersistedWindow() {
+        long now = System.currentTimeMillis();
+        throttle.merge(USER, USER_ID, THRESHOLD, new Date(now), new Date(now + TimeUnit.MINUTES.toMillis(1)));
+        Assert.assertTrue(throttle.isBlocked(USER));
+        throttle.merge(USER, USER_ID, THRESHOLD, new Date(now), new Date(now - 1));
+        Assert.assertFalse(throttle.isBlocked(USER));
+    }
+
+    @Test
+    public void testMergeKeepsWindowOfUnflushedFailures() {
+        for (int i = 0; i < THRESHOLD; i++) {
+            throttle.onFailure(USER, USER_ID);
+        }
+        // The window opened by this node is not in the document yet
+        throttle.merge(USER, USER_ID, 1, new Date(), null);
+        Assert.assertTrue(throttle.isBlocked(USER));
+        Assert.assertEquals(THRESHOLD + 1, throttle.getFailures(USER));
+    }
+
+    @Test
+    public void testSuccessSubtractsClearedFailuresFromLaterMerge() {
+        throttle.merge(USER, USER_ID, 3, new Date(), null);
+        throttle.onSuccess(USER, USER_ID, true);
+        Assert.assertEquals(0, throttle.getFailures(USER));
+        Assert.assertFalse(throttle.isBlocked(USER));
+
+        // Read before the subtraction is flushed, with two failures recorded by another node since
+        throttle.merge(USER, USER_ID, 5, new Date(), null);
+        Assert.assertEquals(2, throttle.getFailures(USER));
+    }
+
+    @Test
+    public void testSuccessDropsUnflushedFailures() {
+        for (int i = 0; i < THRESHOLD; i++) {
+            throttle.onFailure(USER, USER_ID);
+        }
+        throttle.onSuccess(USER, USER_ID, false);
+        Assert.assertFalse(throttle.isBlocked(USER));
+        Assert.assertEquals(0, throttle.getFailures(USER));
+
+        throttle.merge(USER, USER_ID, 0, null, null);
+        Assert.assertEquals(0, throttle.getFailures(USER));
+    }
+
+    @Test
+    public void testExpiredFailuresAreIgnored() {
+        long lastFailure = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(MAX_DELAY_SECONDS) - 1000;
+        throttle.merge(USER, USER_ID, 10, new Date(lastFailure), new Date(System.currentTimeMillis() + 60000));
+        Assert.assertEquals(0, throttle.getFailures(USER));
+        Assert.assertFalse(throttle.isBlocked(USER));
+    }
+
+    @Test
+    public void testRemoveAndClear() {
+        for (int i = 0; i < THRESHOLD; i++) {
+            throttle.onFailure(USER, USER_ID);
+            throttle.onFailure("other", USER_ID + 1);
+        }
+        throttle.remove(USER);
+        Assert.assertFalse(throttle.isBlocked(USER));
+        Assert.assertEquals(0, throttle.getFailures(USER));
+        Assert.assertTrue(throttle.isBlocked("other"));
+
+        throttle.clear();
+        Assert.assertFalse(throttle.isBlocked("other"));
+        Assert.assertEquals(0, throttle.getFailures("other"));
+    }
+
+    @Test
+    public void testConcurrentFailuresAreAllCounted() throws InterruptedException {
+        final int threads = 4;
+        final int failuresPerThread = 1000;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < failuresPerThread; j++) {
+                        throttle.onFailure(USER, USER_ID);
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Assert.assertEquals(threads * failuresPerThread, throttle.getFailures(USER));
+        Assert.assertTrue(throttle.isBlocked(USER));
+    }
+
+    @Test
+    public void testShutdownClosesThrottle() {
+        MongoDBLoginThrottle.shutdown();
+        Assert.assertTrue(throttle.isClosed());
+        MongoDBLoginThrottle created = MongoDBLoginThrottle.getInstance("test#" + storeCount.incrementAndGet(), null,
+                TENANT_ID, THRESHOLD, BASE_DELAY_SECONDS, MAX_DELAY_SECONDS, FLUSH_INTERVAL_SECONDS);
+        Assert.assertFalse(created.isClosed());
+    }
+}